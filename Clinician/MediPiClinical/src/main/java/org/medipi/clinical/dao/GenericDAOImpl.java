@@ -70,27 +70,35 @@ public abstract class GenericDAOImpl<T> implements GenericDAO<T> {
     @Override
     public T save(final T object) {
         this.getEntityManager().persist(object);
-        logger.log(object.getClass().getName() + ".info", "Object persisted:" + object + " of type:" + object.getClass());
+        if (logger.isLoggable(object.getClass().getName() + ".info")) {
+            logger.log(object.getClass().getName() + ".info", "Object persisted:" + object + " of type:" + object.getClass());
+        }
         return object;
     }
 
     @Override
     public T update(final T object) {
         final T updatedObject = this.getEntityManager().merge(object);
-        logger.log(object.getClass().getName() + ".info", "Object updated:" + object + " of type:" + object.getClass());
+        if (logger.isLoggable(object.getClass().getName() + ".info")) {
+            logger.log(object.getClass().getName() + ".info", "Object updated:" + object + " of type:" + object.getClass());
+        }
         return updatedObject;
     }
 
     @Override
     public void delete(final Object id) {
         this.getEntityManager().remove(this.getEntityManager().getReference(this.type, id));
-        logger.log(id.getClass().getName() + ".info", "Object Deleted:<" + id + ">");
+        if (logger.isLoggable(id.getClass().getName() + ".info")) {
+            logger.log(id.getClass().getName() + ".info", "Object Deleted:<" + id + ">");
+        }
     }
 
     @Override
     public T findByPrimaryKey(final Object id) {
         final T object = this.getEntityManager().find(this.type, id);
-        logger.log(id.getClass().getName() + ".info", "Find entity by primary key:<" + id + ">");
+        if (logger.isLoggable(id.getClass().getName() + ".info")) {
+            logger.log(id.getClass().getName() + ".info", "Find entity by primary key:<" + id + ">");
+        }
         return object;
     }
 }
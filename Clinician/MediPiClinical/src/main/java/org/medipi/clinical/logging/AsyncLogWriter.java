@@ -0,0 +1,271 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.clinical.logging;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Asynchronous writer for the MediPi log file.
+ *
+ * Log entries are placed on a bounded, lock free, multiple producer single
+ * consumer ring buffer and written to the log file by a single background
+ * thread. The thread drains all the waiting entries, formats them and writes
+ * them with a single flush, so logging threads do not wait for file I/O. The
+ * entries are formatted by the writer thread in the same form as the
+ * java.util.logging SimpleFormatter.
+ *
+ * When the buffer is full the entry is either dropped (DROP) or the logging
+ * thread waits for space (BLOCK) depending on the overflow policy
+ *
+ * @author rick@robinsonhq.com
+ */
+public class AsyncLogWriter {
+
+    /**
+     * Action taken when the ring buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the new entry and count it as dropped
+         */
+        DROP,
+        /**
+         * Wait until the writer thread has made space
+         */
+        BLOCK
+    }
+
+    private static final int MAXBATCH = 1024;
+    private static final long IDLEPARKNANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long BLOCKPARKNANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Entry[] buffer;
+    // sequence number of each slot - a slot may be written when its sequence equals the producer position and read when it is one more
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only accessed by the writer thread
+    private long head = 0;
+
+    private final OverflowPolicy overflowPolicy;
+    private final Writer out;
+    private final Formatter formatter = new SimpleFormatter();
+    private final String sourceClassName;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written = 0;
+    private volatile long flushes = 0;
+
+    private static class Entry {
+
+        private final Level level;
+        private final long millis;
+        private final String location;
+        private final String message;
+
+        Entry(Level level, long millis, String location, String message) {
+            this.level = level;
+            this.millis = millis;
+            this.location = location;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Constructor. Opens the log file for appending and starts the writer
+     * thread
+     *
+     * @param fileName log file
+     * @param capacity number of entries held by the ring buffer - rounded up
+     * to a power of 2
+     * @param overflowPolicy action taken when the ring buffer is full
+     * @param sourceClassName class name reported as the source of each entry
+     * @throws IOException if the log file cannot be opened
+     */
+    public AsyncLogWriter(String fileName, int capacity, OverflowPolicy overflowPolicy, String sourceClassName) throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.buffer = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.sourceClassName = sourceClassName;
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8), 64 * 1024);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "medipi-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Add an entry to the log. The message is formatted and written by the
+     * writer thread
+     *
+     * @param level level of the entry
+     * @param location where the message has been raised
+     * @param message the message to be logged
+     * @return false if the entry was dropped
+     */
+    public boolean offer(Level level, String location, String message) {
+        Entry e = new Entry(level, System.currentTimeMillis(), location, message);
+        while (!tryOffer(e)) {
+            if (overflowPolicy == OverflowPolicy.DROP || !running) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            LockSupport.parkNanos(BLOCKPARKNANOS);
+        }
+        return true;
+    }
+
+    private boolean tryOffer(Entry e) {
+        while (true) {
+            long t = tail.get();
+            int index = (int) (t & mask);
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    buffer[index] = e;
+                    // publish the entry to the writer thread
+                    sequences.lazySet(index, t + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // the writer has not yet consumed this slot - the buffer is full
+                return false;
+            }
+            // another thread claimed this slot first - try the next one
+        }
+    }
+
+    private Entry poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Entry e = buffer[index];
+        buffer[index] = null;
+        // release the slot for the producer one lap ahead
+        sequences.lazySet(index, head + buffer.length);
+        head++;
+        return e;
+    }
+
+    private void drainLoop() {
+        while (running || tail.get() != head) {
+            int batch = 0;
+            Entry e;
+            try {
+                while (batch < MAXBATCH && (e = poll()) != null) {
+                    out.write(format(e));
+                    batch++;
+                }
+                if (batch > 0) {
+                    out.flush();
+                    written += batch;
+                    flushes++;
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("Failed to write to the MediPi log - " + ex.toString());
+            }
+            if (batch == 0) {
+                LockSupport.parkNanos(IDLEPARKNANOS);
+            }
+        }
+    }
+
+    private String format(Entry e) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Location: ");
+        if ((e.location == null) || (e.location.trim().length() == 0)) {
+            sb.append("Not given");
+        } else {
+            sb.append(e.location);
+        }
+        sb.append(" : Message: ");
+        if ((e.message == null) || (e.message.trim().length() == 0)) {
+            sb.append("Not given");
+        } else {
+            sb.append(e.message);
+        }
+        LogRecord record = new LogRecord(e.level, sb.toString());
+        record.setMillis(e.millis);
+        record.setSourceClassName(sourceClassName);
+        record.setSourceMethodName("log");
+        return formatter.format(record);
+    }
+
+    /**
+     * Write all the waiting entries, stop the writer thread and close the log
+     * file
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            System.err.println("Failed to close the MediPi log - " + ex.toString());
+        }
+    }
+
+    /**
+     * @return number of entries dropped because the ring buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of entries written to the log file
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return number of batched writes to the log file
+     */
+    public long getFlushes() {
+        return flushes;
+    }
+}
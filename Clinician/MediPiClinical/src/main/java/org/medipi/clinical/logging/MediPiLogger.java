@@ -18,11 +18,11 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Properties;
 import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
-import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.SimpleFormatter;
+import org.medipi.clinical.MediPiProperties;
 import org.medipi.clinical.utilities.ConfigurationStringTokeniser;
 import org.medipi.clinical.utilities.Utilities;
 /**
@@ -33,13 +33,20 @@ import org.medipi.clinical.utilities.Utilities;
  *  Note:  setAppName(String name, String ldir) should be called before any logging call.  
  *         closeLog() will close the logging file.
  *         setAppName() and closeLog() should be called as a pair with a logging file.
+ *
+ *  The medipi.log.level, medipi.log.buffersize and medipi.log.overflowpolicy settings are read from
+ *  the properties file when setAppName() is called. A system property of the same name overrides the
+ *  properties file.
  * 
  * @author Damian Murphy <murff@warlock.org>
  */
 public class MediPiLogger {
     
-    private static java.util.logging.Logger appLogger = null;
     private static final String INTERNALLOGLEVELS = "MediPiInternalLoggingLevels.txt";
+    private static final String LOGLEVEL = "medipi.log.level";
+    private static final String LOGBUFFERSIZE = "medipi.log.buffersize";
+    private static final String LOGOVERFLOWPOLICY = "medipi.log.overflowpolicy";
+    private static final int DEFAULTBUFFERSIZE = 8192;
 
     /**
      *
@@ -51,7 +58,8 @@ public class MediPiLogger {
     private static String dateString = null;
     private static MediPiLogger me = null;
     private static String logFileName = null;
-    private boolean useAppLogger = false;
+    private volatile AsyncLogWriter asyncWriter = null;
+    private volatile Level minimumLevel = Level.ALL;
     
     /** Creates a new instance of Logger */
     private MediPiLogger() {
@@ -60,6 +68,9 @@ public class MediPiLogger {
         ConsoleHandler ch = new ConsoleHandler();
         ch.setFormatter(new SimpleFormatter());
         consoleLogger.addHandler(ch);
+        consoleLogger.setUseParentHandlers(false);
+        consoleLogger.setLevel(Level.ALL);
+        setMinimumLevel();
     
         /* load the Internal Loggin Levels file - this may be updated at a later stage by having an 
          external one but for the time being this will be sufficient */
@@ -92,6 +103,36 @@ public class MediPiLogger {
     }
         
       
+    private void setMinimumLevel() {
+        String level = getSetting(LOGLEVEL);
+        if (level != null) {
+            try {
+                minimumLevel = Level.parse(level.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unrecognised logging level " + level + " in " + LOGLEVEL + " - logging all levels");
+                minimumLevel = Level.ALL;
+            }
+        }
+    }
+
+    /**
+     * Return a logging setting. A system property overrides the properties file
+     *
+     * @param key name of the setting
+     * @return the setting or null if it is not set
+     */
+    private static String getSetting(String key) {
+        String value = System.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            Properties properties = MediPiProperties.getInstance().getProperties();
+            value = properties == null ? null : properties.getProperty(key);
+        }
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        return value.trim();
+    }
+
     public static String getDate() { return Utilities.INTERNAL_FORMAT.format(new Date()); }
 
     /**
@@ -102,6 +143,9 @@ public class MediPiLogger {
      */
     public void log(String location, Exception e)
     {
+       if (!isLoggable(location)) {
+           return;
+       }
        log(location, makeMessage(e));
     }    
     
@@ -167,6 +211,17 @@ public class MediPiLogger {
      *  @param message   the message to be logged. 
      */
     public void log(Level l, String location, String message) {
+        if (l == null) {
+            l = Level.INFO;
+        }
+        if (!isLoggable(l)) {
+            return;
+        }
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.offer(l, location, message);
+            return;
+        }
         StringBuilder sb = new StringBuilder();        
         sb.append("Location: ");
         if ((location == null) || (location.trim().length() == 0))
@@ -179,19 +234,54 @@ public class MediPiLogger {
         else
             sb.append(message);
 
-        java.util.logging.Logger eventlog = null;
-        if (useAppLogger) {
-            eventlog = appLogger;
-        } else {
-            eventlog = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
-        }
-        eventlog.setUseParentHandlers(false);
-        eventlog.setLevel(Level.ALL);
-        if(l == null){
-            eventlog.log(Level.INFO, sb.toString());
-        }else{
-            eventlog.log(l, sb.toString());
-        }
+        java.util.logging.Logger.getLogger(CONSOLE_LOGGER).log(l, sb.toString());
+    }
+
+    /**
+     * Test whether a message raised at the given location would be logged.
+     * Callers which build expensive messages should check this first so that
+     * the message is not composed only to be discarded.
+     *
+     * @param location where the message would be raised
+     * @return true if the message would be logged
+     */
+    public boolean isLoggable(String location) {
+        Level l = logLevelsMap.get(location);
+        return isLoggable(l == null ? Level.INFO : l);
+    }
+
+    /**
+     * Test whether a message at the given level would be logged.
+     *
+     * @param l java.util.logging.Level
+     * @return true if the message would be logged
+     */
+    public boolean isLoggable(Level l) {
+        return l.intValue() >= minimumLevel.intValue() && minimumLevel != Level.OFF;
+    }
+
+    /**
+     * @return number of log entries discarded because the log buffer was full
+     */
+    public long getDropped() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.getDropped();
+    }
+
+    /**
+     * @return number of log entries written to the log file
+     */
+    public long getWritten() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.getWritten();
+    }
+
+    /**
+     * @return number of times the log file has been flushed
+     */
+    public long getFlushes() {
+        AsyncLogWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.getFlushes();
     }
     
     /**
@@ -205,12 +295,10 @@ public class MediPiLogger {
     }
     
     public void close() {
-        if (appName != null) {
-            java.util.logging.Logger log = null;
-            log = java.util.logging.Logger.getLogger(appName);
-            for (Handler h : log.getHandlers()) {
-                h.close();
-            }
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            asyncWriter = null;
+            writer.close();
         }
     }
     
@@ -233,9 +321,7 @@ public class MediPiLogger {
         if (appName == null) {
             logDir = ldir;
             appName = name;
-            
-            appLogger = java.util.logging.Logger.getLogger(appName); 
-            appLogger.setUseParentHandlers(false);
+
             StringBuilder sb = new StringBuilder(logDir);
             if(!(logDir.endsWith("/") || logDir.endsWith("\\"))) {
                 sb.append("/");
@@ -246,10 +332,20 @@ public class MediPiLogger {
             sb.append(".log");
             logFileName = sb.toString();
             try {
-                FileHandler fh = new FileHandler(logFileName, 0, 1, true);
-                fh.setFormatter(new SimpleFormatter());
-                appLogger.addHandler(fh);
-                useAppLogger = true;
+                // the properties file has been loaded by now
+                setMinimumLevel();
+                AsyncLogWriter.OverflowPolicy policy = AsyncLogWriter.OverflowPolicy.DROP;
+                String p = getSetting(LOGOVERFLOWPOLICY);
+                if (p != null && p.equalsIgnoreCase(AsyncLogWriter.OverflowPolicy.BLOCK.name())) {
+                    policy = AsyncLogWriter.OverflowPolicy.BLOCK;
+                }
+                int capacity = DEFAULTBUFFERSIZE;
+                String c = getSetting(LOGBUFFERSIZE);
+                if (c != null) {
+                    capacity = Integer.parseInt(c);
+                }
+                asyncWriter = new AsyncLogWriter(logFileName, capacity, policy, MediPiLogger.class.getName());
+                Runtime.getRuntime().addShutdownHook(new Thread(this::close, "medipi-log-shutdown"));
             }
             catch (Exception e) {
                 java.util.logging.Logger consoleLogger = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
@@ -0,0 +1,222 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.medipi.model.DeviceDataDO;
+import org.medipi.model.DevicesPayloadDO;
+
+/**
+ * Compact binary codec for DevicesPayloadDO.
+ *
+ * The payload is written as a version byte followed by the upload UUID, the
+ * uploaded date and each of the device data entries. Strings are written as a
+ * length prefixed UTF-8 byte array (a length of -1 denotes null) and dates as
+ * epoch milliseconds (Long.MIN_VALUE denotes null). The whole stream is
+ * deflated as the device data payloads are highly repetitive text.
+ *
+ * Unlike Java serialization the encoding carries no class descriptors and
+ * decoding cannot instantiate any class other than the MediPi data objects.
+ * The inflated size of a payload is limited so that a small compressed payload
+ * cannot be used to exhaust the memory of the receiver
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DevicesPayloadCodec implements PayloadCodec {
+
+    /**
+     * Content type placed in the JWS header of payloads encoded by this codec
+     */
+    public static final String CONTENTTYPE = "medipi-devicespayload-v1";
+    private static final int VERSION = 1;
+    private static final long NULLDATE = Long.MIN_VALUE;
+    // guards against allocating huge arrays from a corrupt or hostile payload
+    private static final int MAXSTRINGLENGTH = 64 * 1024 * 1024;
+    private static final int MAXENTRIES = 1000000;
+    /**
+     * Default limit in bytes of the inflated size of a payload
+     */
+    public static final long DEFAULTMAXDECODEDSIZE = 64 * 1024 * 1024;
+
+    private final long maxDecodedSize;
+
+    /**
+     * Constructor using the default limit on the inflated size of a payload
+     */
+    public DevicesPayloadCodec() {
+        this(DEFAULTMAXDECODEDSIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxDecodedSize limit in bytes of the inflated size of a payload
+     * which may be decoded
+     */
+    public DevicesPayloadCodec(long maxDecodedSize) {
+        this.maxDecodedSize = maxDecodedSize;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENTTYPE;
+    }
+
+    @Override
+    public boolean canEncode(Object payload) {
+        return payload instanceof DevicesPayloadDO;
+    }
+
+    @Override
+    public byte[] encode(Object payload) throws IOException {
+        if (!canEncode(payload)) {
+            throw new IOException("Payload type not supported by " + CONTENTTYPE + " codec");
+        }
+        DevicesPayloadDO dp = (DevicesPayloadDO) payload;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bos))) {
+            out.writeByte(VERSION);
+            writeString(out, dp.getUploadUuid());
+            out.writeLong(dp.getUploadedDate() == null ? NULLDATE : dp.getUploadedDate().getTime());
+            List<DeviceDataDO> entries = dp.getPayload();
+            if (entries == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(entries.size());
+                for (DeviceDataDO ddo : entries) {
+                    writeString(out, ddo.getDeviceDataUuid());
+                    writeString(out, ddo.getProfileId());
+                    writeString(out, ddo.getPayload());
+                }
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BoundedInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)), maxDecodedSize))) {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported " + CONTENTTYPE + " codec version: " + version);
+            }
+            DevicesPayloadDO dp = new DevicesPayloadDO(readString(in));
+            long uploadedDate = in.readLong();
+            if (uploadedDate != NULLDATE) {
+                dp.setUploadedDate(new Date(uploadedDate));
+            }
+            int count = in.readInt();
+            if (count > MAXENTRIES) {
+                throw new IOException("Device data entry count out of range: " + count);
+            }
+            if (count < 0) {
+                dp.setPayload(null);
+            } else {
+                List<DeviceDataDO> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    DeviceDataDO ddo = new DeviceDataDO(readString(in));
+                    ddo.setProfileId(readString(in));
+                    ddo.setPayload(readString(in));
+                    entries.add(ddo);
+                }
+                dp.setPayload(entries);
+            }
+            return dp;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < -1 || length > MAXSTRINGLENGTH || length > maxDecodedSize) {
+            throw new IOException("String length out of range: " + length);
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stream which fails once more than a given number of bytes have been read
+     * from it
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long count = 0;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(long n) throws IOException {
+            count += n;
+            if (count > limit) {
+                throw new IOException("Decoded payload is larger than the limit of " + limit + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+/**
+ * Payload codec using Java serialization. This is the original MediPi payload
+ * format and is used to decode payloads which have no content type in their JWS
+ * header.
+ *
+ * Only the MediPi data objects and the core java.lang/java.util classes they
+ * are built from may be deserialised so that an arbitrary object graph cannot
+ * be instantiated from an incoming payload
+ *
+ * @author rick@robinsonhq.com
+ */
+public class JavaSerializationCodec implements PayloadCodec {
+
+    private static final String[] ALLOWEDPREFIXES = {"org.medipi.", "java.lang.", "java.util.", "java.math.", "java.sql.Timestamp", "java.sql.Date"};
+
+    @Override
+    public String getContentType() {
+        // no content type is set so that the payload is understood by all versions of MediPi
+        return null;
+    }
+
+    @Override
+    public boolean canEncode(Object payload) {
+        return payload instanceof Serializable;
+    }
+
+    @Override
+    public byte[] encode(Object payload) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(payload);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new RestrictedObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in payload: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private static class RestrictedObjectInputStream extends ObjectInputStream {
+
+        RestrictedObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            // strip any array prefix e.g. [Ljava.lang.String;
+            String component = name.replaceFirst("^\\[+L", "").replace(";", "");
+            if (name.matches("^\\[+[ZBCSIJFD]$")) {
+                return super.resolveClass(desc);
+            }
+            for (String prefix : ALLOWEDPREFIXES) {
+                if (component.startsWith(prefix)) {
+                    return super.resolveClass(desc);
+                }
+            }
+            throw new InvalidClassException(name, "Class is not permitted in a MediPi payload");
+        }
+    }
+}
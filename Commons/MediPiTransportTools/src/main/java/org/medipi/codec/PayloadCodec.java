@@ -0,0 +1,60 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.codec;
+
+import java.io.IOException;
+
+/**
+ * Interface for codecs which convert a payload to and from the bytes which are
+ * signed and encrypted for transmission between MediPi components.
+ *
+ * The content type of the codec is carried in the "cty" header of the JWS so
+ * that the receiver can choose the matching codec to decode the payload
+ *
+ * @author rick@robinsonhq.com
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return the content type placed in the JWS header for payloads encoded
+     * by this codec or null if no content type is to be set
+     */
+    public String getContentType();
+
+    /**
+     * @param payload the payload to be encoded
+     * @return true if this codec can encode the payload
+     */
+    public boolean canEncode(Object payload);
+
+    /**
+     * Encode the payload
+     *
+     * @param payload the payload to be encoded
+     * @return encoded representation of the payload
+     * @throws IOException if the payload cannot be encoded
+     */
+    public byte[] encode(Object payload) throws IOException;
+
+    /**
+     * Decode a payload
+     *
+     * @param bytes encoded representation of the payload
+     * @return the payload
+     * @throws IOException if the payload cannot be decoded
+     */
+    public Object decode(byte[] bytes) throws IOException;
+}
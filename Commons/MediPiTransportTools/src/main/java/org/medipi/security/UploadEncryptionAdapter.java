@@ -35,18 +35,15 @@ import com.nimbusds.jose.crypto.RSASSAVerifier;
 import com.nimbusds.jwt.EncryptedJWT;
 import com.nimbusds.jwt.JWTClaimsSet;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
@@ -71,10 +68,19 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.medipi.codec.DevicesPayloadCodec;
+import org.medipi.codec.JavaSerializationCodec;
+import org.medipi.codec.PayloadCodec;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 
 /**
@@ -83,6 +89,12 @@ import org.medipi.model.EncryptedAndSignedUploadDO;
  * perform encryption and signing. This implements: Signing JWS RFC 7515
  * Encryption JWE RFC 7516
  *
+ * The RSA signer, encrypter and decrypter are built once when the keys are
+ * loaded and are reused (they are thread safe). Signing certificates which have
+ * been validated against the trusted store chain are cached by their SHA-256
+ * fingerprint until the cache TTL passes or the certificate expires, so the
+ * PKIX validation of a patient's certificate is not repeated for every upload
+ *
  * @author Richard Robison rrobinson@nhs.net
  */
 public class UploadEncryptionAdapter {
@@ -126,11 +138,42 @@ public class UploadEncryptionAdapter {
     private RSAPrivateKey encryptPrivateKey;
     private static final int AESKEYSIZE = 256;
 
+    // thread safe JOSE instances built once when the keys are loaded
+    private JWSSigner signer;
+    private RSAEncrypter encrypter;
+    private RSADecrypter decrypter;
+
+    private static final long DEFAULTVERIFIEDCERTIFICATETTL = TimeUnit.HOURS.toMillis(24);
+    private static final int MAXVERIFIEDCERTIFICATES = 10000;
+    private long verifiedCertificateTtl = DEFAULTVERIFIEDCERTIFICATETTL;
+    private final ConcurrentHashMap<String, VerifiedCertificate> verifiedCertificates = new ConcurrentHashMap<>();
+    private final AtomicLong verifiedCertificateHits = new AtomicLong();
+    private final AtomicLong verifiedCertificateMisses = new AtomicLong();
+
+    private static final PayloadCodec LEGACYCODEC = new JavaSerializationCodec();
+    private final Map<String, PayloadCodec> decoders = new ConcurrentHashMap<>();
+    private PayloadCodec payloadCodec;
+
+    /**
+     * A signing certificate which has been validated against the trusted store
+     * chain together with a verifier for its public key
+     */
+    private static class VerifiedCertificate {
+
+        private final JWSVerifier verifier;
+        private final long expiry;
+
+        VerifiedCertificate(JWSVerifier verifier, long expiry) {
+            this.verifier = verifier;
+            this.expiry = expiry;
+        }
+    }
+
     /**
      * Constructor
      */
     public UploadEncryptionAdapter() {
-
+        addDecoder(new DevicesPayloadCodec());
     }
 
     /**
@@ -206,6 +249,7 @@ public class UploadEncryptionAdapter {
                         FileInputStream fis = new FileInputStream(signKey);
                         sks.load(fis, signPassword.toCharArray());
                         signPrivateKey = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) sks.getEntry(signAlias, pp)).getPrivateKey());
+                        signer = new RSASSASigner(signPrivateKey);
                         // We pass the full certificate chain but will only use the signing cert when this arrives at the host concentrator.
                         // The signing cert will be used to walk up the chain in the local trusted store
                         Certificate[] c = sks.getCertificateChain(signAlias);
@@ -253,6 +297,7 @@ public class UploadEncryptionAdapter {
                 Certificate cert = cf.generateCertificate(stream);
                 X509Certificate x509cert = (X509Certificate) cert;
                 encryptPublicKey = (RSAPublicKey) x509cert.getPublicKey();
+                encrypter = new RSAEncrypter(encryptPublicKey);
             } else {
                 String truststoreLocation = cd.getENCRYPTTRUSTSTORELOCATION();
                 String truststorePass = cd.getENCRYPTTRUSTSTOREPASSWORD();
@@ -263,6 +308,7 @@ public class UploadEncryptionAdapter {
                             KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
                             X509Certificate trustcert = (X509Certificate) trustStore.getCertificate(truststoreAlias);
                             encryptPublicKey = (RSAPublicKey) trustcert.getPublicKey();
+                            encrypter = new RSAEncrypter(encryptPublicKey);
                         } else {
                             return "Encryption truststore alias not set";
                         }
@@ -297,6 +343,8 @@ public class UploadEncryptionAdapter {
                         signTrustCerts[i++] = (X509Certificate) trustStore.getCertificate(alias
                                 .nextElement());
                     }
+                    // the trusted chain may have changed so previously verified certificates must be checked again
+                    verifiedCertificates.clear();
                 } else {
                     return "Signature truststore password not set";
                 }
@@ -325,6 +373,7 @@ public class UploadEncryptionAdapter {
                         FileInputStream fis = new FileInputStream(encryptKey);
                         sks.load(fis, encryptPassword.toCharArray());
                         encryptPrivateKey = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) sks.getEntry(encryptAlias, pp)).getPrivateKey());
+                        decrypter = new RSADecrypter(encryptPrivateKey);
                         return null;
                     } catch (Exception e) {
                         return "error loading Encryption certificate: " + e.getLocalizedMessage();
@@ -354,46 +403,26 @@ public class UploadEncryptionAdapter {
      * @throws Exception
      */
     public EncryptedAndSignedUploadDO encryptAndSign(Serializable dp) throws Exception {
-        // serialize the object
+        // serialize the object using the compact codec when one has been set which understands it
+        PayloadCodec codec = payloadCodec != null && payloadCodec.canEncode(dp) ? payloadCodec : LEGACYCODEC;
+        byte[] yourBytes;
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutput out = null;
-            try {
-                out = new ObjectOutputStream(bos);
-                out.writeObject(dp);
-                byte[] yourBytes = bos.toByteArray();
-                String signedPayload = signPayload(yourBytes);
-                KeyGenerator kgen;
-                try {
-                    kgen = KeyGenerator.getInstance("AES");
-                    kgen.init(AESKEYSIZE);
-                } catch (NoSuchAlgorithmException ex) {
-                    throw new Exception("encryption algorithm is unrecognised. " + ex.getLocalizedMessage());
-                }
-                SecretKey key = kgen.generateKey();
-                EncryptedAndSignedUploadDO easu = new EncryptedAndSignedUploadDO(UUID.randomUUID().toString());
-                String aesEncryptedPayload = symmetricallyEncrypt(signedPayload, key);
-                String rsaEncryptedSharedKey = encryptSharedKey(key);
-                return new EncryptedAndSignedUploadDO(UUID.randomUUID().toString(), rsaEncryptedSharedKey, aesEncryptedPayload);
-
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
-                    }
-                } catch (IOException ex) {
-                    // ignore close exception
-                }
-                try {
-                    bos.close();
-                } catch (IOException ex) {
-                    // ignore close exception
-                }
-            }
-
+            yourBytes = codec.encode(dp);
         } catch (IOException ex) {
             throw new Exception("cannot serialise payload for transmission ." + ex.getLocalizedMessage());
         }
+        String signedPayload = signPayload(yourBytes, codec.getContentType());
+        KeyGenerator kgen;
+        try {
+            kgen = KeyGenerator.getInstance("AES");
+            kgen.init(AESKEYSIZE);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Exception("encryption algorithm is unrecognised. " + ex.getLocalizedMessage());
+        }
+        SecretKey key = kgen.generateKey();
+        String aesEncryptedPayload = symmetricallyEncrypt(signedPayload, key);
+        String rsaEncryptedSharedKey = encryptSharedKey(key);
+        return new EncryptedAndSignedUploadDO(UUID.randomUUID().toString(), rsaEncryptedSharedKey, aesEncryptedPayload);
     }
 
     /**
@@ -404,13 +433,26 @@ public class UploadEncryptionAdapter {
      * @throws Exception
      */
     public String signPayload(byte[] pay) throws Exception {
-        try {
-            // Create RSA-signer with the private key
-            JWSSigner signer = new RSASSASigner(signPrivateKey);
+        return signPayload(pay, null);
+    }
 
+    /**
+     * Method to sign a payload declaring the content type of the payload
+     *
+     * @param pay payload to be signed
+     * @param contentType content type of the payload to be placed in the JWS
+     * header or null if there is none
+     * @return String serialisation of the signed JWSObject
+     * @throws Exception
+     */
+    public String signPayload(byte[] pay, String contentType) throws Exception {
+        try {
             // Prepare JWS object with simple string as payload
             JWSHeader.Builder builder = new JWSHeader.Builder(JWSAlgorithm.RS256);
             builder.x509CertChain(certChain);
+            if (contentType != null) {
+                builder.contentType(contentType);
+            }
             JWSObject jwsObject = new JWSObject(builder.build(), new Payload(pay));
 
             // Compute the RSA signature
@@ -462,10 +504,7 @@ public class UploadEncryptionAdapter {
             // Create the encrypted JWT object
             EncryptedJWT jwt = new EncryptedJWT(header, claimsSet);
 
-            // Create an encrypter with the specified public RSA key
-            RSAEncrypter encrypter = new RSAEncrypter(encryptPublicKey);
-
-            // Do the actual encryption
+            // Do the actual encryption using the encrypter built from the public RSA key
             jwt.encrypt(encrypter);
 
             // Serialise to JWT compact form
@@ -492,11 +531,8 @@ public class UploadEncryptionAdapter {
             throw new Exception("cannot understand incoming encrypted key. " + ex.getLocalizedMessage());
         }
 
-        // Create a decrypter with the specified private RSA key
-        RSADecrypter decrypter = new RSADecrypter(encryptPrivateKey);
-
         try {
-            // Decrypt
+            // Decrypt using the decrypter built from the private RSA key
             jwt.decrypt(decrypter);
         } catch (JOSEException ex) {
             throw new Exception("cannot decrypt shared key. " + ex.getLocalizedMessage());
@@ -547,43 +583,146 @@ public class UploadEncryptionAdapter {
         // Verify the Signature
 
         List<com.nimbusds.jose.util.Base64> certs = jwsObject.getHeader().getX509CertChain();
-        RSAPublicKey signPublicKey = null;
-        X509Certificate clientCert = null;
-        for (com.nimbusds.jose.util.Base64 b : certs) {
-            CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            InputStream in = new ByteArrayInputStream(b.decode());
-            // Here we assume that the first certificate will be the cert used for signing
-            if (signPublicKey == null) {
-                clientCert = (X509Certificate) certFactory.generateCertificate(in);
-                signPublicKey = (RSAPublicKey) clientCert.getPublicKey();
+        if (certs == null || certs.isEmpty()) {
+            throw new Exception("No valid patient signing certificate was recevied with the signature");
+        }
+        // Here we assume that the first certificate will be the cert used for signing
+        byte[] encodedCert = certs.get(0).decode();
+        String fingerprint = fingerprint(encodedCert);
+        long now = System.currentTimeMillis();
+        VerifiedCertificate verified = verifiedCertificates.get(fingerprint);
+        if (verified == null || verified.expiry <= now) {
+            verifiedCertificateMisses.incrementAndGet();
+            verified = verifyCertificate(encodedCert, now);
+            cacheVerifiedCertificate(fingerprint, verified, now);
+        } else {
+            verifiedCertificateHits.incrementAndGet();
+        }
+        try {
+            if (jwsObject.verify(verified.verifier)) {
+//                    System.out.println(jwsObject.getPayload().toString());
+                return true;
+            } else {
+                throw new Exception("Signature does not verify.");
             }
+        } catch (JOSEException ex) {
+            throw new Exception("signature does not verify. " + ex.getLocalizedMessage());
         }
+    }
+
+    private VerifiedCertificate verifyCertificate(byte[] encodedCert, long now) throws Exception {
+        CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+        X509Certificate clientCert = (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(encodedCert));
+        RSAPublicKey signPublicKey = (RSAPublicKey) clientCert.getPublicKey();
         if (signPublicKey == null) {
             throw new Exception("No valid patient signing certificate was recevied with the signature");
         } else if (validateKeyChain(clientCert, signTrustCerts)) {
-            try {
-                JWSVerifier verifier = new RSASSAVerifier(signPublicKey);
-                if (jwsObject.verify(verifier)) {
-//                    System.out.println(jwsObject.getPayload().toString());
-                    return true;
-                } else {
-                    throw new Exception("Signature does not verify.");
-                }
-            } catch (JOSEException ex) {
-                throw new Exception("signature does not verify. " + ex.getLocalizedMessage());
-            }
-
+            // never trust the cached result beyond the expiry of the certificate itself
+            long expiry = Math.min(now + verifiedCertificateTtl, clientCert.getNotAfter().getTime());
+            return new VerifiedCertificate(new RSASSAVerifier(signPublicKey), expiry);
         } else {
             throw new Exception("signature certificate has not been signed by the trusted store chain");
         }
     }
 
+    private void cacheVerifiedCertificate(String fingerprint, VerifiedCertificate verified, long now) {
+        if (verifiedCertificates.size() >= MAXVERIFIEDCERTIFICATES) {
+            Iterator<Map.Entry<String, VerifiedCertificate>> it = verifiedCertificates.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().expiry <= now) {
+                    it.remove();
+                }
+            }
+            if (verifiedCertificates.size() >= MAXVERIFIEDCERTIFICATES) {
+                verifiedCertificates.clear();
+            }
+        }
+        verifiedCertificates.put(fingerprint, verified);
+    }
+
+    private String fingerprint(byte[] encodedCert) throws NoSuchAlgorithmException {
+        return new String(Hex.encodeHex(MessageDigest.getInstance("SHA-256").digest(encodedCert)));
+    }
+
+    /**
+     * Set the length of time for which a verified signing certificate is
+     * trusted without being validated against the trusted store chain again.
+     * The default is 24 hours. A value of 0 disables the cache
+     *
+     * @param ttl time to live in milliseconds
+     */
+    public void setVerifiedCertificateTtl(long ttl) {
+        this.verifiedCertificateTtl = ttl;
+        verifiedCertificates.clear();
+    }
+
+    /**
+     * Remove all the verified signing certificates from the cache
+     */
+    public void clearVerifiedCertificateCache() {
+        verifiedCertificates.clear();
+    }
+
+    /**
+     * @return number of signature verifications which used a cached verified
+     * certificate
+     */
+    public long getVerifiedCertificateHits() {
+        return verifiedCertificateHits.get();
+    }
+
+    /**
+     * @return number of signature verifications which needed the signing
+     * certificate to be validated against the trusted store chain
+     */
+    public long getVerifiedCertificateMisses() {
+        return verifiedCertificateMisses.get();
+    }
+
+    /**
+     * Set the codec used to serialise payloads which it is able to encode.
+     * Payloads it cannot encode, or all payloads if no codec is set, are
+     * serialised using Java serialization which is understood by all versions
+     * of MediPi. The content type of the codec is declared in the JWS header so
+     * that the receiver can decode the payload
+     *
+     * @param payloadCodec codec for outgoing payloads or null for Java
+     * serialization
+     */
+    public void setPayloadCodec(PayloadCodec payloadCodec) {
+        this.payloadCodec = payloadCodec;
+    }
+
+    /**
+     * Set the limit on the inflated size of incoming payloads encoded with the
+     * compact binary format. Payloads which inflate beyond it are rejected. The
+     * default is DevicesPayloadCodec.DEFAULTMAXDECODEDSIZE
+     *
+     * @param maxDecodedSize limit in bytes
+     */
+    public void setMaxDecodedPayloadSize(long maxDecodedSize) {
+        addDecoder(new DevicesPayloadCodec(maxDecodedSize));
+    }
+
+    private void addDecoder(PayloadCodec codec) {
+        decoders.put(codec.getContentType(), codec);
+    }
+
     private Object serializePayload(JWSObject jwsObject) throws Exception {
         try {
             byte b[] = jwsObject.getPayload().toBytes();
-            ByteArrayInputStream bi = new ByteArrayInputStream(b);
-            ObjectInputStream si = new ObjectInputStream(bi);
-            return si.readObject();
+            // payloads without a content type were serialised by versions of MediPi which only use Java serialization
+            String contentType = jwsObject.getHeader().getContentType();
+            PayloadCodec codec;
+            if (contentType == null) {
+                codec = LEGACYCODEC;
+            } else {
+                codec = decoders.get(contentType);
+                if (codec == null) {
+                    throw new Exception("unrecognised payload content type: " + contentType);
+                }
+            }
+            return codec.decode(b);
         } catch (Exception e) {
             throw new Exception("Unable to parse signed and encrypted payload. " + e.getLocalizedMessage());
         }
@@ -0,0 +1,99 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.codec;
+
+import java.util.Date;
+import java.util.UUID;
+import org.medipi.model.DeviceDataDO;
+import org.medipi.model.DevicesPayloadDO;
+
+/**
+ * Benchmark of encoding and decoding the DevicesPayloadDO signed into every
+ * upload.
+ *
+ * Compares the original Java serialization format with DevicesPayloadCodec
+ * for the time taken to encode and decode a payload and the size of the
+ * encoded payload. Each payload holds the given number of device data entries
+ * of MediPi native format readings.
+ *
+ * Run with the test classpath: DevicesPayloadCodecBenchmark [entries] [payloads]
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DevicesPayloadCodecBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int payloads = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        DevicesPayloadDO dp = payload(entries);
+        System.out.println("Payloads of " + entries + " device data entries");
+        run("Java serialization", new JavaSerializationCodec(), dp, payloads);
+        run("DevicesPayloadCodec", new DevicesPayloadCodec(), dp, payloads);
+    }
+
+    private static void run(String name, PayloadCodec codec, DevicesPayloadDO dp, int payloads) throws Exception {
+        byte[] encoded = codec.encode(dp);
+        // warm up
+        for (int i = 0; i < payloads; i++) {
+            codec.decode(codec.encode(dp));
+        }
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        for (int r = 0; r < RUNS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < payloads; i++) {
+                encoded = codec.encode(dp);
+            }
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < payloads; i++) {
+                codec.decode(encoded);
+            }
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+        }
+        report(name, payloads, encodeNanos, decodeNanos, encoded.length);
+    }
+
+    private static void report(String name, int payloads, long encodeNanos, long decodeNanos, int size) {
+        System.out.printf("%-20s encode %8.1f us/payload  decode %8.1f us/payload  %7d bytes%n", name,
+                encodeNanos / 1000.0 / payloads, decodeNanos / 1000.0 / payloads, size);
+    }
+
+    private static DevicesPayloadDO payload(int entries) {
+        DevicesPayloadDO dp = new DevicesPayloadDO(UUID.randomUUID().toString(), new Date());
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            DeviceDataDO ddo = new DeviceDataDO(UUID.randomUUID().toString());
+            ddo.setProfileId("urn:nhs-uk:identity:ois:sequenceId:" + UUID.randomUUID());
+            StringBuilder sb = new StringBuilder();
+            sb.append("metadata->persist->medipiversion->1.0.0\n");
+            sb.append("metadata->subtype->Blood Pressure\n");
+            sb.append("metadata->datadelimiter->^\n");
+            sb.append("metadata->columns->iso8601time^systol^diastol^pulserate^MAP\n");
+            sb.append("metadata->format->DATE^INTEGER^INTEGER^INTEGER^INTEGER\n");
+            sb.append("metadata->units->NONE^mmHg^mmHg^bpm^mmHg\n");
+            for (int j = 0; j < 20; j++) {
+                sb.append(new Date(time - j * 60000L).toInstant()).append('^')
+                        .append(120 + j).append('^').append(80 + j).append('^').append(60 + j).append('^').append(93 + j).append('\n');
+            }
+            ddo.setPayload(sb.toString());
+            dp.addPayload(ddo);
+        }
+        return dp;
+    }
+}
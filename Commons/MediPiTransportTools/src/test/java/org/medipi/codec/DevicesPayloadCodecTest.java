@@ -0,0 +1,125 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.medipi.model.DeviceDataDO;
+import org.medipi.model.DevicesPayloadDO;
+
+/**
+ * Tests for DevicesPayloadCodec and the restrictions placed on
+ * JavaSerializationCodec
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DevicesPayloadCodecTest {
+
+    @Test
+    public void roundTripsDevicesPayload() throws IOException {
+        DevicesPayloadDO dp = payload(3, "Blood Pressure \u00b0 reading");
+        DevicesPayloadCodec codec = new DevicesPayloadCodec();
+        DevicesPayloadDO decoded = (DevicesPayloadDO) codec.decode(codec.encode(dp));
+        assertEquals(dp.getUploadUuid(), decoded.getUploadUuid());
+        assertEquals(dp.getUploadedDate(), decoded.getUploadedDate());
+        assertEquals(3, decoded.getPayload().size());
+        for (int i = 0; i < 3; i++) {
+            DeviceDataDO expected = dp.getPayload().get(i);
+            DeviceDataDO actual = decoded.getPayload().get(i);
+            assertEquals(expected.getDeviceDataUuid(), actual.getDeviceDataUuid());
+            assertEquals(expected.getProfileId(), actual.getProfileId());
+            assertEquals(expected.getPayload(), actual.getPayload());
+        }
+    }
+
+    @Test
+    public void roundTripsNullFields() throws IOException {
+        DevicesPayloadDO dp = new DevicesPayloadDO(null);
+        dp.setPayload(null);
+        DevicesPayloadCodec codec = new DevicesPayloadCodec();
+        DevicesPayloadDO decoded = (DevicesPayloadDO) codec.decode(codec.encode(dp));
+        assertNull(decoded.getUploadUuid());
+        assertNull(decoded.getUploadedDate());
+        assertNull(decoded.getPayload());
+
+        dp = new DevicesPayloadDO("upload");
+        dp.addPayload(new DeviceDataDO(null));
+        decoded = (DevicesPayloadDO) codec.decode(codec.encode(dp));
+        DeviceDataDO ddo = decoded.getPayload().get(0);
+        assertNull(ddo.getDeviceDataUuid());
+        assertNull(ddo.getProfileId());
+        assertNull(ddo.getPayload());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherPayloadTypes() throws IOException {
+        DevicesPayloadCodec codec = new DevicesPayloadCodec();
+        assertFalse(codec.canEncode("payload"));
+        codec.encode("payload");
+    }
+
+    @Test
+    public void rejectsPayloadInflatingBeyondLimit() throws IOException {
+        // each string is within the limit but together they inflate beyond it
+        byte[] encoded = new DevicesPayloadCodec().encode(payload(100, "reading"));
+        assertTrue(encoded.length < 1024);
+        try {
+            new DevicesPayloadCodec(1024).decode(encoded);
+            throw new AssertionError("a payload larger than the limit was decoded");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Decoded payload is larger than the limit"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsStringLongerThanLimit() throws IOException {
+        new DevicesPayloadCodec(16).decode(new DevicesPayloadCodec().encode(payload(1, "a reading longer than sixteen bytes")));
+    }
+
+    @Test
+    public void javaSerializationRoundTripsDevicesPayload() throws IOException {
+        DevicesPayloadDO dp = payload(2, "reading");
+        JavaSerializationCodec codec = new JavaSerializationCodec();
+        assertEquals(dp, codec.decode(codec.encode(dp)));
+    }
+
+    @Test(expected = IOException.class)
+    public void javaSerializationRejectsClassOutsideAllowlist() throws IOException {
+        JavaSerializationCodec codec = new JavaSerializationCodec();
+        List<Object> payload = new ArrayList<>();
+        payload.add(new File("medipi"));
+        codec.decode(codec.encode(payload));
+    }
+
+    private static DevicesPayloadDO payload(int entries, String reading) {
+        DevicesPayloadDO dp = new DevicesPayloadDO("upload-uuid", new Date(1476000000000L));
+        for (int i = 0; i < entries; i++) {
+            DeviceDataDO ddo = new DeviceDataDO("device-data-" + i);
+            ddo.setProfileId("urn:nhs-uk:identity:ois:sequenceId:" + i);
+            ddo.setPayload(reading + " " + i);
+            dp.addPayload(ddo);
+        }
+        return dp;
+    }
+}
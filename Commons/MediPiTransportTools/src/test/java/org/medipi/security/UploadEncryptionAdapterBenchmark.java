@@ -0,0 +1,133 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+import com.nimbusds.jose.JWSObject;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Benchmark of JWS signature verification as done by the concentrator for
+ * every upload.
+ *
+ * Compares validating the patient's signing certificate against the trusted
+ * store chain for every signature (the verified certificate cache disabled)
+ * with the verified certificate cache. A CA, a patient signing keystore
+ * issued by it and a truststore holding the CA are generated with keytool in
+ * a temporary directory.
+ *
+ * Run with the test classpath: UploadEncryptionAdapterBenchmark [signatures]
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadEncryptionAdapterBenchmark {
+
+    private static final String PASSWORD = "password";
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int signatures = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        File dir = Files.createTempDirectory("medipi-jws").toFile();
+        File caKeys = new File(dir, "ca.jks");
+        File signKeys = new File(dir, "sign.jks");
+        File signTrust = new File(dir, "sign_trust.jks");
+        File caCert = new File(dir, "ca.cer");
+        File request = new File(dir, "patient.csr");
+        File patientCert = new File(dir, "patient.cer");
+        keytool("-genkeypair", "-alias", "ca", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=ca", "-ext", "bc:c",
+                "-validity", "2", "-keystore", caKeys.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD, "-storetype", "JKS");
+        keytool("-exportcert", "-alias", "ca", "-file", caCert.getPath(), "-keystore", caKeys.getPath(), "-storepass", PASSWORD);
+        keytool("-genkeypair", "-alias", "patient", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=patient",
+                "-validity", "2", "-keystore", signKeys.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD, "-storetype", "JKS");
+        keytool("-certreq", "-alias", "patient", "-file", request.getPath(), "-keystore", signKeys.getPath(), "-storepass", PASSWORD);
+        keytool("-gencert", "-alias", "ca", "-infile", request.getPath(), "-outfile", patientCert.getPath(), "-validity", "2",
+                "-keystore", caKeys.getPath(), "-storepass", PASSWORD);
+        keytool("-importcert", "-noprompt", "-alias", "ca", "-file", caCert.getPath(), "-keystore", signKeys.getPath(), "-storepass", PASSWORD);
+        keytool("-importcert", "-noprompt", "-alias", "patient", "-file", patientCert.getPath(), "-keystore", signKeys.getPath(), "-storepass", PASSWORD);
+        keytool("-importcert", "-noprompt", "-alias", "ca", "-file", caCert.getPath(), "-keystore", signTrust.getPath(), "-storepass", PASSWORD, "-storetype", "JKS");
+
+        Properties p = new Properties();
+        p.setProperty("medipi.json.sign.keystore.location", signKeys.getPath());
+        p.setProperty("medipi.json.sign.keystore.alias", "patient");
+        p.setProperty("medipi.json.sign.keystore.password", PASSWORD);
+        p.setProperty("medipi.json.sign.truststore.location", signTrust.getPath());
+        p.setProperty("medipi.json.sign.truststore.password", PASSWORD);
+        CertificateDefinitions cd = new CertificateDefinitions(p);
+
+        UploadEncryptionAdapter signer = new UploadEncryptionAdapter();
+        check(signer.init(cd, UploadEncryptionAdapter.SIGNMODE));
+        UploadEncryptionAdapter verifier = new UploadEncryptionAdapter();
+        check(verifier.init(cd, UploadEncryptionAdapter.VERIFYSIGNATUREMODE));
+
+        long start = System.nanoTime();
+        String[] signed = new String[signatures];
+        for (int i = 0; i < signatures; i++) {
+            signed[i] = signer.signPayload(("reading " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        report("signing", start, signatures);
+
+        // warm up the JIT and the PKIX validator
+        verifier.setVerifiedCertificateTtl(0);
+        verify(verifier, signed, Math.min(signatures, 200));
+        for (int run = 0; run < RUNS; run++) {
+            verifier.setVerifiedCertificateTtl(0);
+            start = System.nanoTime();
+            verify(verifier, signed, signatures);
+            report("run " + (run + 1) + " certificate chain validated every time", start, signatures);
+
+            verifier.setVerifiedCertificateTtl(60000);
+            start = System.nanoTime();
+            verify(verifier, signed, signatures);
+            report("run " + (run + 1) + " verified certificate cache", start, signatures);
+        }
+        System.out.println("verified certificate cache hits: " + verifier.getVerifiedCertificateHits() + " misses: " + verifier.getVerifiedCertificateMisses());
+    }
+
+    private static void verify(UploadEncryptionAdapter verifier, String[] signed, int signatures) throws Exception {
+        for (int i = 0; i < signatures; i++) {
+            if (!verifier.verifySignature(JWSObject.parse(signed[i]))) {
+                throw new IllegalStateException("Signature " + i + " did not verify");
+            }
+        }
+    }
+
+    private static void check(String error) {
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static void report(String name, long start, int signatures) {
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-48s %6d signatures %9.1f ms %7.3f ms/signature%n", name, signatures, ms, ms / signatures);
+    }
+
+    private static void keytool(String... args) throws Exception {
+        String[] command = new String[args.length + 1];
+        command[0] = new File(System.getProperty("java.home"), "bin" + File.separator + "keytool").getPath();
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] out = new byte[8192];
+        while (p.getInputStream().read(out) != -1) {
+            // discard keytool output
+        }
+        if (p.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed: " + String.join(" ", args));
+        }
+    }
+}
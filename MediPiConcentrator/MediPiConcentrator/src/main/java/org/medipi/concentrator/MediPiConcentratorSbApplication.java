@@ -20,10 +20,14 @@ import java.util.Date;
 import java.util.Properties;
 import javax.servlet.ServletContext;
 import org.medipi.security.CertificateDefinitions;
+import org.medipi.concentrator.dao.RecordingDeviceAttributeDAOImpl;
+import org.medipi.concentrator.dao.RecordingDeviceTypeDAOImpl;
 import org.medipi.concentrator.dataformat.DataFormatFactory;
 import org.medipi.concentrator.dataformat.PatientUploadDataFormat;
 import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.services.AsyncUploadService;
+import org.medipi.concentrator.services.SubmissionNotificationService;
 import org.medipi.concentrator.utilities.ConfigurationStringTokeniser;
 import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,7 +36,9 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
 import org.springframework.boot.context.embedded.ServletContextInitializer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -66,9 +72,27 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
     @Value("${medipi.log}")
     private String log;
 
+    @Value("${medipi.concentrator.maxconnections:25000}")
+    private int maxConnections;
+
+    @Value("${medipi.concentrator.maxdecodedpayloadsize:67108864}")
+    private long maxDecodedPayloadSize;
+
     @Autowired
     DataFormatFactory dff;
 
+    @Autowired
+    RecordingDeviceTypeDAOImpl recordingDeviceTypeDAO;
+
+    @Autowired
+    RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAO;
+
+    @Autowired
+    AsyncUploadService asyncUploadService;
+
+    @Autowired
+    SubmissionNotificationService submissionNotificationService;
+
     /**
      * Run method inherited by the commandLineRunner. This method sets the
      * version, calls the properties and utilities classes and instantiates any
@@ -114,6 +138,8 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
         }
 
         // instantiate the patient encryption adapter
+        patientEncryptionAdapter.setMaxDecodedPayloadSize(maxDecodedPayloadSize);
+        clinicianEncryptionAdapter.setMaxDecodedPayloadSize(maxDecodedPayloadSize);
         CertificateDefinitions patientCD = new CertificateDefinitions(utils.getProperties());
         String patientAdapterError = patientEncryptionAdapter.init(patientCD, UploadEncryptionAdapter.SERVERMODE);
         if (patientAdapterError != null) {
@@ -134,6 +160,22 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             System.out.println("Failed to instantiate Clinician Encryption Adapter: " + ClinicicanAdapterError);
         }
 
+        // warm the reference data caches used when parsing incoming data
+        try {
+            int types = recordingDeviceTypeDAO.loadCache();
+            int attributes = recordingDeviceAttributeDAO.loadCache();
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".info", "Reference data cache loaded with " + types + " recording device types and " + attributes + " recording device attributes");
+        } catch (Exception e) {
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to load the reference data cache, it will be filled on demand: " + e.getMessage());
+        }
+
+        // start the background notification of successful submissions
+        String notificationError = submissionNotificationService.init();
+        if (notificationError != null) {
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to start submission notifications: " + notificationError);
+            System.out.println("Failed to start submission notifications: " + notificationError);
+        }
+
         try {
             // loop through all the data format class tokens defined in the properties file and instantiate
             String e = properties.getProperty("medipi.concentrator.dataformatclasstokens");
@@ -169,6 +211,14 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Failed to tokenise the data format class token list- " + e.getMessage());
             System.exit(1);
         }
+        // start processing journaled uploads now that the data formats are available
+        try {
+            asyncUploadService.start();
+        } catch (Exception e) {
+            System.out.println("FATAL: Cannot open the upload journal - " + e.getMessage());
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Cannot open the upload journal - " + e.getMessage());
+            System.exit(1);
+        }
         System.out.println("ServletContextListener started");
 
     }
@@ -185,6 +235,23 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
         };
     }
 
+    /**
+     * Bean to raise the number of connections the embedded Tomcat will hold
+     * open so that every connected patient device can keep its downloadable
+     * push connection open. Idle connections are held by the NIO poller
+     * without a request thread
+     *
+     * @return customizer for the embedded servlet container
+     */
+    @Bean
+    public EmbeddedServletContainerCustomizer connectionCustomizer() {
+        return container -> {
+            if (container instanceof TomcatEmbeddedServletContainerFactory) {
+                ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> connector.setProperty("maxConnections", Integer.toString(maxConnections)));
+            }
+        };
+    }
+
     /**
      * Bean to make available the MediPiLogger object
      *
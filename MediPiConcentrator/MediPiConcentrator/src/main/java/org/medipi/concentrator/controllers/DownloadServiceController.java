@@ -15,22 +15,33 @@
  */
 package org.medipi.concentrator.controllers;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
+import org.medipi.concentrator.services.DownloadableChangeService;
 import org.medipi.concentrator.services.DownloadableListService;
+import org.medipi.concentrator.services.DownloadablePushService;
 import org.medipi.concentrator.services.HardwareDownloadableService;
 import org.medipi.concentrator.services.PatientDownloadableService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * Class for controlling the download service for the MediPi patient units .
@@ -52,9 +63,21 @@ public class DownloadServiceController {
     @Autowired
     private HardwareDownloadableService hardwareDownloadableService;
 
+    @Autowired
+    private DownloadableChangeService downloadableChangeService;
+
+    @Autowired
+    private DownloadablePushService downloadablePushService;
+
     @Autowired
     private MediPiLogger logger;
 
+    @Value("${medipi.concentrator.downloadlist.longpolltimeout:55000}")
+    private long longPollTimeout;
+
+    @Value("${medipi.concentrator.downloadlist.longpollmaxtimeout:120000}")
+    private long longPollMaxTimeout;
+
     /**
      * Controller for downloading a list of available updates to a patient
      * device. This method passes the incoming message to the service layer for
@@ -62,13 +85,70 @@ public class DownloadServiceController {
      *
      * @param hardwareName incoming deviceId parameter from RESTful message
      * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param ifNoneMatch ETag of the list already held by the device - a 304
+     * is returned if the list has not changed
      * @return Response to the request
      */
     @RequestMapping(value = "/{hardwareName}/{patientUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public ResponseEntity<List<DownloadableDO>> getDownloadableList(@PathVariable("hardwareName") String hardwareName, @PathVariable("patientUuid") String patientUuid) {
+    public ResponseEntity<List<DownloadableDO>> getDownloadableList(@PathVariable("hardwareName") String hardwareName, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 //Removed to Reduce Logs size        logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get DownloadableList called by patientUuid: " + patientUuid + " using hardwareName: " + hardwareName);
-        return this.downloadableListService.getDownloadableList(hardwareName, patientUuid);
+        return this.downloadableListService.getDownloadableList(hardwareName, patientUuid, ifNoneMatch);
+    }
+
+    /**
+     * Controller for long polling the list of available updates to a patient
+     * device. If the list has changed since the ETag in If-None-Match was
+     * issued it is returned straight away, otherwise the request is held
+     * (without holding a servlet thread) until a downloadable for the device or
+     * patient is added or acknowledged, or until the timeout passes when a 304
+     * is returned
+     *
+     * @param hardwareName incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param ifNoneMatch ETag of the list already held by the device
+     * @param timeout maximum time in milliseconds to hold the request
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/{hardwareName}/{patientUuid}/wait", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public DeferredResult<ResponseEntity<List<DownloadableDO>>> waitForDownloadableList(@PathVariable("hardwareName") String hardwareName, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch, @RequestParam(value = "timeout", required = false) Long timeout) {
+        ResponseEntity<List<DownloadableDO>> current = this.downloadableListService.getDownloadableList(hardwareName, patientUuid, ifNoneMatch);
+        long wait = timeout == null ? longPollTimeout : Math.max(0, Math.min(timeout, longPollMaxTimeout));
+        DeferredResult<ResponseEntity<List<DownloadableDO>>> result = new DeferredResult<>(wait, current);
+        if (current.getStatusCode() != HttpStatus.NOT_MODIFIED || wait == 0) {
+            result.setResult(current);
+            return result;
+        }
+        final String etag = current.getHeaders().getETag();
+        DownloadableChangeService.Waiter waiter = this.downloadableChangeService.await(hardwareName, patientUuid, etag, () -> {
+            try {
+                result.setResult(this.downloadableListService.getDownloadableList(hardwareName, patientUuid, etag));
+            } catch (Exception e) {
+                result.setErrorResult(e);
+            }
+        });
+        result.onCompletion(waiter::cancel);
+        return result;
+    }
+
+    /**
+     * Controller for opening a push connection to a patient device. The
+     * connection is a Server-Sent Events stream on which a "downloadables"
+     * event carrying the new list ETag is sent whenever the list of available
+     * updates for the device or patient changes. If the list has already
+     * changed since the ETag in If-None-Match was issued an event is sent
+     * straight away
+     *
+     * @param hardwareName incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param ifNoneMatch ETag of the list already held by the device
+     * @return event stream
+     */
+    @RequestMapping(value = "/{hardwareName}/{patientUuid}/events", method = RequestMethod.GET, produces = "text/event-stream")
+    public SseEmitter getDownloadableEvents(@PathVariable("hardwareName") String hardwareName, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        ResponseEntity<List<DownloadableDO>> current = this.downloadableListService.getDownloadableList(hardwareName, patientUuid, ifNoneMatch);
+        return this.downloadablePushService.connect(hardwareName, patientUuid, current.getStatusCode() != HttpStatus.NOT_MODIFIED);
     }
 
     /**
@@ -77,13 +157,14 @@ public class DownloadServiceController {
      *
      * @param downloadableUuid downloadable UUID of the patient downloadable
      * item
-     * @return Response to the request
+     * @param request the incoming request
+     * @param response the response to which the downloadable is written
+     * @throws IOException if the downloadable cannot be sent
      */
     @RequestMapping(value = "/patient/{downloadableUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
-    @ResponseBody
-    public ResponseEntity<FileSystemResource> getPatientDownloadable(@PathVariable("downloadableUuid") String downloadableUuid) {
+    public void getPatientDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, HttpServletRequest request, HttpServletResponse response) throws IOException {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get PatientDownloadable for downloadableUuid: " + downloadableUuid);
-        return this.patientDownloadableService.getDownload(downloadableUuid);
+        this.patientDownloadableService.getDownload(downloadableUuid, request, response);
     }
 
     /**
@@ -93,13 +174,14 @@ public class DownloadServiceController {
      *
      * @param downloadableUuid downloadable UUID of the hardware downloadable
      * item
-     * @return Response to the request
+     * @param request the incoming request
+     * @param response the response to which the downloadable is written
+     * @throws IOException if the downloadable cannot be sent
      */
     @RequestMapping(value = "/hardware/{downloadableUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
-    @ResponseBody
-    public ResponseEntity<FileSystemResource> getHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid) {
+    public void getHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, HttpServletRequest request, HttpServletResponse response) throws IOException {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get HardwareDownloadable for downloadableUuid: " + downloadableUuid);
-        return this.hardwareDownloadableService.getDownload(downloadableUuid);
+        this.hardwareDownloadableService.getDownload(downloadableUuid, request, response);
     }
 
     /**
@@ -110,13 +192,14 @@ public class DownloadServiceController {
      * @param downloadableUuid downloadable UUID of the all hardware
      * downloadable item
      * @param hardwareName hardware name uuid of requesting system
-     * @return Response to the request
+     * @param request the incoming request
+     * @param response the response to which the downloadable is written
+     * @throws IOException if the downloadable cannot be sent
      */
     @RequestMapping(value = "/hardware/{downloadableUuid}/{hardwareName}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
-    @ResponseBody
-    public ResponseEntity<FileSystemResource> getAllHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, @PathVariable("hardwareName") String hardwareName) {
+    public void getAllHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, @PathVariable("hardwareName") String hardwareName, HttpServletRequest request, HttpServletResponse response) throws IOException {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get AllHardwareDownloadable for downloadableUuid: " + downloadableUuid + " and hardwareName: " + hardwareName);
-        return this.hardwareDownloadableService.getAllDownload(downloadableUuid, hardwareName);
+        this.hardwareDownloadableService.getAllDownload(downloadableUuid, hardwareName, request, response);
     }
 
     /**
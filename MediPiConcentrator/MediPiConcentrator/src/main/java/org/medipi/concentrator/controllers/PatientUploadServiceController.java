@@ -15,17 +15,14 @@
  */
 package org.medipi.concentrator.controllers;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.Date;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.UploadStatusDO;
+import org.medipi.concentrator.services.AsyncUploadService;
+import org.medipi.concentrator.services.MessageArchiveService;
 import org.medipi.concentrator.services.PatientUploadService;
-import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -51,21 +48,25 @@ public class PatientUploadServiceController {
     private PatientUploadService patientUploadService;
 
     @Autowired
-    private MediPiLogger logger;
+    private AsyncUploadService asyncUploadService;
 
-    @Value("${medipi.concentrator.savemessagestofile}")
-    private boolean savemessagestofile;
+    @Autowired
+    private MediPiLogger logger;
 
-    @Value("${medipi.concentrator.inboundsavedmessagedir}")
-    private String inboundsavedmessagedir;
+    @Autowired
+    private MessageArchiveService messageArchiveService;
 
     /**
      * Controller for Patient Upload of data from MediPi Patient units.
      *
      * This method:
      *
-     * 1.saves the incoming message to file, if configured and passes the
-     * incoming message to the service layer for processing
+     * 1.queues the incoming message to be archived, if configured and passes
+     * the incoming message to the service layer for processing
+     *
+     * 2.if asynchronous uploads are enabled the message is journaled and a 202
+     * response returned straight away. Its progress can then be polled using
+     * the status interface
      *
      * @param deviceId incoming deviceId parameter from RESTful message
      * @param patientUuid incoming patientUuid parameter from RESTful message
@@ -80,51 +81,27 @@ public class PatientUploadServiceController {
         logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Called by patientUuid: " + patientUuid + " using deviceId: " + deviceId);
         EncryptedAndSignedUploadDO content = easu;
 
-        if (savemessagestofile) {
-            byte[] contentInBytes = null;
-
-            FileOutputStream fop = null;
-            try {
-                StringBuilder fnb = new StringBuilder(inboundsavedmessagedir);
-                fnb.append(System.getProperty("file.separator"));
-                fnb.append("uuid_");
-                fnb.append(content.getUploadUuid());
-                fnb.append("_device_");
-                fnb.append(deviceId);
-                fnb.append("_at_");
-                fnb.append(Utilities.INTERNAL_SPINE_FORMAT.format(new Date()));
-                fnb.append(".log");
-                File file = new File(fnb.toString());
-                fop = new FileOutputStream(file);
-                // if file doesnt exists, then create it
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
-
-                // get the content in bytes
-                writeJSON(content, fop);
-                fop.flush();
-                fop.close();
-                logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Encrypted payload uuid: " + easu.getUploadUuid());
-            } catch (IOException e) {
-                logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound message payload to local drive - check the configured directory: " + inboundsavedmessagedir);
-            } finally {
-                try {
-                    if (fop != null) {
-                        fop.close();
-                    }
-                } catch (IOException e) {
-                    logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound message payload to local drive - check the configured directory: " + inboundsavedmessagedir);
-                }
-            }
+        messageArchiveService.archive(deviceId, content);
+        if (asyncUploadService.isEnabled()) {
+            return this.asyncUploadService.accept(deviceId, patientUuid, dataFormat, content);
         }
         return this.patientUploadService.uploadRecordingDeviceData(deviceId, patientUuid, dataFormat, content);
     }
 
-    private void writeJSON(EncryptedAndSignedUploadDO encryptedAndSignedUploadDO, FileOutputStream f) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.writeValue(f, encryptedAndSignedUploadDO);
-
+    /**
+     * Controller for polling the status of an upload which has been accepted
+     * for asynchronous processing. Only the status of an upload sent with the
+     * same deviceId and patientUuid is returned
+     *
+     * @param deviceId incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param uploadUuid uuid of the upload
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/status/{deviceId}/{patientUuid}/{uploadUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<UploadStatusDO> getUploadStatus(@PathVariable("deviceId") String deviceId, @PathVariable("patientUuid") String patientUuid, @PathVariable("uploadUuid") String uploadUuid) {
+        return this.asyncUploadService.getStatus(deviceId, patientUuid, uploadUuid);
     }
 
 }
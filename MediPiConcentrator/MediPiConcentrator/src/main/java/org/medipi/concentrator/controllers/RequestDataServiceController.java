@@ -15,17 +15,26 @@
  */
 package org.medipi.concentrator.controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletResponse;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.PatientDataPageDO;
 import org.medipi.concentrator.model.PatientDataRequestDO;
 import org.medipi.concentrator.services.RequestDataService;
+import org.medipi.concentrator.utilities.PatientDataStreamWriter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -43,12 +52,17 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("MediPiConcentrator/webresources")
 public class RequestDataServiceController {
 
+    private static final int STREAMBUFFERSIZE = 8192;
+
     @Autowired
     private RequestDataService requestDataService;
 
     @Autowired
     private MediPiLogger logger;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     /**
      * Constructor
      */
@@ -81,4 +95,63 @@ public class RequestDataServiceController {
 //Removed to Reduce Logs size        logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " new data requested from Patient Group: " + patientGroupUuid + " since the last download at: " + new ISO8601DateFormat().format(lastDownloadDate));
         return this.requestDataService.getData(patientGroupUuid, lastDownloadDate);
     }
+
+    /**
+     * Controller for synchronising all data from all patients within a patient
+     * group as requestNewData does, but writing the response as the data is
+     * read from the DB rather than building it in memory. The response is
+     * gzip compressed if the requesting system accepts gzip encoding. A 204
+     * status is returned if there is no data.
+     *
+     * @param patientGroupUuid the patient group for which to synchronise
+     * @param lastDownloadEpochMillis This is the date in the format of Unix
+     * epoch time (millis after January 1, 1970, 00:00:00 GMT) when this data
+     * was last synchronised. A value of 0 will return all data for all patients
+     * in the patient group
+     * @param acceptEncoding Accept-Encoding header of the request
+     * @param response response to which the data is written
+     * @throws IOException if the response cannot be written
+     */
+    @RequestMapping(value = "/requestdata/allData/{patientGroupUuid}/stream", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public void requestNewDataStream(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam("date") Long lastDownloadEpochMillis,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, final HttpServletResponse response) throws IOException {
+
+        if (lastDownloadEpochMillis < 0) {
+            logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " new data requested from Patient Group: " + patientGroupUuid + " Invalid Unix epoch representation of date");
+            throw new InternalServerError500Exception("Invalid Unix epoch representation of date since last synchronisation");
+        }
+        final boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(objectMapper, () -> {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            if (gzip) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                return new GZIPOutputStream(response.getOutputStream(), STREAMBUFFERSIZE);
+            }
+            return response.getOutputStream();
+        });
+        if (this.requestDataService.streamData(patientGroupUuid, new Date(lastDownloadEpochMillis), writer) == 0) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        }
+    }
+
+    /**
+     * Controller for paging through the data from all patients within a
+     * patient group using a sync cursor. Each response contains the cursor to
+     * be passed in the next request so that large backlogs can be synchronised
+     * a page at a time.
+     *
+     * @param patientGroupUuid the patient group for which to synchronise
+     * @param cursor the nextCursor returned by the previous request. If not
+     * present all data for all patients in the patient group is returned a page
+     * at a time
+     * @param pageSize maximum number of data points to be returned
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/requestdata/groupData/{patientGroupUuid}", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
+    @ResponseBody
+    public ResponseEntity<PatientDataPageDO> requestDataPage(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam(value = "cursor", required = false) String cursor, @RequestParam(value = "pageSize", required = false, defaultValue = "0") int pageSize) {
+        return this.requestDataService.getDataPage(patientGroupUuid, cursor, pageSize);
+    }
 }
@@ -25,4 +25,25 @@ import org.medipi.concentrator.entities.AllHardwareDownloadable;
 public interface AllHardwareDownloadableDAO extends GenericDAO<AllHardwareDownloadable> {
     public List<AllHardwareDownloadable> getHardwareDownloads(String hname);
     public AllHardwareDownloadable getHardwareDownload(String downloadUuid);
+
+    /**
+     * Get a value which changes whenever all hardware downloadables are added or
+     * removed
+     *
+     * @return count and latest broadcast sequence of the all hardware
+     * downloadables
+     */
+    public String getChangeFingerprint();
+
+    /**
+     * Advance the acknowledged broadcast sequence of a device to the last
+     * broadcast before the first one it has not acknowledged. This relies on
+     * broadcasts being committed in sequence order, which the trigger
+     * assigning the broadcast sequence enforces
+     *
+     * @param hardwareName hardware name of the device
+     * @return acknowledged broadcast sequence or null if there are no
+     * broadcasts
+     */
+    public Long advanceAcknowledgedSequence(String hardwareName);
 }
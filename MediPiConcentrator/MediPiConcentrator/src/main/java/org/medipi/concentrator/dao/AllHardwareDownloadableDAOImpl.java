@@ -40,4 +40,31 @@ public class AllHardwareDownloadableDAOImpl extends GenericDAOImpl<AllHardwareDo
                 .getSingleResult();
     }
 
-}
\ No newline at end of file
+    @Override
+    public String getChangeFingerprint() {
+        Object[] result = this.getEntityManager().createNamedQuery("AllHardwareDownloadable.changeFingerprint", Object[].class)
+                .getSingleResult();
+        return result[0] + ":" + (result[1] == null ? "" : result[1]);
+    }
+
+    @Override
+    public Long advanceAcknowledgedSequence(String hardwareName) {
+        Long first = this.getEntityManager().createNamedQuery("AllHardwareDownloadable.findFirstUnacknowledgedSequence", Long.class)
+                .setParameter("hname", hardwareName)
+                .getSingleResult();
+        Long acked;
+        if (first != null) {
+            acked = first - 1;
+        } else {
+            acked = this.getEntityManager().createNamedQuery("AllHardwareDownloadable.findMaxBroadcastSequence", Long.class)
+                    .getSingleResult();
+        }
+        if (acked != null) {
+            this.getEntityManager().createNamedQuery("Hardware.advanceAllHardwareAckedSequence")
+                    .setParameter("sequence", acked)
+                    .setParameter("hardwareName", hardwareName)
+                    .executeUpdate();
+        }
+        return acked;
+    }
+}
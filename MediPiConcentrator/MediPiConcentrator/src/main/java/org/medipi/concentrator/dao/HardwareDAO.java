@@ -16,6 +16,7 @@
 package org.medipi.concentrator.dao;
 
 import org.medipi.concentrator.entities.Hardware;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
 
 /**
  * Data Access Object interface for Hardware
@@ -29,4 +30,26 @@ public interface HardwareDAO extends GenericDAO<Hardware> {
      * @return Hardware object
      */
     Hardware findByPatientUuid(String patientUuid);
+
+    /**
+     * Find the patientUuid registered to a hardware device. The registration
+     * is cached
+     *
+     * @param hardwareName
+     * @return patientUuid or null if the hardware is not on the DB or has no
+     * patient registered to it
+     */
+    String findRegisteredPatientUuid(String hardwareName);
+
+    /**
+     * Remove any cached registrations of a patient
+     *
+     * @param patientUuid
+     */
+    void evictPatient(String patientUuid);
+
+    /**
+     * @return the cache of hardware registrations
+     */
+    ReferenceDataCache<String, ?> getRegistrationCache();
 }
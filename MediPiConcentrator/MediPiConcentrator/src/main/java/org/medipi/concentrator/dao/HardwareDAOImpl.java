@@ -15,20 +15,110 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.List;
 import org.medipi.concentrator.entities.Hardware;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 /**
  * Data Access Object for Hardware
+ *
+ * The patient registered to each hardware device is checked on every upload
+ * and download poll but almost never changes, so hardwareName to patientUuid
+ * registrations are cached. Any save, update or delete of hardware through
+ * this DAO evicts the registration. Entries also expire after
+ * medipi.concentrator.registrationcache.ttl milliseconds so that changes made
+ * directly to the DB are picked up
+ *
  * @author rick@robinsonhq.com
  */
 @Repository
 public class HardwareDAOImpl extends GenericDAOImpl<Hardware> implements HardwareDAO {
 
+    private ReferenceDataCache<String, Registration> registrationCache;
+
+    @Value("${medipi.concentrator.registrationcache.ttl:300000}")
+    private long registrationTtl;
+
+    /**
+     * Cached registration of a patient to a hardware device
+     */
+    private static class Registration {
+
+        private final String patientUuid;
+        private final long expires;
+
+        Registration(String patientUuid, long expires) {
+            this.patientUuid = patientUuid;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Setter for the maximum number of cached hardware registrations
+     *
+     * @param maxSize maximum number of entries
+     */
+    @Value("${medipi.concentrator.registrationcache.maxsize:10000}")
+    public void setRegistrationCacheSize(int maxSize) {
+        registrationCache = new ReferenceDataCache<>(Hardware.class.getSimpleName() + " registrations", maxSize);
+    }
+
     @Override
     public Hardware findByPatientUuid(String patientUuid) {
         return this.getEntityManager().createNamedQuery("Hardware.findByPatientUuid", Hardware.class)
                 .setParameter("patientUuid", patientUuid)
                 .getSingleResult();
     }
+
+    @Override
+    public String findRegisteredPatientUuid(String hardwareName) {
+        Registration r = registrationCache.get(hardwareName);
+        long now = System.currentTimeMillis();
+        if (r != null && r.expires > now) {
+            return r.patientUuid;
+        }
+        List<String> result = this.getEntityManager().createNamedQuery("Hardware.findPatientUuidByHardwareName", String.class)
+                .setParameter("hardwareName", hardwareName)
+                .getResultList();
+        if (result.isEmpty() || result.get(0) == null) {
+            registrationCache.remove(hardwareName);
+            return null;
+        }
+        registrationCache.put(hardwareName, new Registration(result.get(0), now + registrationTtl));
+        return result.get(0);
+    }
+
+    @Override
+    public void evictPatient(String patientUuid) {
+        if (patientUuid != null) {
+            registrationCache.removeIf(r -> patientUuid.equalsIgnoreCase(r.patientUuid));
+        }
+    }
+
+    @Override
+    public ReferenceDataCache<String, ?> getRegistrationCache() {
+        return registrationCache;
+    }
+
+    @Override
+    public Hardware save(Hardware object) {
+        Hardware h = super.save(object);
+        registrationCache.removeAfterCommit(h.getHardwareName());
+        return h;
+    }
+
+    @Override
+    public Hardware update(Hardware object) {
+        Hardware h = super.update(object);
+        registrationCache.removeAfterCommit(h.getHardwareName());
+        return h;
+    }
+
+    @Override
+    public void delete(Object id) {
+        super.delete(id);
+        registrationCache.removeAfterCommit(id.toString());
+    }
 }
@@ -25,4 +25,12 @@ import org.medipi.concentrator.entities.HardwareDownloadable;
 public interface HardwareDownloadableDAO extends GenericDAO<HardwareDownloadable> {
     public List<HardwareDownloadable> getHardwareDownloads(String hardware);
     public HardwareDownloadable getHardwareDownload(String downloadUuid);
+
+    /**
+     * Get a value which changes whenever open hardware downloadables are added or
+     * removed
+     *
+     * @return count and latest version date of the open hardware downloadables
+     */
+    public String getChangeFingerprint();
 }
@@ -15,6 +15,7 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Date;
 import java.util.List;
 import org.medipi.concentrator.entities.HardwareDownloadable;
 import org.springframework.stereotype.Repository;
@@ -40,4 +41,10 @@ public class HardwareDownloadableDAOImpl extends GenericDAOImpl<HardwareDownload
                 .getSingleResult();
     }
 
-}
\ No newline at end of file
+    @Override
+    public String getChangeFingerprint() {
+        Object[] result = this.getEntityManager().createNamedQuery("HardwareDownloadable.changeFingerprint", Object[].class)
+                .getSingleResult();
+        return result[0] + ":" + (result[1] == null ? "" : ((Date) result[1]).getTime());
+    }
+}
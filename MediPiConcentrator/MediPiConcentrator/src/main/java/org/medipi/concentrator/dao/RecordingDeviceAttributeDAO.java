@@ -15,8 +15,10 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
 import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
 
 /**
  * Data Access Object interface for RecordingDeviceAttribute
@@ -33,4 +35,18 @@ public interface RecordingDeviceAttributeDAO extends GenericDAO<RecordingDeviceA
      * @return recording device attribute object 
      */
     public RecordingDeviceAttribute findByTypeUnitsFormatAndAttributeName(RecordingDeviceType typeId, String column, String units, String format);
+
+    /**
+     * Load all the recording device attributes from the DB into the in-process
+     * cache used by findByTypeUnitsFormatAndAttributeName
+     *
+     * @return number of recording device attributes loaded
+     */
+    public int loadCache();
+
+    /**
+     * @return the recording device attribute cache, for reporting its
+     * statistics
+     */
+    public ReferenceDataCache<List<Object>, RecordingDeviceAttribute> getCache();
 }
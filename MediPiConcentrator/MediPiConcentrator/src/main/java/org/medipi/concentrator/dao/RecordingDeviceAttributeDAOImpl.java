@@ -15,25 +15,94 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Arrays;
+import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
 import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 /**
  * Implementation of data access object for RecordingDeviceAttribute
  *
+ * Lookups by type, attribute name, units and format are served from an
+ * in-process cache as the reference data very rarely changes
+ *
  * @author rick@robinsonhq.com
  */
 @Repository
 public class RecordingDeviceAttributeDAOImpl extends GenericDAOImpl<RecordingDeviceAttribute> implements RecordingDeviceAttributeDAO {
 
+    private ReferenceDataCache<List<Object>, RecordingDeviceAttribute> cache;
+
+    /**
+     * Setter for the maximum number of cached recording device attributes
+     *
+     * @param maxSize maximum number of entries
+     */
+    @Value("${medipi.concentrator.referencedatacache.maxsize:1000}")
+    public void setCacheSize(int maxSize) {
+        cache = new ReferenceDataCache<>(RecordingDeviceAttribute.class.getSimpleName(), maxSize);
+    }
+
     @Override
     public RecordingDeviceAttribute findByTypeUnitsFormatAndAttributeName(RecordingDeviceType typeId, String column, String units, String format) {
-        return this.getEntityManager().createNamedQuery("RecordingDeviceAttribute.findByTypeUnitsFormatAndAttributeName", RecordingDeviceAttribute.class)
-                .setParameter("attributeName", column)
-                .setParameter("typeId", typeId)
-                .setParameter("units", units)
-                .setParameter("format", format)
-                .getSingleResult();
+        List<Object> key = cacheKey(typeId, column, units, format);
+        RecordingDeviceAttribute rda = cache.get(key);
+        if (rda == null) {
+            rda = this.getEntityManager().createNamedQuery("RecordingDeviceAttribute.findByTypeUnitsFormatAndAttributeName", RecordingDeviceAttribute.class)
+                    .setParameter("attributeName", column)
+                    .setParameter("typeId", typeId)
+                    .setParameter("units", units)
+                    .setParameter("format", format)
+                    .getSingleResult();
+            cache.put(key, rda);
+        }
+        return rda;
+    }
+
+    @Override
+    public RecordingDeviceAttribute save(RecordingDeviceAttribute object) {
+        RecordingDeviceAttribute rda = super.save(object);
+        cache.putAfterCommit(cacheKey(rda), rda);
+        return rda;
+    }
+
+    @Override
+    public RecordingDeviceAttribute update(RecordingDeviceAttribute object) {
+        RecordingDeviceAttribute rda = super.update(object);
+        // the natural key may have changed so drop everything and let it refill
+        cache.clear();
+        return rda;
+    }
+
+    @Override
+    public void delete(Object id) {
+        super.delete(id);
+        cache.clear();
+    }
+
+    @Override
+    public int loadCache() {
+        List<RecordingDeviceAttribute> all = this.getEntityManager().createNamedQuery("RecordingDeviceAttribute.findAll", RecordingDeviceAttribute.class)
+                .getResultList();
+        for (RecordingDeviceAttribute rda : all) {
+            cache.put(cacheKey(rda), rda);
+        }
+        return all.size();
+    }
+
+    @Override
+    public ReferenceDataCache<List<Object>, RecordingDeviceAttribute> getCache() {
+        return cache;
+    }
+
+    private List<Object> cacheKey(RecordingDeviceAttribute rda) {
+        return cacheKey(rda.getTypeId(), rda.getAttributeName(), rda.getAttributeUnits(), rda.getAttributeType());
+    }
+
+    private List<Object> cacheKey(RecordingDeviceType typeId, String column, String units, String format) {
+        return Arrays.<Object>asList(typeId == null ? null : typeId.getTypeId(), column, units, format);
     }
 }
@@ -17,6 +17,7 @@ package org.medipi.concentrator.dao;
 
 import java.util.Date;
 import java.util.List;
+import org.hibernate.ScrollableResults;
 import org.medipi.concentrator.entities.RecordingDeviceData;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
@@ -39,6 +40,58 @@ public interface RecordingDeviceDataDAO extends GenericDAO<RecordingDeviceData>
      */
     public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime);
 
+    /**
+     * Method to return the time and value of every data point already
+     * persisted for a patient and attribute within a time window. Used by the
+     * bulk ingest path to check a whole payload for duplicates with a single
+     * query rather than one query per data point
+     *
+     * @param rda recordingDeviceAttribute
+     * @param patient patient
+     * @param fromTime earliest measurement time (inclusive)
+     * @param toTime latest measurement time (inclusive)
+     * @return list of [dataValueTime, dataValue] pairs
+     */
+    public List<Object[]> findStoredValuesInTimeRange(RecordingDeviceAttribute rda, Patient patient, Date fromTime, Date toTime);
+
+    /**
+     * Method to persist a list of data points using JDBC batching. The
+     * entities are not attached to the persistence context
+     *
+     * @param data list of data points to be written
+     * @return number of rows written to the DB
+     */
+    public int saveAll(List<RecordingDeviceData> data);
+
+    /**
+     * Method to find a page of the data for all the patients in a patient group
+     * which was stored after a sync cursor position. Data is ordered by the
+     * time it was stored and then by its id
+     *
+     * @param patientGroupUuid patient group
+     * @param downloadedTime stored time of the cursor position
+     * @param dataId data id of the cursor position
+     * @param endTime latest stored time to be returned (inclusive)
+     * @param maxResults maximum number of data points to return
+     * @return list of data points after the cursor position
+     */
+    public List<RecordingDeviceData> findByGroupAfterCursor(String patientGroupUuid, Date downloadedTime, int dataId, Date endTime, int maxResults);
+
+    /**
+     * Method to open a forward only cursor over the data for all the patients
+     * in a patient group which was stored in a time window. Data is ordered by
+     * patient. Rows are fetched from the DB in batches of fetchSize so the
+     * caller must clear the persistence context as it goes to keep the memory
+     * used bounded
+     *
+     * @param patientGroupUuid patient group
+     * @param downloadedTime stored time after which data is returned
+     * @param endTime latest stored time to be returned (inclusive)
+     * @param fetchSize number of rows fetched from the DB at a time
+     * @return cursor over the data points - this must be closed by the caller
+     */
+    public ScrollableResults scrollByGroupAndDownloadedTime(String patientGroupUuid, Date downloadedTime, Date endTime, int fetchSize);
+
     public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type);
 
     public RecordingDeviceData findByTypeAttributeAndData(String patientUuid, String type, String AttributeName, Date dataValueTime, String dataValue);
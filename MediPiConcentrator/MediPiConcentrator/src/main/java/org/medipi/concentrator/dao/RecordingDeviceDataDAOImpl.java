@@ -15,11 +15,22 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Date;
 import java.util.List;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.medipi.concentrator.entities.RecordingDeviceData;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -30,6 +41,15 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceData> implements RecordingDeviceDataDAO {
 
+    private static final String INSERTSQL = "INSERT INTO recording_device_data (data_value, data_value_time, patient_uuid, attribute_id, schedule_effective_time, schedule_expiry_time) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final int BATCHSIZE = 500;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     @Override
     public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceData.isAlreadyStored", RecordingDeviceData.class)
@@ -40,6 +60,76 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
                 .getResultList();
 
     }
+    @Override
+    public List<Object[]> findStoredValuesInTimeRange(RecordingDeviceAttribute rda, Patient patient, Date fromTime, Date toTime) {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceData.findStoredValuesInTimeRange", Object[].class)
+                .setParameter("attributeId", rda)
+                .setParameter("patientUuid", patient)
+                .setParameter("fromTime", fromTime)
+                .setParameter("toTime", toTime)
+                .getResultList();
+
+    }
+
+    @Override
+    public List<RecordingDeviceData> findByGroupAfterCursor(String patientGroupUuid, Date downloadedTime, int dataId, Date endTime, int maxResults) {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceData.findByGroupAfterCursor", RecordingDeviceData.class)
+                .setParameter("patientGroupUuid", patientGroupUuid)
+                .setParameter("downloadedTime", downloadedTime)
+                .setParameter("dataId", dataId)
+                .setParameter("endTime", endTime)
+                .setMaxResults(maxResults)
+                .getResultList();
+    }
+
+    @Override
+    public ScrollableResults scrollByGroupAndDownloadedTime(String patientGroupUuid, Date downloadedTime, Date endTime, int fetchSize) {
+        return this.getEntityManager().unwrap(Session.class).getNamedQuery("RecordingDeviceData.findByGroupAndDownloadedTime")
+                .setParameter("patientGroupUuid", patientGroupUuid)
+                .setParameter("downloadedTime", downloadedTime)
+                .setParameter("endTime", endTime)
+                .setFetchSize(fetchSize)
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    @Override
+    public int saveAll(List<RecordingDeviceData> data) {
+        if (data.isEmpty()) {
+            return 0;
+        }
+        // make sure any patient/attribute rows persisted earlier in this transaction are visible to the JDBC inserts
+        this.getEntityManager().flush();
+        int[][] results = jdbcTemplate.batchUpdate(INSERTSQL, data, BATCHSIZE, new ParameterizedPreparedStatementSetter<RecordingDeviceData>() {
+            @Override
+            public void setValues(PreparedStatement ps, RecordingDeviceData d) throws SQLException {
+                ps.setString(1, d.getDataValue());
+                ps.setTimestamp(2, new Timestamp(d.getDataValueTime().getTime()));
+                ps.setString(3, d.getPatientUuid().getPatientUuid());
+                ps.setInt(4, d.getAttributeId().getAttributeId());
+                setNullableTimestamp(ps, 5, d.getScheduleEffectiveTime());
+                setNullableTimestamp(ps, 6, d.getScheduleExpiryTime());
+            }
+        });
+        int written = 0;
+        for (int[] batch : results) {
+            for (int count : batch) {
+                // some drivers report SUCCESS_NO_INFO (-2) for batched statements
+                written += count < 0 ? 1 : count;
+            }
+        }
+        logger.log(RecordingDeviceData.class.getName() + ".info", "Batch persisted " + written + " objects of type:" + RecordingDeviceData.class);
+        return written;
+    }
+
+    private void setNullableTimestamp(PreparedStatement ps, int index, Date date) throws SQLException {
+        if (date == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+        } else {
+            ps.setTimestamp(index, new Timestamp(date.getTime()));
+        }
+    }
+
     @Override
     public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceData.findByPatientUuidAfterDate", RecordingDeviceData.class)
@@ -17,6 +17,7 @@ package org.medipi.concentrator.dao;
 
 import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
 
 /**
  * Data Access Object interface for RecordingDeviceType
@@ -29,4 +30,17 @@ public interface RecordingDeviceTypeDAO extends GenericDAO<RecordingDeviceType>
 
     public List<String> findByPatient(String patientUuid);
     public RecordingDeviceType findByType(String type);
+
+    /**
+     * Load all the recording device types from the DB into the in-process
+     * cache used by findByTypeMakeModelDisplayName
+     *
+     * @return number of recording device types loaded
+     */
+    public int loadCache();
+
+    /**
+     * @return the recording device type cache, for reporting its statistics
+     */
+    public ReferenceDataCache<List<String>, RecordingDeviceType> getCache();
 }
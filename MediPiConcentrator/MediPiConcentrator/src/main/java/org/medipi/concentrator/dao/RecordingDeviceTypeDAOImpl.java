@@ -15,27 +15,96 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Arrays;
 import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 /**
  * Implementation of data access object for RecordingDeviceType
+ *
+ * Lookups by type, make, model and display name are served from an in-process
+ * cache as the reference data very rarely changes
 
  * @author rick@robinsonhq.com
  */
 @Repository
 public class RecordingDeviceTypeDAOImpl extends GenericDAOImpl<RecordingDeviceType> implements RecordingDeviceTypeDAO {
 
+    private ReferenceDataCache<List<String>, RecordingDeviceType> cache;
+
+    /**
+     * Setter for the maximum number of cached recording device types
+     *
+     * @param maxSize maximum number of entries
+     */
+    @Value("${medipi.concentrator.referencedatacache.maxsize:1000}")
+    public void setCacheSize(int maxSize) {
+        cache = new ReferenceDataCache<>(RecordingDeviceType.class.getSimpleName(), maxSize);
+    }
+
     @Override
     public RecordingDeviceType findByTypeMakeModelDisplayName(String type, String make, String model, String displayName) {
-        return this.getEntityManager().createNamedQuery("RecordingDeviceType.findByTypeMakeModelDisplayName", RecordingDeviceType.class)
-                .setParameter("make", make)
-                .setParameter("model", model)
-                .setParameter("displayname", displayName)
-                .setParameter("type", type)
-                .getSingleResult();
-    }       
+        List<String> key = cacheKey(type, make, model, displayName);
+        RecordingDeviceType rdt = cache.get(key);
+        if (rdt == null) {
+            rdt = this.getEntityManager().createNamedQuery("RecordingDeviceType.findByTypeMakeModelDisplayName", RecordingDeviceType.class)
+                    .setParameter("make", make)
+                    .setParameter("model", model)
+                    .setParameter("displayname", displayName)
+                    .setParameter("type", type)
+                    .getSingleResult();
+            cache.put(key, rdt);
+        }
+        return rdt;
+    }
+
+    @Override
+    public RecordingDeviceType save(RecordingDeviceType object) {
+        RecordingDeviceType rdt = super.save(object);
+        cache.putAfterCommit(cacheKey(rdt), rdt);
+        return rdt;
+    }
+
+    @Override
+    public RecordingDeviceType update(RecordingDeviceType object) {
+        RecordingDeviceType rdt = super.update(object);
+        // the natural key may have changed so drop everything and let it refill
+        cache.clear();
+        return rdt;
+    }
+
+    @Override
+    public void delete(Object id) {
+        super.delete(id);
+        cache.clear();
+    }
+
+    @Override
+    public int loadCache() {
+        List<RecordingDeviceType> all = this.getEntityManager().createNamedQuery("RecordingDeviceType.findAll", RecordingDeviceType.class)
+                .getResultList();
+        for (RecordingDeviceType rdt : all) {
+            cache.put(cacheKey(rdt), rdt);
+        }
+        return all.size();
+    }
+
+    @Override
+    public ReferenceDataCache<List<String>, RecordingDeviceType> getCache() {
+        return cache;
+    }
+
+    private List<String> cacheKey(RecordingDeviceType rdt) {
+        return cacheKey(rdt.getType(), rdt.getMake(), rdt.getModel(), rdt.getDisplayName());
+    }
+
+    private List<String> cacheKey(String type, String make, String model, String displayName) {
+        return Arrays.asList(type, make, model, displayName);
+    }
+
     @Override
     public List<String> findByPatient(String patientUuid) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceType.findByPatient", String.class)
@@ -15,15 +15,17 @@
  */
 package org.medipi.concentrator.dataformat;
 
-import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.persistence.EntityExistsException;
 import org.apache.commons.io.IOUtils;
 import org.medipi.concentrator.MediPiProperties;
@@ -37,6 +39,7 @@ import org.medipi.concentrator.entities.RecordingDeviceType;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.services.SubmissionNotificationService;
 import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.model.DeviceDataDO;
 import org.medipi.model.DevicesPayloadDO;
@@ -52,16 +55,28 @@ import org.springframework.transaction.annotation.Transactional;
  * can be successfully passed from a patient unit to a concentrator. This is not
  * necessarily intended to be a final messaging format
  *
+ * When medipi.concentrator.dataformat.[classToken].bulkingest is set to true
+ * the whole payload is parsed before anything is written. Duplicates are then
+ * removed using one range query per patient and attribute and the new rows are
+ * written using JDBC batching rather than a SELECT and INSERT per data point
+ *
+ * The content of each device payload is read in a single pass by
+ * MediPiNativeTokeniser
+ *
  * @author rick@robinsonhq.com
  */
 @Service
 public class MediPiNativeFormat extends PatientUploadDataFormat {
 
-    private static final String SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT = "medipi.concentrator.successfullyprocessedsubmissionscript";
+    private static final String DATAFORMATPREFIX = "medipi.concentrator.dataformat.";
+    private static final String BULKINGEST = ".bulkingest";
     private String classToken;
+    private boolean bulkIngest = false;
+    // running totals used to report the ingest rate in rows per second
+    private final AtomicLong ingestedRows = new AtomicLong();
+    private final AtomicLong ingestNanos = new AtomicLong();
     private final MediPiLogger logger = MediPiLogger.getInstance();
     private String trackingId;
-    private String successfullyProcessedSubmission;
 
     @Autowired
     private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAO;
@@ -72,6 +87,9 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
     @Autowired
     private RecordingDeviceDataDAOImpl recordingDeviceDataDAO;
 
+    @Autowired
+    private SubmissionNotificationService submissionNotificationService;
+
     @Autowired
     private Utilities utils;
 
@@ -82,15 +100,34 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
 
     @Override
     public String init() {
-        successfullyProcessedSubmission = utils.getProperties().getProperty(SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT);
+        String b = utils.getProperties().getProperty(DATAFORMATPREFIX + classToken + BULKINGEST);
+        bulkIngest = b != null && Boolean.parseBoolean(b.trim());
+        logger.log(MediPiNativeFormat.class.getName() + ".info", "MediPiNative data format using " + (bulkIngest ? "bulk" : "per-row") + " ingest");
         return null;
     }
 
+    /**
+     * Method to return the average ingest rate over all the submissions
+     * processed since startup
+     *
+     * @return rows written to the DB per second
+     */
+    public double getIngestRowsPerSecond() {
+        long nanos = ingestNanos.get();
+        if (nanos == 0) {
+            return 0;
+        }
+        return ingestedRows.get() * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
     @Override
     @Transactional(rollbackFor = RuntimeException.class)
     public Boolean process(DevicesPayloadDO content, Patient patient) {
+        long startTime = System.nanoTime();
         HashMap<String, String> persistentMetadata = new HashMap<>();
         List<DeviceDataDO> p = content.getPayload();
+        // data points held back until the whole payload has been parsed when using bulk ingest
+        List<RecordingDeviceData> bulkRows = new ArrayList<>();
 
         if (p != null) {
             if (p.isEmpty()) {
@@ -106,16 +143,6 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
                     throwBadRequest400("Unable to decrypt the content of the payload");
 
                 }
-                int rowsWrittenToDBPerPayload = 0;
-                String make = null;
-                String model = null;
-                String displayName = null;
-                String datadelimeter = null;
-                String[] columnsArray = null;
-                String[] formatArray = null;
-                String[] unitsArray = null;
-                Date scheduleeffectivedate = null;
-                Date scheduleexpirydate = null;
                 // get the device type e.g. Oximeter
                 String type = null;
                 try {
@@ -126,194 +153,44 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
                 } catch (IndexOutOfBoundsException e) {
                     throwBadRequest400("Unable to parse the content from the payload");
                 }
-                BufferedReader br = null;
-                try {
-                    //Read the Device's content
-                    br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(pay.getPayload().getBytes())));
-                } catch (Exception e) {
+                if (pay.getPayload() == null) {
                     //Unable to parse device's content
                     throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
                 }
                 logger.log(MediPiNativeFormat.class.getName(), new Date().toString() + " Payload device: " + type + ". Device data uuid:" + pay.getDeviceDataUuid());
+                DevicePayloadHandler handler = new DevicePayloadHandler(pay.getProfileId(), type, patient, persistentMetadata, bulkRows);
                 try {
-                    String line;
-                    Boolean readAllMetadata = false;
-                    RecordingDeviceType rdt = null;
-                    while ((line = br.readLine()) != null) {
-
-                        String[] metaSplit = line.split("->");
-                        if (metaSplit[0].equals("metadata")) {
-                            // Found metadata
-                            if (metaSplit[1].equals("persist")) {
-                                //Data to be stored againast the delta of the whole downloaded dataset
-                                persistentMetadata.put(metaSplit[2], metaSplit[3]);
-                                if (metaSplit.length > 4) {
-                                    throwBadRequest400("Failed to parse metadata->persist: " + line + "in payload: " + pay.getProfileId());
-                                }
-                            } else {
-                                //Other metadata
-//                                System.out.println(metaSplit[1]);
-                                switch (metaSplit[1]) {
-                                    case "datadelimiter":
-                                        datadelimeter = metaSplit[2];
-                                        // if delimeter is a special regex charater then prpend with a double //
-                                        if ("\\.[]{}()*+-?^$|".contains(datadelimeter)) {
-                                            datadelimeter = "\\" + datadelimeter;
-                                        }
-                                        break;
-                                    case "make":
-                                        make = metaSplit[2];
-                                        break;
-                                    case "model":
-                                        model = metaSplit[2];
-                                        break;
-                                    case "displayname":
-                                        displayName = metaSplit[2];
-                                        break;
-                                    case "columns":
-                                        columnsArray = metaSplit[2].split(datadelimeter);
-                                        if (columnsArray == null || !columnsArray[0].equals("iso8601time")) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not the first column");
-                                        }
-                                        break;
-                                    case "format":
-                                        formatArray = metaSplit[2].split(datadelimeter);
-                                        if (formatArray == null || !formatArray[0].equals("DATE")) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not in the correct format");
-                                        }
-                                        break;
-                                    case "units":
-                                        unitsArray = metaSplit[2].split(datadelimeter);
-                                        if (unitsArray == null) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " units field is not in the correct format");
-                                        }
-                                        break;
-                                    case "scheduleeffectivedate":
-                                        try {
-                                            scheduleeffectivedate = new ISO8601DateFormat().parse(metaSplit[2]);
-                                        } catch (ParseException ex) {
-                                            throwBadRequest400("scheduleeffectivedate for device: " + displayName + " metatdata->scheduleeffectivedate is in an invalid format");
-                                        }
-                                        break;
-                                    case "scheduleexpirydate":
-                                        try {
-                                            scheduleexpirydate = new ISO8601DateFormat().parse(metaSplit[2]);
-                                        } catch (ParseException ex) {
-                                            throwBadRequest400("scheduleexpirydate for device: " + displayName + " metatdata->scheduleexpirydate is in an invalid format");
-                                        }
-                                        break;
-                                    default:
-                                        // Fail - bad data
-                                        throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId());
-                                }
-                            }
-
-                        } else if (readAllMetadata || checkMetadata(make, model, displayName, datadelimeter, columnsArray, formatArray, unitsArray)) {
-                            readAllMetadata = true;
-                            // It's data
-                            if (rdt == null) {
-                                // need to find the type - only needs to be done once per device type
-                                // Check to find the device in the device_type table
-                                try {
-                                    rdt = this.recordingDeviceTypeDAO.findByTypeMakeModelDisplayName(type, make, model, displayName);
-                                } catch (EmptyResultDataAccessException e) {
-                                    // Device does NOT exist in the database
-                                    // if not in db add it
-                                    rdt = updateRecordingDeviceType(rdt, type, make, model, displayName);
-                                }
-                            }
-                            String[] dataArray = line.split(datadelimeter);
-                            int columnNo = 0;
-                            Date dataPointTime = null;
-                            for (String data : dataArray) {
-                                if (columnNo == 0) {
-                                    try {
-                                        // The concentrator expects the incoming string representation of the time to be UTC in ISO
-                                        dataPointTime = new ISO8601DateFormat().parse(data);
-                                    } catch (ParseException ex) {
-                                        throwBadRequest400("Datapoint time for device: " + displayName + " is in an invalid format: " + data);
-                                    }
-                                } else {
-                                    RecordingDeviceAttribute rda = null;
-                                    try {
-                                        rda = this.recordingDeviceAttributeDAO.findByTypeUnitsFormatAndAttributeName(rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
-                                    } catch (EmptyResultDataAccessException e) {
-                                        // Attribute Name does NOT exist in the database
-                                        // add new entry to DB
-                                        rda = updateRecordingDeviceAttribute(rda, rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
-                                    }
-                                    //First check for duplicates - this is only to record the delta on machines with storage
-                                    boolean writeData = false;
-                                    List<RecordingDeviceData> dd = null;
-                                    try {
-                                        dd = this.recordingDeviceDataDAO.isAlreadyStored(rda, patient, data, dataPointTime);
-                                        if (dd.isEmpty()) {
-                                            writeData = true;
-                                        } else {
-                                            System.out.println("Duplicate data: " + data + " @ " + dataPointTime.getTime());
-                                            break;
-                                        }
-                                    } catch (Exception e) {
-                                        System.out.println("exception thrown when finding if data is already stored");
-                                        break;
-                                    }
-
-                                    //Now that the attribute id is found write device data
-                                    if (rda != null && writeData) {
-                                        RecordingDeviceData d = new RecordingDeviceData();
-                                        d.setAttributeId(rda);
-                                        d.setPatientUuid(patient);
-                                        d.setDataValue(data);
-                                        d.setDataValueTime(dataPointTime);
-                                        // Set the timedownloaded value in order to mark 
-                                        //(using a trusted, recently synchronised timestamp 
-                                        // for clinical systems to guage if data has been downloaded)
-//                                        d.setDownloadedTime(new Date());
-                                        d.setScheduleEffectiveTime(scheduleeffectivedate);
-                                        d.setScheduleExpiryTime(scheduleexpirydate);
-
-                                        try {
-                                            this.recordingDeviceDataDAO.save(d);
-                                            rowsWrittenToDBPerPayload++;
-                                            totalRowsWrittenToDB++;
-                                        } catch (Exception e) {
-                                            logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to write data for " + type + " to DB failed");
-                                            throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
-
-                                        }
-                                    }
-
-                                }
-                                columnNo++;
-
-                            }
-                        } else {
-                            throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
-                        }
-                    }
-                    // failure in reading bufferedReader
-                } catch (IOException e) {
-                    throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
+                    //Read the Device's content
+                    MediPiNativeTokeniser.tokenise(pay.getPayload(), handler);
+                } catch (ParseException e) {
+                    throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId() + " at line " + e.getErrorOffset() + ": " + e.getMessage());
+                }
+                int rowsWrittenToDBPerPayload = handler.rowsWritten;
+                if (!bulkIngest) {
+                    totalRowsWrittenToDB += rowsWrittenToDBPerPayload;
+                }
+                if (bulkIngest) {
+                    logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", rowsWrittenToDBPerPayload + " rows of data parsed for bulk ingest for payload: " + type);
+                } else {
+                    logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", rowsWrittenToDBPerPayload + " rows of data written to the DB for payload: " + type);
                 }
-                logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", rowsWrittenToDBPerPayload + " rows of data written to the DB for payload: " + type);
 
             }
-            if (successfullyProcessedSubmission != null && totalRowsWrittenToDB > 0) {
-                logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", totalRowsWrittenToDB + " rows of data written to the DB in total for transaction covered by trackingID: " + trackingId);
-                System.out.println("Patient " + patient.getPatientUuid() + " has submitted " + totalRowsWrittenToDB + " pieces of data at " + new Date());
-                Runtime runtime = Runtime.getRuntime();
+            if (bulkIngest) {
                 try {
-                    String script = successfullyProcessedSubmission.replace("__PATIENT_UUID__", patient.getPatientUuid());
-                    Process process = runtime.exec(script);
-                    int resultCode = process.waitFor();
-                    if (resultCode == 0) {
-                        // all is good
-                    }
-                } catch (Throwable ex) {
-                    logger.log(MediPiNativeFormat.class.getName() + ".curlIssue", "Attempt to curl notification for " + patient.getPatientUuid() + " failed @" + new Date() + " because " + ex.getLocalizedMessage());
-                    System.out.println("Attempt to curl notification for " + patient.getPatientUuid() + " failed @" + new Date() + " because " + ex.getLocalizedMessage());
+                    totalRowsWrittenToDB = saveBulkRows(bulkRows, patient);
+                } catch (Exception e) {
+                    logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to bulk write data to DB failed: " + e.getLocalizedMessage());
+                    throw new InternalServerError500Exception("Attempt to bulk write data to DB failed");
                 }
             }
+            logIngestRate(totalRowsWrittenToDB, System.nanoTime() - startTime);
+            if (totalRowsWrittenToDB > 0) {
+                logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", totalRowsWrittenToDB + " rows of data written to the DB in total for transaction covered by trackingID: " + trackingId);
+                System.out.println("Patient " + patient.getPatientUuid() + " has submitted " + totalRowsWrittenToDB + " pieces of data at " + new Date());
+                // sent in the background once this transaction has committed
+                submissionNotificationService.submissionProcessed(patient.getPatientUuid());
+            }
             if (totalRowsWrittenToDB == 0) {
                 // should any particular response be made for no data added to db for any payload?
             }
@@ -326,6 +203,247 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
         return true;
     }
 
+    /**
+     * Handler for the metadata and data lines of one device payload. Each data
+     * point is either written to the DB immediately or, when using bulk ingest,
+     * added to the rows to be written once the whole submission is parsed
+     */
+    private class DevicePayloadHandler implements MediPiNativeTokeniser.Handler {
+
+        private final String profileId;
+        private final String type;
+        private final Patient patient;
+        private final Map<String, String> persistentMetadata;
+        private final List<RecordingDeviceData> bulkRows;
+        private String make = null;
+        private String model = null;
+        private String displayName = null;
+        private String datadelimeter = null;
+        private String[] columnsArray = null;
+        private String[] formatArray = null;
+        private String[] unitsArray = null;
+        private Date scheduleeffectivedate = null;
+        private Date scheduleexpirydate = null;
+        private RecordingDeviceType rdt = null;
+        private int rowsWritten = 0;
+
+        DevicePayloadHandler(String profileId, String type, Patient patient, Map<String, String> persistentMetadata, List<RecordingDeviceData> bulkRows) {
+            this.profileId = profileId;
+            this.type = type;
+            this.patient = patient;
+            this.persistentMetadata = persistentMetadata;
+            this.bulkRows = bulkRows;
+        }
+
+        @Override
+        public void persistentMetadata(String key, String value) {
+            //Data to be stored againast the delta of the whole downloaded dataset
+            persistentMetadata.put(key, value);
+        }
+
+        @Override
+        public void metadata(String name, String value) {
+            switch (name) {
+                case "datadelimiter":
+                    // the delimiter is literal - it is not used as a regex
+                    datadelimeter = value;
+                    break;
+                case "make":
+                    make = value;
+                    break;
+                case "model":
+                    model = value;
+                    break;
+                case "displayname":
+                    displayName = value;
+                    break;
+                case "columns":
+                    columnsArray = splitMetadata(value);
+                    if (columnsArray.length == 0 || !columnsArray[0].equals("iso8601time")) {
+                        throwBadRequest400("Failed to parse metadata in payload: " + profileId + " iso8601date field is not the first column");
+                    }
+                    break;
+                case "format":
+                    formatArray = splitMetadata(value);
+                    if (formatArray.length == 0 || !formatArray[0].equals("DATE")) {
+                        throwBadRequest400("Failed to parse metadata in payload: " + profileId + " iso8601date field is not in the correct format");
+                    }
+                    break;
+                case "units":
+                    unitsArray = splitMetadata(value);
+                    break;
+                case "scheduleeffectivedate":
+                    try {
+                        scheduleeffectivedate = MediPiNativeTokeniser.parseTime(value);
+                    } catch (ParseException ex) {
+                        throwBadRequest400("scheduleeffectivedate for device: " + displayName + " metatdata->scheduleeffectivedate is in an invalid format");
+                    }
+                    break;
+                case "scheduleexpirydate":
+                    try {
+                        scheduleexpirydate = MediPiNativeTokeniser.parseTime(value);
+                    } catch (ParseException ex) {
+                        throwBadRequest400("scheduleexpirydate for device: " + displayName + " metatdata->scheduleexpirydate is in an invalid format");
+                    }
+                    break;
+                default:
+                    // Fail - bad data
+                    throwBadRequest400("Failed to parse metadata in payload: " + profileId);
+            }
+        }
+
+        private String[] splitMetadata(String value) {
+            if (datadelimeter == null) {
+                throwBadRequest400("Failed to parse metadata in payload: " + profileId + " metadata->datadelimiter must be declared first");
+            }
+            return MediPiNativeTokeniser.split(value, datadelimeter);
+        }
+
+        @Override
+        public void startData() {
+            checkMetadata(make, model, displayName, datadelimeter, columnsArray, formatArray, unitsArray);
+            // need to find the type - only needs to be done once per device type
+            // Check to find the device in the device_type table
+            try {
+                rdt = recordingDeviceTypeDAO.findByTypeMakeModelDisplayName(type, make, model, displayName);
+            } catch (EmptyResultDataAccessException e) {
+                // Device does NOT exist in the database
+                // if not in db add it
+                rdt = updateRecordingDeviceType(rdt, type, make, model, displayName);
+            }
+        }
+
+        @Override
+        public void data(Date dataPointTime, String[] dataArray) {
+            for (int columnNo = 1; columnNo < dataArray.length; columnNo++) {
+                String data = dataArray[columnNo];
+                if (columnNo >= columnsArray.length || columnNo >= unitsArray.length) {
+                    throwBadRequest400("Unable to parse the content from the payload with profile Id: " + profileId + " data has more fields than metadata->columns");
+                }
+                RecordingDeviceAttribute rda = null;
+                try {
+                    rda = recordingDeviceAttributeDAO.findByTypeUnitsFormatAndAttributeName(rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
+                } catch (EmptyResultDataAccessException e) {
+                    // Attribute Name does NOT exist in the database
+                    // add new entry to DB
+                    rda = updateRecordingDeviceAttribute(rda, rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
+                }
+                if (bulkIngest) {
+                    if (rda != null) {
+                        bulkRows.add(newRecordingDeviceData(rda, patient, data, dataPointTime, scheduleeffectivedate, scheduleexpirydate));
+                        rowsWritten++;
+                    }
+                    continue;
+                }
+                //First check for duplicates - this is only to record the delta on machines with storage
+                boolean writeData = false;
+                List<RecordingDeviceData> dd = null;
+                try {
+                    dd = recordingDeviceDataDAO.isAlreadyStored(rda, patient, data, dataPointTime);
+                    if (dd.isEmpty()) {
+                        writeData = true;
+                    } else {
+                        System.out.println("Duplicate data: " + data + " @ " + dataPointTime.getTime());
+                        break;
+                    }
+                } catch (Exception e) {
+                    System.out.println("exception thrown when finding if data is already stored");
+                    break;
+                }
+
+                //Now that the attribute id is found write device data
+                if (rda != null && writeData) {
+                    RecordingDeviceData d = newRecordingDeviceData(rda, patient, data, dataPointTime, scheduleeffectivedate, scheduleexpirydate);
+
+                    try {
+                        recordingDeviceDataDAO.save(d);
+                        rowsWritten++;
+                    } catch (Exception e) {
+                        logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to write data for " + type + " to DB failed");
+                        throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
+
+                    }
+                }
+            }
+        }
+    }
+
+    private RecordingDeviceData newRecordingDeviceData(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime, Date scheduleeffectivedate, Date scheduleexpirydate) {
+        RecordingDeviceData d = new RecordingDeviceData();
+        d.setAttributeId(rda);
+        d.setPatientUuid(patient);
+        d.setDataValue(data);
+        d.setDataValueTime(dataPointTime);
+        // Set the timedownloaded value in order to mark 
+        //(using a trusted, recently synchronised timestamp 
+        // for clinical systems to guage if data has been downloaded)
+//        d.setDownloadedTime(new Date());
+        d.setScheduleEffectiveTime(scheduleeffectivedate);
+        d.setScheduleExpiryTime(scheduleexpirydate);
+        return d;
+    }
+
+    /**
+     * Method to deduplicate and write all the data points of a submission.
+     *
+     * The data points are grouped by attribute and the data already stored for
+     * the patient over the time window covered by each group is fetched with a
+     * single query. Anything not already stored (or repeated within the
+     * submission) is written using JDBC batching
+     *
+     * @param rows all the data points parsed from the submission
+     * @param patient the patient the data relates to
+     * @return number of rows written to the DB
+     */
+    private int saveBulkRows(List<RecordingDeviceData> rows, Patient patient) {
+        Map<RecordingDeviceAttribute, List<RecordingDeviceData>> byAttribute = new LinkedHashMap<>();
+        for (RecordingDeviceData d : rows) {
+            List<RecordingDeviceData> l = byAttribute.get(d.getAttributeId());
+            if (l == null) {
+                l = new ArrayList<>();
+                byAttribute.put(d.getAttributeId(), l);
+            }
+            l.add(d);
+        }
+        List<RecordingDeviceData> toWrite = new ArrayList<>();
+        for (Map.Entry<RecordingDeviceAttribute, List<RecordingDeviceData>> e : byAttribute.entrySet()) {
+            long from = Long.MAX_VALUE;
+            long to = Long.MIN_VALUE;
+            for (RecordingDeviceData d : e.getValue()) {
+                long t = d.getDataValueTime().getTime();
+                from = Math.min(from, t);
+                to = Math.max(to, t);
+            }
+            Set<String> stored = new HashSet<>();
+            for (Object[] o : recordingDeviceDataDAO.findStoredValuesInTimeRange(e.getKey(), patient, new Date(from), new Date(to))) {
+                stored.add(dataPointKey((Date) o[0], (String) o[1]));
+            }
+            for (RecordingDeviceData d : e.getValue()) {
+                //Only record the delta on machines with storage - Set.add also drops repeats within the submission
+                if (stored.add(dataPointKey(d.getDataValueTime(), d.getDataValue()))) {
+                    toWrite.add(d);
+                }
+            }
+        }
+        if (toWrite.size() < rows.size()) {
+            logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", (rows.size() - toWrite.size()) + " duplicate rows of data ignored for patient: " + patient.getPatientUuid());
+        }
+        return recordingDeviceDataDAO.saveAll(toWrite);
+    }
+
+    private String dataPointKey(Date dataPointTime, String data) {
+        return dataPointTime.getTime() + "|" + data;
+    }
+
+    private void logIngestRate(int rows, long nanos) {
+        long totalRows = ingestedRows.addAndGet(rows);
+        long totalNanos = ingestNanos.addAndGet(nanos);
+        double rate = nanos == 0 ? 0 : rows * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+        double averageRate = totalNanos == 0 ? 0 : totalRows * (double) TimeUnit.SECONDS.toNanos(1) / totalNanos;
+        logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", rows + " rows ingested in " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms (" + Math.round(rate) + " rows/s) using " + (bulkIngest ? "bulk" : "per-row") + " ingest. Average since startup: " + Math.round(averageRate) + " rows/s");
+        logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", "Reference data cache: " + recordingDeviceTypeDAO.getCache() + " " + recordingDeviceAttributeDAO.getCache());
+    }
+
     @Transactional
     private RecordingDeviceType updateRecordingDeviceType(RecordingDeviceType rdt, String type, String make, String model, String displayName) {
         try {
@@ -0,0 +1,272 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Tokeniser for the content of a MediPi Native format device payload.
+ *
+ * The payload is scanned once without regular expressions or intermediate
+ * copies. Metadata lines (metadata->name->value) and persistent metadata lines
+ * (metadata->persist->key->value) are passed to the handler as they are found
+ * and each data line is split using the literal data delimiter declared by the
+ * metadata->datadelimiter line. The first field of a data line is parsed as an
+ * ISO8601 UTC time - the yyyy-MM-ddTHH:mm:ss.SSSZ form sent by the patient
+ * units is decoded directly and any other ISO8601 form falls back to the
+ * (thread safe) Jackson ISO8601 parser.
+ *
+ * As with String.split, trailing empty fields are dropped from each line
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativeTokeniser {
+
+    private static final String METADATA = "metadata";
+    private static final String PERSIST = "persist";
+    private static final String DATADELIMITER = "datadelimiter";
+    private static final String METADELIMITER = "->";
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * Callback for the content of a MediPi Native format device payload
+     */
+    public interface Handler {
+
+        /**
+         * Called for each metadata->persist->key->value line
+         *
+         * @param key
+         * @param value
+         */
+        public void persistentMetadata(String key, String value);
+
+        /**
+         * Called for each metadata->name->value line
+         *
+         * @param name
+         * @param value
+         */
+        public void metadata(String name, String value);
+
+        /**
+         * Called once before the first data line so that the handler can
+         * check that all the metadata it requires has been supplied
+         */
+        public void startData();
+
+        /**
+         * Called for each data line
+         *
+         * @param dataPointTime time of the data point parsed from the first
+         * field
+         * @param fields all the fields of the line including the unparsed time
+         * in field 0
+         */
+        public void data(Date dataPointTime, String[] fields);
+    }
+
+    private MediPiNativeTokeniser() {
+    }
+
+    /**
+     * Tokenise the content of a device payload
+     *
+     * @param payload the device payload
+     * @param handler callback for the metadata and data lines
+     * @throws ParseException if a line is malformed. The error offset is the
+     * line number
+     */
+    public static void tokenise(String payload, Handler handler) throws ParseException {
+        String delimiter = null;
+        boolean started = false;
+        int length = payload.length();
+        int lineNo = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && payload.charAt(end) != '\n' && payload.charAt(end) != '\r') {
+                end++;
+            }
+            lineNo++;
+            if (payload.startsWith(METADATA + METADELIMITER, start)) {
+                String[] meta = split(payload, start, end, METADELIMITER);
+                if (meta.length < 3) {
+                    throw new ParseException("Incomplete metadata: " + payload.substring(start, end), lineNo);
+                }
+                if (meta[1].equals(PERSIST)) {
+                    if (meta.length != 4) {
+                        throw new ParseException("Failed to parse metadata->persist: " + payload.substring(start, end), lineNo);
+                    }
+                    handler.persistentMetadata(meta[2], meta[3]);
+                } else {
+                    if (meta[1].equals(DATADELIMITER)) {
+                        delimiter = meta[2];
+                    }
+                    handler.metadata(meta[1], meta[2]);
+                }
+            } else {
+                if (!started) {
+                    handler.startData();
+                    started = true;
+                }
+                if (delimiter == null) {
+                    throw new ParseException("No metadata->datadelimiter before data", lineNo);
+                }
+                String[] fields = split(payload, start, end, delimiter);
+                if (fields.length == 0) {
+                    throw new ParseException("Empty data line", lineNo);
+                }
+                Date dataPointTime;
+                try {
+                    dataPointTime = parseTime(fields[0]);
+                } catch (ParseException e) {
+                    throw new ParseException("Datapoint time is in an invalid format: " + fields[0], lineNo);
+                }
+                handler.data(dataPointTime, fields);
+            }
+            // a \r\n pair is one line terminator
+            if (end < length && payload.charAt(end) == '\r' && end + 1 < length && payload.charAt(end + 1) == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Split a string on a literal delimiter dropping any trailing empty fields
+     * as String.split does
+     *
+     * @param s string to be split
+     * @param delimiter literal delimiter
+     * @return the fields
+     */
+    public static String[] split(String s, String delimiter) {
+        return split(s, 0, s.length(), delimiter);
+    }
+
+    private static String[] split(String s, int start, int end, String delimiter) {
+        if (start == end) {
+            return EMPTY;
+        }
+        ArrayList<String> fields = new ArrayList<>();
+        int dl = delimiter.length();
+        int from = start;
+        int lastNonEmpty = 0;
+        while (true) {
+            int i = dl == 0 ? -1 : s.indexOf(delimiter, from);
+            if (i == -1 || i >= end || i + dl > end) {
+                fields.add(s.substring(from, end));
+                if (end > from) {
+                    lastNonEmpty = fields.size();
+                }
+                break;
+            }
+            fields.add(s.substring(from, i));
+            if (i > from) {
+                lastNonEmpty = fields.size();
+            }
+            from = i + dl;
+        }
+        if (lastNonEmpty == 0) {
+            return EMPTY;
+        }
+        return fields.subList(0, lastNonEmpty).toArray(new String[lastNonEmpty]);
+    }
+
+    /**
+     * Parse an ISO8601 time
+     *
+     * @param s ISO8601 representation of a time
+     * @return the time
+     * @throws ParseException if the time is not valid ISO8601
+     */
+    public static Date parseTime(String s) throws ParseException {
+        long t = parseUtcMillis(s);
+        if (t != Long.MIN_VALUE) {
+            return new Date(t);
+        }
+        try {
+            return ISO8601Utils.parse(s, new ParsePosition(0));
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Invalid ISO8601 time: " + s, 0);
+        }
+    }
+
+    /**
+     * Decode yyyy-MM-ddTHH:mm:ss.SSSZ without creating any objects
+     *
+     * @return epoch millis or Long.MIN_VALUE if the string is not in this form
+     */
+    private static long parseUtcMillis(String s) {
+        if (s.length() != 24 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':'
+                || s.charAt(16) != ':' || s.charAt(19) != '.' || s.charAt(23) != 'Z') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        int milli = digits(s, 20, 3);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || milli < 0) {
+            return Long.MIN_VALUE;
+        }
+        return ((epochDay(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L + milli;
+    }
+
+    private static int digits(String s, int offset, int count) {
+        int v = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // days since 1970-01-01 in the proleptic Gregorian calendar
+    private static long epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+}
@@ -40,8 +40,12 @@ import javax.validation.constraints.Size;
 @Entity
 @Table(name = "all_hardware_downloadable")
 @NamedQueries({
+    @NamedQuery(name = "AllHardwareDownloadable.changeFingerprint", query = "SELECT COUNT(a), MAX(a.broadcastSequence) FROM AllHardwareDownloadable a"),
     //Added queries
-    @NamedQuery(name = "AllHardwareDownloadable.findAllDownloadable", query = "SELECT c FROM AllHardwareDownloadable c WHERE c.downloadableUuid NOT IN (SELECT a.downloadableUuid FROM AllHardwareDownloadable a, AllHardwareDownloaded b WHERE a.downloadableUuid = b.downloadableUuid AND b.hardwareName.hardwareName = :hname)"), 
+    // Only broadcasts after the device's acknowledged sequence are checked against the acknowledgements
+    @NamedQuery(name = "AllHardwareDownloadable.findAllDownloadable", query = "SELECT c FROM AllHardwareDownloadable c, Hardware h WHERE h.hardwareName = :hname AND c.broadcastSequence > h.allHardwareAckedSequence AND NOT EXISTS (SELECT b FROM AllHardwareDownloaded b WHERE b.downloadableUuid = c AND b.hardwareName = h) ORDER BY c.broadcastSequence"),
+    @NamedQuery(name = "AllHardwareDownloadable.findFirstUnacknowledgedSequence", query = "SELECT MIN(c.broadcastSequence) FROM AllHardwareDownloadable c, Hardware h WHERE h.hardwareName = :hname AND c.broadcastSequence > h.allHardwareAckedSequence AND NOT EXISTS (SELECT b FROM AllHardwareDownloaded b WHERE b.downloadableUuid = c AND b.hardwareName = h)"),
+    @NamedQuery(name = "AllHardwareDownloadable.findMaxBroadcastSequence", query = "SELECT MAX(c.broadcastSequence) FROM AllHardwareDownloadable c"),
     //
     @NamedQuery(name = "AllHardwareDownloadable.findAll", query = "SELECT a FROM AllHardwareDownloadable a"),
     @NamedQuery(name = "AllHardwareDownloadable.findByDownloadableUuid", query = "SELECT a FROM AllHardwareDownloadable a WHERE a.downloadableUuid = :downloadableUuid"),
@@ -84,6 +88,9 @@ public class AllHardwareDownloadable implements Serializable {
     @Size(min = 1, max = 10000)
     @Column(name = "signature")
     private String signature;
+    // assigned by the DB from all_hardware_downloadable_broadcast_seq when the broadcast is inserted
+    @Column(name = "broadcast_sequence", insertable = false, updatable = false)
+    private Long broadcastSequence;
     @OneToMany(cascade = CascadeType.ALL, mappedBy = "downloadableUuid")
     private Collection<AllHardwareDownloaded> allHardwareDownloadedCollection;
 
@@ -151,6 +158,10 @@ public class AllHardwareDownloadable implements Serializable {
         this.signature = signature;
     }
 
+    public Long getBroadcastSequence() {
+        return broadcastSequence;
+    }
+
     public Collection<AllHardwareDownloaded> getAllHardwareDownloadedCollection() {
         return allHardwareDownloadedCollection;
     }
@@ -44,7 +44,9 @@ import javax.validation.constraints.Size;
     @NamedQuery(name = "Hardware.findByHardwareName", query = "SELECT p FROM Hardware p WHERE p.hardwareName = :hardwareName"),
     @NamedQuery(name = "Hardware.findByMacAddress", query = "SELECT p FROM Hardware p WHERE p.macAddress = :macAddress"),
     @NamedQuery(name = "Hardware.findByCurrentSoftwareVersion", query = "SELECT p FROM Hardware p WHERE p.currentSoftwareVersion = :currentSoftwareVersion"),
-    @NamedQuery(name = "Hardware.findByPatientUuid", query = "SELECT p FROM Hardware p WHERE p.patientUuid.patientUuid = :patientUuid")})
+    @NamedQuery(name = "Hardware.findByPatientUuid", query = "SELECT p FROM Hardware p WHERE p.patientUuid.patientUuid = :patientUuid"),
+    @NamedQuery(name = "Hardware.findPatientUuidByHardwareName", query = "SELECT pt.patientUuid FROM Hardware p LEFT JOIN p.patientUuid pt WHERE p.hardwareName = :hardwareName"),
+    @NamedQuery(name = "Hardware.advanceAllHardwareAckedSequence", query = "UPDATE Hardware p SET p.allHardwareAckedSequence = :sequence WHERE p.hardwareName = :hardwareName AND p.allHardwareAckedSequence < :sequence")})
 public class Hardware implements Serializable {
 
 
@@ -69,6 +71,9 @@ public class Hardware implements Serializable {
     @JoinColumn(name = "patient_uuid", referencedColumnName = "patient_uuid")
     @ManyToOne
     private Patient patientUuid;
+    // every all hardware broadcast up to and including this sequence has been acknowledged by the device
+    @Column(name = "all_hardware_acked_sequence", insertable = false, updatable = false)
+    private Long allHardwareAckedSequence;
 
     @OneToMany(cascade = CascadeType.ALL, mappedBy = "hardwareName", fetch = FetchType.LAZY)
     private Collection<AllHardwareDownloaded> allHardwareDownloadedCollection;
@@ -112,6 +117,10 @@ public class Hardware implements Serializable {
         this.currentSoftwareVersion = currentSoftwareVersion;
     }
 
+    public Long getAllHardwareAckedSequence() {
+        return allHardwareAckedSequence;
+    }
+
     public Patient getPatientUuid() {
         return patientUuid;
     }
@@ -39,6 +39,7 @@ import javax.validation.constraints.Size;
 @Entity
 @Table(name = "hardware_downloadable")
 @NamedQueries({
+    @NamedQuery(name = "HardwareDownloadable.changeFingerprint", query = "SELECT COUNT(h), MAX(h.versionDate) FROM HardwareDownloadable h WHERE h.downloadedDate IS NULL"),
     //Added
     @NamedQuery(name = "HardwareDownloadable.findByHardware", query = "SELECT p FROM HardwareDownloadable p WHERE p.hardwareName.hardwareName = :hname AND p.downloadedDate IS NULL"),
     @NamedQuery(name = "HardwareDownloadable.findByDownloadableUuidAndOpen", query = "SELECT p FROM HardwareDownloadable p WHERE p.downloadableUuid = :downloadableUuid AND p.downloadedDate IS NULL"),
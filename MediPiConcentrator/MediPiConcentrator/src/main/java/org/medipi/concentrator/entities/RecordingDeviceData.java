@@ -23,6 +23,7 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
@@ -40,12 +41,16 @@ import org.hibernate.annotations.GenerationTime;
  * @author rick@robinsonhq.com
  */
 @Entity
-@Table(name = "recording_device_data")
+@Table(name = "recording_device_data", indexes = {
+    @Index(name = "recording_device_data_sync_cursor_idx", columnList = "downloaded_time, data_id")})
 @NamedQueries({
     //Added
     @NamedQuery(name = "RecordingDeviceData.isAlreadyStored", query = "SELECT d FROM RecordingDeviceData d WHERE d.attributeId = :attributeId AND d.dataValue = :dataValue AND d.dataValueTime = :dataValueTime AND d.patientUuid = :patientUuid"),
+    @NamedQuery(name = "RecordingDeviceData.findStoredValuesInTimeRange", query = "SELECT d.dataValueTime, d.dataValue FROM RecordingDeviceData d WHERE d.attributeId = :attributeId AND d.patientUuid = :patientUuid AND d.dataValueTime >= :fromTime AND d.dataValueTime <= :toTime"),
     @NamedQuery(name = "RecordingDeviceData.findBypatientUuidAfterDate", query = "SELECT d FROM RecordingDeviceData d, RecordingDeviceAttribute a, RecordingDeviceType t WHERE d.attributeId = a.attributeId AND a.typeId =t.typeId AND d.patientUuid.patientUuid = :patientUuid AND d.dataValueTime > :requestDate AND t.type = :type ORDER BY d.dataValueTime"),
     @NamedQuery(name = "RecordingDeviceData.findByTypeAttributeAndData", query = "SELECT d FROM RecordingDeviceData d, RecordingDeviceAttribute a, RecordingDeviceType t WHERE d.attributeId = a.attributeId AND a.typeId =t.typeId AND d.patientUuid.patientUuid = :patientUuid AND t.type = :type AND a.attributeName = :attributeName AND d.dataValueTime = :dataValueTime AND d.dataValue = :dataValue"),
+    @NamedQuery(name = "RecordingDeviceData.findByGroupAfterCursor", query = "SELECT d FROM RecordingDeviceData d JOIN FETCH d.patientUuid p JOIN FETCH d.attributeId a JOIN FETCH a.typeId WHERE p.patientGroupUuid.patientGroupUuid = :patientGroupUuid AND d.downloadedTime <= :endTime AND (d.downloadedTime > :downloadedTime OR (d.downloadedTime = :downloadedTime AND d.dataId > :dataId)) ORDER BY d.downloadedTime, d.dataId"),
+    @NamedQuery(name = "RecordingDeviceData.findByGroupAndDownloadedTime", query = "SELECT d FROM RecordingDeviceData d JOIN FETCH d.patientUuid p JOIN FETCH d.attributeId a JOIN FETCH a.typeId WHERE p.patientGroupUuid.patientGroupUuid = :patientGroupUuid AND d.downloadedTime > :downloadedTime AND d.downloadedTime <= :endTime ORDER BY p.patientUuid, d.dataId"),
     @NamedQuery(name = "RecordingDeviceData.findByPatientAndDownloadedTime", query = "SELECT d FROM RecordingDeviceData d, Patient p WHERE d.patientUuid.patientUuid = p.patientUuid AND p.patientUuid = :patientUuid AND d.downloadedTime > :downloadedTime AND d.downloadedTime<= :endTime"),
     //
     @NamedQuery(name = "RecordingDeviceData.findAll", query = "SELECT d FROM RecordingDeviceData d"),
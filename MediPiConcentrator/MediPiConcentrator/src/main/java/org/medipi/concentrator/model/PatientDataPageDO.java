@@ -0,0 +1,70 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Container data object for a page of data requested by a clinical system
+ * using a sync cursor. The nextCursor is passed back to the concentrator to
+ * request the following page and moreData indicates whether further data was
+ * available when the page was created
+ *
+ * @author rick@robinsonhq.com
+ */
+public class PatientDataPageDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private List<PatientDataRequestDO> patientDataList = new ArrayList<>();
+    private String nextCursor;
+    private boolean moreData;
+
+    public PatientDataPageDO() {
+    }
+
+    public PatientDataPageDO(List<PatientDataRequestDO> patientDataList, String nextCursor, boolean moreData) {
+        this.patientDataList = patientDataList;
+        this.nextCursor = nextCursor;
+        this.moreData = moreData;
+    }
+
+    public List<PatientDataRequestDO> getPatientDataList() {
+        return patientDataList;
+    }
+
+    public void setPatientDataList(List<PatientDataRequestDO> patientDataList) {
+        this.patientDataList = patientDataList;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public boolean isMoreData() {
+        return moreData;
+    }
+
+    public void setMoreData(boolean moreData) {
+        this.moreData = moreData;
+    }
+
+}
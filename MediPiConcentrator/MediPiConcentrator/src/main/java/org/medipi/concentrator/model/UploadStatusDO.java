@@ -0,0 +1,151 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Data object reporting the progress of an upload which has been accepted for
+ * asynchronous processing by the concentrator.
+ *
+ * The deviceId and patientUuid of the upload are held so that only the unit
+ * which sent it can read its status. They are not returned to the caller
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadStatusDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Upload has been journaled and is waiting to be processed
+     */
+    public static final String QUEUED = "QUEUED";
+    /**
+     * Upload is being processed by a worker
+     */
+    public static final String PROCESSING = "PROCESSING";
+    /**
+     * Upload has been processed and its data persisted
+     */
+    public static final String PROCESSED = "PROCESSED";
+    /**
+     * Upload could not be processed
+     */
+    public static final String FAILED = "FAILED";
+
+    private String uploadUuid;
+    private String status;
+    private int httpStatus;
+    private String message;
+    private Date receivedDate;
+    private Date completedDate;
+    private int attempts;
+    private String deviceId;
+    private String patientUuid;
+
+    public UploadStatusDO() {
+    }
+
+    public UploadStatusDO(String uploadUuid, String status, Date receivedDate) {
+        this.uploadUuid = uploadUuid;
+        this.status = status;
+        this.receivedDate = receivedDate;
+    }
+
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    public void setUploadUuid(String uploadUuid) {
+        this.uploadUuid = uploadUuid;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    public void setHttpStatus(int httpStatus) {
+        this.httpStatus = httpStatus;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public Date getReceivedDate() {
+        return receivedDate;
+    }
+
+    public void setReceivedDate(Date receivedDate) {
+        this.receivedDate = receivedDate;
+    }
+
+    public Date getCompletedDate() {
+        return completedDate;
+    }
+
+    public void setCompletedDate(Date completedDate) {
+        this.completedDate = completedDate;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    @JsonIgnore
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    @JsonIgnore
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    @JsonIgnore
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    @JsonIgnore
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    @Override
+    public String toString() {
+        return "org.medipi.concentrator.model.UploadStatusDO[ uploadUuid=" + uploadUuid + " status=" + status + " ]";
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+import javax.servlet.ServletContext;
+import org.medipi.concentrator.exception.BadRequest400Exception;
+import org.medipi.concentrator.exception.InternalServerError500Exception;
+import org.medipi.concentrator.exception.NotFound404Exception;
+import org.medipi.concentrator.exception.ServiceUnavailable503Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.UploadStatusDO;
+import org.medipi.concentrator.utilities.UploadJournal;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Service class to accept patient uploads for asynchronous processing.
+ *
+ * When enabled (medipi.concentrator.asyncupload.enabled) an incoming upload is
+ * appended to a durable local journal and acknowledged straight away with a
+ * 202 response. A bounded pool of workers then passes each journaled upload to
+ * the PatientUploadService. Uploads which fail for reasons other than a client
+ * error (e.g. the DB is unavailable) are retried with an increasing delay.
+ *
+ * Uploads are idempotent on their uploadUuid - an upload which is already
+ * queued or processed is not journaled again. On startup the journal is
+ * replayed and any uploads which had not completed are processed again. This
+ * is safe as the data formats do not persist duplicate data points.
+ *
+ * The progress of an upload can be polled using getStatus by the unit which
+ * sent it - the deviceId and patientUuid must match those of the upload.
+ *
+ * The in-memory state is guarded by this service but the journal is only
+ * written outside that lock, so accepting an upload or reading its status
+ * never waits for a status record or a compaction of the journal to reach the
+ * disk. Completed uploads are journaled and the journal compacted by the
+ * worker which processed them
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class AsyncUploadService {
+
+    private static final int RETAINEDSTATUSES = 10000;
+    private static final long MAXRETRYDELAY = 60000;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private ServletContext servletCtx;
+
+    @Autowired
+    private PatientUploadService patientUploadService;
+
+    @Value("${medipi.concentrator.asyncupload.enabled:false}")
+    private boolean enabled;
+
+    @Value("${medipi.concentrator.asyncupload.journaldir:}")
+    private String journalDir;
+
+    @Value("${medipi.concentrator.asyncupload.workers:4}")
+    private int workers;
+
+    @Value("${medipi.concentrator.asyncupload.queuecapacity:1000}")
+    private int queueCapacity;
+
+    @Value("${medipi.concentrator.asyncupload.maxattempts:5}")
+    private int maxAttempts;
+
+    @Value("${medipi.concentrator.asyncupload.compactthresholdbytes:67108864}")
+    private long compactThresholdBytes;
+
+    private UploadJournal journal;
+    private ScheduledThreadPoolExecutor executor;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // uploads which have been journaled but have not completed - guarded by this
+    private final Map<String, UploadJournal.Entry> pending = new LinkedHashMap<>();
+    // status of recent uploads - guarded by this
+    private final Map<String, UploadStatusDO> statuses = new LinkedHashMap<String, UploadStatusDO>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UploadStatusDO> eldest) {
+            return size() > RETAINEDSTATUSES && !pending.containsKey(eldest.getKey());
+        }
+    };
+
+    /**
+     * @return true if uploads are to be processed asynchronously
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Open and replay the journal and start the workers. This must be called
+     * once the data formats have been instantiated
+     *
+     * @throws IOException if the journal cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (journalDir == null || journalDir.trim().length() == 0) {
+            throw new IOException("medipi.concentrator.asyncupload.journaldir is not set");
+        }
+        journal = new UploadJournal(new File(journalDir));
+        long truncated = journal.open(new UploadJournal.ReplayHandler() {
+            @Override
+            public void enqueued(UploadJournal.Entry entry) {
+                String uuid = entry.getUpload().getUploadUuid();
+                pending.put(uuid, entry);
+                statuses.put(uuid, newStatus(entry));
+            }
+
+            @Override
+            public void status(UploadStatusDO status) {
+                pending.remove(status.getUploadUuid());
+                UploadStatusDO previous = statuses.get(status.getUploadUuid());
+                if (status.getDeviceId() == null && previous != null) {
+                    // status journaled before its owner was recorded with it
+                    status.setDeviceId(previous.getDeviceId());
+                    status.setPatientUuid(previous.getPatientUuid());
+                }
+                statuses.put(status.getUploadUuid(), status);
+            }
+        });
+        if (truncated > 0) {
+            logger.log(AsyncUploadService.class.getName() + ".error", "Upload journal ended with a torn record - " + truncated + " bytes truncated");
+        }
+        journal.compact(pending.values(), statuses.values());
+        final AtomicInteger threadNo = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "medipi-upload-worker-" + threadNo.incrementAndGet());
+            }
+        });
+        for (String uuid : pending.keySet()) {
+            submit(uuid, 0);
+        }
+        logger.log(AsyncUploadService.class.getName() + ".info", "Asynchronous upload processing started with " + workers + " workers. " + pending.size() + " journaled uploads replayed");
+    }
+
+    /**
+     * Stop the workers and close the journal. Uploads which have not completed
+     * remain in the journal and are processed on the next startup
+     */
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    logger.log(AsyncUploadService.class.getName() + ".error", "Failed to close the upload journal: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Journal an upload and queue it for processing
+     *
+     * @param hardwareName incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
+     * message
+     * @param content incoming message contents
+     * @return status of the upload - 202 if queued, 200 if it has already been
+     * processed
+     */
+    public ResponseEntity<UploadStatusDO> accept(String hardwareName, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO content) {
+        if (content == null || content.getUploadUuid() == null || content.getUploadUuid().trim().length() == 0) {
+            logger.log(AsyncUploadService.class.getName() + ".dataValidationIssue", "The incoming upload has no uploadUuid");
+            throw new BadRequest400Exception("The incoming upload has no uploadUuid");
+        }
+        if (dataFormat == null || servletCtx.getAttribute(dataFormat) == null) {
+            logger.log(AsyncUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+            throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+        }
+        String uuid = content.getUploadUuid();
+        UploadJournal.Entry entry = new UploadJournal.Entry(hardwareName, patientUuid, dataFormat, content, new Date());
+        UploadStatusDO status;
+        synchronized (this) {
+            UploadStatusDO existing = statuses.get(uuid);
+            if (existing != null && !isOwner(existing, hardwareName, patientUuid)) {
+                logger.log(AsyncUploadService.class.getName() + ".dataValidationIssue", "Upload uuid: " + uuid + " from deviceId: " + hardwareName + " has already been used by another device or patient");
+                throw new BadRequest400Exception("The uploadUuid: " + uuid + " has already been used");
+            }
+            if (existing != null && !UploadStatusDO.FAILED.equals(existing.getStatus())) {
+                // already queued or processed - do not process it twice
+                HttpStatus hs = UploadStatusDO.PROCESSED.equals(existing.getStatus()) ? HttpStatus.OK : HttpStatus.ACCEPTED;
+                return new ResponseEntity<>(copy(existing), hs);
+            }
+            if (pending.size() >= queueCapacity) {
+                logger.log(AsyncUploadService.class.getName() + ".error", "Upload queue is full (" + queueCapacity + ") - rejecting upload uuid: " + uuid);
+                throw new ServiceUnavailable503Exception("The concentrator is busy - please try again later");
+            }
+            status = newStatus(entry);
+            pending.put(uuid, entry);
+            statuses.put(uuid, status);
+        }
+        try {
+            journal.appendEnqueue(entry);
+        } catch (IOException e) {
+            synchronized (this) {
+                pending.remove(uuid);
+                statuses.remove(uuid);
+            }
+            logger.log(AsyncUploadService.class.getName() + ".error", "Failed to journal upload uuid: " + uuid + " - " + e.getMessage());
+            throw new InternalServerError500Exception("Failed to accept upload");
+        }
+        submit(uuid, 0);
+        logger.log(AsyncUploadService.class.getName(), new Date().toString() + " Upload uuid: " + uuid + " journaled for processing");
+        return new ResponseEntity<>(copy(status), HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Return the status of an upload. An upload sent by another device or
+     * patient is reported in the same way as an unknown upload so that its
+     * existence is not disclosed
+     *
+     * @param hardwareName incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param uploadUuid uuid of the upload
+     * @return status of the upload
+     */
+    public ResponseEntity<UploadStatusDO> getStatus(String hardwareName, String patientUuid, String uploadUuid) {
+        UploadStatusDO status;
+        synchronized (this) {
+            status = statuses.get(uploadUuid);
+            if (status != null) {
+                if (!isOwner(status, hardwareName, patientUuid)) {
+                    logger.log(AsyncUploadService.class.getName() + ".dataValidationIssue", "Status of upload uuid: " + uploadUuid + " requested by deviceId: " + hardwareName + " which did not send it");
+                    status = null;
+                } else {
+                    status = copy(status);
+                }
+            }
+        }
+        if (status == null) {
+            throw new NotFound404Exception("No upload with uuid: " + uploadUuid + " is known");
+        }
+        return new ResponseEntity<>(status, HttpStatus.OK);
+    }
+
+    private boolean isOwner(UploadStatusDO status, String hardwareName, String patientUuid) {
+        if (status.getDeviceId() == null || status.getPatientUuid() == null || hardwareName == null || patientUuid == null) {
+            return false;
+        }
+        return status.getDeviceId().equals(hardwareName) && status.getPatientUuid().toLowerCase().trim().equals(patientUuid.toLowerCase().trim());
+    }
+
+    private UploadStatusDO newStatus(UploadJournal.Entry entry) {
+        UploadStatusDO status = new UploadStatusDO(entry.getUpload().getUploadUuid(), UploadStatusDO.QUEUED, entry.getReceivedDate());
+        status.setDeviceId(entry.getDeviceId());
+        status.setPatientUuid(entry.getPatientUuid());
+        return status;
+    }
+
+    private void submit(final String uuid, long delay) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                process(uuid);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void process(String uuid) {
+        UploadJournal.Entry entry;
+        int attempt;
+        synchronized (this) {
+            entry = pending.get(uuid);
+            UploadStatusDO status = statuses.get(uuid);
+            if (entry == null || status == null) {
+                return;
+            }
+            status.setStatus(UploadStatusDO.PROCESSING);
+            attempt = status.getAttempts() + 1;
+            status.setAttempts(attempt);
+        }
+        try {
+            ResponseEntity<?> r = patientUploadService.uploadRecordingDeviceData(entry.getDeviceId(), entry.getPatientUuid(), entry.getDataFormat(), entry.getUpload());
+            if (r.getStatusCode().is2xxSuccessful()) {
+                complete(uuid, UploadStatusDO.PROCESSED, r.getStatusCode().value(), null);
+            } else {
+                complete(uuid, UploadStatusDO.FAILED, r.getStatusCode().value(), "Upload processing returned " + r.getStatusCode());
+            }
+        } catch (RuntimeException e) {
+            ResponseStatus rs = AnnotationUtils.findAnnotation(e.getClass(), ResponseStatus.class);
+            HttpStatus hs = rs == null ? HttpStatus.INTERNAL_SERVER_ERROR : rs.value();
+            if (hs.is4xxClientError() || attempt >= maxAttempts) {
+                complete(uuid, UploadStatusDO.FAILED, hs.value(), e.getMessage());
+            } else {
+                long delay = Math.min(1000L << Math.min(attempt - 1, 16), MAXRETRYDELAY);
+                logger.log(AsyncUploadService.class.getName() + ".error", "Processing of upload uuid: " + uuid + " failed on attempt " + attempt + " - retrying in " + delay + "ms: " + e.getMessage());
+                synchronized (this) {
+                    UploadStatusDO status = statuses.get(uuid);
+                    if (status != null) {
+                        status.setStatus(UploadStatusDO.QUEUED);
+                        status.setMessage(e.getMessage());
+                    }
+                }
+                submit(uuid, delay);
+            }
+        }
+    }
+
+    private void complete(String uuid, String result, int httpStatus, String message) {
+        UploadStatusDO completed;
+        synchronized (this) {
+            pending.remove(uuid);
+            UploadStatusDO status = statuses.get(uuid);
+            if (status == null) {
+                return;
+            }
+            status.setStatus(result);
+            status.setHttpStatus(httpStatus);
+            status.setMessage(message);
+            status.setCompletedDate(new Date());
+            completed = copy(status);
+        }
+        logger.log(AsyncUploadService.class.getName(), new Date().toString() + " Upload uuid: " + uuid + " " + result + " after " + completed.getAttempts() + " attempt(s)" + (message == null ? "" : ": " + message));
+        try {
+            journal.appendStatus(completed);
+        } catch (IOException e) {
+            logger.log(AsyncUploadService.class.getName() + ".error", "Failed to journal the status of upload uuid: " + uuid + " - " + e.getMessage());
+            return;
+        }
+        compactJournal();
+    }
+
+    /**
+     * Compact the journal if it has grown past the threshold. Only one worker
+     * compacts at a time and the others carry on processing uploads
+     */
+    private void compactJournal() {
+        try {
+            if (journal.size() <= compactThresholdBytes || !compacting.compareAndSet(false, true)) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.log(AsyncUploadService.class.getName() + ".error", "Failed to read the size of the upload journal - " + e.getMessage());
+            return;
+        }
+        try {
+            // records appended from here on are carried over by the compaction - the uploads and statuses
+            // gathered below include every one whose record was appended before it
+            long from = journal.size();
+            List<UploadJournal.Entry> p;
+            List<UploadStatusDO> s = new ArrayList<>();
+            synchronized (this) {
+                p = new ArrayList<>(pending.values());
+                for (UploadStatusDO status : statuses.values()) {
+                    s.add(copy(status));
+                }
+            }
+            journal.compact(p, s, from);
+        } catch (IOException e) {
+            logger.log(AsyncUploadService.class.getName() + ".error", "Failed to compact the upload journal - " + e.getMessage());
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private UploadStatusDO copy(UploadStatusDO s) {
+        UploadStatusDO c = new UploadStatusDO(s.getUploadUuid(), s.getStatus(), s.getReceivedDate());
+        c.setHttpStatus(s.getHttpStatus());
+        c.setMessage(s.getMessage());
+        c.setCompletedDate(s.getCompletedDate());
+        c.setAttempts(s.getAttempts());
+        c.setDeviceId(s.getDeviceId());
+        c.setPatientUuid(s.getPatientUuid());
+        return c;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.dao.AllHardwareDownloadableDAOImpl;
+import org.medipi.concentrator.dao.HardwareDownloadableDAOImpl;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Service class to track changes to the downloadables available to each
+ * MediPi Patient device.
+ *
+ * A version is kept for each hardware device and for each patient and is
+ * incremented once a transaction which adds or acknowledges one of their
+ * downloadables has committed. Hardware downloadables are inserted directly
+ * into the DB so they are detected by checking the count and latest
+ * version date or broadcast sequence of the hardware downloadable tables every
+ * medipi.concentrator.downloadlist.changecheckinterval milliseconds, which
+ * increments a global version.
+ *
+ * The versions are combined into an ETag for the downloadable list of a
+ * (hardware, patient) pair so that an unchanged list can be answered with a
+ * 304 without querying the DB. Long poll requests and push connections
+ * register a waiter which is run when any of the versions it depends on
+ * changes. The ETag includes a
+ * value chosen at startup so that ETags issued before a restart never match.
+ * A change to the global version wakes every waiter, so the wake-ups are
+ * spread at random over medipi.concentrator.downloadlist.wakeupspread
+ * milliseconds rather than having every device fetch its list at once
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DownloadableChangeService {
+
+    private static final String HARDWAREKEY = "h:";
+    private static final String PATIENTKEY = "p:";
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private HardwareDownloadableDAOImpl hardwareDownloadableDAOImpl;
+
+    @Autowired
+    private AllHardwareDownloadableDAOImpl allHardwareDownloadableDAOImpl;
+
+    @Value("${medipi.concentrator.downloadlist.changecheckinterval:30000}")
+    private long changeCheckInterval;
+
+    @Value("${medipi.concentrator.downloadlist.waiterthreads:4}")
+    private int waiterThreads;
+
+    @Value("${medipi.concentrator.downloadlist.wakeupspread:10000}")
+    private long wakeupSpread;
+
+    private final String instance = Long.toHexString(UUID.randomUUID().getMostSignificantBits());
+    private final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final AtomicLong globalVersion = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile String fingerprint;
+    private ScheduledExecutorService checker;
+    private ExecutorService notifier;
+
+    /**
+     * A long poll request waiting for a downloadable list to change, or a push
+     * connection subscribed to every change
+     */
+    public final class Waiter {
+
+        private final String hardwareKey;
+        private final String patientKey;
+        private final Runnable onChange;
+        private final boolean repeat;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private Waiter(String hardwareName, String patientUuid, Runnable onChange, boolean repeat) {
+            this.hardwareKey = HARDWAREKEY + hardwareName;
+            this.patientKey = PATIENTKEY + patientUuid.toLowerCase();
+            this.onChange = onChange;
+            this.repeat = repeat;
+        }
+
+        /**
+         * Stop waiting - must be called when the request completes or times out
+         */
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                remove(this);
+            }
+        }
+
+        private void fire() {
+            if (repeat ? !done.get() : done.compareAndSet(false, true)) {
+                if (!repeat) {
+                    remove(this);
+                }
+                try {
+                    notifier.execute(onChange);
+                } catch (RejectedExecutionException e) {
+                    logger.log(DownloadableChangeService.class.getName() + ".error", "Unable to answer long poll for " + hardwareKey + " - " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the check for downloadables inserted directly into the DB and the
+     * threads which answer long poll requests
+     */
+    @PostConstruct
+    public void init() {
+        notifier = Executors.newFixedThreadPool(waiterThreads, r -> {
+            Thread t = new Thread(r, "medipi-downloadlist-notifier");
+            t.setDaemon(true);
+            return t;
+        });
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "medipi-downloadlist-check");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::checkForChanges, changeCheckInterval, changeCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background threads
+     */
+    @PreDestroy
+    public void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        if (notifier != null) {
+            notifier.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the ETag of the downloadable list for a hardware device and patient
+     *
+     * @param hardwareName hardware name of the device
+     * @param patientUuid patient UUID
+     * @return quoted ETag value
+     */
+    public String getETag(String hardwareName, String patientUuid) {
+        return "\"" + instance
+                + "-" + globalVersion.get()
+                + "-" + version(HARDWAREKEY + hardwareName)
+                + "-" + version(PATIENTKEY + patientUuid.toLowerCase()) + "\"";
+    }
+
+    /**
+     * Record that the downloadables of a hardware device have changed. If
+     * called within a transaction the change is recorded once it commits
+     *
+     * @param hardwareName hardware name of the device
+     */
+    public void hardwareChanged(String hardwareName) {
+        changedAfterCommit(HARDWAREKEY + hardwareName);
+    }
+
+    /**
+     * Record that the downloadables of a patient have changed. If called within
+     * a transaction the change is recorded once it commits
+     *
+     * @param patientUuid patient UUID
+     */
+    public void patientChanged(String patientUuid) {
+        changedAfterCommit(PATIENTKEY + patientUuid.toLowerCase());
+    }
+
+    /**
+     * Wait for the downloadable list of a hardware device and patient to
+     * change. If the list has already changed since the ETag was issued the
+     * callback is run straight away
+     *
+     * @param hardwareName hardware name of the device
+     * @param patientUuid patient UUID
+     * @param etag ETag of the list the caller already holds
+     * @param onChange run on a background thread when the list changes
+     * @return the waiter, which must be cancelled when the request completes
+     */
+    public Waiter await(String hardwareName, String patientUuid, String etag, Runnable onChange) {
+        Waiter w = new Waiter(hardwareName, patientUuid, onChange, false);
+        waiting.incrementAndGet();
+        addWaiter(w.hardwareKey, w);
+        addWaiter(w.patientKey, w);
+        // the list may have changed between the ETag being checked and the waiter being added
+        if (!getETag(hardwareName, patientUuid).equals(etag)) {
+            w.fire();
+        }
+        return w;
+    }
+
+    /**
+     * Subscribe to every change to the downloadable list of a hardware device
+     * and patient
+     *
+     * @param hardwareName hardware name of the device
+     * @param patientUuid patient UUID
+     * @param onChange run on a background thread each time the list changes
+     * @return the subscription, which must be cancelled when the connection
+     * closes
+     */
+    public Waiter subscribe(String hardwareName, String patientUuid, Runnable onChange) {
+        Waiter w = new Waiter(hardwareName, patientUuid, onChange, true);
+        waiting.incrementAndGet();
+        addWaiter(w.hardwareKey, w);
+        addWaiter(w.patientKey, w);
+        return w;
+    }
+
+    /**
+     * @return number of long poll requests and push connections currently
+     * waiting
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    private long version(String key) {
+        AtomicLong v = versions.get(key);
+        return v == null ? 0 : v.get();
+    }
+
+    private void changedAfterCommit(final String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    changed(key);
+                }
+            });
+        } else {
+            changed(key);
+        }
+    }
+
+    private void changed(String key) {
+        versions.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+        Set<Waiter> set = waiters.get(key);
+        if (set != null) {
+            for (Waiter w : set) {
+                w.fire();
+            }
+        }
+    }
+
+    private void remove(Waiter w) {
+        waiting.decrementAndGet();
+        removeWaiter(w.hardwareKey, w);
+        removeWaiter(w.patientKey, w);
+    }
+
+    private void addWaiter(String key, Waiter w) {
+        waiters.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(w);
+            return set;
+        });
+    }
+
+    private void removeWaiter(String key, Waiter w) {
+        waiters.computeIfPresent(key, (k, set) -> {
+            set.remove(w);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void checkForChanges() {
+        try {
+            String current = hardwareDownloadableDAOImpl.getChangeFingerprint()
+                    + "/" + allHardwareDownloadableDAOImpl.getChangeFingerprint();
+            if (fingerprint != null && !fingerprint.equals(current)) {
+                globalVersion.incrementAndGet();
+                for (Set<Waiter> set : waiters.values()) {
+                    for (Waiter w : set) {
+                        if (wakeupSpread > 0) {
+                            checker.schedule(w::fire, ThreadLocalRandom.current().nextLong(wakeupSpread), TimeUnit.MILLISECONDS);
+                        } else {
+                            w.fire();
+                        }
+                    }
+                }
+            }
+            fingerprint = current;
+        } catch (Exception e) {
+            logger.log(DownloadableChangeService.class.getName() + ".error", "Unable to check for new downloadables: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.medipi.concentrator.exception.NotFound404Exception;
+import org.medipi.concentrator.exception.ServiceUnavailable503Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to send downloadable files to the MediPi Patient devices.
+ *
+ * Where the servlet container supports sendfile (Tomcat's NIO and APR
+ * connectors) a downloadable is handed to the container using the
+ * org.apache.tomcat.sendfile request attributes and is written by the kernel
+ * straight from the file to the socket once the request returns. Otherwise it
+ * is copied to the response output stream in chunks using
+ * FileChannel.transferTo - as the servlet output stream is not a file or socket
+ * channel this is a buffered copy rather than a zero-copy transfer. Each
+ * downloadable is given an ETag made from its UUID and signature so that a
+ * device which already holds it is sent a 304, and a single HTTP byte range is
+ * supported so that an interrupted download can be resumed rather than
+ * restarted.
+ *
+ * The number of downloads sent at the same time is limited to
+ * medipi.concentrator.download.maxconcurrent. A request which cannot start
+ * within medipi.concentrator.download.permitwait milliseconds is refused with
+ * a 503 and a Retry-After header so that a mass rollout does not saturate the
+ * concentrator. A sendfile transfer is made by the connector after the request
+ * has returned its permit, so the limit then bounds the requests being set up
+ * rather than the transfers in progress
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DownloadableFileService {
+
+    private static final String BYTESUNIT = "bytes";
+    private static final String SENDFILESUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILEFILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILESTART = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILEEND = "org.apache.tomcat.sendfile.end";
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Value("${medipi.concentrator.download.maxconcurrent:50}")
+    private int maxConcurrent;
+
+    @Value("${medipi.concentrator.download.permitwait:2000}")
+    private long permitWait;
+
+    @Value("${medipi.concentrator.download.retryafter:30}")
+    private int retryAfter;
+
+    @Value("${medipi.concentrator.download.sendfile:true}")
+    private boolean sendfile;
+
+    private Semaphore permits;
+
+    /**
+     * Create the download concurrency limiter
+     */
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Send a downloadable file in response to a request, honouring any
+     * If-None-Match, Range and If-Range headers
+     *
+     * @param downloadableUuid UUID of the downloadable item
+     * @param fileName location of the downloadable file
+     * @param signature signature of the downloadable item
+     * @param request the incoming request
+     * @param response the response to write the file to
+     * @throws IOException if the file cannot be sent
+     */
+    public void send(String downloadableUuid, String fileName, String signature, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new NotFound404Exception("Cannot find the downloadable resource which has been requested");
+        }
+        Path path = Paths.get(fileName);
+        if (!Files.isRegularFile(path)) {
+            throw new NotFound404Exception("Cannot find the resource quested download");
+        }
+        String etag = getETag(downloadableUuid, signature);
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTESUNIT);
+        if (matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long length = Files.size(path);
+        long[] range = null;
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null || ifRange.trim().equals(etag)) {
+            try {
+                range = parseRange(request.getHeader(HttpHeaders.RANGE), length);
+            } catch (IllegalArgumentException e) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, BYTESUNIT + " */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+        long start = 0;
+        long count = length;
+        if (range != null) {
+            start = range[0];
+            count = range[1] - range[0] + 1;
+        }
+
+        boolean sentByContainer = false;
+        acquire(response);
+        try {
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setHeader("Content-Disposition", "attachment; filename=" + fileName.replace(" ", "_"));
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(count));
+            if (range != null) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, BYTESUNIT + " " + range[0] + "-" + range[1] + "/" + length);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            } else {
+                response.setStatus(HttpServletResponse.SC_OK);
+            }
+            if (sendfile && Boolean.TRUE.equals(request.getAttribute(SENDFILESUPPORT))) {
+                // the container sends the file once this request returns - nothing may be written to the response
+                request.setAttribute(SENDFILEFILENAME, path.toFile().getCanonicalPath());
+                request.setAttribute(SENDFILESTART, start);
+                request.setAttribute(SENDFILEEND, start + count);
+                sentByContainer = true;
+            } else {
+                try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+                    WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+                    long position = start;
+                    long remaining = count;
+                    while (remaining > 0) {
+                        long sent = fc.transferTo(position, remaining, out);
+                        if (sent <= 0) {
+                            throw new IOException("Downloadable file " + fileName + " was truncated while being sent");
+                        }
+                        position += sent;
+                        remaining -= sent;
+                    }
+                }
+                response.flushBuffer();
+            }
+        } finally {
+            permits.release();
+        }
+        logger.log(DownloadableFileService.class.getName(), new Date().toString() + " Downloadable item: " + downloadableUuid + (sentByContainer ? " passed to the container to send" : " downloaded") + (range == null ? "" : " (bytes " + range[0] + "-" + range[1] + " of " + length + ")"));
+    }
+
+    /**
+     * @return the number of downloads which could start immediately
+     */
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    private void acquire(HttpServletResponse response) {
+        boolean acquired = false;
+        try {
+            acquired = permits.tryAcquire(permitWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!acquired) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfter));
+            throw new ServiceUnavailable503Exception("Too many downloads in progress - try again later");
+        }
+    }
+
+    /**
+     * Make the ETag for a downloadable. The signature changes whenever the
+     * content of the downloadable changes so it is hashed with the UUID to
+     * give a short strong validator
+     *
+     * @param downloadableUuid UUID of the downloadable item
+     * @param signature signature of the downloadable item
+     * @return quoted ETag value
+     */
+    static String getETag(String downloadableUuid, String signature) {
+        StringBuilder sb = new StringBuilder("\"");
+        sb.append(downloadableUuid);
+        if (signature != null) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(signature.getBytes(StandardCharsets.UTF_8));
+                sb.append("-");
+                for (int i = 0; i < 8; i++) {
+                    sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+                    sb.append(Character.forDigit(digest[i] & 0xF, 16));
+                }
+            } catch (NoSuchAlgorithmException e) {
+                sb.append("-").append(Integer.toHexString(signature.hashCode()));
+            }
+        }
+        return sb.append("\"").toString();
+    }
+
+    /**
+     * Test whether an If-None-Match header matches an ETag
+     *
+     * @param ifNoneMatch If-None-Match header value - may be null
+     * @param etag quoted ETag value
+     * @return true if the header matches
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        return matches(ifNoneMatch, etag, true);
+    }
+
+    /**
+     * Test whether an If-None-Match header names an ETag. Unlike
+     * {@link #matches(String, String)} {@code *} is not treated as a match, as for a
+     * list which always exists it would answer every request with a 304 even
+     * when the list has changed
+     *
+     * @param ifNoneMatch If-None-Match header value - may be null
+     * @param etag quoted ETag value
+     * @return true if the header contains the ETag
+     */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        return matches(ifNoneMatch, etag, false);
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag, boolean wildcard) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ((wildcard && tag.equals("*")) || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a Range header. Only a single byte range is supported - any other
+     * range request is answered with the whole file as RFC 7233 allows
+     *
+     * @param rangeHeader Range header value - may be null
+     * @param length length of the file
+     * @return first and last byte positions (inclusive) or null if the whole
+     * file should be sent
+     * @throws IllegalArgumentException if the range cannot be satisfied
+     */
+    static long[] parseRange(String rangeHeader, long length) {
+        if (rangeHeader == null) {
+            return null;
+        }
+        String r = rangeHeader.trim();
+        if (!r.startsWith(BYTESUNIT + "=") || r.indexOf(',') != -1) {
+            return null;
+        }
+        r = r.substring(BYTESUNIT.length() + 1).trim();
+        int dash = r.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            String from = r.substring(0, dash).trim();
+            String to = r.substring(dash + 1).trim();
+            if (from.isEmpty()) {
+                // suffix range - the final n bytes
+                long suffix = Long.parseLong(to);
+                if (suffix <= 0) {
+                    throw new IllegalArgumentException("Empty suffix range");
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(from);
+                if (first >= length) {
+                    throw new IllegalArgumentException("Range starts beyond the end of the file");
+                }
+                last = to.isEmpty() ? length - 1 : Math.min(Long.parseLong(to), length - 1);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new long[]{first, last};
+    }
+}
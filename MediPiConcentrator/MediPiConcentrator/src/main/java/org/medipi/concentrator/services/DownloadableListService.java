@@ -15,7 +15,6 @@
  */
 package org.medipi.concentrator.services;
 
-import java.security.NoSuchAlgorithmException;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.*;
 import java.util.ArrayList;
 import java.util.Date;
@@ -25,8 +24,6 @@ import org.medipi.concentrator.controllers.DownloadServiceController;
 import org.medipi.concentrator.dao.AllHardwareDownloadableDAOImpl;
 import org.medipi.concentrator.dao.HardwareDownloadableDAOImpl;
 import org.medipi.concentrator.dao.PatientDownloadableDAOImpl;
-import org.medipi.security.CertificateDefinitions;
-import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.concentrator.entities.AllHardwareDownloadable;
 import org.medipi.concentrator.entities.HardwareDownloadable;
 import org.medipi.concentrator.entities.PatientDownloadable;
@@ -34,8 +31,8 @@ import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.exception.NotFound404Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
-import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
@@ -55,6 +52,9 @@ import org.springframework.transaction.annotation.Transactional;
  * The "all hardware" updates are global updates intended for all the MediPi
  * Patient devices connected to the concentrator
  *
+ * Each list is returned with an ETag from the DownloadableChangeService so that
+ * a device polling for an unchanged list can be answered with a 304
+ *
  * @author rick@robinsonhq.com
  */
 @Service
@@ -63,9 +63,6 @@ public class DownloadableListService {
     @Autowired
     private MediPiLogger logger;
 
-    @Autowired
-    private Utilities utils;
-
     @Autowired
     private PatientDownloadableDAOImpl patientDownloadableDAOImpl;
 
@@ -81,6 +78,12 @@ public class DownloadableListService {
     @Autowired
     private MapperFacade mapperFacade;
 
+    @Autowired
+    private SigningService signingService;
+
+    @Autowired
+    private DownloadableChangeService downloadableChangeService;
+
     /**
      * Get Download method
      *
@@ -90,6 +93,21 @@ public class DownloadableListService {
      */
     @Transactional(rollbackFor = RuntimeException.class)
     public ResponseEntity<List<DownloadableDO>> getDownloadableList(String hardware_name, String patientUuid) {
+        return getDownloadableList(hardware_name, patientUuid, null);
+    }
+
+    /**
+     * Get Download method which returns 304 (Not Modified) without querying
+     * the downloadables if the list has not changed since the ETag held by the
+     * caller was issued
+     *
+     * @param hardware_name incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param ifNoneMatch incoming If-None-Match header - may be null
+     * @return Downloadable list Response with an ETag header
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public ResponseEntity<List<DownloadableDO>> getDownloadableList(String hardware_name, String patientUuid, String ifNoneMatch) {
         ResponseEntity<?> r = null;
         try {
             // Check that the device and patient are registered with each other
@@ -101,6 +119,12 @@ public class DownloadableListService {
         try {
             if (r != null) {
                 if (r.getStatusCode() == HttpStatus.ACCEPTED || r.getStatusCode() == HttpStatus.OK) {
+                    // take the ETag before querying so that a change made during the queries is seen by the next request
+                    HttpHeaders headers = new HttpHeaders();
+                    headers.setETag(downloadableChangeService.getETag(hardware_name, patientUuid));
+                    if (DownloadableFileService.matchesETag(ifNoneMatch, headers.getETag())) {
+                        return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+                    }
                     // get patient_downloadable entities first
                     List<DownloadableDO> dList = new ArrayList<>();
 
@@ -113,7 +137,9 @@ public class DownloadableListService {
                             DownloadableDO d = this.mapperFacade.map(pd, DownloadableDO.class);
                             d.setDownloadType("PATIENTMESSAGE");
                             // Add HATEOAS return path for getting the data from each reference  
-                            d.add(linkTo(methodOn(DownloadServiceController.class).getPatientDownloadable(pd.getDownloadableUuid())).withRel("next"));
+                            DownloadServiceController invocation = methodOn(DownloadServiceController.class);
+                            invocation.getPatientDownloadable(pd.getDownloadableUuid(), null, null);
+                            d.add(linkTo(invocation).withRel("next"));
                             dList.add(d);
                         }
                     }
@@ -127,7 +153,9 @@ public class DownloadableListService {
                             DownloadableDO d = this.mapperFacade.map(hd, DownloadableDO.class);
                             d.setDownloadType("HARDWAREUPDATE");
                             // Add HATEOAS return path for getting the data from each reference  
-                            d.add(linkTo(methodOn(DownloadServiceController.class).getHardwareDownloadable(hd.getDownloadableUuid())).withRel("next"));
+                            DownloadServiceController invocation = methodOn(DownloadServiceController.class);
+                            invocation.getHardwareDownloadable(hd.getDownloadableUuid(), null, null);
+                            d.add(linkTo(invocation).withRel("next"));
 
                             d.setSignature(createSignature(d));
                             dList.add(d);
@@ -143,13 +171,15 @@ public class DownloadableListService {
                             DownloadableDO d = this.mapperFacade.map(ahd, DownloadableDO.class);
                             d.setDownloadType("HARDWAREUPDATE");
                             // Add HATEOAS return path for getting the data from each reference  
-                            d.add(linkTo(methodOn(DownloadServiceController.class).getAllHardwareDownloadable(ahd.getDownloadableUuid(), hardware_name)).withRel("next"));
+                            DownloadServiceController invocation = methodOn(DownloadServiceController.class);
+                            invocation.getAllHardwareDownloadable(ahd.getDownloadableUuid(), hardware_name, null, null);
+                            d.add(linkTo(invocation).withRel("next"));
                             d.setSignature(createSignature(d));
                             dList.add(d);
                         }
                     }
                     
-                    return new ResponseEntity<>(dList, HttpStatus.OK);
+                    return new ResponseEntity<>(dList, headers, HttpStatus.OK);
                 }
 
             }
@@ -161,15 +191,8 @@ public class DownloadableListService {
         throw new InternalServerError500Exception("Internal Server Error");
     }
 
-    private String createSignature(DownloadableDO d) throws NoSuchAlgorithmException, Exception {
+    private String createSignature(DownloadableDO d) throws Exception {
         // THIS MAY NOT BE A PERMANENT SOLUTION FOR THE HARDWARE DOWNLOADABLES and may be done from a UI 
-        UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
-        CertificateDefinitions cd;
-        cd = fetchHardwareSigningCerts();
-        String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
-        if (error != null) {
-            throw new Exception("Signing initailisation failed - " + error);
-        }
         StringBuilder digestSubject = new StringBuilder();
         digestSubject.append(d.getDownloadType())
                 .append(d.getDownloadableUuid())
@@ -177,16 +200,7 @@ public class DownloadableListService {
                 .append(d.getVersion())
                 .append(d.getVersionAuthor())
                 .append(d.getVersionDate().getTime());
-        String signature = uploadEncryptionAdapter.signPayload(digestSubject.toString().getBytes());
-        return signature;
-    }
-
-    private CertificateDefinitions fetchHardwareSigningCerts() throws Exception {
-        CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
-        cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.hardware.location", CertificateDefinitions.INTERNAL);
-        cd.setSIGNKEYSTOREALIAS("medipi.json.sign.keystore.hardware.alias", CertificateDefinitions.INTERNAL);
-        cd.setSIGNKEYSTOREPASSWORD("medipi.json.sign.keystore.hardware.password", CertificateDefinitions.INTERNAL);
-        return cd;
+        return signingService.sign(SigningService.HARDWARE, d.getDownloadableUuid(), digestSubject.toString());
     }
 
 }
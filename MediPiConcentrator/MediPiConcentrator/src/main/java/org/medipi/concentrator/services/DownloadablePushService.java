@@ -0,0 +1,297 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.exception.ServiceUnavailable503Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Service class to push downloadable list changes to connected MediPi Patient
+ * devices using Server-Sent Events.
+ *
+ * Each connection is an asynchronous request held open by the servlet
+ * container without a thread of its own. When the downloadable list of the
+ * connected device or patient changes a "downloadables" event carrying the new
+ * list ETag is sent and the device then requests the list as it would when
+ * polling. A comment is sent to every connection each
+ * medipi.concentrator.push.heartbeatinterval milliseconds so that dead
+ * connections are detected and intermediate devices do not time the
+ * connection out. Connections are closed after
+ * medipi.concentrator.push.timeout milliseconds and the device reconnects.
+ *
+ * A send blocks until the event is written to the socket, so sends are made
+ * by a pool of medipi.concentrator.push.senderthreads threads with at most one
+ * send in progress for each connection. A connection whose send has not
+ * completed after medipi.concentrator.push.sendtimeout milliseconds is closed
+ * so that a slow or dead device cannot hold up the others
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DownloadablePushService {
+
+    /**
+     * Name of the event sent when the downloadable list changes
+     */
+    public static final String DOWNLOADABLESEVENT = "downloadables";
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private DownloadableChangeService downloadableChangeService;
+
+    @Value("${medipi.concentrator.push.timeout:3600000}")
+    private long timeout;
+
+    @Value("${medipi.concentrator.push.heartbeatinterval:25000}")
+    private long heartbeatInterval;
+
+    @Value("${medipi.concentrator.push.maxconnections:20000}")
+    private int maxConnections;
+
+    @Value("${medipi.concentrator.push.senderthreads:8}")
+    private int senderThreads;
+
+    @Value("${medipi.concentrator.push.sendtimeout:10000}")
+    private long sendTimeout;
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong sendTimeouts = new AtomicLong();
+    private ScheduledExecutorService heartbeat;
+    private ExecutorService sender;
+
+    /**
+     * A connected device
+     */
+    private final class Connection {
+
+        private final String hardwareName;
+        private final String patientUuid;
+        private final SseEmitter emitter;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private final AtomicBoolean changePending = new AtomicBoolean();
+        private final AtomicBoolean heartbeatPending = new AtomicBoolean();
+        private volatile long sendStarted;
+        private volatile Thread sendThread;
+        private volatile DownloadableChangeService.Waiter subscription;
+
+        Connection(String hardwareName, String patientUuid, SseEmitter emitter) {
+            this.hardwareName = hardwareName;
+            this.patientUuid = patientUuid;
+            this.emitter = emitter;
+        }
+
+        void sendChange() {
+            changePending.set(true);
+            schedule();
+        }
+
+        void sendHeartbeat() {
+            long started = sendStarted;
+            if (sending.get() && started != 0 && System.currentTimeMillis() - started > sendTimeout) {
+                sendTimeouts.incrementAndGet();
+                Thread t = sendThread;
+                fail(new IOException("Send not completed within " + sendTimeout + "ms"));
+                if (t != null) {
+                    t.interrupt();
+                }
+                return;
+            }
+            heartbeatPending.set(true);
+            schedule();
+        }
+
+        /**
+         * Start a send on the sender pool unless one is already in progress,
+         * in which case the pending event is sent when it completes
+         */
+        private void schedule() {
+            if (closed.get() || !sending.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                sender.execute(this::send);
+            } catch (RejectedExecutionException e) {
+                sending.set(false);
+                fail(e);
+            }
+        }
+
+        private void send() {
+            sendThread = Thread.currentThread();
+            sendStarted = System.currentTimeMillis();
+            try {
+                while (!closed.get()) {
+                    if (changePending.getAndSet(false)) {
+                        // a change event also serves as a heartbeat
+                        heartbeatPending.set(false);
+                        emitter.send(SseEmitter.event()
+                                .name(DOWNLOADABLESEVENT)
+                                .data(downloadableChangeService.getETag(hardwareName, patientUuid)));
+                        eventsSent.incrementAndGet();
+                    } else if (heartbeatPending.getAndSet(false)) {
+                        emitter.send(SseEmitter.event().comment(""));
+                    } else {
+                        break;
+                    }
+                    sendStarted = System.currentTimeMillis();
+                }
+            } catch (IOException | IllegalStateException e) {
+                fail(e);
+            } finally {
+                sendThread = null;
+                sendStarted = 0;
+                sending.set(false);
+                // Clear the interrupt of a send which timed out as the pool thread is reused
+                Thread.interrupted();
+            }
+            if (changePending.get() || heartbeatPending.get()) {
+                schedule();
+            }
+        }
+
+        void fail(Exception e) {
+            if (!closed.get()) {
+                logger.log(DownloadablePushService.class.getName(), "Push connection to " + hardwareName + " closed: " + e.getMessage());
+            }
+            close();
+            try {
+                emitter.completeWithError(e);
+            } catch (IllegalStateException ise) {
+                // already completed
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                connections.remove(this);
+                DownloadableChangeService.Waiter s = subscription;
+                if (s != null) {
+                    s.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the senders and the heartbeats to the connected devices
+     */
+    @PostConstruct
+    public void init() {
+        sender = Executors.newFixedThreadPool(senderThreads, r -> {
+            Thread t = new Thread(r, "medipi-push-sender");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "medipi-push-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(() -> {
+            for (Connection c : connections) {
+                c.sendHeartbeat();
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close all the connections and stop the heartbeats
+     */
+    @PreDestroy
+    public void stop() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        if (sender != null) {
+            sender.shutdownNow();
+        }
+        for (Connection c : connections) {
+            c.close();
+            c.emitter.complete();
+        }
+    }
+
+    /**
+     * Open a push connection for a hardware device and patient which have
+     * already been validated
+     *
+     * @param hardwareName hardware name of the device
+     * @param patientUuid patient UUID
+     * @param changed true if the device's list has already changed since it
+     * last requested it, in which case an event is sent straight away
+     * @return the emitter to be returned from the controller
+     */
+    public SseEmitter connect(String hardwareName, String patientUuid, boolean changed) {
+        if (connections.size() >= maxConnections) {
+            throw new ServiceUnavailable503Exception("Too many push connections - poll for downloadables instead");
+        }
+        SseEmitter emitter = new SseEmitter(timeout);
+        Connection c = new Connection(hardwareName, patientUuid, emitter);
+        connections.add(c);
+        emitter.onCompletion(c::close);
+        emitter.onTimeout(c::close);
+        c.subscription = downloadableChangeService.subscribe(hardwareName, patientUuid, c::sendChange);
+        if (c.closed.get()) {
+            c.subscription.cancel();
+        }
+        if (changed) {
+            c.sendChange();
+        }
+        return emitter;
+    }
+
+    /**
+     * @return number of connected devices
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * @return number of change events sent since startup
+     */
+    public long getEventsSent() {
+        return eventsSent.get();
+    }
+
+    /**
+     * @return number of connections closed because a send did not complete
+     * within the send timeout since startup
+     */
+    public long getSendTimeouts() {
+        return sendTimeouts.get();
+    }
+}
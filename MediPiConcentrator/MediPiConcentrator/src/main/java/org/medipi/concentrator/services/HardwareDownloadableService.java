@@ -15,9 +15,10 @@
  */
 package org.medipi.concentrator.services;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import ma.glasnost.orika.MapperFacade;
 import org.medipi.concentrator.dao.AllHardwareDownloadableDAOImpl;
 import org.medipi.concentrator.dao.AllHardwareDownloadedDAOImpl;
@@ -31,11 +32,8 @@ import org.medipi.concentrator.exception.NotFound404Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -75,30 +73,33 @@ public class HardwareDownloadableService {
     @Autowired
     private MapperFacade mapperFacade;
 
+    @Autowired
+    private DownloadableFileService downloadableFileService;
+
+    @Autowired
+    private DownloadableChangeService downloadableChangeService;
+
     /**
-     * Method to enable download of hardware update file from Concentrator
+     * Method to enable download of hardware update file from Concentrator.
+     *
+     * The file is sent outside of a transaction so that a slow download does
+     * not hold a DB connection
      *
      * @param downloadable_uuid of the download file item
-     * @return File System Resource Response
+     * @param request the incoming request
+     * @param response the response to which the file is written
+     * @throws IOException if the file cannot be sent
      */
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<FileSystemResource> getDownload(String downloadable_uuid) {
-        String fileName = null;
+    public void getDownload(String downloadable_uuid, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        HardwareDownloadable hd;
         try {
-            HardwareDownloadable hd = hardwareDownloadableDAOImpl.getHardwareDownload(downloadable_uuid);
-            fileName = hd.getScriptLocation();
+            hd = hardwareDownloadableDAOImpl.getHardwareDownload(downloadable_uuid);
         } catch (EmptyResultDataAccessException e) {
             throw new NotFound404Exception("Cannot find the requested hardware downloadable record UUID: " + downloadable_uuid);
         } catch (Exception e) {
             throw new InternalServerError500Exception("Internal Server Error");
         }
-        try {
-
-            ResponseEntity<FileSystemResource> response = retreiveDownloadableBinary(fileName, downloadable_uuid);
-            return response;
-        } catch (Exception e) {
-            throw new NotFound404Exception("Cannot find the resource quested download");
-        }
+        downloadableFileService.send(downloadable_uuid, hd.getScriptLocation(), hd.getSignature(), request, response);
     }
 
     /**
@@ -107,42 +108,20 @@ public class HardwareDownloadableService {
      *
      * @param downloadable_uuid of the download file item
      * @param hardwareName
-     * @return File System Resource Response
+     * @param request the incoming request
+     * @param response the response to which the file is written
+     * @throws IOException if the file cannot be sent
      */
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<FileSystemResource> getAllDownload(String downloadable_uuid, String hardwareName) {
-        String fileName = null;
+    public void getAllDownload(String downloadable_uuid, String hardwareName, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        AllHardwareDownloadable ahd;
         try {
-            AllHardwareDownloadable ahd = allHardwareDownloadableDAOImpl.getHardwareDownload(downloadable_uuid);
-            fileName = ahd.getScriptLocation();
+            ahd = allHardwareDownloadableDAOImpl.getHardwareDownload(downloadable_uuid);
         } catch (EmptyResultDataAccessException e) {
             throw new NotFound404Exception("Cannot find the requested all hardware downloadable record UUID: "+downloadable_uuid);
         } catch (Exception e) {
             throw new InternalServerError500Exception("Internal Server Error " + e.getLocalizedMessage());
         }
-        try {
-
-            ResponseEntity<FileSystemResource> response = retreiveDownloadableBinary(fileName, downloadable_uuid);
-            return response;
-        } catch (IOException | NotFound404Exception e) {
-            throw new NotFound404Exception("Cannot find the requested download " + e.getLocalizedMessage());
-        }
-    }
-
-    private ResponseEntity<FileSystemResource> retreiveDownloadableBinary(String fileName, String downloadable_uuid) throws IOException, NotFound404Exception {
-        if (fileName == null || fileName.isEmpty()) {
-            throw new NotFound404Exception("Cannot find the downloadable resource which has been requested");
-        }
-        File f = new File(fileName);
-        FileSystemResource fsr = new FileSystemResource(fileName);
-        HttpHeaders header = new HttpHeaders();
-        header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-        header.set("Content-Disposition",
-                "attachment; filename=" + fileName.replace(" ", "_"));
-        header.setContentLength(fsr.contentLength());
-        logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Hardware Downloadable item: " + downloadable_uuid + " downloaded");
-        ResponseEntity<FileSystemResource> response = new ResponseEntity<>(fsr, header, HttpStatus.OK);
-        return response;
+        downloadableFileService.send(downloadable_uuid, ahd.getScriptLocation(), ahd.getSignature(), request, response);
     }
 
     /**
@@ -170,6 +149,7 @@ public class HardwareDownloadableService {
                 }
                 hd.setDownloadedDate(new Date());
                 hardwareDownloadableDAOImpl.update(hd);
+                downloadableChangeService.hardwareChanged(hd.getHardwareName().getHardwareName());
                 DownloadableDO d = this.mapperFacade.map(hd, DownloadableDO.class);
 
                 logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
@@ -211,6 +191,8 @@ public class HardwareDownloadableService {
             ahd.setHardwareName(hardwareDAOImpl.findByPrimaryKey(hardwareName));
             ahd.setDownloadedDate(new Date());
             allHardwareDownloadedDAOImpl.save(ahd);
+            allHardwareDownloadableDAOImpl.advanceAcknowledgedSequence(hardwareName);
+            downloadableChangeService.hardwareChanged(hardwareName);
             DownloadableDO d = this.mapperFacade.map(ahde, DownloadableDO.class);
             d.setDownloadedDate(ahd.getDownloadedDate());
             logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
@@ -0,0 +1,232 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.MessageArchive;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to archive the incoming messages from MediPi Patient units for
+ * audit.
+ *
+ * When enabled (medipi.concentrator.savemessagestofile) each incoming message
+ * is added to a bounded queue and the upload carries on straight away. A
+ * single background thread serialises the queued messages as JSON and appends
+ * them to rolling compressed segment files in
+ * medipi.concentrator.inboundsavedmessagedir, flushing after each batch. A
+ * message which arrives when the queue is full is not archived and the loss
+ * is logged
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class MessageArchiveService {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int BATCHSIZE = 256;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Value("${medipi.concentrator.savemessagestofile}")
+    private boolean enabled;
+
+    @Value("${medipi.concentrator.inboundsavedmessagedir}")
+    private String archiveDir;
+
+    @Value("${medipi.concentrator.archive.queuecapacity:10000}")
+    private int queueCapacity;
+
+    @Value("${medipi.concentrator.archive.segmentsize:67108864}")
+    private long segmentSize;
+
+    @Value("${medipi.concentrator.archive.segmentage:86400000}")
+    private long segmentAge;
+
+    private BlockingQueue<ArchivedMessage> queue;
+    private MessageArchive archive;
+    private Thread writer;
+    private volatile boolean running = false;
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * A message waiting to be archived
+     */
+    private static class ArchivedMessage {
+
+        private final String deviceId;
+        private final EncryptedAndSignedUploadDO upload;
+        private final Date received;
+
+        ArchivedMessage(String deviceId, EncryptedAndSignedUploadDO upload, Date received) {
+            this.deviceId = deviceId;
+            this.upload = upload;
+            this.received = received;
+        }
+    }
+
+    /**
+     * Start the archive writer
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        archive = new MessageArchive(new File(archiveDir), segmentSize, segmentAge);
+        running = true;
+        writer = new Thread(this::write, "medipi-message-archive");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Archive the messages still queued and close the current segment
+     */
+    @PreDestroy
+    public void stop() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if incoming messages are archived
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue an incoming message to be archived
+     *
+     * @param deviceId device which sent the message
+     * @param upload the incoming message
+     */
+    public void archive(String deviceId, EncryptedAndSignedUploadDO upload) {
+        if (!enabled) {
+            return;
+        }
+        if (!queue.offer(new ArchivedMessage(deviceId, upload, new Date()))) {
+            dropped.incrementAndGet();
+            logger.log(MessageArchiveService.class.getName() + ".error", "Message archive queue is full - incoming message uuid: " + upload.getUploadUuid() + " from device: " + deviceId + " has not been archived");
+        }
+    }
+
+    /**
+     * @return number of messages archived since startup
+     */
+    public long getArchived() {
+        return archived.get();
+    }
+
+    /**
+     * @return number of messages which could not be archived since startup
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        List<ArchivedMessage> batch = new ArrayList<>(BATCHSIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                ArchivedMessage first = running ? queue.poll(1, TimeUnit.SECONDS) : queue.poll();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCHSIZE - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                archive.rollIfDue(System.currentTimeMillis());
+            } catch (InterruptedException e) {
+                // stopping - archive whatever is left in the queue
+            } catch (IOException e) {
+                logger.log(MessageArchiveService.class.getName() + ".error", "Cannot roll the message archive - check the configured directory: " + archiveDir + " - " + e.getMessage());
+                abandonSegment();
+            }
+        }
+        try {
+            archive.close();
+        } catch (IOException e) {
+            logger.log(MessageArchiveService.class.getName() + ".error", "Cannot close the message archive: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a batch of messages to the archive. If the write fails the batch
+     * is written once more to a new segment and if that fails too the batch is
+     * counted as dropped
+     */
+    private void writeBatch(List<ArchivedMessage> batch) {
+        try {
+            writeMessages(batch);
+            return;
+        } catch (IOException e) {
+            logger.log(MessageArchiveService.class.getName() + ".error", "Cannot save incoming message payload to local drive - retrying in a new segment - check the configured directory: " + archiveDir + " - " + e.getMessage());
+            abandonSegment();
+        }
+        try {
+            writeMessages(batch);
+        } catch (IOException e) {
+            dropped.addAndGet(batch.size());
+            logger.log(MessageArchiveService.class.getName() + ".error", "Cannot save incoming message payload to local drive - check the configured directory: " + archiveDir + " - " + batch.size() + " messages have not been archived - " + e.getMessage());
+            abandonSegment();
+        }
+    }
+
+    private void writeMessages(List<ArchivedMessage> batch) throws IOException {
+        for (ArchivedMessage m : batch) {
+            archive.append(m.upload.getUploadUuid(), m.deviceId, m.received, MAPPER.writeValueAsBytes(m.upload));
+        }
+        archive.flush();
+        archived.addAndGet(batch.size());
+    }
+
+    private void abandonSegment() {
+        try {
+            // start a new segment with the next message
+            archive.close();
+        } catch (IOException e) {
+            // the failed segment is abandoned
+        }
+    }
+}
@@ -39,6 +39,10 @@ import org.springframework.transaction.annotation.Transactional;
  * relate to each other. If not then a new patient may be created and registered
  * to the device being used
  *
+ * Registrations which match are served from the HardwareDAO registration cache
+ * so that routine polling does not need to load the Hardware and Patient
+ * entities
+ *
  * @author rick@robinsonhq.com
  */
 @Service
@@ -79,6 +83,13 @@ public class PatientDeviceValidationService {
             throw new BadRequest400Exception("patientUuid is not populated");
         }
 
+        // The registration almost never changes so check it against the cached registration first
+        String registeredPatientUuid = this.hardwareDAO.findRegisteredPatientUuid(hardware_name);
+        if (registeredPatientUuid != null && patientUuid.toLowerCase().trim().equals(registeredPatientUuid.toLowerCase())) {
+            return positiveResponse;
+        }
+        logger.log(PatientDeviceValidationService.class.getName() + ".dbInfo", "Registration for deviceId: " + hardware_name + " not matched from cache - checking DB. " + this.hardwareDAO.getRegistrationCache());
+
         // Check that the device is on the DB - If not present will return null
         final Hardware hardware = this.hardwareDAO.findByPrimaryKey(hardware_name);
         if (hardware != null) {
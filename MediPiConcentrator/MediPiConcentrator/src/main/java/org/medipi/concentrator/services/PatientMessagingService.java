@@ -19,7 +19,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.UUID;
 import org.medipi.concentrator.controllers.PatientMessagingServiceController;
@@ -27,15 +26,12 @@ import org.medipi.concentrator.controllers.PatientUploadServiceController;
 import org.medipi.concentrator.dao.PatientCertificateDAOImpl;
 import org.medipi.concentrator.dao.PatientDAOImpl;
 import org.medipi.concentrator.dao.PatientDownloadableDAOImpl;
-import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.PatientCertificate;
 import org.medipi.concentrator.entities.PatientDownloadable;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
-import org.medipi.concentrator.utilities.Utilities;
-import org.medipi.security.CertificateDefinitions;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -59,10 +55,13 @@ public class PatientMessagingService {
     private MediPiLogger logger;
 
     @Autowired
-    private PatientDAOImpl patientDAOImpl;
+    private SigningService signingService;
+
+    @Autowired
+    private DownloadableChangeService downloadableChangeService;
 
     @Autowired
-    private Utilities utils;
+    private PatientDAOImpl patientDAOImpl;
 
     @Autowired
     private PatientCertificateDAOImpl patientCertificateDAOImpl;
@@ -148,6 +147,7 @@ public class PatientMessagingService {
                     pd.setSignature(createSignature(pd, file.getName()));
 
                     patientDownloadableDAOImpl.save(pd);
+                    downloadableChangeService.patientChanged(patient.getPatientUuid());
 
                     logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Written Direct Message for Patient: " + patientUuid);
                 } catch (IOException e) {
@@ -178,30 +178,14 @@ public class PatientMessagingService {
 
     }
 
-    private String createSignature(PatientDownloadable d, String fileName) throws NoSuchAlgorithmException, Exception {
+    private String createSignature(PatientDownloadable d, String fileName) throws Exception {
         // THIS IS AS A STAND IN FOR WHEN AN INTERFACE IDS CREATED WHICH WILL SIGN THE DB ENTRY
-        UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
-        CertificateDefinitions cd;
-        cd = fetchClinicianSigningCerts();
-        String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
-        if (error != null) {
-            throw new Exception("Signing initailisation failed - " + error);
-        }
         StringBuilder digestSubject = new StringBuilder();
         digestSubject.append(d.getDownloadableUuid())
                 .append(fileName)
                 .append(d.getVersion())
                 .append(d.getVersionAuthor())
                 .append(d.getVersionDate().getTime());
-        String signature = uploadEncryptionAdapter.signPayload(digestSubject.toString().getBytes());
-        return signature;
-    }
-
-    private CertificateDefinitions fetchClinicianSigningCerts() throws Exception {
-        CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
-        cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.clinician.location", CertificateDefinitions.INTERNAL);
-        cd.setSIGNKEYSTOREALIAS("medipi.json.sign.keystore.clinician.alias", CertificateDefinitions.INTERNAL);
-        cd.setSIGNKEYSTOREPASSWORD("medipi.json.sign.keystore.clinician.password", CertificateDefinitions.INTERNAL);
-        return cd;
+        return signingService.sign(SigningService.CLINICIAN, d.getDownloadableUuid(), digestSubject.toString());
     }
 }
@@ -55,6 +55,7 @@ public class RegisterNewPatientService {
         Patient patient = this.patientDAO.findByPrimaryKey(p.getPatientUuid());
         if (patient == null) {
             this.patientDAO.save(p);
+            this.hardwareDAO.evictPatient(p.getPatientUuid());
             //return a status of 202 when data is persisted as a new patient has been created
             return new ResponseEntity<>(p, HttpStatus.CREATED);
         } else {
@@ -15,19 +15,28 @@
  */
 package org.medipi.concentrator.services;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import ma.glasnost.orika.MapperFacade;
+import org.hibernate.ScrollableResults;
 import org.medipi.concentrator.dao.PatientDAOImpl;
 import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.PatientDataPageDO;
 import org.medipi.concentrator.model.PatientDataRequestDO;
+import org.medipi.concentrator.utilities.PatientDataStreamWriter;
 import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -46,6 +55,10 @@ import org.springframework.transaction.annotation.Transactional;
 public class RequestDataService {
 
     private static final String MEDIPICONCENTRATORDATABASEBACKOFFPERIOD = "medipi.concentrator.database.backoffperiod";
+    private static final int DEFAULTPAGESIZE = 1000;
+    private static final int MAXPAGESIZE = 10000;
+    private static final String CURSORSEPARATOR = ":";
+    private static final int STREAMFETCHSIZE = 500;
 
     @Autowired
     private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
@@ -70,19 +83,7 @@ public class RequestDataService {
      */
     @Transactional(rollbackFor = RuntimeException.class)
     public ResponseEntity<List<PatientDataRequestDO>> getData(String patientGroupUuid, Date lastDownloadDate) {
-        String backoffPeriodString = utils.getProperties().getProperty(MEDIPICONCENTRATORDATABASEBACKOFFPERIOD);
-        int backoffPeriod;
-        if (backoffPeriodString == null || backoffPeriodString.trim().length() == 0) {
-            backoffPeriod = 10000;
-        } else {
-            try {
-                backoffPeriod = Integer.parseInt(backoffPeriodString);
-            } catch (NumberFormatException numberFormatException) {
-                MediPiLogger.getInstance().log(RequestDataService.class.getName() + "error", "Error - Cant read the back off period from the properties file: " + numberFormatException.getLocalizedMessage());
-                System.out.println("Error - Cant read the back off period from the properties file: " + numberFormatException.getLocalizedMessage());
-                backoffPeriod = 10000;
-            }
-        }
+        int backoffPeriod = getBackoffPeriod();
         try {
             SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS zzz");
             List<PatientDataRequestDO> responsePayload = new ArrayList<>();
@@ -128,4 +129,131 @@ public class RequestDataService {
         }
     }
 
+    /**
+     * Stream the data for all the patients in a patient group stored since the
+     * last download date directly to a writer. The data is read from the DB
+     * using a forward only cursor and the persistence context is cleared after
+     * each fetch so memory use is bounded by the fetch size rather than the
+     * amount of data returned
+     *
+     * @param patientGroupUuid patient group UUID to be requested
+     * @param lastDownloadDate last download date
+     * @param writer writer to which the data is streamed
+     * @return number of data points written. 0 if there was no data or the
+     * request was made within the DB backoff period
+     * @throws IOException if the data cannot be written
+     */
+    @Transactional(readOnly = true, rollbackFor = RuntimeException.class)
+    public long streamData(String patientGroupUuid, Date lastDownloadDate, PatientDataStreamWriter writer) throws IOException {
+        // to allow the DB to settle to any data not yet arrived do not attempt to pull any data within the last x seconds
+        Instant nowInstant = Instant.now();
+        int backoffPeriod = getBackoffPeriod();
+        if (lastDownloadDate.toInstant().plusMillis(backoffPeriod).isAfter(nowInstant)) {
+            return 0;
+        }
+        Date endTime = Date.from(nowInstant.minusMillis(backoffPeriod));
+        ScrollableResults results = recordingDeviceDataDAOImpl.scrollByGroupAndDownloadedTime(patientGroupUuid, lastDownloadDate, endTime, STREAMFETCHSIZE);
+        try {
+            int fetched = 0;
+            while (results.next()) {
+                RecordingDeviceData rdd = (RecordingDeviceData) results.get(0);
+                writer.write(this.mapperFacade.map(rdd, RecordingDeviceData.class));
+                if (++fetched % STREAMFETCHSIZE == 0) {
+                    // release the entities already written
+                    recordingDeviceDataDAOImpl.getEntityManager().clear();
+                }
+            }
+        } finally {
+            results.close();
+        }
+        writer.close();
+        if (writer.getRows() > 0) {
+            System.out.println("-------");
+            System.out.println("streamed data for patient group: " + patientGroupUuid + " patients:" + writer.getPatients() + " data items:" + writer.getRows());
+        }
+        return writer.getRows();
+    }
+
+    /**
+     * Return a page of the data for all the patients in a patient group which
+     * was stored after the position of a sync cursor. A single query is made
+     * for the whole group. The response contains the cursor for the following
+     * page which the requesting system should keep and pass back on its next
+     * request. Data stored within the DB backoff period is not returned until
+     * the period has passed
+     *
+     * @param patientGroupUuid patient group UUID to be requested
+     * @param cursor opaque cursor from a previous page or null to start from
+     * the beginning
+     * @param pageSize maximum number of data points to return or 0 for the
+     * default page size
+     * @return Response page of data for patients requested
+     */
+    @Transactional(readOnly = true, rollbackFor = RuntimeException.class)
+    public ResponseEntity<PatientDataPageDO> getDataPage(String patientGroupUuid, String cursor, int pageSize) {
+        Date cursorTime = new Date(0);
+        int cursorDataId = 0;
+        if (cursor != null && cursor.trim().length() > 0) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.US_ASCII);
+                int i = decoded.indexOf(CURSORSEPARATOR);
+                cursorTime = new Date(Long.parseLong(decoded.substring(0, i)));
+                cursorDataId = Integer.parseInt(decoded.substring(i + 1));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new BadRequest400Exception("Invalid sync cursor");
+            }
+        }
+        if (pageSize <= 0) {
+            pageSize = DEFAULTPAGESIZE;
+        }
+        pageSize = Math.min(pageSize, MAXPAGESIZE);
+        // to allow the DB to settle to any data not yet arrived do not attempt to pull any data within the last x seconds
+        Date endTime = Date.from(Instant.now().minusMillis(getBackoffPeriod()));
+        try {
+            // one extra row is requested to find if there is more data after this page
+            List<RecordingDeviceData> rddList = recordingDeviceDataDAOImpl.findByGroupAfterCursor(patientGroupUuid, cursorTime, cursorDataId, endTime, pageSize + 1);
+            boolean moreData = rddList.size() > pageSize;
+            if (moreData) {
+                rddList = rddList.subList(0, pageSize);
+            }
+            Map<String, PatientDataRequestDO> byPatient = new LinkedHashMap<>();
+            for (RecordingDeviceData rdd : rddList) {
+                String patientUuid = rdd.getPatientUuid().getPatientUuid();
+                PatientDataRequestDO responsePdr = byPatient.get(patientUuid);
+                if (responsePdr == null) {
+                    responsePdr = new PatientDataRequestDO(patientUuid);
+                    byPatient.put(patientUuid, responsePdr);
+                }
+                responsePdr.addRecordingDeviceData(this.mapperFacade.map(rdd, RecordingDeviceData.class));
+            }
+            String nextCursor = cursor;
+            if (!rddList.isEmpty()) {
+                RecordingDeviceData last = rddList.get(rddList.size() - 1);
+                String position = last.getDownloadedTime().getTime() + CURSORSEPARATOR + last.getDataId();
+                nextCursor = Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.US_ASCII));
+            }
+            return new ResponseEntity<>(new PatientDataPageDO(new ArrayList<>(byPatient.values()), nextCursor, moreData), HttpStatus.OK);
+        } catch (Exception ex) {
+            System.out.println("500 exception ");
+            throw new InternalServerError500Exception(ex.getLocalizedMessage());
+        }
+    }
+
+    private int getBackoffPeriod() {
+        String backoffPeriodString = utils.getProperties().getProperty(MEDIPICONCENTRATORDATABASEBACKOFFPERIOD);
+        int backoffPeriod;
+        if (backoffPeriodString == null || backoffPeriodString.trim().length() == 0) {
+            backoffPeriod = 10000;
+        } else {
+            try {
+                backoffPeriod = Integer.parseInt(backoffPeriodString);
+            } catch (NumberFormatException numberFormatException) {
+                MediPiLogger.getInstance().log(RequestDataService.class.getName() + "error", "Error - Cant read the back off period from the properties file: " + numberFormatException.getLocalizedMessage());
+                System.out.println("Error - Cant read the back off period from the properties file: " + numberFormatException.getLocalizedMessage());
+                backoffPeriod = 10000;
+            }
+        }
+        return backoffPeriod;
+    }
+
 }
@@ -0,0 +1,191 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.ReferenceDataCache;
+import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.security.CertificateDefinitions;
+import org.medipi.security.UploadEncryptionAdapter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to sign downloadables using the keystores held by the
+ * concentrator.
+ *
+ * The keystore for each signer is loaded once and the signing adapter is shared
+ * by all requests. The keystore file is checked for changes at most every
+ * medipi.concentrator.signing.reloadcheckinterval milliseconds and is reloaded
+ * if it has been replaced.
+ *
+ * The signed fields of a downloadable do not change once it has been created
+ * so its signature is cached against its UUID. The signed subject is kept with
+ * the signature so that a downloadable whose subject has changed is signed
+ * again. Cached signatures are discarded when the keystore is reloaded
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class SigningService {
+
+    /**
+     * Signer using the hardware keystore (medipi.json.sign.keystore.hardware.*)
+     * for hardware downloadables
+     */
+    public static final String HARDWARE = "hardware";
+
+    /**
+     * Signer using the clinician keystore
+     * (medipi.json.sign.keystore.clinician.*) for patient messages
+     */
+    public static final String CLINICIAN = "clinician";
+
+    private static final String KEYSTOREPREFIX = "medipi.json.sign.keystore.";
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private Utilities utils;
+
+    @Value("${medipi.concentrator.signing.reloadcheckinterval:5000}")
+    private long reloadCheckInterval;
+
+    @Value("${medipi.concentrator.signing.signaturecachesize:10000}")
+    private int signatureCacheSize;
+
+    private final ConcurrentHashMap<String, Signer> signers = new ConcurrentHashMap<>();
+
+    /**
+     * A loaded keystore and the signatures made with it
+     */
+    private static class Signer {
+
+        private final UploadEncryptionAdapter adapter;
+        private final ReferenceDataCache<String, CachedSignature> signatures;
+        private final long keystoreModified;
+        private final long keystoreLength;
+        private volatile long lastChecked;
+
+        Signer(UploadEncryptionAdapter adapter, ReferenceDataCache<String, CachedSignature> signatures, long keystoreModified, long keystoreLength, long lastChecked) {
+            this.adapter = adapter;
+            this.signatures = signatures;
+            this.keystoreModified = keystoreModified;
+            this.keystoreLength = keystoreLength;
+            this.lastChecked = lastChecked;
+        }
+    }
+
+    private static class CachedSignature {
+
+        private final byte[] subject;
+        private final String signature;
+
+        CachedSignature(byte[] subject, String signature) {
+            this.subject = subject;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Sign the digest subject of a downloadable
+     *
+     * @param signerName HARDWARE or CLINICIAN
+     * @param downloadableUuid UUID of the downloadable being signed
+     * @param digestSubject the signed fields of the downloadable
+     * @return String serialisation of the signed JWSObject
+     * @throws Exception if the keystore cannot be loaded or the subject cannot
+     * be signed
+     */
+    public String sign(String signerName, String downloadableUuid, String digestSubject) throws Exception {
+        Signer signer = getSigner(signerName);
+        byte[] subject = digestSubject.getBytes(StandardCharsets.UTF_8);
+        CachedSignature cached = signer.signatures.get(downloadableUuid);
+        if (cached != null && Arrays.equals(cached.subject, subject)) {
+            return cached.signature;
+        }
+        String signature = signer.adapter.signPayload(digestSubject.getBytes());
+        signer.signatures.put(downloadableUuid, new CachedSignature(subject, signature));
+        return signature;
+    }
+
+    /**
+     * Discard all the loaded keystores and cached signatures so that they are
+     * loaded again on the next request
+     */
+    public void reload() {
+        signers.clear();
+    }
+
+    /**
+     * @param signerName HARDWARE or CLINICIAN
+     * @return the signature cache for the signer or null if it has not been
+     * loaded
+     */
+    public ReferenceDataCache<String, ?> getSignatureCache(String signerName) {
+        Signer signer = signers.get(signerName);
+        return signer == null ? null : signer.signatures;
+    }
+
+    private Signer getSigner(String signerName) throws Exception {
+        Signer signer = signers.get(signerName);
+        long now = System.currentTimeMillis();
+        if (signer != null) {
+            if (now - signer.lastChecked < reloadCheckInterval) {
+                return signer;
+            }
+            signer.lastChecked = now;
+            File keystore = new File(getCertificateDefinitions(signerName).getSIGNKEYSTORELOCATION());
+            if (keystore.lastModified() == signer.keystoreModified && keystore.length() == signer.keystoreLength) {
+                return signer;
+            }
+        }
+        synchronized (this) {
+            // another request may have loaded the keystore while waiting
+            Signer current = signers.get(signerName);
+            if (current != null && current != signer) {
+                return current;
+            }
+            CertificateDefinitions cd = getCertificateDefinitions(signerName);
+            File keystore = new File(cd.getSIGNKEYSTORELOCATION());
+            long modified = keystore.lastModified();
+            long length = keystore.length();
+            UploadEncryptionAdapter adapter = new UploadEncryptionAdapter();
+            String error = adapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
+            if (error != null) {
+                throw new Exception("Signing initailisation failed - " + error);
+            }
+            Signer loaded = new Signer(adapter, new ReferenceDataCache<String, CachedSignature>(signerName + " signatures", signatureCacheSize), modified, length, now);
+            signers.put(signerName, loaded);
+            logger.log(SigningService.class.getName() + ".info", (signer == null ? "Loaded " : "Reloaded ") + signerName + " signing keystore: " + keystore);
+            return loaded;
+        }
+    }
+
+    private CertificateDefinitions getCertificateDefinitions(String signerName) {
+        CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
+        cd.setSIGNKEYSTORELOCATION(KEYSTOREPREFIX + signerName + ".location", CertificateDefinitions.INTERNAL);
+        cd.setSIGNKEYSTOREALIAS(KEYSTOREPREFIX + signerName + ".alias", CertificateDefinitions.INTERNAL);
+        cd.setSIGNKEYSTOREPASSWORD(KEYSTOREPREFIX + signerName + ".password", CertificateDefinitions.INTERNAL);
+        return cd;
+    }
+}
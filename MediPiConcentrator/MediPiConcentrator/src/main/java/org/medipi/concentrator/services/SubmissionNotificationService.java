@@ -0,0 +1,323 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.Utilities;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Service class to notify a 3rd party that a patient has successfully submitted
+ * data.
+ *
+ * Notifications are only queued once the transaction which wrote the data has
+ * committed and are sent by a small pool of background threads so that the
+ * upload request does not hold a DB connection or an HTTP worker while the
+ * notification is sent. Repeated submissions by the same patient within the
+ * coalescing window (medipi.concentrator.notification.coalescewindow) result
+ * in a single notification.
+ *
+ * If medipi.concentrator.notification.webhookurl is set the notification is
+ * POSTed directly to the URL, otherwise the script set by
+ * medipi.concentrator.successfullyprocessedsubmissionscript is executed. In
+ * both cases __PATIENT_UUID__ is replaced by the patient's UUID and
+ * __SUBMISSIONS__ by the number of submissions coalesced into the notification
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class SubmissionNotificationService {
+
+    private static final String SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT = "medipi.concentrator.successfullyprocessedsubmissionscript";
+    private static final String WEBHOOKURL = "medipi.concentrator.notification.webhookurl";
+    private static final String WEBHOOKBODY = "medipi.concentrator.notification.webhookbody";
+    private static final String WEBHOOKCONTENTTYPE = "medipi.concentrator.notification.webhookcontenttype";
+    private static final String COALESCEWINDOW = "medipi.concentrator.notification.coalescewindow";
+    private static final String WORKERS = "medipi.concentrator.notification.workers";
+    private static final String QUEUECAPACITY = "medipi.concentrator.notification.queuecapacity";
+    private static final String TIMEOUT = "medipi.concentrator.notification.timeout";
+    private static final String PATIENTUUIDPLACEHOLDER = "__PATIENT_UUID__";
+    private static final String SUBMISSIONSPLACEHOLDER = "__SUBMISSIONS__";
+
+    @Autowired
+    private Utilities utils;
+
+    private final MediPiLogger logger = MediPiLogger.getInstance();
+
+    private String script;
+    private URL webhookUrl;
+    private String webhookBody;
+    private String webhookContentType;
+    private long coalesceWindow;
+    private int queueCapacity;
+    private int timeout;
+    private ScheduledThreadPoolExecutor executor;
+    // notifications waiting to be sent keyed by patient uuid - guarded by this
+    private final Map<String, Notification> pending = new LinkedHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private static class Notification {
+
+        private final String patientUuid;
+        private int submissions = 1;
+
+        Notification(String patientUuid) {
+            this.patientUuid = patientUuid;
+        }
+    }
+
+    /**
+     * Read the configuration and start the notification threads. This must be
+     * called once the properties have been loaded
+     *
+     * @return error message or null if the service started successfully
+     */
+    public synchronized String init() {
+        Properties properties = utils.getProperties();
+        script = trimToNull(properties.getProperty(SUCCESSFULLYPROCESSEDSUBMISSIONSCRIPT));
+        String url = trimToNull(properties.getProperty(WEBHOOKURL));
+        try {
+            webhookUrl = url == null ? null : new URL(url);
+        } catch (IOException e) {
+            return WEBHOOKURL + " is not a valid URL: " + e.getMessage();
+        }
+        webhookBody = properties.getProperty(WEBHOOKBODY, "{\"text\":\"patient=" + PATIENTUUIDPLACEHOLDER + "\"}").trim();
+        webhookContentType = properties.getProperty(WEBHOOKCONTENTTYPE, "application/json").trim();
+        int workers;
+        try {
+            coalesceWindow = Long.parseLong(properties.getProperty(COALESCEWINDOW, "5000").trim());
+            workers = Integer.parseInt(properties.getProperty(WORKERS, "2").trim());
+            queueCapacity = Integer.parseInt(properties.getProperty(QUEUECAPACITY, "1000").trim());
+            timeout = Integer.parseInt(properties.getProperty(TIMEOUT, "10000").trim());
+        } catch (NumberFormatException e) {
+            return "Submission notification properties are not valid numbers: " + e.getMessage();
+        }
+        if (executor == null && isEnabled()) {
+            final AtomicInteger threadNo = new AtomicInteger();
+            executor = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "medipi-notification-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        logger.log(SubmissionNotificationService.class.getName() + ".info", "Submission notifications " + (webhookUrl != null ? "sent to webhook " + webhookUrl : script != null ? "sent by script" : "disabled"));
+        return null;
+    }
+
+    /**
+     * @return true if a webhook or script has been configured
+     */
+    public boolean isEnabled() {
+        return webhookUrl != null || script != null;
+    }
+
+    /**
+     * Notify that a patient has successfully submitted data. If called within a
+     * transaction the notification is queued only after the transaction
+     * commits and is discarded if it rolls back
+     *
+     * @param patientUuid UUID of the patient who submitted the data
+     */
+    public void submissionProcessed(final String patientUuid) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    enqueue(patientUuid);
+                }
+            });
+        } else {
+            enqueue(patientUuid);
+        }
+    }
+
+    private void enqueue(final String patientUuid) {
+        ScheduledThreadPoolExecutor e;
+        synchronized (this) {
+            e = executor;
+            if (e == null) {
+                return;
+            }
+            Notification n = pending.get(patientUuid);
+            if (n != null) {
+                n.submissions++;
+                coalesced.incrementAndGet();
+                return;
+            }
+            if (pending.size() >= queueCapacity) {
+                dropped.incrementAndGet();
+                logger.log(SubmissionNotificationService.class.getName() + ".error", "Notification queue is full - notification for " + patientUuid + " dropped");
+                return;
+            }
+            pending.put(patientUuid, new Notification(patientUuid));
+        }
+        try {
+            e.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Notification n;
+                    synchronized (SubmissionNotificationService.this) {
+                        n = pending.remove(patientUuid);
+                    }
+                    if (n != null) {
+                        send(n);
+                    }
+                }
+            }, coalesceWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // the service was stopped after the notification was queued
+            synchronized (this) {
+                pending.remove(patientUuid);
+            }
+            dropped.incrementAndGet();
+            logger.log(SubmissionNotificationService.class.getName() + ".error", "Notification service is stopped - notification for " + patientUuid + " dropped");
+        }
+    }
+
+    private void send(Notification n) {
+        try {
+            if (webhookUrl != null) {
+                post(n);
+            } else {
+                exec(n);
+            }
+            sent.incrementAndGet();
+        } catch (Exception ex) {
+            failed.incrementAndGet();
+            logger.log(SubmissionNotificationService.class.getName() + ".curlIssue", "Attempt to send notification for " + n.patientUuid + " failed @" + new Date() + " because " + ex.getLocalizedMessage());
+        }
+    }
+
+    private void post(Notification n) throws IOException {
+        byte[] body = substitute(webhookBody, n).getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection conn = (HttpURLConnection) webhookUrl.openConnection();
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", webhookContentType);
+        conn.setFixedLengthStreamingMode(body.length);
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(body);
+        }
+        int responseCode = conn.getResponseCode();
+        // read the whole response so that the keep-alive connection is returned to the pool
+        try (InputStream is = responseCode < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            if (is != null) {
+                byte[] buffer = new byte[1024];
+                while (is.read(buffer) != -1) {
+                }
+            }
+        }
+        if (responseCode < 200 || responseCode >= 300) {
+            throw new IOException("webhook returned HTTP " + responseCode);
+        }
+    }
+
+    private void exec(Notification n) throws IOException, InterruptedException {
+        Process process = Runtime.getRuntime().exec(substitute(script, n));
+        if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("script did not complete within " + timeout + "ms");
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("script exited with " + process.exitValue());
+        }
+    }
+
+    private String substitute(String template, Notification n) {
+        return template.replace(PATIENTUUIDPLACEHOLDER, n.patientUuid).replace(SUBMISSIONSPLACEHOLDER, String.valueOf(n.submissions));
+    }
+
+    private static String trimToNull(String s) {
+        return s == null || s.trim().length() == 0 ? null : s.trim();
+    }
+
+    /**
+     * Stop the notification threads. Notifications waiting to be sent are
+     * discarded
+     */
+    @PreDestroy
+    public void stop() {
+        ScheduledThreadPoolExecutor e;
+        synchronized (this) {
+            e = executor;
+            executor = null;
+            pending.clear();
+        }
+        if (e != null) {
+            e.shutdownNow();
+        }
+    }
+
+    /**
+     * @return number of notifications sent successfully
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of submissions which were coalesced into an earlier
+     * notification for the same patient
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of notifications dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of notifications which could not be sent
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+}
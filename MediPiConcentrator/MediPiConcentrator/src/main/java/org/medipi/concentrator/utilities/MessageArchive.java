@@ -0,0 +1,255 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only archive of messages held in rolling compressed segment files.
+ *
+ * Each message is written to the current segment as a separate gzip member so
+ * that the segment as a whole can be read with any gzip tool while a single
+ * message can be read by seeking straight to its member. Alongside each
+ * segment an index file holds one tab separated line per message of
+ * [uuid][offset][length][deviceId][received date]. A new segment is started
+ * when the current one reaches the maximum size or age, and on every restart
+ * so that a segment is never appended to after it has been closed.
+ *
+ * This class is not safe for use by more than one thread at a time
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MessageArchive {
+
+    private static final String SEGMENTPREFIX = "inbound_";
+    private static final String SEGMENTSUFFIX = ".log.gz";
+    private static final String INDEXSUFFIX = ".idx";
+    private static final String SEGMENTDATEFORMAT = "yyyyMMddHHmmss";
+    private static final String INDEXDATEFORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    private static final int BUFFERSIZE = 64 * 1024;
+
+    private final File directory;
+    private final long maxSegmentSize;
+    private final long maxSegmentAge;
+    private final SimpleDateFormat segmentDateFormat = new SimpleDateFormat(SEGMENTDATEFORMAT);
+    private final SimpleDateFormat indexDateFormat = new SimpleDateFormat(INDEXDATEFORMAT);
+    private OutputStream segment;
+    private Writer index;
+    private File segmentFile;
+    private long segmentSize;
+    private long segmentOpened;
+    private int segmentsOpened = 0;
+
+    /**
+     * Constructor
+     *
+     * @param directory directory in which the segments are written
+     * @param maxSegmentSize compressed size in bytes at which a new segment is
+     * started
+     * @param maxSegmentAge age in milliseconds at which a new segment is
+     * started
+     */
+    public MessageArchive(File directory, long maxSegmentSize, long maxSegmentAge) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentAge = maxSegmentAge;
+    }
+
+    /**
+     * Append a message to the archive. The message is buffered and is only
+     * certain to be in the file once flush has been called
+     *
+     * @param uuid uuid of the message
+     * @param deviceId device which sent the message
+     * @param received date the message was received
+     * @param content content of the message
+     * @return offset of the message in the current segment
+     * @throws IOException if the message cannot be written
+     */
+    public long append(String uuid, String deviceId, Date received, byte[] content) throws IOException {
+        rollIfDue(received.getTime());
+        if (segment == null) {
+            open(received.getTime());
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+            gz.write(content);
+        }
+        long offset = segmentSize;
+        bos.writeTo(segment);
+        segmentSize += bos.size();
+        index.write(uuid + "\t" + offset + "\t" + bos.size() + "\t" + deviceId + "\t" + indexDateFormat.format(received) + "\n");
+        return offset;
+    }
+
+    /**
+     * Flush the messages written so far to the current segment and index
+     *
+     * @throws IOException if the segment cannot be written
+     */
+    public void flush() throws IOException {
+        if (segment != null) {
+            segment.flush();
+            index.flush();
+        }
+    }
+
+    /**
+     * Close the current segment if it has reached its maximum size or age
+     *
+     * @param now current time in milliseconds
+     * @throws IOException if the segment cannot be closed
+     */
+    public void rollIfDue(long now) throws IOException {
+        if (segment != null && (segmentSize >= maxSegmentSize || now - segmentOpened >= maxSegmentAge)) {
+            close();
+        }
+    }
+
+    /**
+     * Close the current segment
+     *
+     * @throws IOException if the segment cannot be closed
+     */
+    public void close() throws IOException {
+        if (segment != null) {
+            try {
+                segment.close();
+            } finally {
+                try {
+                    index.close();
+                } finally {
+                    // a segment which cannot be closed is abandoned so that the next message starts a new one
+                    segment = null;
+                    index = null;
+                    segmentFile = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the segment currently being written or null
+     */
+    public File getSegmentFile() {
+        return segmentFile;
+    }
+
+    /**
+     * @return number of segments started by this archive
+     */
+    public int getSegmentsOpened() {
+        return segmentsOpened;
+    }
+
+    /**
+     * Read a single message from a segment
+     *
+     * @param segment segment file
+     * @param offset offset of the message from the index
+     * @param length length of the message from the index
+     * @return content of the message
+     * @throws IOException if the message cannot be read
+     */
+    public static byte[] read(File segment, long offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        try (FileChannel fc = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            while (bb.hasRemaining()) {
+                if (fc.read(bb, offset + bb.position()) < 0) {
+                    throw new IOException("Archived message at " + offset + " is beyond the end of " + segment);
+                }
+            }
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length * 2);
+        try (GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(bb.array()))) {
+            byte[] buffer = new byte[8192];
+            int r;
+            while ((r = gz.read(buffer)) != -1) {
+                bos.write(buffer, 0, r);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Find a message in the archive using the segment indexes, searching the
+     * newest segments first
+     *
+     * @param directory directory in which the segments are written
+     * @param uuid uuid of the message
+     * @return content of the message or null if it is not in the archive
+     * @throws IOException if the archive cannot be read
+     */
+    public static byte[] find(File directory, String uuid) throws IOException {
+        File[] indexes = directory.listFiles((dir, name) -> name.startsWith(SEGMENTPREFIX) && name.endsWith(INDEXSUFFIX));
+        if (indexes == null) {
+            return null;
+        }
+        Arrays.sort(indexes, (a, b) -> b.getName().compareTo(a.getName()));
+        String prefix = uuid + "\t";
+        for (File idx : indexes) {
+            try (BufferedReader br = Files.newBufferedReader(idx.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.startsWith(prefix)) {
+                        String[] fields = line.split("\t");
+                        String name = idx.getName();
+                        File seg = new File(directory, name.substring(0, name.length() - INDEXSUFFIX.length()));
+                        return read(seg, Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void open(long now) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create message archive directory: " + directory);
+        }
+        String base = SEGMENTPREFIX + segmentDateFormat.format(new Date(now));
+        File f = new File(directory, base + SEGMENTSUFFIX);
+        // more than one segment may be started in the same second
+        for (int i = 1; f.exists(); i++) {
+            f = new File(directory, base + "_" + i + SEGMENTSUFFIX);
+        }
+        segment = new BufferedOutputStream(new FileOutputStream(f), BUFFERSIZE);
+        index = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(new File(directory, f.getName() + INDEXSUFFIX))), StandardCharsets.UTF_8);
+        segmentFile = f;
+        segmentSize = 0;
+        segmentOpened = now;
+        segmentsOpened++;
+    }
+}
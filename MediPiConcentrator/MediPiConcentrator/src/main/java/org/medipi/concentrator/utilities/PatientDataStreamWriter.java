@@ -0,0 +1,131 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.medipi.concentrator.entities.RecordingDeviceData;
+
+/**
+ * Class to write patient data directly to a stream as it is read from the DB.
+ *
+ * The JSON written is the same as a serialised list of PatientDataRequestDO
+ * objects but only the data point currently being written is held in memory.
+ * Data points must be supplied grouped by patient. The output is not opened
+ * until the first data point is written so that an empty response can still be
+ * reported (e.g. with a 204 status)
+ *
+ * @author rick@robinsonhq.com
+ */
+public class PatientDataStreamWriter implements Closeable {
+
+    /**
+     * Supplier of the stream to which the JSON is written
+     */
+    public interface Output {
+
+        /**
+         * @return the stream to write to
+         * @throws IOException
+         */
+        public OutputStream open() throws IOException;
+    }
+
+    private final ObjectMapper mapper;
+    private final Output output;
+    private JsonGenerator generator;
+    private String currentPatientUuid;
+    private long rows = 0;
+    private int patients = 0;
+
+    /**
+     * Constructor
+     *
+     * @param mapper mapper used to serialise each data point
+     * @param output supplier of the stream to write to
+     */
+    public PatientDataStreamWriter(ObjectMapper mapper, Output output) {
+        this.mapper = mapper;
+        this.output = output;
+    }
+
+    /**
+     * Write a data point
+     *
+     * @param rdd data point to be written
+     * @throws IOException if the data point cannot be written
+     */
+    public void write(RecordingDeviceData rdd) throws IOException {
+        if (generator == null) {
+            generator = mapper.getFactory().createGenerator(output.open(), JsonEncoding.UTF8);
+            generator.writeStartArray();
+        }
+        String patientUuid = rdd.getPatientUuid().getPatientUuid();
+        if (!patientUuid.equals(currentPatientUuid)) {
+            if (currentPatientUuid != null) {
+                endPatient();
+            }
+            generator.writeStartObject();
+            generator.writeStringField("patientUuid", patientUuid);
+            generator.writeArrayFieldStart("recordingDeviceDataList");
+            currentPatientUuid = patientUuid;
+            patients++;
+        }
+        generator.writeObject(rdd);
+        rows++;
+    }
+
+    private void endPatient() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return number of data points written
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return number of patients for whom data has been written
+     */
+    public int getPatients() {
+        return patients;
+    }
+
+    /**
+     * Complete the JSON and close the output. Nothing is written if there were
+     * no data points
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (generator != null) {
+            if (currentPatientUuid != null) {
+                endPatient();
+            }
+            generator.writeEndArray();
+            generator.close();
+            generator = null;
+        }
+    }
+}
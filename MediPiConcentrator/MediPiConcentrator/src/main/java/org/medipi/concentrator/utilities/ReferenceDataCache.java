@@ -0,0 +1,203 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Concurrent, size bounded in-process cache for reference data which rarely
+ * changes (e.g. recording device types and attributes).
+ *
+ * Entries are added on a cache miss or when new reference data is inserted.
+ * When the cache is full an arbitrary entry is evicted to make room. Hit, miss
+ * and eviction counts are kept so that the effectiveness of the cache can be
+ * reported
+ *
+ * @author rick@robinsonhq.com
+ * @param <K> key type
+ * @param <V> cached value type
+ */
+public class ReferenceDataCache<K, V> {
+
+    private final String name;
+    private final int maxSize;
+    private final ConcurrentHashMap<K, V> cache = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param name name of the cache used when reporting statistics
+     * @param maxSize maximum number of entries held
+     */
+    public ReferenceDataCache(String name, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be greater than zero: " + maxSize);
+        }
+        this.name = name;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Look up a cached value recording a hit or miss
+     *
+     * @param key key of the value
+     * @return cached value or null if not present
+     */
+    public V get(K key) {
+        V value = cache.get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Add a value to the cache, evicting an entry if the cache is full
+     *
+     * @param key key of the value
+     * @param value value to be cached
+     */
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            return;
+        }
+        while (cache.size() >= maxSize && !cache.containsKey(key)) {
+            Iterator<K> it = cache.keySet().iterator();
+            if (!it.hasNext()) {
+                break;
+            }
+            if (cache.remove(it.next()) != null) {
+                evictions.incrementAndGet();
+            }
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * Add a newly persisted value to the cache once the current transaction
+     * has committed so that a rolled back insert is never cached. If there is
+     * no active transaction the value is added straight away
+     *
+     * @param key key of the value
+     * @param value value to be cached
+     */
+    public void putAfterCommit(final K key, final V value) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    put(key, value);
+                }
+            });
+        } else {
+            put(key, value);
+        }
+    }
+
+    /**
+     * Remove an entry from the cache
+     *
+     * @param key key of the value to be removed
+     */
+    public void remove(K key) {
+        if (key != null) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Remove an entry from the cache now and again once the current
+     * transaction has completed, so that a value reloaded by another thread
+     * before the change was committed is not left in the cache
+     *
+     * @param key key of the value to be removed
+     */
+    public void removeAfterCommit(final K key) {
+        remove(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Remove all entries whose value matches a condition
+     *
+     * @param condition test applied to each cached value
+     * @return number of entries removed
+     */
+    public int removeIf(Predicate<V> condition) {
+        int removed = 0;
+        for (Iterator<V> it = cache.values().iterator(); it.hasNext();) {
+            if (condition.test(it.next())) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all entries from the cache
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return proportion of lookups served from the cache
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[size=" + size() + "/" + maxSize + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions() + " hitRatio=" + String.format("%.3f", getHitRatio()) + "]";
+    }
+}
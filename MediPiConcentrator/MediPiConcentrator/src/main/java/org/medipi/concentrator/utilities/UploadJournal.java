@@ -0,0 +1,394 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.zip.CRC32;
+import org.medipi.concentrator.model.UploadStatusDO;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Append-only journal of uploads accepted for asynchronous processing.
+ *
+ * Each record is framed as [length][CRC32][body] so that a record torn by a
+ * crash part way through a write is detected on replay and truncated from the
+ * end of the journal. Two record types are written: ENQUEUE records carrying
+ * the full encrypted upload (forced to disk before the upload is acknowledged)
+ * and STATUS records carrying the outcome of processing. On startup the
+ * journal is replayed to rebuild the pending uploads and their statuses. When
+ * the journal grows too large it is compacted by rewriting only the pending
+ * uploads and retained statuses to a new file which atomically replaces the
+ * old one. Records appended while the pending uploads and statuses were being
+ * gathered are carried over to the new file so that compaction can run while
+ * uploads are still being accepted.
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadJournal {
+
+    private static final String JOURNALFILE = "upload.journal";
+    private static final String COMPACTFILE = "upload.journal.compact";
+    private static final byte ENQUEUE = 1;
+    private static final byte STATUS = 2;
+    private static final int MAXRECORDSIZE = 256 * 1024 * 1024;
+
+    private final File journalFile;
+    private final File compactFile;
+    private FileChannel channel;
+
+    /**
+     * A journaled upload waiting to be processed
+     */
+    public static class Entry {
+
+        private final String deviceId;
+        private final String patientUuid;
+        private final String dataFormat;
+        private final EncryptedAndSignedUploadDO upload;
+        private final Date receivedDate;
+
+        public Entry(String deviceId, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO upload, Date receivedDate) {
+            this.deviceId = deviceId;
+            this.patientUuid = patientUuid;
+            this.dataFormat = dataFormat;
+            this.upload = upload;
+            this.receivedDate = receivedDate;
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        public String getPatientUuid() {
+            return patientUuid;
+        }
+
+        public String getDataFormat() {
+            return dataFormat;
+        }
+
+        public EncryptedAndSignedUploadDO getUpload() {
+            return upload;
+        }
+
+        public Date getReceivedDate() {
+            return receivedDate;
+        }
+    }
+
+    /**
+     * Callback interface for records read when the journal is replayed
+     */
+    public interface ReplayHandler {
+
+        /**
+         * Called for every upload which was journaled
+         *
+         * @param entry the journaled upload
+         */
+        void enqueued(Entry entry);
+
+        /**
+         * Called for every status change which was journaled
+         *
+         * @param status the status of an upload
+         */
+        void status(UploadStatusDO status);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param journalDir directory in which the journal is kept
+     */
+    public UploadJournal(File journalDir) {
+        this.journalFile = new File(journalDir, JOURNALFILE);
+        this.compactFile = new File(journalDir, COMPACTFILE);
+    }
+
+    /**
+     * Replay the journal through the handler and open it for appending. Any
+     * torn record at the end of the journal is truncated
+     *
+     * @param handler callback for replayed records
+     * @return number of bytes truncated from the end of the journal
+     * @throws IOException if the journal cannot be read or opened
+     */
+    public synchronized long open(ReplayHandler handler) throws IOException {
+        File dir = journalFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create upload journal directory: " + dir);
+        }
+        // a left over compaction file means the compaction never completed - the original journal is still valid
+        Files.deleteIfExists(compactFile.toPath());
+        long validLength = 0;
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                while (true) {
+                    byte[] body = readRecord(in);
+                    if (body == null) {
+                        break;
+                    }
+                    replayRecord(body, handler);
+                    validLength += 8 + body.length;
+                }
+            }
+        }
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long truncated = channel.size() - validLength;
+        if (truncated > 0) {
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+        return truncated;
+    }
+
+    /**
+     * Append an upload to the journal. The record is forced to disk before
+     * returning so that the upload can be safely acknowledged
+     *
+     * @param entry upload to be journaled
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void appendEnqueue(Entry entry) throws IOException {
+        write(channel, encodeEnqueue(entry));
+        channel.force(false);
+    }
+
+    /**
+     * Append a status change to the journal. This is not forced to disk - if
+     * it is lost in a crash the upload is replayed and reprocessed, which is
+     * safe as duplicate data points are not persisted twice
+     *
+     * @param status the status of an upload
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void appendStatus(UploadStatusDO status) throws IOException {
+        write(channel, encodeStatus(status));
+    }
+
+    /**
+     * Rewrite the journal so that it only contains the given pending uploads
+     * and statuses
+     *
+     * @param pending uploads still waiting to be processed
+     * @param statuses statuses to be retained
+     * @throws IOException if the compacted journal cannot be written
+     */
+    public synchronized void compact(Collection<Entry> pending, Collection<UploadStatusDO> statuses) throws IOException {
+        compact(pending, statuses, channel.size());
+    }
+
+    /**
+     * Rewrite the journal so that it only contains the given pending uploads
+     * and statuses followed by the records appended from a position in the
+     * journal. The position must be taken before the pending uploads and
+     * statuses are gathered, so that a record appended in the meantime is
+     * never lost
+     *
+     * @param pending uploads still waiting to be processed
+     * @param statuses statuses to be retained
+     * @param from position in the journal from which records are carried over
+     * @throws IOException if the compacted journal cannot be written
+     */
+    public synchronized void compact(Collection<Entry> pending, Collection<UploadStatusDO> statuses, long from) throws IOException {
+        try (FileChannel compacted = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Entry e : pending) {
+                write(compacted, encodeEnqueue(e));
+            }
+            for (UploadStatusDO s : statuses) {
+                write(compacted, encodeStatus(s));
+            }
+            long end = channel.size();
+            if (end > from) {
+                try (FileChannel tail = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                    long copied = 0;
+                    while (copied < end - from) {
+                        copied += tail.transferTo(from + copied, end - from - copied, compacted);
+                    }
+                }
+            }
+            compacted.force(true);
+        }
+        channel.close();
+        Files.move(compactFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * @return current size of the journal in bytes
+     * @throws IOException if the size cannot be read
+     */
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Close the journal
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length <= 0 || length > MAXRECORDSIZE) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 crc32 = new CRC32();
+            crc32.update(body);
+            if ((int) crc32.getValue() != crc) {
+                return null;
+            }
+            return body;
+        } catch (EOFException e) {
+            // end of journal or a torn record
+            return null;
+        }
+    }
+
+    private void replayRecord(byte[] body, ReplayHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        switch (type) {
+            case ENQUEUE:
+                String deviceId = readString(in);
+                String patientUuid = readString(in);
+                String dataFormat = readString(in);
+                Date receivedDate = new Date(in.readLong());
+                EncryptedAndSignedUploadDO upload = new EncryptedAndSignedUploadDO(readString(in), readString(in), readString(in));
+                handler.enqueued(new Entry(deviceId, patientUuid, dataFormat, upload, receivedDate));
+                break;
+            case STATUS:
+                UploadStatusDO status = new UploadStatusDO(readString(in), readString(in), readDate(in));
+                status.setHttpStatus(in.readInt());
+                status.setMessage(readString(in));
+                status.setCompletedDate(readDate(in));
+                status.setAttempts(in.readInt());
+                // the owner of the upload was added to the end of the record later
+                if (in.available() > 0) {
+                    status.setDeviceId(readString(in));
+                    status.setPatientUuid(readString(in));
+                }
+                handler.status(status);
+                break;
+            default:
+                throw new IOException("Unknown upload journal record type: " + type);
+        }
+    }
+
+    private byte[] encodeEnqueue(Entry e) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(ENQUEUE);
+        writeString(out, e.getDeviceId());
+        writeString(out, e.getPatientUuid());
+        writeString(out, e.getDataFormat());
+        out.writeLong(e.getReceivedDate().getTime());
+        writeString(out, e.getUpload().getUploadUuid());
+        writeString(out, e.getUpload().getEncryptedKey());
+        writeString(out, e.getUpload().getCipherData());
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private byte[] encodeStatus(UploadStatusDO s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(STATUS);
+        writeString(out, s.getUploadUuid());
+        writeString(out, s.getStatus());
+        writeDate(out, s.getReceivedDate());
+        out.writeInt(s.getHttpStatus());
+        writeString(out, s.getMessage());
+        writeDate(out, s.getCompletedDate());
+        out.writeInt(s.getAttempts());
+        writeString(out, s.getDeviceId());
+        writeString(out, s.getPatientUuid());
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private void write(FileChannel fc, byte[] body) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(body);
+        ByteBuffer bb = ByteBuffer.allocate(8 + body.length);
+        bb.putInt(body.length);
+        bb.putInt((int) crc32.getValue());
+        bb.put(body);
+        bb.flip();
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+
+    private void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void writeDate(DataOutputStream out, Date d) throws IOException {
+        out.writeLong(d == null ? Long.MIN_VALUE : d.getTime());
+    }
+
+    private Date readDate(DataInputStream in) throws IOException {
+        long l = in.readLong();
+        return l == Long.MIN_VALUE ? null : new Date(l);
+    }
+}
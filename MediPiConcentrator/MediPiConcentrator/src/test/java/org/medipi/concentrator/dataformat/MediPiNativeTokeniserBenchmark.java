@@ -0,0 +1,118 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Benchmark of parsing MediPi Native format device payloads.
+ *
+ * Compares MediPiNativeTokeniser with the String.split parsing it replaced
+ * for payloads of blood pressure readings with yyyy-MM-ddTHH:mm:ss.SSSZ
+ * times. Each payload size is parsed several times and the fastest run is
+ * reported.
+ *
+ * Run with the test classpath: MediPiNativeTokeniserBenchmark [lines...]
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativeTokeniserBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10000, 100000, 1000000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        // warm up
+        String warmup = payload(10000);
+        for (int i = 0; i < 20; i++) {
+            SplitNativeParser.parse(warmup, new Counter());
+            MediPiNativeTokeniser.tokenise(warmup, new Counter());
+        }
+        for (int lines : sizes) {
+            String payload = payload(lines);
+            Counter counter = new Counter();
+            long split = Long.MAX_VALUE;
+            long tokeniser = Long.MAX_VALUE;
+            for (int r = 0; r < RUNS; r++) {
+                long start = System.nanoTime();
+                SplitNativeParser.parse(payload, counter);
+                split = Math.min(split, System.nanoTime() - start);
+                start = System.nanoTime();
+                MediPiNativeTokeniser.tokenise(payload, counter);
+                tokeniser = Math.min(tokeniser, System.nanoTime() - start);
+            }
+            report(lines, "String.split", split);
+            report(lines, "tokeniser", tokeniser);
+            if (counter.rows != 2L * RUNS * lines) {
+                throw new IllegalStateException("Parsed " + counter.rows + " rows");
+            }
+        }
+    }
+
+    private static void report(int lines, String name, long nanos) {
+        System.out.printf("%8d lines %-13s %8.1f ms  %6.0f ns/line%n", lines, name, nanos / 1e6, (double) nanos / lines);
+    }
+
+    private static String payload(int lines) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder sb = new StringBuilder();
+        sb.append("metadata->persist->medipiversion->1.0.0\n");
+        sb.append("metadata->make->A&D\n");
+        sb.append("metadata->model->UA-767PBT-Ci\n");
+        sb.append("metadata->displayname->Blood Pressure\n");
+        sb.append("metadata->datadelimiter->^\n");
+        sb.append("metadata->columns->iso8601time^systol^diastol^pulserate^MAP\n");
+        sb.append("metadata->format->DATE^INTEGER^INTEGER^INTEGER^INTEGER\n");
+        sb.append("metadata->units->NONE^mmHg^mmHg^bpm^mmHg\n");
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < lines; i++) {
+            sb.append(format.format(new Date(time - i * 60000L))).append('^')
+                    .append(100 + i % 50).append('^').append(60 + i % 30).append('^').append(50 + i % 40).append('^').append(80 + i % 20).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class Counter implements MediPiNativeTokeniser.Handler {
+
+        private long rows = 0;
+
+        @Override
+        public void persistentMetadata(String key, String value) {
+        }
+
+        @Override
+        public void metadata(String name, String value) {
+        }
+
+        @Override
+        public void startData() {
+        }
+
+        @Override
+        public void data(Date dataPointTime, String[] fields) {
+            rows++;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that MediPiNativeTokeniser gives the same results as the String.split
+ * parsing it replaced
+ *
+ * @author rick@robinsonhq.com
+ */
+@SuppressWarnings("deprecation")
+public class MediPiNativeTokeniserTest {
+
+    private static final String REJECTED = "rejected";
+    private static final String METADATA = "metadata->persist->medipiversion->1.0.0\n"
+            + "metadata->make->A&D\n"
+            + "metadata->model->UA-767PBT-Ci\n"
+            + "metadata->displayname->Blood Pressure\n"
+            + "metadata->datadelimiter->^\n"
+            + "metadata->columns->iso8601time^systol^diastol^pulserate^MAP\n"
+            + "metadata->format->DATE^INTEGER^INTEGER^INTEGER^INTEGER\n"
+            + "metadata->units->NONE^mmHg^mmHg^bpm^mmHg\n";
+
+    @Test
+    public void matchesSplitForUtcMillisTimes() throws Exception {
+        List<String> events = assertSameAsSplit(METADATA
+                + "2016-10-16T12:34:56.789Z^120^80^60^93\n"
+                + "2016-02-29T23:59:59.999Z^121^81^61^94\n"
+                + "1970-01-01T00:00:00.000Z^122^82^62^95\n");
+        assertTrue(events.contains("data 1476621296789 [2016-10-16T12:34:56.789Z, 120, 80, 60, 93]"));
+    }
+
+    @Test
+    public void matchesSplitForOtherIso8601Times() throws Exception {
+        assertSameAsSplit(METADATA
+                + "2016-10-16T12:34:56Z^120^80^60^93\n"
+                + "2016-10-16T13:34:56.789+01:00^120^80^60^93\n"
+                + "2016-10-16T12:34:56.789+0000^120^80^60^93\n"
+                + "2016-10-16T12:34:56.7Z^120^80^60^93\n"
+                + "2016-10-16T12:34Z^120^80^60^93\n"
+                + "2016-10-16^120^80^60^93\n");
+    }
+
+    @Test
+    public void matchesSplitForInvalidTimes() throws Exception {
+        // 24 characters in the yyyy-MM-ddTHH:mm:ss.SSSZ layout but not a valid time
+        assertRejectedByBoth(METADATA + "2016-02-30T12:34:56.789Z^120^80^60^93\n");
+        assertRejectedByBoth(METADATA + "2016-13-16T12:34:56.789Z^120^80^60^93\n");
+        assertRejectedByBoth(METADATA + "2016-10-16T12:34:5x.789Z^120^80^60^93\n");
+        assertRejectedByBoth(METADATA + "16/10/2016 12:34^120^80^60^93\n");
+    }
+
+    @Test
+    public void matchesSplitForRandomUtcMillisTimes() throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // 1900 to 2100
+            String s = format.format(new Date(-2208988800000L + (long) (random.nextDouble() * 6311433600000L)));
+            assertEquals(s, new ISO8601DateFormat().parse(s), MediPiNativeTokeniser.parseTime(s));
+        }
+    }
+
+    @Test
+    public void matchesSplitForCrlfLineEndings() throws Exception {
+        String lf = METADATA
+                + "2016-10-16T12:34:56.789Z^120^80^60^93\n"
+                + "2016-10-16T12:35:56.789Z^121^81^61^94\n";
+        List<String> events = assertSameAsSplit(lf.replace("\n", "\r\n"));
+        assertEquals(parse(lf), events);
+        // a lone carriage return also ends a line
+        assertEquals(events, assertSameAsSplit(lf.replace("\n", "\r")));
+        // without a final line terminator
+        assertEquals(events, assertSameAsSplit(lf.replace("\n", "\r\n").substring(0, lf.length() + 8)));
+    }
+
+    @Test
+    public void matchesSplitForShortRows() throws Exception {
+        assertSameAsSplit(METADATA
+                + "2016-10-16T12:34:56.789Z^120\n"
+                + "2016-10-16T12:34:56.789Z\n"
+                + "2016-10-16T12:34:56.789Z^120^^60\n"
+                // trailing empty fields are dropped
+                + "2016-10-16T12:34:56.789Z^120^80^^\n"
+                + "2016-10-16T12:34:56.789Z^^^^\n");
+    }
+
+    @Test
+    public void matchesSplitForBlankRows() throws Exception {
+        assertRejectedByBoth(METADATA + "2016-10-16T12:34:56.789Z^120^80^60^93\n\n2016-10-16T12:35:56.789Z^121^81^61^94\n");
+        assertRejectedByBoth(METADATA + "2016-10-16T12:34:56.789Z^120^80^60^93\r\n\r\n");
+        assertRejectedByBoth(METADATA + "^^^\n");
+        // a single line terminator at the end is not a blank row
+        assertSameAsSplit(METADATA + "2016-10-16T12:34:56.789Z^120^80^60^93\r\n");
+    }
+
+    @Test
+    public void matchesSplitForOtherDelimiters() throws Exception {
+        assertSameAsSplit("metadata->datadelimiter->,\n2016-10-16T12:34:56.789Z,98,72\n");
+        assertSameAsSplit("metadata->datadelimiter->|\n2016-10-16T12:34:56.789Z|98|72\n");
+        assertSameAsSplit("metadata->datadelimiter->.\n2016-10-16T12:34:56Z.98.72\n");
+    }
+
+    @Test
+    public void matchesSplitForMalformedMetadata() throws Exception {
+        assertRejectedByBoth("metadata->persist->medipiversion\n");
+        assertRejectedByBoth("metadata->persist->medipiversion->1.0.0->extra\n");
+        assertRejectedByBoth("metadata->make\n");
+        assertRejectedByBoth("2016-10-16T12:34:56.789Z^120\n");
+    }
+
+    @Test
+    public void reportsLineNumberOfMalformedLine() {
+        try {
+            MediPiNativeTokeniser.tokenise(METADATA + "2016-10-16T12:34:56.789Z^120\r\nnot a time^120\n", new Recorder());
+            fail("a malformed line was accepted");
+        } catch (ParseException e) {
+            assertEquals(10, e.getErrorOffset());
+        }
+    }
+
+    private static List<String> assertSameAsSplit(String payload) throws Exception {
+        Recorder expected = new Recorder();
+        SplitNativeParser.parse(payload, expected);
+        List<String> events = parse(payload);
+        assertEquals(expected.events, events);
+        return events;
+    }
+
+    private static void assertRejectedByBoth(String payload) {
+        String split;
+        try {
+            Recorder r = new Recorder();
+            SplitNativeParser.parse(payload, r);
+            split = r.events.toString();
+        } catch (Exception e) {
+            split = REJECTED;
+        }
+        assertEquals(payload, REJECTED, split);
+        try {
+            assertEquals(payload, REJECTED, parse(payload).toString());
+        } catch (ParseException e) {
+            // expected
+        }
+    }
+
+    private static List<String> parse(String payload) throws ParseException {
+        Recorder r = new Recorder();
+        MediPiNativeTokeniser.tokenise(payload, r);
+        return r.events;
+    }
+
+    private static class Recorder implements MediPiNativeTokeniser.Handler {
+
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void persistentMetadata(String key, String value) {
+            events.add("persist " + key + "=" + value);
+        }
+
+        @Override
+        public void metadata(String name, String value) {
+            events.add("metadata " + name + "=" + value);
+        }
+
+        @Override
+        public void startData() {
+        }
+
+        @Override
+        public void data(Date dataPointTime, String[] fields) {
+            events.add("data " + dataPointTime.getTime() + " " + Arrays.toString(fields));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * The parsing of MediPi Native format device payloads as done by
+ * MediPiNativeFormat before MediPiNativeTokeniser: a BufferedReader over a
+ * copy of the payload, a regex String.split of every line and a new
+ * ISO8601DateFormat for every data point time. Used as the reference for the
+ * tokeniser tests and benchmark
+ *
+ * @author rick@robinsonhq.com
+ */
+@SuppressWarnings("deprecation")
+class SplitNativeParser {
+
+    private SplitNativeParser() {
+    }
+
+    /**
+     * Parse a device payload passing its content to the handler. The
+     * handler's startData method is not called
+     *
+     * @param payload the device payload
+     * @param handler callback for the metadata and data lines
+     * @throws Exception if a line is rejected. As MediPiNativeFormat used to,
+     * some malformed lines fail with a runtime exception rather than a
+     * ParseException
+     */
+    static void parse(String payload, MediPiNativeTokeniser.Handler handler) throws Exception {
+        String datadelimeter = null;
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload.getBytes())));
+        String line;
+        while ((line = br.readLine()) != null) {
+            String[] metaSplit = line.split("->");
+            if (metaSplit[0].equals("metadata")) {
+                if (metaSplit[1].equals("persist")) {
+                    if (metaSplit.length > 4) {
+                        throw new ParseException("Failed to parse metadata->persist: " + line, 0);
+                    }
+                    handler.persistentMetadata(metaSplit[2], metaSplit[3]);
+                } else {
+                    if (metaSplit[1].equals("datadelimiter")) {
+                        datadelimeter = metaSplit[2];
+                        if ("\\.[]{}()*+-?^$|".contains(datadelimeter)) {
+                            datadelimeter = "\\" + datadelimeter;
+                        }
+                    }
+                    handler.metadata(metaSplit[1], metaSplit[2]);
+                }
+            } else {
+                if (datadelimeter == null) {
+                    throw new ParseException("No metadata->datadelimiter before data", 0);
+                }
+                String[] dataArray = line.split(datadelimeter);
+                Date dataPointTime = new ISO8601DateFormat().parse(dataArray[0]);
+                handler.data(dataPointTime, dataArray);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the range and ETag handling of DownloadableFileService
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DownloadableFileServiceTest {
+
+    @Test
+    public void parsesSingleByteRanges() {
+        assertArrayEquals(new long[]{0, 99}, DownloadableFileService.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[]{500, 999}, DownloadableFileService.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[]{900, 999}, DownloadableFileService.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[]{0, 999}, DownloadableFileService.parseRange("bytes=-5000", 1000));
+        assertArrayEquals(new long[]{990, 999}, DownloadableFileService.parseRange("bytes=990-5000", 1000));
+    }
+
+    @Test
+    public void sendsWholeFileForUnsupportedRanges() {
+        assertNull(DownloadableFileService.parseRange(null, 1000));
+        assertNull(DownloadableFileService.parseRange("bytes=0-9,20-29", 1000));
+        assertNull(DownloadableFileService.parseRange("items=0-9", 1000));
+        assertNull(DownloadableFileService.parseRange("bytes=9-0", 1000));
+        assertNull(DownloadableFileService.parseRange("bytes=a-b", 1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRangeBeyondEndOfFile() {
+        DownloadableFileService.parseRange("bytes=1000-", 1000);
+    }
+
+    @Test
+    public void etagChangesWithSignature() {
+        String etag = DownloadableFileService.getETag("uuid", "signature-1");
+        assertTrue(etag.startsWith("\"uuid-") && etag.endsWith("\""));
+        assertEquals(etag, DownloadableFileService.getETag("uuid", "signature-1"));
+        assertNotEquals(etag, DownloadableFileService.getETag("uuid", "signature-2"));
+        assertTrue(DownloadableFileService.matches("\"other\", W/" + etag, etag));
+        assertTrue(DownloadableFileService.matches("*", etag));
+        assertFalse(DownloadableFileService.matches("\"other\"", etag));
+    }
+
+    @Test
+    public void listETagOnlyMatchesConcreteTags() {
+        String etag = "\"instance-1-2-3\"";
+        assertTrue(DownloadableFileService.matchesETag("\"other\", W/" + etag, etag));
+        assertFalse(DownloadableFileService.matchesETag("*", etag));
+        assertFalse(DownloadableFileService.matchesETag("\"other\"", etag));
+        assertFalse(DownloadableFileService.matchesETag(null, etag));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import javax.persistence.EntityManager;
+import ma.glasnost.orika.MapperFacade;
+import org.hibernate.ScrollableResults;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.model.PatientDataRequestDO;
+import org.medipi.concentrator.utilities.PatientDataStreamWriter;
+import org.medipi.concentrator.utilities.Utilities;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests for the streaming of patient group data by RequestDataService
+ *
+ * @author rick@robinsonhq.com
+ */
+public class RequestDataServiceTest {
+
+    private static final int PATIENTS = 20;
+    private static final int ROWSPERPATIENT = 1000;
+    // the fetch size used by RequestDataService
+    private static final int FETCHSIZE = 500;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private RequestDataService service;
+    private RecordingDeviceDataDAOImpl dao;
+    private EntityManager entityManager;
+    private ScrollableResults results;
+    private ByteArrayOutputStream bos;
+    // rows read from the cursor
+    private int read;
+    // rows read from the cursor when bytes were last written to the output
+    private int readAtLastOutput;
+    private int maxRowsSinceOutput;
+    private int lastOutputSize;
+
+    @Before
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty("medipi.concentrator.database.backoffperiod", "0");
+        Utilities.getInstance().setProperties(properties);
+
+        dao = mock(RecordingDeviceDataDAOImpl.class);
+        entityManager = mock(EntityManager.class);
+        results = mock(ScrollableResults.class);
+        when(dao.getEntityManager()).thenReturn(entityManager);
+        when(dao.scrollByGroupAndDownloadedTime(eq("group"), any(Date.class), any(Date.class), anyInt())).thenReturn(results);
+        when(results.next()).thenAnswer(invocation -> read < PATIENTS * ROWSPERPATIENT);
+        when(results.get(0)).thenAnswer(invocation -> {
+            int id = read++;
+            return newData("patient-" + id / ROWSPERPATIENT, id);
+        });
+        MapperFacade mapperFacade = mock(MapperFacade.class);
+        when(mapperFacade.map(any(RecordingDeviceData.class), eq(RecordingDeviceData.class))).thenAnswer(invocation -> {
+            // measure how far the output trails the cursor as each row is mapped
+            if (bos.size() != lastOutputSize) {
+                lastOutputSize = bos.size();
+                readAtLastOutput = read - 1;
+            }
+            maxRowsSinceOutput = Math.max(maxRowsSinceOutput, read - readAtLastOutput);
+            return invocation.getArguments()[0];
+        });
+
+        service = new RequestDataService();
+        ReflectionTestUtils.setField(service, "recordingDeviceDataDAOImpl", dao);
+        ReflectionTestUtils.setField(service, "mapperFacade", mapperFacade);
+        ReflectionTestUtils.setField(service, "utils", Utilities.getInstance());
+        bos = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void streamsRowsAsTheyAreReadFromTheCursor() throws IOException {
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(objectMapper, () -> bos);
+        long rows = service.streamData("group", new Date(0), writer);
+
+        assertEquals(PATIENTS * ROWSPERPATIENT, rows);
+        List<PatientDataRequestDO> result = objectMapper.readValue(bos.toByteArray(), new TypeReference<List<PatientDataRequestDO>>() {
+        });
+        assertEquals(PATIENTS, result.size());
+        assertEquals(ROWSPERPATIENT, result.get(PATIENTS - 1).getRecordingDeviceDataList().size());
+        assertEquals("patient-" + (PATIENTS - 1), result.get(PATIENTS - 1).getPatientUuid());
+        // the cursor is read with the fetch size and the persistence context released after every fetch
+        verify(dao).scrollByGroupAndDownloadedTime(eq("group"), any(Date.class), any(Date.class), eq(FETCHSIZE));
+        verify(entityManager, times(PATIENTS * ROWSPERPATIENT / FETCHSIZE)).clear();
+        verify(results).close();
+        // rows are written out while the cursor is still being read rather than once it is exhausted
+        assertTrue("up to " + maxRowsSinceOutput + " rows were read before any output", maxRowsSinceOutput < FETCHSIZE);
+    }
+
+    @Test
+    public void writesNothingWithinTheBackoffPeriod() throws IOException {
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(objectMapper, () -> bos);
+        long rows = service.streamData("group", new Date(System.currentTimeMillis() + 60000), writer);
+
+        assertEquals(0, rows);
+        assertEquals(0, bos.size());
+        verify(dao, never()).scrollByGroupAndDownloadedTime(any(String.class), any(Date.class), any(Date.class), anyInt());
+    }
+
+    @Test
+    public void closesTheCursorWhenTheOutputFails() {
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(objectMapper, () -> {
+            throw new IOException("client went away");
+        });
+        try {
+            service.streamData("group", new Date(0), writer);
+            fail("the output failure was not reported");
+        } catch (IOException e) {
+            assertEquals("client went away", e.getMessage());
+        }
+        verify(results).close();
+    }
+
+    private static RecordingDeviceData newData(String patientUuid, int dataId) {
+        RecordingDeviceType rdt = new RecordingDeviceType();
+        rdt.setType("Oximeter");
+        rdt.setMake("Nonin");
+        rdt.setModel("9560");
+        rdt.setDisplayName("Finger Oximeter");
+        RecordingDeviceAttribute rda = new RecordingDeviceAttribute();
+        rda.setAttributeName("SpO2");
+        rda.setAttributeType("INTEGER");
+        rda.setAttributeUnits("%");
+        rda.setTypeId(rdt);
+        RecordingDeviceData rdd = new RecordingDeviceData(dataId, "98", new Date(), new Date(), null);
+        rdd.setPatientUuid(new Patient(patientUuid));
+        rdd.setAttributeId(rda);
+        return rdd;
+    }
+}
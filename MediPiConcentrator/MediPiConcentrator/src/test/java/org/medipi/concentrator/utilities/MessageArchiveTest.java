@@ -0,0 +1,107 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for MessageArchive
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MessageArchiveTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("medipi-archive").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void findsMessagesAcrossRolledSegments() throws IOException {
+        // small segments so that every few messages start a new segment
+        MessageArchive archive = new MessageArchive(dir, 200, Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            archive.append("uuid-" + i, "device", new Date(now), message(i));
+            archive.flush();
+        }
+        archive.close();
+        assertEquals(dir.listFiles().length, archive.getSegmentsOpened() * 2);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(new String(message(i), StandardCharsets.UTF_8), new String(MessageArchive.find(dir, "uuid-" + i), StandardCharsets.UTF_8));
+        }
+        assertNull(MessageArchive.find(dir, "uuid-20"));
+    }
+
+    @Test
+    public void segmentIsReadableAsOneGzipFile() throws IOException {
+        MessageArchive archive = new MessageArchive(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        archive.append("uuid-0", "device", new Date(), message(0));
+        archive.append("uuid-1", "device", new Date(), message(1));
+        File segment = archive.getSegmentFile();
+        archive.close();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(segment))) {
+            byte[] b = new byte[1024];
+            int r;
+            while ((r = in.read(b)) != -1) {
+                bos.write(b, 0, r);
+            }
+        }
+        assertEquals(new String(message(0), StandardCharsets.UTF_8) + new String(message(1), StandardCharsets.UTF_8), new String(bos.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void rollsSegmentByAge() throws IOException {
+        MessageArchive archive = new MessageArchive(dir, Long.MAX_VALUE, 1000);
+        archive.append("uuid-0", "device", new Date(0), message(0));
+        archive.rollIfDue(500);
+        archive.append("uuid-1", "device", new Date(999), message(1));
+        archive.append("uuid-2", "device", new Date(1000), message(2));
+        archive.close();
+        assertEquals(2, archive.getSegmentsOpened());
+    }
+
+    private byte[] message(int i) {
+        return ("{\"uploadUuid\":\"uuid-" + i + "\",\"cipherData\":\"" + i + "abcdefghijklmnopqrstuvwxyz\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.model.PatientDataRequestDO;
+
+/**
+ * Tests for PatientDataStreamWriter
+ *
+ * @author rick@robinsonhq.com
+ */
+public class PatientDataStreamWriterTest {
+
+    private static final int PATIENTS = 2000;
+    private static final int ROWSPERPATIENT = 500;
+    // rows which may be held in the generator's buffer before it is flushed
+    private static final int MAXBUFFEREDROWS = 64;
+    private static final int MAXWRITE = 64 * 1024;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void writesSameJsonAsPatientDataRequestList() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(mapper, () -> bos);
+        for (int p = 0; p < 3; p++) {
+            for (int i = 0; i < 4; i++) {
+                writer.write(newData("patient-" + p, p * 4 + i));
+            }
+        }
+        writer.close();
+        List<PatientDataRequestDO> result = mapper.readValue(bos.toByteArray(), new TypeReference<List<PatientDataRequestDO>>() {
+        });
+        assertEquals(3, result.size());
+        assertEquals(3, writer.getPatients());
+        assertEquals(12, writer.getRows());
+        for (int p = 0; p < 3; p++) {
+            assertEquals("patient-" + p, result.get(p).getPatientUuid());
+            assertEquals(4, result.get(p).getRecordingDeviceDataList().size());
+            RecordingDeviceData rdd = result.get(p).getRecordingDeviceDataList().get(0);
+            assertEquals(Integer.valueOf(p * 4), rdd.getDataId());
+            assertEquals("patient-" + p, rdd.getPatientUuid().getPatientUuid());
+            assertEquals("SpO2", rdd.getAttributeId().getAttributeName());
+        }
+    }
+
+    @Test
+    public void writesNothingWhenThereIsNoData() throws IOException {
+        final boolean[] opened = {false};
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(mapper, () -> {
+            opened[0] = true;
+            return new ByteArrayOutputStream();
+        });
+        writer.close();
+        assertEquals(0, writer.getRows());
+        assertTrue(!opened[0]);
+    }
+
+    @Test
+    public void outputIsWrittenAsAMillionRowSyncIsStreamed() throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        PatientDataStreamWriter writer = new PatientDataStreamWriter(mapper, () -> counter);
+        int id = 0;
+        int rowsSinceOutput = 0;
+        int maxRowsSinceOutput = 0;
+        long lastCount = 0;
+        for (int p = 0; p < PATIENTS; p++) {
+            for (int i = 0; i < ROWSPERPATIENT; i++) {
+                writer.write(newData("patient-" + p, id++));
+                if (counter.count == lastCount) {
+                    rowsSinceOutput++;
+                    maxRowsSinceOutput = Math.max(maxRowsSinceOutput, rowsSinceOutput);
+                } else {
+                    lastCount = counter.count;
+                    rowsSinceOutput = 0;
+                }
+            }
+        }
+        writer.close();
+        assertEquals(PATIENTS * ROWSPERPATIENT, writer.getRows());
+        assertEquals(PATIENTS, writer.getPatients());
+        assertTrue(counter.count > 0);
+        // only the generator's buffer is held - a million data points are never accumulated before being written
+        assertTrue("up to " + maxRowsSinceOutput + " rows were held before being written", maxRowsSinceOutput < MAXBUFFEREDROWS);
+        assertTrue("a write of " + counter.maxWrite + " bytes was made", counter.maxWrite <= MAXWRITE);
+    }
+
+    private static RecordingDeviceData newData(String patientUuid, int dataId) {
+        RecordingDeviceType rdt = new RecordingDeviceType();
+        rdt.setType("Oximeter");
+        rdt.setMake("Nonin");
+        rdt.setModel("9560");
+        rdt.setDisplayName("Finger Oximeter");
+        RecordingDeviceAttribute rda = new RecordingDeviceAttribute();
+        rda.setAttributeName("SpO2");
+        rda.setAttributeType("INTEGER");
+        rda.setAttributeUnits("%");
+        rda.setTypeId(rdt);
+        RecordingDeviceData rdd = new RecordingDeviceData(dataId, "98", new Date(), new Date(), null);
+        rdd.setPatientUuid(new Patient(patientUuid));
+        rdd.setAttributeId(rda);
+        return rdd;
+    }
+
+    /**
+     * Stream which counts the bytes written to it and records the largest
+     * single write
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        long count = 0;
+        int maxWrite = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+            maxWrite = Math.max(maxWrite, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            maxWrite = Math.max(maxWrite, len);
+        }
+    }
+}
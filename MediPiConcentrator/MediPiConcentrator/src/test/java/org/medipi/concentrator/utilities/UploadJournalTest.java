@@ -0,0 +1,120 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.medipi.concentrator.model.UploadStatusDO;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Tests for UploadJournal
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadJournalTest {
+
+    private File dir;
+    private final Map<String, UploadJournal.Entry> pending = new LinkedHashMap<>();
+    private final Map<String, UploadStatusDO> statuses = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("medipi-uploadjournal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void replaysPendingUploadsAndStatuses() throws IOException {
+        UploadJournal journal = new UploadJournal(dir);
+        journal.open(replay());
+        journal.appendEnqueue(entry("uuid-0"));
+        journal.appendEnqueue(entry("uuid-1"));
+        journal.appendStatus(new UploadStatusDO("uuid-0", UploadStatusDO.PROCESSED, new Date()));
+        journal.close();
+
+        reopen();
+        assertEquals(Collections.singleton("uuid-1"), pending.keySet());
+        assertEquals(UploadStatusDO.PROCESSED, statuses.get("uuid-0").getStatus());
+    }
+
+    @Test
+    public void compactionKeepsRecordsAppendedAfterItsStartingPoint() throws IOException {
+        UploadJournal journal = new UploadJournal(dir);
+        journal.open(replay());
+        journal.appendEnqueue(entry("uuid-0"));
+        journal.appendStatus(new UploadStatusDO("uuid-0", UploadStatusDO.PROCESSED, new Date()));
+        long from = journal.size();
+        // accepted after the compaction took its starting point but not in the uploads it was given
+        journal.appendEnqueue(entry("uuid-1"));
+        journal.compact(Collections.<UploadJournal.Entry>emptyList(), Collections.singletonList(new UploadStatusDO("uuid-0", UploadStatusDO.PROCESSED, new Date())), from);
+        journal.appendEnqueue(entry("uuid-2"));
+        journal.close();
+
+        reopen();
+        assertEquals(2, pending.size());
+        assertTrue(pending.containsKey("uuid-1"));
+        assertTrue(pending.containsKey("uuid-2"));
+        assertEquals(UploadStatusDO.PROCESSED, statuses.get("uuid-0").getStatus());
+    }
+
+    private void reopen() throws IOException {
+        pending.clear();
+        statuses.clear();
+        UploadJournal journal = new UploadJournal(dir);
+        assertEquals(0, journal.open(replay()));
+        journal.close();
+    }
+
+    private UploadJournal.ReplayHandler replay() {
+        return new UploadJournal.ReplayHandler() {
+            @Override
+            public void enqueued(UploadJournal.Entry entry) {
+                pending.put(entry.getUpload().getUploadUuid(), entry);
+            }
+
+            @Override
+            public void status(UploadStatusDO status) {
+                pending.remove(status.getUploadUuid());
+                statuses.put(status.getUploadUuid(), status);
+            }
+        };
+    }
+
+    private static UploadJournal.Entry entry(String uuid) {
+        return new UploadJournal.Entry("device", "patient", "MediPiNative", new EncryptedAndSignedUploadDO(uuid, "key", "cipher " + uuid), new Date());
+    }
+}
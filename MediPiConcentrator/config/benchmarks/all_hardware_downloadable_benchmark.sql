@@ -0,0 +1,84 @@
+-- Benchmark of the all hardware downloadable list query for 10,000 devices and 200 broadcasts
+-- Compares the NOT IN subquery used before migration 002 with the acknowledged sequence anti-join.
+-- Runs in a scratch schema which is dropped at the end so it can be run against any MediPi DB:
+--   psql -d medipidb2 -f all_hardware_downloadable_benchmark.sql
+-- Every device has acknowledged every broadcast except the latest 2, and one device in ten has also
+-- missed one older broadcast, giving ~2,000,000 acknowledgements.
+\timing on
+DROP SCHEMA IF EXISTS medipi_benchmark CASCADE;
+CREATE SCHEMA medipi_benchmark;
+SET search_path = medipi_benchmark;
+
+CREATE TABLE hardware (
+    hardware_name character varying(100) PRIMARY KEY,
+    all_hardware_acked_sequence bigint NOT NULL DEFAULT 0
+);
+CREATE TABLE all_hardware_downloadable (
+    downloadable_uuid character varying(100) PRIMARY KEY,
+    version_date timestamp with time zone NOT NULL,
+    broadcast_sequence bigint NOT NULL
+);
+CREATE TABLE all_hardware_downloaded (
+    all_hardware_downloaded_id serial PRIMARY KEY,
+    downloadable_uuid character varying(100) NOT NULL,
+    hardware_name character varying(100) NOT NULL
+);
+
+INSERT INTO hardware (hardware_name) SELECT 'hardware-' || d FROM generate_series(1, 10000) d;
+INSERT INTO all_hardware_downloadable SELECT 'broadcast-' || s, now() - (200 - s) * interval '1 day', s FROM generate_series(1, 200) s;
+INSERT INTO all_hardware_downloaded (downloadable_uuid, hardware_name)
+  SELECT 'broadcast-' || s, 'hardware-' || d
+  FROM generate_series(1, 10000) d, generate_series(1, 198) s
+  WHERE d % 10 <> 0 OR s <> 1 + d % 197;
+
+-- state created by migration 002
+CREATE UNIQUE INDEX ON all_hardware_downloadable (broadcast_sequence);
+CREATE INDEX ON all_hardware_downloaded (hardware_name, downloadable_uuid);
+UPDATE hardware h SET all_hardware_acked_sequence = COALESCE(
+  (SELECT MIN(a.broadcast_sequence) - 1 FROM all_hardware_downloadable a
+    WHERE NOT EXISTS (SELECT 1 FROM all_hardware_downloaded b WHERE b.downloadable_uuid = a.downloadable_uuid AND b.hardware_name = h.hardware_name)),
+  (SELECT MAX(a.broadcast_sequence) FROM all_hardware_downloadable a),
+  0);
+ANALYZE;
+
+-- single device: before
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT c.* FROM all_hardware_downloadable c WHERE c.downloadable_uuid NOT IN
+  (SELECT a.downloadable_uuid FROM all_hardware_downloadable a, all_hardware_downloaded b
+    WHERE a.downloadable_uuid = b.downloadable_uuid AND b.hardware_name = 'hardware-5000');
+
+-- single device: after
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT c.* FROM all_hardware_downloadable c, hardware h
+  WHERE h.hardware_name = 'hardware-5000' AND c.broadcast_sequence > h.all_hardware_acked_sequence
+  AND NOT EXISTS (SELECT 1 FROM all_hardware_downloaded b WHERE b.downloadable_uuid = c.downloadable_uuid AND b.hardware_name = h.hardware_name)
+  ORDER BY c.broadcast_sequence;
+
+-- whole fleet polling once: before
+DO $$
+DECLARE d integer; n bigint := 0; r bigint;
+BEGIN
+  FOR d IN 1..10000 LOOP
+    SELECT COUNT(*) INTO r FROM all_hardware_downloadable c WHERE c.downloadable_uuid NOT IN
+      (SELECT a.downloadable_uuid FROM all_hardware_downloadable a, all_hardware_downloaded b
+        WHERE a.downloadable_uuid = b.downloadable_uuid AND b.hardware_name = 'hardware-' || d);
+    n := n + r;
+  END LOOP;
+  RAISE NOTICE 'before: % downloadables listed', n;
+END $$;
+
+-- whole fleet polling once: after
+DO $$
+DECLARE d integer; n bigint := 0; r bigint;
+BEGIN
+  FOR d IN 1..10000 LOOP
+    SELECT COUNT(*) INTO r FROM all_hardware_downloadable c, hardware h
+      WHERE h.hardware_name = 'hardware-' || d AND c.broadcast_sequence > h.all_hardware_acked_sequence
+      AND NOT EXISTS (SELECT 1 FROM all_hardware_downloaded b WHERE b.downloadable_uuid = c.downloadable_uuid AND b.hardware_name = h.hardware_name);
+    n := n + r;
+  END LOOP;
+  RAISE NOTICE 'after: % downloadables listed', n;
+END $$;
+
+RESET search_path;
+DROP SCHEMA medipi_benchmark CASCADE;
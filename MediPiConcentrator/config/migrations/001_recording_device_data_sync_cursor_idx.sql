@@ -0,0 +1,3 @@
+-- Index supporting the group sync cursor used by /requestdata/groupData
+-- Data is returned in (downloaded_time, data_id) order after the cursor position
+CREATE INDEX IF NOT EXISTS recording_device_data_sync_cursor_idx ON recording_device_data (downloaded_time, data_id);
@@ -0,0 +1,47 @@
+-- Broadcast sequence for all hardware downloadables and the acknowledged broadcast sequence of each device
+-- A device is only checked against its acknowledgements for broadcasts after its acknowledged sequence,
+-- replacing the NOT IN subquery over every acknowledgement it has made.
+-- A sequence must never become visible after a higher one has been acknowledged, so the sequence of a broadcast
+-- is assigned by a trigger holding a transaction advisory lock until the insert commits. A concurrent insert waits
+-- for the lock and takes the next sequence only once the earlier broadcast is visible.
+BEGIN;
+
+CREATE SEQUENCE IF NOT EXISTS all_hardware_downloadable_broadcast_seq;
+ALTER TABLE all_hardware_downloadable ADD COLUMN IF NOT EXISTS broadcast_sequence bigint;
+
+-- number the existing broadcasts in the order they were released
+UPDATE all_hardware_downloadable a SET broadcast_sequence = o.seq
+  FROM (SELECT downloadable_uuid, row_number() OVER (ORDER BY version_date, downloadable_uuid) AS seq FROM all_hardware_downloadable) o
+  WHERE a.downloadable_uuid = o.downloadable_uuid AND a.broadcast_sequence IS NULL;
+SELECT setval('all_hardware_downloadable_broadcast_seq', COALESCE((SELECT MAX(broadcast_sequence) FROM all_hardware_downloadable), 0) + 1, false);
+
+ALTER TABLE all_hardware_downloadable ALTER COLUMN broadcast_sequence SET DEFAULT nextval('all_hardware_downloadable_broadcast_seq'::regclass);
+ALTER TABLE all_hardware_downloadable ALTER COLUMN broadcast_sequence SET NOT NULL;
+ALTER SEQUENCE all_hardware_downloadable_broadcast_seq OWNED BY all_hardware_downloadable.broadcast_sequence;
+CREATE UNIQUE INDEX IF NOT EXISTS all_hardware_downloadable_broadcast_sequence_idx ON all_hardware_downloadable (broadcast_sequence);
+
+-- serialise broadcast inserts so that sequences are committed in order. The column default has already taken a
+-- value by the time the trigger runs so the sequence is taken again once the lock is held
+CREATE OR REPLACE FUNCTION all_hardware_downloadable_broadcast_sequence() RETURNS trigger AS $$
+BEGIN
+  PERFORM pg_advisory_xact_lock('all_hardware_downloadable_broadcast_seq'::regclass::oid::bigint);
+  NEW.broadcast_sequence := nextval('all_hardware_downloadable_broadcast_seq'::regclass);
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+DROP TRIGGER IF EXISTS all_hardware_downloadable_broadcast_sequence_trg ON all_hardware_downloadable;
+CREATE TRIGGER all_hardware_downloadable_broadcast_sequence_trg BEFORE INSERT ON all_hardware_downloadable
+  FOR EACH ROW EXECUTE PROCEDURE all_hardware_downloadable_broadcast_sequence();
+
+-- acknowledgement lookup by device for the anti-join
+CREATE INDEX IF NOT EXISTS all_hardware_downloaded_hardware_downloadable_idx ON all_hardware_downloaded (hardware_name, downloadable_uuid);
+
+-- materialise the acknowledged sequence of each device from its existing acknowledgements
+ALTER TABLE hardware ADD COLUMN IF NOT EXISTS all_hardware_acked_sequence bigint NOT NULL DEFAULT 0;
+UPDATE hardware h SET all_hardware_acked_sequence = COALESCE(
+  (SELECT MIN(a.broadcast_sequence) - 1 FROM all_hardware_downloadable a
+    WHERE NOT EXISTS (SELECT 1 FROM all_hardware_downloaded b WHERE b.downloadable_uuid = a.downloadable_uuid AND b.hardware_name = h.hardware_name)),
+  (SELECT MAX(a.broadcast_sequence) FROM all_hardware_downloadable a),
+  0);
+
+COMMIT;
@@ -0,0 +1,238 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.ws.rs.core.Response;
+import org.medipi.logging.MediPiLogger;
+import org.medipi.messaging.rest.RESTfulMessagingEngine;
+import org.medipi.messaging.vpn.VPNServiceManager;
+
+/**
+ * Class to listen for downloadables pushed by the MediPi Concentrator
+ *
+ * This class holds open an event stream to the concentrator on its own thread.
+ * When the concentrator sends an event to say that the downloadable list for
+ * the user or device has changed the list is requested straight away using
+ * PollDownloads. While the stream is connected the scheduled polls are skipped
+ * and when it is not the scheduled polls continue as normal. A dropped stream
+ * is reconnected after a delay which doubles with each failed attempt up to
+ * medipi.downloadable.push.maxretrydelay seconds. A listener thread runs only
+ * while it is the current thread, so one left blocked in a read by a stop()
+ * followed by a start() exits rather than listening alongside its replacement
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ListenDownloads
+        implements Runnable {
+
+    private static final String MEDIPITRANSMITRESOURCEPATH = "medipi.transmit.resourcepath";
+    private static final String MEDIPIDEVICECERTNAME = "medipi.device.cert.name";
+    private static final String MEDIPIPATIENTCERTNAME = "medipi.patient.cert.name";
+    private static final String MEDIPIDOWNLOADABLEPUSHREADTIMEOUT = "medipi.downloadable.push.readtimeout";
+    private static final String MEDIPIDOWNLOADABLEPUSHMAXRETRYDELAY = "medipi.downloadable.push.maxretrydelay";
+    private static final String EVENTSTREAM = "text/event-stream";
+    private static final String DOWNLOADABLESEVENT = "downloadables";
+    private static final long MINRETRYDELAY = 5000;
+    private final MediPi medipi;
+    private final PollDownloads pollDownloads;
+    private final String deviceCertName;
+    private final RESTfulMessagingEngine rme;
+    private int readTimeout = 60000;
+    private long maxRetryDelay = 300000;
+    private volatile boolean connected = false;
+    private volatile InputStream stream = null;
+    private volatile Thread thread = null;
+
+    /**
+     * Constructor for ListenDownloads class
+     *
+     * @param medipi
+     * @param pollDownloads used to request the downloadable list when an event
+     * is received
+     * @throws Exception
+     */
+    public ListenDownloads(MediPi medipi, PollDownloads pollDownloads) throws Exception {
+        this.medipi = medipi;
+        this.pollDownloads = pollDownloads;
+        String resourcePath = medipi.getProperties().getProperty(MEDIPITRANSMITRESOURCEPATH);
+        deviceCertName = System.getProperty(MEDIPIDEVICECERTNAME);
+        String[] params = {"{deviceId}", "{patientId}", "events"};
+        rme = new RESTfulMessagingEngine(resourcePath + "download", params);
+        String s = medipi.getProperties().getProperty(MEDIPIDOWNLOADABLEPUSHREADTIMEOUT);
+        if (s != null && s.trim().length() != 0) {
+            readTimeout = Integer.parseInt(s.trim());
+        }
+        s = medipi.getProperties().getProperty(MEDIPIDOWNLOADABLEPUSHMAXRETRYDELAY);
+        if (s != null && s.trim().length() != 0) {
+            maxRetryDelay = Long.parseLong(s.trim()) * 1000;
+        }
+    }
+
+    /**
+     * Start listening for pushed downloadables
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        Thread t = new Thread(this, "medipi-download-listener");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stop listening for pushed downloadables and close the stream
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        connected = false;
+        InputStream is = stream;
+        stream = null;
+        if (is != null) {
+            try {
+                is.close();
+            } catch (Exception e) {
+                // the stream is being abandoned
+            }
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * @return true if the event stream to the concentrator is connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return true if the calling thread is the listener which has not been
+     * stopped
+     */
+    private boolean isCurrent() {
+        return thread == Thread.currentThread();
+    }
+
+    @Override
+    public void run() {
+        long delay = MINRETRYDELAY;
+        while (isCurrent()) {
+            if (listen()) {
+                delay = MINRETRYDELAY;
+            } else {
+                delay = Math.min(delay * 2, maxRetryDelay);
+            }
+            try {
+                // spread the reconnections of many units after a concentrator restart
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Connect to the concentrator and read events until the stream closes
+     *
+     * @return true if the stream was connected
+     */
+    private boolean listen() {
+        String patientCertName = System.getProperty(MEDIPIPATIENTCERTNAME);
+        if (!medipi.wifiSync.get() || patientCertName == null || patientCertName.trim().length() == 0) {
+            return false;
+        }
+        UUID uuid = UUID.randomUUID();
+        VPNServiceManager vpnm = null;
+        Response response = null;
+        InputStream is = null;
+        try {
+            vpnm = VPNServiceManager.getInstance();
+            if (vpnm.isEnabled()) {
+                vpnm.VPNConnection(VPNServiceManager.OPEN, uuid);
+            }
+            HashMap<String, Object> hs = new HashMap<>();
+            hs.put("deviceId", deviceCertName);
+            hs.put("patientId", patientCertName);
+            HashMap<String, String> header = new HashMap<>();
+            String etag = pollDownloads.getListETag();
+            if (etag != null) {
+                header.put("If-None-Match", etag);
+            }
+            response = rme.openStream(hs, header, EVENTSTREAM, readTimeout);
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                MediPiLogger.getInstance().log(ListenDownloads.class.getName() + ".error", "Error code: " + response.getStatus() + " detected when trying to listen for downloadables");
+                return false;
+            }
+            is = response.readEntity(InputStream.class);
+            synchronized (this) {
+                if (!isCurrent()) {
+                    return false;
+                }
+                stream = is;
+                connected = true;
+            }
+            System.out.println("Listening for downloadables");
+            BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String event = null;
+            String line;
+            while (isCurrent() && (line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (DOWNLOADABLESEVENT.equals(event)) {
+                        pollDownloads.trigger();
+                    }
+                    event = null;
+                } else if (line.startsWith("event:")) {
+                    event = line.substring(6).trim();
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            if (isCurrent()) {
+                System.out.println("Downloadable listener disconnected: " + e.getLocalizedMessage());
+            }
+            return is != null;
+        } finally {
+            synchronized (this) {
+                // a replacement listener may already have connected
+                if (is != null && stream == is) {
+                    connected = false;
+                    stream = null;
+                }
+            }
+            if (response != null) {
+                response.close();
+            }
+            if (vpnm != null && vpnm.isEnabled()) {
+                try {
+                    vpnm.VPNConnection(VPNServiceManager.CLOSE, uuid);
+                } catch (Exception ex) {
+                    MediPiLogger.getInstance().log(ListenDownloads.class.getName(), ex);
+                }
+            }
+        }
+    }
+}
@@ -159,6 +159,8 @@ public class MediPi extends Application implements UnlockConsumer {
     private static final String MEDIPITIMESYNCSERVERDIRECTORY = "medipi.timesyncserver.directory";
     // turn on the download functionality to update software on the fly
     private static final String MEDIPIDOWNLOADABLEDOWNLOADUPDATES = "medipi.downloadable.downloadupdates";
+    // listen for downloadables pushed by the concentrator rather than relying on polling alone
+    private static final String MEDIPIDOWNLOADABLEPUSH = "medipi.downloadable.push";
     // polling executor service
     public static ScheduledExecutorService POLLSERVICE = Executors.newSingleThreadScheduledExecutor();
     // WIFI monitor executor service
@@ -195,6 +197,7 @@ public class MediPi extends Application implements UnlockConsumer {
     private String cssfile = null;
     private BooleanProperty unlocked = new SimpleBooleanProperty(false);
     private PollDownloads pim;
+    private ListenDownloads listenDownloads;
     private Integer incomingMessageCheckPeriod;
     /**
      * When set on the debug mode will send all std and err output to the
@@ -798,6 +801,11 @@ public class MediPi extends Application implements UnlockConsumer {
                     }
                     incomingMessageCheckPeriod = Integer.parseInt(time);
                     pim = new PollDownloads(this);
+                    String push = getProperties().getProperty(MEDIPIDOWNLOADABLEPUSH);
+                    if (push != null && push.toLowerCase().startsWith("y")) {
+                        listenDownloads = new ListenDownloads(this, pim);
+                        pim.setListenDownloads(listenDownloads);
+                    }
                 } catch (Exception nfe) {
                     makeFatalErrorMessage("Unable to start the download service - make sure that " + MEDIPIDOWNLOADPOLLPERIOD + " property is set correctly", null);
                     return;
@@ -859,6 +867,18 @@ public class MediPi extends Application implements UnlockConsumer {
         Optional<ButtonType> result = alert.showAndWait();
         if (result.get() == ButtonType.YES) {
             POLLSERVICE.shutdownNow();
+            if (listenDownloads != null) {
+                listenDownloads.stop();
+            }
+            try {
+                // the VPN may still be held open after its last use
+                VPNServiceManager vpnm = VPNServiceManager.getInstance();
+                if (vpnm.isEnabled()) {
+                    vpnm.shutdown();
+                }
+            } catch (Exception ex) {
+                MediPiLogger.getInstance().log(MediPi.class.getName() + ".error", "Cannot close the VPN connection: " + ex.getLocalizedMessage());
+            }
             WIFIMONITORSERVICE.shutdownNow();
             if (closeLinuxOS) {
                 executeCommand("sudo shutdown -h now");
@@ -1047,6 +1067,9 @@ public class MediPi extends Application implements UnlockConsumer {
             try {
                 POLLSERVICE = Executors.newSingleThreadScheduledExecutor();
                 POLLSERVICE.scheduleAtFixedRate(pim, (long) 1, (long) incomingMessageCheckPeriod, TimeUnit.SECONDS);
+                if (listenDownloads != null) {
+                    listenDownloads.start();
+                }
             } catch (Exception nfe) {
                 makeFatalErrorMessage("Unable to start the download service - make sure that " + MEDIPIDOWNLOADPOLLPERIOD + " property is set correctly", null);
                 return;
@@ -1058,6 +1081,9 @@ public class MediPi extends Application implements UnlockConsumer {
     public void locked() {
         unlocked.set(false);
         POLLSERVICE.shutdownNow();
+        if (listenDownloads != null) {
+            listenDownloads.stop();
+        }
     }
 
 }
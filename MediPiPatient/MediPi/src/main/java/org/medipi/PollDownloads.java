@@ -19,6 +19,8 @@ import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
@@ -32,7 +34,9 @@ import org.medipi.model.DownloadableDO;
  * or device
  *
  * This class polls the concentrator receives the list of responses and calls
- * the appropriate handler
+ * the appropriate handler. When the concentrator pushes downloadables using
+ * ListenDownloads the scheduled polls are skipped and the list is requested
+ * when an event is received
  *
  * @author rick@robinsonhq.com
  */
@@ -50,6 +54,10 @@ public class PollDownloads
     private RESTfulMessagingEngine rme;
     private int resilienceAttempts = 0;
     private int remainingResilienceAttempts = 0;
+    // ETag of the last downloadable list which was handled completely
+    private volatile String listETag = null;
+    private final AtomicBoolean triggered = new AtomicBoolean(false);
+    private ListenDownloads listenDownloads = null;
 
     /**
      * Constructor for PollIncomingMessage class
@@ -78,8 +86,43 @@ public class PollDownloads
         remainingResilienceAttempts = resilienceAttempts;
     }
 
+    /**
+     * Set the listener for pushed downloadables. While it is connected the
+     * scheduled polls are skipped
+     *
+     * @param listenDownloads
+     */
+    public void setListenDownloads(ListenDownloads listenDownloads) {
+        this.listenDownloads = listenDownloads;
+    }
+
+    /**
+     * @return ETag of the last downloadable list which was handled completely
+     * or null
+     */
+    public String getListETag() {
+        return listETag;
+    }
+
+    /**
+     * Request the downloadable list straight away on the polling thread
+     */
+    public void trigger() {
+        triggered.set(true);
+        try {
+            MediPi.POLLSERVICE.execute(this);
+        } catch (RejectedExecutionException e) {
+            // polling has been stopped as MediPi is locked
+        }
+    }
+
     @Override
     public void run() {
+        boolean pushed = triggered.getAndSet(false);
+        if (!pushed && listenDownloads != null && listenDownloads.isConnected()) {
+            // the concentrator will push any changes - no need to poll
+            return;
+        }
         System.out.println("PollDownloads run at: " + Instant.now());
         UUID uuid = UUID.randomUUID();
         VPNServiceManager vpnm = null;
@@ -101,7 +144,11 @@ public class PollDownloads
                 HashMap<String, Object> hs = new HashMap<>();
                 hs.put("deviceId", deviceCertName);
                 hs.put("patientId", patientCertName);
-                Response listResponse = rme.executeGet(hs);
+                HashMap<String, String> header = new HashMap<>();
+                if (listETag != null) {
+                    header.put("If-None-Match", listETag);
+                }
+                Response listResponse = rme.executeGet(hs, header);
                 //
                 if (listResponse != null) {
                     System.out.println("Poll Download returned status = " + listResponse.getStatus());
@@ -109,15 +156,22 @@ public class PollDownloads
                     if (listResponse.getStatus() == Response.Status.OK.getStatusCode()) {
                         List<DownloadableDO> ld = listResponse.readEntity(new GenericType<List<DownloadableDO>>() {
                         });
+                        boolean handled = true;
                         for (DownloadableDO d : ld) {
                             MediPiLogger.getInstance().log(PollDownloads.class.getName() + ".info", "New Downloadable List detected - Downloadable UUID: " + d.getDownloadableUuid());
                             try {
                                 medipi.getDownloadableHandlerManager().handle(d);
                             } catch (Exception e) {
+                                handled = false;
                                 MediPiMessageBox.getInstance().makeErrorMessage("Error in attempting to download an incoming message/update ", e);
                             }
                         }
+                        // Only skip an unchanged list once every item in it has been handled so that failures are retried
+                        listETag = handled ? listResponse.getHeaderString("ETag") : null;
                         // Remember that list may be empty - therefore no action
+                    } else if (listResponse.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                        // Nothing has changed since the last list was handled
+                        listResponse.close();
                     } else {
                         //ERROR RESPONSE
                         String err = listResponse.readEntity(String.class);
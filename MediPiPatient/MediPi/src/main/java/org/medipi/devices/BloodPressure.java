@@ -79,7 +79,7 @@ public abstract class BloodPressure extends Device {
     protected static String initialButtonText;
     protected static ImageView initialGraphic = null;
 
-    private ArrayList<ArrayList<String>> deviceData = new ArrayList<>();
+    private MeasurementBuffer deviceData = null;
     private Instant schedStartTime = null;
     private Instant schedExpireTime = null;
     private final StringProperty resultsSummary = new SimpleStringProperty();
@@ -328,7 +328,7 @@ public abstract class BloodPressure extends Device {
     // reset the device
     @Override
     public void resetDevice() {
-        deviceData = new ArrayList<>();
+        deviceData = null;
         hasData.set(false);
         metadata.clear();
         systol.set(0);
@@ -384,12 +384,8 @@ public abstract class BloodPressure extends Device {
         sb.replace(sb.length() - medipi.getDataSeparator().length(), sb.length(), "\n");
 
         // Add Downloaded data
-        for (ArrayList<String> dataLine : deviceData) {
-            for (String data : dataLine) {
-                sb.append(data).append(separator);
-            }
-            //replace the last separator with a new line
-            sb.replace(sb.length() - separator.length(), sb.length(), "\n");
+        if (deviceData != null) {
+            deviceData.appendTo(sb, separator);
         }
 
         payload.setProfileId(profileId);
@@ -430,7 +426,8 @@ public abstract class BloodPressure extends Device {
                 displayData(i, systol, diastol, pulse);
                 hasData.set(true);
             }
-            deviceData = data;
+            deviceData = new MeasurementBuffer(format);
+            deviceData.addAll(data);
             Scheduler scheduler = null;
             if ((scheduler = medipi.getScheduler()) != null) {
                 schedStartTime = scheduler.getCurrentScheduleStartTime();
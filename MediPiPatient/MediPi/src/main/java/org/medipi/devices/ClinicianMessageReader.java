@@ -0,0 +1,158 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.medipi.MediPiProperties;
+import org.medipi.logging.MediPiLogger;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.medipi.security.CertificateDefinitions;
+import org.medipi.security.UploadEncryptionAdapter;
+
+/**
+ * Class to decrypt and verify the incoming clinician's messages read by
+ * Messenger and Responses.
+ *
+ * One clinician encryption adapter is created the first time a message is read
+ * and reused for every message after that, so the patient keystore and the
+ * clinician truststore are only read from disk once. The decrypted messages
+ * are kept in a least recently used cache of
+ * medipi.clinicianmessages.cachesize entries (default 32) keyed by the message
+ * file. A cached message is only used while the file has the same modification
+ * time and length as when it was read, so a message file which was still being
+ * written when it was first read is read again
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ClinicianMessageReader {
+
+    private static final String MEDIPICLINICIANMESSAGESCACHESIZE = "medipi.clinicianmessages.cachesize";
+
+    private static ClinicianMessageReader instance = null;
+
+    private final Properties properties;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final LinkedHashMap<String, CachedMessage> cache;
+    private UploadEncryptionAdapter clinicianEncryptionAdapter = null;
+
+    /**
+     * Constructor
+     *
+     * @param properties MediPi properties holding the certificate locations
+     * @param cacheSize maximum number of decrypted messages kept
+     */
+    public ClinicianMessageReader(Properties properties, int cacheSize) {
+        this.properties = properties;
+        // access ordered so that the least recently read message is removed first
+        this.cache = new LinkedHashMap<String, CachedMessage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedMessage> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Get the shared reader, creating it from the MediPi properties the first
+     * time it is used
+     *
+     * @return the shared reader
+     */
+    public static synchronized ClinicianMessageReader getInstance() {
+        if (instance == null) {
+            Properties properties = MediPiProperties.getInstance().getProperties();
+            int cacheSize = 32;
+            String s = properties.getProperty(MEDIPICLINICIANMESSAGESCACHESIZE);
+            if (s != null && s.trim().length() != 0) {
+                try {
+                    cacheSize = Integer.parseInt(s.trim());
+                } catch (NumberFormatException e) {
+                    MediPiLogger.getInstance().log(ClinicianMessageReader.class.getName() + ".error", MEDIPICLINICIANMESSAGESCACHESIZE + " is not a number - using " + cacheSize);
+                }
+            }
+            instance = new ClinicianMessageReader(properties, cacheSize);
+        }
+        return instance;
+    }
+
+    /**
+     * Decrypt and verify a clinician's message file
+     *
+     * @param file encrypted and signed message file
+     * @return the decrypted message object e.g. SimpleMessageDO or AlertListDO
+     * @throws Exception if the file cannot be read, the clinician encryption
+     * adapter cannot be created or the message cannot be decrypted and verified
+     */
+    public synchronized Object read(File file) throws Exception {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        CachedMessage cached = cache.get(key);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            return cached.message;
+        }
+        EncryptedAndSignedUploadDO encryptedAndSignedUploadDO = mapper.readValue(file, EncryptedAndSignedUploadDO.class);
+        Object message = getAdapter().decryptAndVerify(encryptedAndSignedUploadDO);
+        cache.put(key, new CachedMessage(message, lastModified, length));
+        return message;
+    }
+
+    /**
+     * Remove a message file from the cache
+     *
+     * @param file message file which has been deleted
+     */
+    public synchronized void remove(File file) {
+        cache.remove(file.getAbsolutePath());
+    }
+
+    private UploadEncryptionAdapter getAdapter() throws Exception {
+        if (clinicianEncryptionAdapter == null) {
+            CertificateDefinitions clinicianCD = new CertificateDefinitions(properties);
+            clinicianCD.setSIGNTRUSTSTORELOCATION("medipi.json.sign.truststore.clinician.location", CertificateDefinitions.INTERNAL);
+            clinicianCD.setSIGNTRUSTSTOREPASSWORD("medipi.json.sign.truststore.clinician.password", CertificateDefinitions.INTERNAL);
+            clinicianCD.setENCRYPTKEYSTORELOCATION("medipi.patient.cert.location", CertificateDefinitions.INTERNAL);
+            clinicianCD.setENCRYPTKEYSTOREALIAS("medipi.patient.cert.alias", CertificateDefinitions.INTERNAL);
+            clinicianCD.setENCRYPTKEYSTOREPASSWORD("medipi.patient.cert.password", CertificateDefinitions.SYSTEM);
+            UploadEncryptionAdapter adapter = new UploadEncryptionAdapter();
+            String clinicianAdapterError = adapter.init(clinicianCD, UploadEncryptionAdapter.SERVERMODE);
+            if (clinicianAdapterError != null) {
+                // not kept so that creating the adapter is tried again with the next message
+                MediPiLogger.getInstance().log(ClinicianMessageReader.class.getName() + ".error", "Failed to instantiate Clinician Encryption Adapter: " + clinicianAdapterError);
+                throw new Exception("Failed to instantiate Clinician Encryption Adapter: " + clinicianAdapterError);
+            }
+            clinicianEncryptionAdapter = adapter;
+        }
+        return clinicianEncryptionAdapter;
+    }
+
+    private static class CachedMessage {
+
+        private final Object message;
+        private final long lastModified;
+        private final long length;
+
+        private CachedMessage(Object message, long lastModified, long length) {
+            this.message = message;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
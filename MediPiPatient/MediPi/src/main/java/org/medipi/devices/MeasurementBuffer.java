@@ -0,0 +1,423 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Columnar store for the measurements held by a device element until they are
+ * transmitted.
+ *
+ * Each column is stored as primitive values according to its format from the
+ * device driver: DATE as epoch milliseconds in a long[], INTEGER in an int[],
+ * DOUBLE in a float[] and BOOLEAN in a byte[]. Any other format is stored as
+ * Strings, with repeated values shared. The arrays are allocated in chunks of
+ * CHUNKSIZE rows so the buffer grows without copying the measurements. The
+ * measurements are written straight to the MediPi native payload format by
+ * appendTo.
+ *
+ * A value whose primitive form would not be written out exactly as it was
+ * given - for example "072" in an INTEGER column or a DATE with nanoseconds -
+ * is also kept as given, so the payload is always the same as the one built
+ * from the original Strings
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MeasurementBuffer {
+
+    /**
+     * Number of rows in each chunk of a column
+     */
+    public static final int CHUNKSIZE = 1024;
+
+    private final Column[] columns;
+    private int size = 0;
+
+    /**
+     * Constructor
+     *
+     * @param format format of each column as given by the device driver e.g.
+     * DATE, INTEGER, DOUBLE, BOOLEAN or STRING
+     */
+    public MeasurementBuffer(List<String> format) {
+        columns = new Column[format.size()];
+        for (int i = 0; i < columns.length; i++) {
+            String f = format.get(i) == null ? "" : format.get(i).trim().toUpperCase();
+            switch (f) {
+                case "DATE":
+                    columns[i] = new DateColumn();
+                    break;
+                case "INTEGER":
+                    columns[i] = new IntColumn();
+                    break;
+                case "DOUBLE":
+                    columns[i] = new FloatColumn();
+                    break;
+                case "BOOLEAN":
+                    columns[i] = new BooleanColumn();
+                    break;
+                default:
+                    columns[i] = new StringColumn();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Add a row of measurements
+     *
+     * @param row one value for each column
+     */
+    public void add(List<String> row) {
+        if (row.size() != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " values but the measurement has " + row.size());
+        }
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(size, row.get(i));
+        }
+        size++;
+    }
+
+    /**
+     * Add rows of measurements
+     *
+     * @param rows rows with one value for each column
+     */
+    public void addAll(List<? extends List<String>> rows) {
+        for (List<String> row : rows) {
+            add(row);
+        }
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if there are no rows
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return number of columns
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Get a value as it was given
+     *
+     * @param row row index
+     * @param column column index
+     * @return the value
+     */
+    public String get(int row, int column) {
+        checkRow(row);
+        StringBuilder sb = new StringBuilder();
+        columns[column].append(sb, row);
+        return sb.toString();
+    }
+
+    /**
+     * Write the rows in the MediPi native payload format: the values of each
+     * row separated by the separator and each row ended by a new line
+     *
+     * @param sb destination of the rows
+     * @param separator data separator
+     */
+    public void appendTo(StringBuilder sb, String separator) {
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c < columns.length; c++) {
+                if (c > 0) {
+                    sb.append(separator);
+                }
+                columns[c].append(sb, r);
+            }
+            sb.append('\n');
+        }
+    }
+
+    /**
+     * @return approximate number of bytes held by the column arrays
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Column c : columns) {
+            bytes += c.allocatedBytes();
+        }
+        return bytes;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    /**
+     * A column of values held in chunks
+     */
+    private abstract static class Column {
+
+        // values which are not written out exactly as given by their primitive form
+        private HashMap<Integer, String> verbatim = null;
+        protected int chunks = 0;
+
+        abstract void add(int row, String value);
+
+        abstract void appendValue(StringBuilder sb, int chunk, int offset);
+
+        abstract long allocatedBytes();
+
+        void append(StringBuilder sb, int row) {
+            if (verbatim != null) {
+                String v = verbatim.get(row);
+                if (v != null || verbatim.containsKey(row)) {
+                    sb.append(v);
+                    return;
+                }
+            }
+            appendValue(sb, row / CHUNKSIZE, row % CHUNKSIZE);
+        }
+
+        void keepVerbatim(int row, String value) {
+            if (verbatim == null) {
+                verbatim = new HashMap<>();
+            }
+            verbatim.put(row, value);
+        }
+
+        long verbatimBytes() {
+            return verbatim == null ? 0 : verbatim.size() * 64L;
+        }
+
+        static int grow(int length) {
+            return Math.max(4, length * 2);
+        }
+    }
+
+    private static class DateColumn extends Column {
+
+        private long[][] values = new long[0][];
+
+        @Override
+        void add(int row, String value) {
+            int chunk = row / CHUNKSIZE;
+            if (chunk == chunks) {
+                if (chunk == values.length) {
+                    values = Arrays.copyOf(values, grow(values.length));
+                }
+                values[chunks++] = new long[CHUNKSIZE];
+            }
+            try {
+                Instant i = Instant.parse(value);
+                values[chunk][row % CHUNKSIZE] = i.toEpochMilli();
+                if (i.getNano() % 1000000 != 0 || !i.toString().equals(value)) {
+                    keepVerbatim(row, value);
+                }
+            } catch (RuntimeException e) {
+                keepVerbatim(row, value);
+            }
+        }
+
+        @Override
+        void appendValue(StringBuilder sb, int chunk, int offset) {
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(values[chunk][offset]), sb);
+        }
+
+        @Override
+        long allocatedBytes() {
+            return chunks * CHUNKSIZE * 8L + verbatimBytes();
+        }
+    }
+
+    private static class IntColumn extends Column {
+
+        private int[][] values = new int[0][];
+
+        @Override
+        void add(int row, String value) {
+            int chunk = row / CHUNKSIZE;
+            if (chunk == chunks) {
+                if (chunk == values.length) {
+                    values = Arrays.copyOf(values, grow(values.length));
+                }
+                values[chunks++] = new int[CHUNKSIZE];
+            }
+            try {
+                int i = Integer.parseInt(value);
+                values[chunk][row % CHUNKSIZE] = i;
+                if (value.length() != stringSize(i) || value.charAt(0) == '+') {
+                    keepVerbatim(row, value);
+                }
+            } catch (RuntimeException e) {
+                keepVerbatim(row, value);
+            }
+        }
+
+        @Override
+        void appendValue(StringBuilder sb, int chunk, int offset) {
+            sb.append(values[chunk][offset]);
+        }
+
+        @Override
+        long allocatedBytes() {
+            return chunks * CHUNKSIZE * 4L + verbatimBytes();
+        }
+
+        /**
+         * Length of the canonical form of an int - a parsed value of a
+         * different length had leading zeros or a sign
+         */
+        private static int stringSize(int i) {
+            if (i == Integer.MIN_VALUE) {
+                return 11;
+            }
+            int n = i < 0 ? 2 : 1;
+            for (int x = Math.abs(i); x >= 10; x /= 10) {
+                n++;
+            }
+            return n;
+        }
+    }
+
+    private static class FloatColumn extends Column {
+
+        private float[][] values = new float[0][];
+
+        @Override
+        void add(int row, String value) {
+            int chunk = row / CHUNKSIZE;
+            if (chunk == chunks) {
+                if (chunk == values.length) {
+                    values = Arrays.copyOf(values, grow(values.length));
+                }
+                values[chunks++] = new float[CHUNKSIZE];
+            }
+            try {
+                float f = Float.parseFloat(value);
+                values[chunk][row % CHUNKSIZE] = f;
+                if (!Float.toString(f).equals(value)) {
+                    keepVerbatim(row, value);
+                }
+            } catch (RuntimeException e) {
+                keepVerbatim(row, value);
+            }
+        }
+
+        @Override
+        void appendValue(StringBuilder sb, int chunk, int offset) {
+            sb.append(values[chunk][offset]);
+        }
+
+        @Override
+        long allocatedBytes() {
+            return chunks * CHUNKSIZE * 4L + verbatimBytes();
+        }
+    }
+
+    private static class BooleanColumn extends Column {
+
+        private byte[][] values = new byte[0][];
+
+        @Override
+        void add(int row, String value) {
+            int chunk = row / CHUNKSIZE;
+            if (chunk == chunks) {
+                if (chunk == values.length) {
+                    values = Arrays.copyOf(values, grow(values.length));
+                }
+                values[chunks++] = new byte[CHUNKSIZE];
+            }
+            if ("true".equals(value)) {
+                values[chunk][row % CHUNKSIZE] = 1;
+            } else if (!"false".equals(value)) {
+                keepVerbatim(row, value);
+            }
+        }
+
+        @Override
+        void appendValue(StringBuilder sb, int chunk, int offset) {
+            sb.append(values[chunk][offset] != 0);
+        }
+
+        @Override
+        long allocatedBytes() {
+            return chunks * (long) CHUNKSIZE + verbatimBytes();
+        }
+    }
+
+    private static class StringColumn extends Column {
+
+        private static final int MAXSHARED = 256;
+        private String[][] values = new String[0][];
+        // repeated values such as a device serial number are held once
+        private final HashMap<String, String> shared = new HashMap<>();
+
+        @Override
+        void add(int row, String value) {
+            int chunk = row / CHUNKSIZE;
+            if (chunk == chunks) {
+                if (chunk == values.length) {
+                    values = Arrays.copyOf(values, grow(values.length));
+                }
+                values[chunks++] = new String[CHUNKSIZE];
+            }
+            if (value != null) {
+                String s = shared.get(value);
+                if (s != null) {
+                    value = s;
+                } else if (shared.size() < MAXSHARED) {
+                    shared.put(value, value);
+                }
+            }
+            values[chunk][row % CHUNKSIZE] = value;
+        }
+
+        @Override
+        void appendValue(StringBuilder sb, int chunk, int offset) {
+            sb.append(values[chunk][offset]);
+        }
+
+        @Override
+        long allocatedBytes() {
+            long bytes = chunks * CHUNKSIZE * 8L;
+            for (String[] chunk : values) {
+                if (chunk != null) {
+                    for (String s : chunk) {
+                        if (s != null && shared.get(s) != s) {
+                            bytes += 40 + s.length() * 2L;
+                        }
+                    }
+                }
+            }
+            for (String s : shared.keySet()) {
+                bytes += 40 + s.length() * 2L;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Class to hold the incoming messages in a directory ordered by the time in
+ * their file names, most recent first.
+ *
+ * The directory is only listed when the index is loaded. After that the index
+ * is kept up to date with the files created and deleted as reported by the
+ * MessageWatcher. File names which cannot be parsed as a message are
+ * remembered so that they are only reported once
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MessageIndex {
+
+    // most recent first - the file name separates two messages with the same time
+    private static final Comparator<Message> MOSTRECENTFIRST = Comparator.comparing(Message::getTime).reversed().thenComparing(Message::getFileName);
+
+    private final File dir;
+    private final TreeSet<Message> messages = new TreeSet<>(MOSTRECENTFIRST);
+    private final HashMap<String, Message> byFileName = new HashMap<>();
+    private final HashSet<String> unreadable = new HashSet<>();
+
+    /**
+     * Constructor
+     *
+     * @param dir incoming messages directory
+     */
+    public MessageIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * List the directory and replace the contents of the index
+     */
+    public synchronized void load() {
+        messages.clear();
+        byFileName.clear();
+        HashSet<String> stillUnreadable = new HashSet<>();
+        File list[] = dir.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                String fileName = f.getName();
+                if (!fileName.endsWith(".txt")) {
+                    continue;
+                }
+                if (unreadable.contains(fileName) || !add(fileName)) {
+                    stillUnreadable.add(fileName);
+                }
+            }
+        }
+        unreadable.clear();
+        unreadable.addAll(stillUnreadable);
+    }
+
+    /**
+     * Add a message file which has been created
+     *
+     * @param fileName message file name
+     * @return true if the file was added to the index
+     */
+    public synchronized boolean created(String fileName) {
+        if (byFileName.containsKey(fileName) || unreadable.contains(fileName)) {
+            return false;
+        }
+        if (!add(fileName)) {
+            unreadable.add(fileName);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a message file which has been deleted
+     *
+     * @param fileName message file name
+     * @return true if the file was in the index
+     */
+    public synchronized boolean deleted(String fileName) {
+        unreadable.remove(fileName);
+        Message m = byFileName.remove(fileName);
+        if (m == null) {
+            return false;
+        }
+        messages.remove(m);
+        return true;
+    }
+
+    /**
+     * @return the messages, most recent first
+     */
+    public synchronized List<Message> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * @return number of messages
+     */
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    private boolean add(String fileName) {
+        Message m;
+        try {
+            m = new Message(fileName);
+        } catch (Exception e) {
+            return false;
+        }
+        messages.add(m);
+        byFileName.put(fileName, m);
+        return true;
+    }
+}
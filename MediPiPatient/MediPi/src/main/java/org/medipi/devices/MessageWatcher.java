@@ -26,8 +26,9 @@ import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
@@ -40,7 +41,12 @@ import org.medipi.MediPi;
  *
  * When a new file is detected, the message List is updated in Messenger and an
  * alert badge is superimposed onto the Dashboard Tile. The tile is also
- * coloured Red and a message is inserted into the lower alert banner
+ * coloured Red and a message is inserted into the lower alert banner.
+ *
+ * The messages in the directory are held in a MessageIndex which is only
+ * changed by the files created and deleted in each event rather than listing
+ * the whole directory again. The directory is only listed again if events have
+ * been lost
  */
 public class MessageWatcher extends Thread {
 
@@ -50,6 +56,7 @@ public class MessageWatcher extends Thread {
     private final MessageReceiver messageReceiver;
     private final MediPi medipi;
     private final Path dir;
+    private final MessageIndex index;
     private AlertBanner alertBanner = AlertBanner.getInstance();
 
     @SuppressWarnings("unchecked")
@@ -66,7 +73,9 @@ public class MessageWatcher extends Thread {
         this.medipi = medipi;
         this.watcher = FileSystems.getDefault().newWatchService();
         this.keys = new HashMap<>();
+        this.index = new MessageIndex(d.toFile());
         register();
+        index.load();
 
         // enable trace after initial registration
         this.trace = true;
@@ -74,6 +83,13 @@ public class MessageWatcher extends Thread {
         start();
     }
 
+    /**
+     * @return the messages in the directory, most recent first
+     */
+    public List<Message> getMessages() {
+        return index.getMessages();
+    }
+
     /**
      * Register the given directory with the WatchService
      */
@@ -107,10 +123,15 @@ public class MessageWatcher extends Thread {
                 continue;
             }
 
+            boolean changed = false;
+            ArrayList<File> created = new ArrayList<>();
             for (WatchEvent<?> event : key.pollEvents()) {
                 WatchEvent.Kind kind = event.kind();
 
                 if (kind == OVERFLOW) {
+                    // events have been lost so list the directory again
+                    index.load();
+                    changed = true;
                     continue;
                 }
 
@@ -118,28 +139,28 @@ public class MessageWatcher extends Thread {
                 WatchEvent<Path> ev = cast(event);
                 Path name = ev.context();
                 Path child = path.resolve(name);
-                if (child.getFileName().toString().endsWith(".txt")) {
-                    ObservableList<Message> items = FXCollections.observableArrayList();
-                    File list[] = new File(path.toString()).listFiles();
-                    Arrays.sort(list, (File f1, File f2) -> Long.valueOf(f2.lastModified()).compareTo(f1.lastModified()));
-                    for (File f : list) {
-                        Message m;
-                        try {
-                            m = new Message(f.getName());
-                        } catch (Exception e) {
-                            continue;
+                String fileName = child.getFileName().toString();
+                if (fileName.endsWith(".txt")) {
+                    changed = true;
+                    if (kind == ENTRY_CREATE) {
+                        if (index.created(fileName)) {
+                            created.add(child.toFile());
                         }
-                        items.add(m);
+                    } else if (kind == ENTRY_DELETE) {
+                        index.deleted(fileName);
+                        ClinicianMessageReader.getInstance().remove(child.toFile());
                     }
-                    Platform.runLater(() -> {
-                        messageReceiver.setMessageList(items);
-                        if (event.kind().name().equals("ENTRY_CREATE")) {
-                            messageReceiver.newMessageReceived(new File(child.toString()));
-                        }
-                    });
-
                 }
             }
+            if (changed) {
+                ObservableList<Message> items = FXCollections.observableArrayList(index.getMessages());
+                Platform.runLater(() -> {
+                    messageReceiver.setMessageList(items);
+                    for (File f : created) {
+                        messageReceiver.newMessageReceived(f);
+                    }
+                });
+            }
 
             // reset key and remove from set if directory no longer accessible
             boolean valid = key.reset();
@@ -19,7 +19,6 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.value.ObservableValue;
@@ -41,7 +40,6 @@ import org.medipi.DashboardTile;
 import org.medipi.MediPi;
 import org.medipi.MediPiMessageBox;
 import org.medipi.downloadable.handlers.DownloadableHandlerManager;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.time.Instant;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.scene.control.TableCell;
@@ -52,9 +50,6 @@ import org.medipi.MediPiProperties;
 import org.medipi.authentication.UnlockConsumer;
 import org.medipi.downloadable.handlers.MessageHandler;
 import org.medipi.logging.MediPiLogger;
-import org.medipi.security.CertificateDefinitions;
-import org.medipi.model.EncryptedAndSignedUploadDO;
-import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.utilities.Utilities;
 import org.medipi.model.SimpleMessageDO;
 
@@ -178,23 +173,21 @@ public class Messenger extends Element implements UnlockConsumer, MessageReceive
             };
         });
 
-        File list[] = new File(dir.toString()).listFiles();
+        // Call the MessageWatcher class which will update the message list if 
+        // a new txt file appears in the configured incoming message directory
+        MessageWatcher mw;
+        try {
+            mw = new MessageWatcher(dir, this, medipi);
+        } catch (IOException ioe) {
+            return "Message Watcher failed to initialise" + ioe.getMessage();
+        }
 
-        // Comparitor to sort the messages by date in the message list - This is possible because 
-        // the messages have a filename of format yyyyMMddHHmmss-messagename.txt 
-        Arrays.sort(list, (File f1, File f2) -> Long.valueOf(f2.lastModified()).compareTo(f1.lastModified()));
-        for (File f : list) {
-            if (!f.getName().contains("SimpleMessage")) {
-                continue;
-            }
-            Message m;
-            try {
-                m = new Message(f.getName());
-            } catch (Exception e) {
-                continue;
+        // The watcher's index holds the messages sorted by date - This is possible because 
+        // the messages have a filename of format <epoch millis>-messagename.txt 
+        for (Message m : mw.getMessages()) {
+            if (m.getMessageTitle().contains("SimpleMessage")) {
+                items.add(m);
             }
-
-            items.add(m);
         }
         messageList.setMinHeight(100);
         messageList.setMaxHeight(100);
@@ -223,13 +216,6 @@ public class Messenger extends Element implements UnlockConsumer, MessageReceive
         listSP.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
         listSP.setVbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
         messageList.getSelectionModel().select(0);
-        // Call the MessageWatcher class which will update the message list if 
-        // a new txt file appears in the configured incoming message directory
-        try {
-            MessageWatcher mw = new MessageWatcher(dir, this, medipi);
-        } catch (IOException ioe) {
-            return "Message Watcher failed to initialise" + ioe.getMessage();
-        }
         Label textLabel = new Label("Message Text");
         textLabel.setId("messenger-text");
 
@@ -332,30 +318,10 @@ public class Messenger extends Element implements UnlockConsumer, MessageReceive
     }
 
     private String readJSONNotificationMessage(File file) throws Exception {
-        ObjectMapper mapper = new ObjectMapper();
-        EncryptedAndSignedUploadDO encryptedAndSignedUploadDO = mapper.readValue(file, EncryptedAndSignedUploadDO.class
-        );
-        // instantiate the clinician encryption adapter
-        UploadEncryptionAdapter clinicianEncryptionAdapter = new UploadEncryptionAdapter();
-
-        CertificateDefinitions clinicianCD = new CertificateDefinitions(medipi.getProperties());
-        clinicianCD.setSIGNTRUSTSTORELOCATION("medipi.json.sign.truststore.clinician.location", CertificateDefinitions.INTERNAL);
-        clinicianCD.setSIGNTRUSTSTOREPASSWORD("medipi.json.sign.truststore.clinician.password", CertificateDefinitions.INTERNAL);
-        clinicianCD.setENCRYPTKEYSTORELOCATION("medipi.patient.cert.location", CertificateDefinitions.INTERNAL);
-        clinicianCD.setENCRYPTKEYSTOREALIAS("medipi.patient.cert.alias", CertificateDefinitions.INTERNAL);
-        clinicianCD.setENCRYPTKEYSTOREPASSWORD("medipi.patient.cert.password", CertificateDefinitions.SYSTEM);
-
-        String clinicianAdapterError;
         SimpleMessageDO simpleMessageDO = null;
         try {
-            clinicianAdapterError = clinicianEncryptionAdapter.init(clinicianCD, UploadEncryptionAdapter.SERVERMODE);
-
-            if (clinicianAdapterError != null) {
-                MediPiLogger.getInstance().log(Messenger.class
-                        .getName() + ".error", "Failed to instantiate Clinician Encryption Adapter: " + clinicianAdapterError);
-                throw new Exception("Failed to instantiate Clinician Encryption Adapter: " + clinicianAdapterError);
-            }
-            simpleMessageDO = (SimpleMessageDO) clinicianEncryptionAdapter.decryptAndVerify(encryptedAndSignedUploadDO);
+            // the clinician encryption adapter and recently read messages are shared with Responses
+            simpleMessageDO = (SimpleMessageDO) ClinicianMessageReader.getInstance().read(file);
 
         } catch (Exception e) {
             MediPiLogger.getInstance().log(Messenger.class
@@ -59,7 +59,7 @@ public abstract class Oximeter extends Device {
     private final String GENERIC_DEVICE_NAME = "Oximeter";
     private static final String PROFILEID = "urn:nhs-en:profile:Oximeter";
     protected Button actionButton;
-    private ArrayList<ArrayList<String>> deviceData = new ArrayList<>();
+    private MeasurementBuffer deviceData = null;
     private Instant schedStartTime = null;
     private Instant schedExpireTime = null;
     private VBox oxiWindow;
@@ -258,7 +258,7 @@ public abstract class Oximeter extends Device {
     // resets the device
     @Override
     public void resetDevice() {
-        deviceData = new ArrayList<>();
+        deviceData = null;
         hasData.set(false);
         metadata.clear();
         pulse.set(0);
@@ -314,12 +314,8 @@ public abstract class Oximeter extends Device {
         sb.replace(sb.length() - separator.length(), sb.length(), "\n");
 
         // Add Downloaded data
-        for (ArrayList<String> dataLine : deviceData) {
-            for (String data : dataLine) {
-                sb.append(data).append(separator);
-            }
-            //replace the last separator with a new line
-            sb.replace(sb.length() - separator.length(), sb.length(), "\n");
+        if (deviceData != null) {
+            deviceData.appendTo(sb, separator);
         }
 
         payload.setProfileId(PROFILEID);
@@ -343,7 +339,8 @@ public abstract class Oximeter extends Device {
                 displayData(i, pulse, spO2);
                 hasData.set(true);
             }
-            deviceData = data;
+            deviceData = new MeasurementBuffer(format);
+            deviceData.addAll(data);
             Scheduler scheduler = null;
             if ((scheduler = medipi.getScheduler()) != null) {
                 schedStartTime = scheduler.getCurrentScheduleStartTime();
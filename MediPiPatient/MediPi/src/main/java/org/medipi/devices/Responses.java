@@ -28,14 +28,11 @@ import javafx.scene.layout.VBox;
 import org.medipi.DashboardTile;
 import org.medipi.MediPi;
 import org.medipi.MediPiMessageBox;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.ObjectProperty;
@@ -59,9 +56,6 @@ import org.medipi.downloadable.handlers.MessageHandler;
 import org.medipi.logging.MediPiLogger;
 import org.medipi.model.AlertListDO;
 import org.medipi.model.AlertDO;
-import org.medipi.security.CertificateDefinitions;
-import org.medipi.model.EncryptedAndSignedUploadDO;
-import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.utilities.Utilities;
 
 /**
@@ -189,36 +183,20 @@ public class Responses extends Element implements UnlockConsumer, MessageReceive
 
         // Call the MessageWatcher class which will update the message list if 
         // a new txt file appears in the configured incoming message directory
+        MessageWatcher mw;
         try {
-            MessageWatcher mw = new MessageWatcher(responsesDirPath, this, medipi);
+            mw = new MessageWatcher(responsesDirPath, this, medipi);
         } catch (IOException ioe) {
             return "Message Watcher failed to initialise" + ioe.getMessage();
         }
 
-        File list[] = new File(responsesDirPath.toString()).listFiles();
-        for (File f : list) {
-            if (!f.getName().contains("Alert")) {
-                continue;
+        // The watcher's index holds the messages in REVERSE date order - most 
+        // recent first to reduce the amount of work the updateTable method
+        for (Message m : mw.getMessages()) {
+            if (m.getMessageTitle().contains("Alert")) {
+                items.add(m);
             }
-            Message m;
-            try {
-                m = new Message(f.getName());
-            } catch (Exception e) {
-                continue;
-            }
-
-            items.add(m);
         }
-
-        //Comparator for dates stamps on the Messages to order them in 
-        // REVERSE - most recent first to reduce the amount of work the updateTable method
-        Comparator<? super Message> comparatorMessageDates = new Comparator<Message>() {
-            @Override
-            public int compare(Message o1, Message o2) {
-                return o2.getTime().compareTo(o1.getTime());
-            }
-        };
-        Collections.sort(items, comparatorMessageDates);
         // Create the table
         responsesList = new TableView<>();
         responsesList.setId("messenger-messagelist");
@@ -525,28 +503,9 @@ public class Responses extends Element implements UnlockConsumer, MessageReceive
     }
     
     private AlertListDO readJSONNotificationMessage(File file) throws Exception {
-        ObjectMapper mapper = new ObjectMapper();
-        EncryptedAndSignedUploadDO encryptedAndSignedUploadDO = mapper.readValue(file, EncryptedAndSignedUploadDO.class);
-        // instantiate the clinician encryption adapter
-        UploadEncryptionAdapter clinicianEncryptionAdapter = new UploadEncryptionAdapter();
-
-        CertificateDefinitions clinicianCD = new CertificateDefinitions(medipi.getProperties());
-        clinicianCD.setSIGNTRUSTSTORELOCATION("medipi.json.sign.truststore.clinician.location", CertificateDefinitions.INTERNAL);
-        clinicianCD.setSIGNTRUSTSTOREPASSWORD("medipi.json.sign.truststore.clinician.password", CertificateDefinitions.INTERNAL);
-        clinicianCD.setENCRYPTKEYSTORELOCATION("medipi.patient.cert.location", CertificateDefinitions.INTERNAL);
-        clinicianCD.setENCRYPTKEYSTOREALIAS("medipi.patient.cert.alias", CertificateDefinitions.INTERNAL);
-        clinicianCD.setENCRYPTKEYSTOREPASSWORD("medipi.patient.cert.password", CertificateDefinitions.SYSTEM);
-
-        String clinicianAdapterError;
-        AlertListDO alertListDO = null;
         try {
-            clinicianAdapterError = clinicianEncryptionAdapter.init(clinicianCD, UploadEncryptionAdapter.SERVERMODE);
-            if (clinicianAdapterError != null) {
-                MediPiLogger.getInstance().log(Responses.class.getName() + ".error", "Failed to instantiate Clinician Encryption Adapter: " + clinicianAdapterError);
-                throw new Exception("Failed to instantiate Clinician Encryption Adapter: " + clinicianAdapterError);
-            }
-            alertListDO = (AlertListDO) clinicianEncryptionAdapter.decryptAndVerify(encryptedAndSignedUploadDO);
-            return alertListDO;
+            // the clinician encryption adapter and recently read messages are shared with Messenger
+            return (AlertListDO) ClinicianMessageReader.getInstance().read(file);
         } catch (Exception e) {
             MediPiLogger.getInstance().log(Responses.class.getName() + ".error", "Notification Decryption exception: " + e.getLocalizedMessage());
             throw new Exception("Notification Decryption exception: " + e.getLocalizedMessage());
@@ -76,7 +76,7 @@ public abstract class Scale extends Device {
     protected Button downloadButton;
     protected static String initialButtonText;
     protected static ImageView initialGraphic = null;
-    private ArrayList<ArrayList<String>> deviceData = new ArrayList<>();
+    private MeasurementBuffer deviceData = null;
     private Instant schedStartTime = null;
     private Instant schedExpireTime = null;
 
@@ -272,7 +272,7 @@ public abstract class Scale extends Device {
     // resets the device
     @Override
     public void resetDevice() {
-        deviceData = new ArrayList<>();
+        deviceData = null;
         hasData.set(false);
         weight.set(0);
         weightStones.set(0);
@@ -323,12 +323,8 @@ public abstract class Scale extends Device {
         sb.replace(sb.length() - medipi.getDataSeparator().length(), sb.length(), "\n");
 
         // Add Downloaded data
-        for (ArrayList<String> dataLine : deviceData) {
-            for (String data : dataLine) {
-                sb.append(data).append(separator);
-            }
-            //replace the last separator with a new line
-            sb.replace(sb.length() - separator.length(), sb.length(), "\n");
+        if (deviceData != null) {
+            deviceData.appendTo(sb, separator);
         }
 
         payload.setProfileId(PROFILEID);
@@ -365,7 +361,8 @@ public abstract class Scale extends Device {
                 displayData(weight, i);
                 hasData.set(true);
             }
-            deviceData = data;
+            deviceData = new MeasurementBuffer(format);
+            deviceData.addAll(data);
             Scheduler scheduler = null;
             if ((scheduler = medipi.getScheduler()) != null) {
                 schedStartTime = scheduler.getCurrentScheduleStartTime();
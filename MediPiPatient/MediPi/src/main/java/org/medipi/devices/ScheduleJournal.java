@@ -0,0 +1,373 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Store for the Scheduler's schedule entries made up of a snapshot and an
+ * append-only journal.
+ *
+ * The snapshot is the schedule.json file in the same JSON format as before, so
+ * it can still be provided or edited by hand. Entries added by the Scheduler
+ * are appended to a journal file alongside it (the snapshot file name with
+ * .journal added). Each journal record is [payload length][JSON
+ * entry][CRC32] and is forced to disk before the call which wrote it returns.
+ * When the journal holds compactAfter entries they are written into a new
+ * snapshot, which replaces the old one in one atomic move, and the journal is
+ * emptied.
+ *
+ * When the store is opened the snapshot is read and the journal replayed. A
+ * journal record which was only partly written when the unit lost power is
+ * cut off along with anything after it. Journal entries which are already in
+ * the snapshot - left behind if power was lost between replacing the snapshot
+ * and emptying the journal - are not added twice. If the snapshot is changed
+ * by anything else it is read again the next time reloadIfChanged is called.
+ *
+ * All the entries are held in memory indexed by event type and time so that
+ * the latest or next entry of a type is found in O(log n)
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ScheduleJournal {
+
+    // payload length + CRC32
+    private static final int RECORDOVERHEAD = 8;
+    private static final int MAXRECORDSIZE = 1024 * 1024;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final int compactAfter;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ArrayList<Schedule> schedules = new ArrayList<>();
+    private final HashMap<String, TreeMap<Instant, List<Schedule>>> index = new HashMap<>();
+    private FileChannel channel;
+    private int journalCount = 0;
+    private long snapshotModified;
+    private long snapshotLength;
+
+    /**
+     * Constructor - reads the snapshot and replays the journal
+     *
+     * @param snapshotFile schedule.json file
+     * @param compactAfter number of journal entries after which they are
+     * written into a new snapshot. 0 writes a new snapshot for every entry
+     * @throws IOException if the snapshot cannot be read or the journal cannot
+     * be opened
+     */
+    public ScheduleJournal(File snapshotFile, int compactAfter) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile.getPath() + ".journal");
+        this.compactAfter = compactAfter;
+        mapper.findAndRegisterModules();
+        File dir = snapshotFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the scheduler directory: " + dir);
+        }
+        load();
+    }
+
+    /**
+     * Add an entry, writing it to the journal
+     *
+     * @param schedule schedule entry
+     * @throws IOException if the entry cannot be written to the journal
+     */
+    public synchronized void add(Schedule schedule) throws IOException {
+        append(record(mapper.writeValueAsBytes(schedule)));
+        journalCount++;
+        addToIndex(schedule);
+        if (journalCount >= compactAfter) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the entry is safe in the journal and compaction is tried again with the next entry
+                Logger.getLogger(ScheduleJournal.class.getName()).log(Level.WARNING, "Failed to compact the schedule journal", e);
+            }
+        }
+    }
+
+    /**
+     * Read the snapshot and the journal again if the snapshot has been changed
+     * since it was last read or written
+     *
+     * @return true if the entries were read again
+     * @throws IOException if the snapshot cannot be read
+     */
+    public synchronized boolean reloadIfChanged() throws IOException {
+        if (snapshotFile.lastModified() == snapshotModified && snapshotFile.length() == snapshotLength) {
+            return false;
+        }
+        load();
+        return true;
+    }
+
+    /**
+     * @param eventType SCHEDULED, STARTED, MEASURED or TRANSMITTED
+     * @param time time to search back from
+     * @return the latest entry of the type before the time or null if there is
+     * none
+     */
+    public synchronized Schedule getLatestBefore(String eventType, Instant time) {
+        Map.Entry<Instant, List<Schedule>> e = byTime(eventType).lowerEntry(time);
+        return e == null ? null : e.getValue().get(0);
+    }
+
+    /**
+     * @param eventType SCHEDULED, STARTED, MEASURED or TRANSMITTED
+     * @param time time to search forward from
+     * @return the earliest entry of the type after the time or null if there
+     * is none
+     */
+    public synchronized Schedule getFirstAfter(String eventType, Instant time) {
+        Map.Entry<Instant, List<Schedule>> e = byTime(eventType).higherEntry(time);
+        return e == null ? null : e.getValue().get(0);
+    }
+
+    /**
+     * @param eventType SCHEDULED, STARTED, MEASURED or TRANSMITTED
+     * @return the latest entry of the type or null if there is none
+     */
+    public synchronized Schedule getLatest(String eventType) {
+        Map.Entry<Instant, List<Schedule>> e = byTime(eventType).lastEntry();
+        return e == null ? null : e.getValue().get(0);
+    }
+
+    /**
+     * @param eventType SCHEDULED, STARTED, MEASURED or TRANSMITTED
+     * @param time time to search forward from
+     * @return the entries of the type after the time in time order
+     */
+    public synchronized List<Schedule> getAfter(String eventType, Instant time) {
+        ArrayList<Schedule> after = new ArrayList<>();
+        for (List<Schedule> l : byTime(eventType).tailMap(time, false).values()) {
+            after.addAll(l);
+        }
+        return after;
+    }
+
+    /**
+     * @param eventType SCHEDULED, STARTED, MEASURED or TRANSMITTED
+     * @param from start of the period (exclusive)
+     * @param to end of the period (exclusive)
+     * @return true if there is an entry of the type in the period
+     */
+    public synchronized boolean hasBetween(String eventType, Instant from, Instant to) {
+        return from.isBefore(to) && !byTime(eventType).subMap(from, false, to, false).isEmpty();
+    }
+
+    /**
+     * @return all the entries in the order they were added
+     */
+    public synchronized List<Schedule> getAll() {
+        return new ArrayList<>(schedules);
+    }
+
+    /**
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return schedules.size();
+    }
+
+    /**
+     * @return number of entries in the journal which have not yet been written
+     * into the snapshot
+     */
+    public synchronized int getJournalCount() {
+        return journalCount;
+    }
+
+    /**
+     * Write all the entries into a new snapshot and empty the journal
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        ByteBuffer bb = ByteBuffer.wrap(mapper.writeValueAsBytes(schedules));
+        try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining()) {
+                fc.write(bb);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotModified = snapshotFile.lastModified();
+        snapshotLength = snapshotFile.length();
+        // if power is lost before this the journal entries are found in the new snapshot when replayed
+        channel.truncate(0);
+        channel.force(true);
+        journalCount = 0;
+    }
+
+    /**
+     * Close the journal
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void load() throws IOException {
+        close();
+        schedules.clear();
+        index.clear();
+        journalCount = 0;
+        snapshotModified = snapshotFile.lastModified();
+        snapshotLength = snapshotFile.length();
+        HashSet<String> inSnapshot = new HashSet<>();
+        if (snapshotFile.exists()) {
+            ArrayList<Schedule> snapshot = mapper.readValue(snapshotFile, new TypeReference<ArrayList<Schedule>>() {
+            });
+            for (Schedule s : snapshot) {
+                addToIndex(s);
+                inSnapshot.add(key(s));
+            }
+        }
+        long complete = journalFile.exists() ? replay(inSnapshot) : 0;
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > complete) {
+            // cut off a record which was only partly written
+            channel.truncate(complete);
+            channel.force(true);
+        }
+        channel.position(complete);
+    }
+
+    /**
+     * Add the journal entries which are not in the snapshot
+     *
+     * @return length of the journal up to the end of the last complete record
+     */
+    private long replay(HashSet<String> inSnapshot) throws IOException {
+        long complete = 0;
+        try (InputStream in = Files.newInputStream(journalFile.toPath())) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+            while (true) {
+                Schedule s;
+                int length;
+                try {
+                    length = dis.readInt();
+                    if (length < 0 || length > MAXRECORDSIZE) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    dis.readFully(payload);
+                    if (dis.readInt() != (int) crc(payload)) {
+                        break;
+                    }
+                    s = mapper.readValue(payload, Schedule.class);
+                } catch (EOFException e) {
+                    // the last record was only partly written
+                    break;
+                } catch (IOException e) {
+                    // a record which cannot be read and anything after it is discarded
+                    break;
+                }
+                complete += length + RECORDOVERHEAD;
+                journalCount++;
+                if (!inSnapshot.contains(key(s))) {
+                    addToIndex(s);
+                }
+            }
+        }
+        return complete;
+    }
+
+    private void addToIndex(Schedule s) {
+        schedules.add(s);
+        if (s.getEventType() != null && s.getTime() != null) {
+            index.computeIfAbsent(s.getEventType(), k -> new TreeMap<>())
+                    .computeIfAbsent(s.getTime(), k -> new ArrayList<>(1))
+                    .add(s);
+        }
+    }
+
+    private TreeMap<Instant, List<Schedule>> byTime(String eventType) {
+        TreeMap<Instant, List<Schedule>> t = index.get(eventType);
+        return t == null ? new TreeMap<>() : t;
+    }
+
+    private void append(byte[] record) throws IOException {
+        long start = channel.position();
+        ByteBuffer bb = ByteBuffer.wrap(record);
+        try {
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // remove the partly written record so that the next entry is not appended after it
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException te) {
+                e.addSuppressed(te);
+            }
+            throw e;
+        }
+    }
+
+    // entries are compared on all their fields as uuid alone is shared by the entries of one schedule run
+    private static String key(Schedule s) {
+        return s.getUuid() + "|" + s.getEventType() + "|" + s.getTime() + "|" + s.getRepeat() + "|" + s.getDeviceSched();
+    }
+
+    private static byte[] record(byte[] payload) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.length + RECORDOVERHEAD);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(payload.length);
+        dos.write(payload);
+        dos.writeInt((int) crc(payload));
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static long crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
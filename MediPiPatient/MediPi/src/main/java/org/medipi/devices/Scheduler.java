@@ -15,10 +15,7 @@
  */
 package org.medipi.devices;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -27,6 +24,7 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -103,7 +101,9 @@ import org.medipi.utilities.Utilities;
  * metadata is added to identify it.
  *
  * After a schedule has been transmitted, new STARTED, MEASURED and TRANSMITTED
- * lines are added to the .scheduler file
+ * lines are added to the .scheduler file. New lines are appended to a journal
+ * alongside the file and are only written into the file itself after a
+ * configurable number of lines (see ScheduleJournal)
  *
  * @author rick@robinsonhq.com
  */
@@ -166,8 +166,12 @@ public class Scheduler extends Device {
     private UUID nextUUID = null;
     private AlertBanner alertBanner = AlertBanner.getInstance();
     private ArrayList<SchedulerCallbacksInterface> schedulerCallbacks = new ArrayList<>();
-    private ArrayList<Schedule> schedulesFromFile = null;
-    private ObjectMapper mapper = new ObjectMapper();
+    private ScheduleJournal scheduleJournal = null;
+    private int scheduleCompactAfter;
+    // number of the entries in deviceData which have been written to the journal
+    private int deviceDataWritten = 0;
+    // MEASURED entries of this schedule run by device
+    private final HashMap<String, UUID> measuredDevices = new HashMap<>();
     private boolean recordExtraMetadata = false;
     private Instant firstScheduledTime = null;
     private int scheduledRepeatPeriod = -1;
@@ -232,7 +236,16 @@ public class Scheduler extends Device {
         } catch (NumberFormatException e) {
             throw new Exception("Unable to set the period of history to display in readings - make sure that " + MediPi.ELEMENTNAMESPACESTEM + uniqueDeviceName + ".schedulerhistoryperiod property is set correctly");
         }
-        mapper.findAndRegisterModules();
+        // get the number of new entries kept in the journal before they are written into the scheduler file
+        try {
+            String compact = medipi.getProperties().getProperty(MediPi.ELEMENTNAMESPACESTEM + uniqueDeviceName + ".schedulercompactafter");
+            if (compact == null || compact.trim().length() == 0) {
+                compact = "100";
+            }
+            scheduleCompactAfter = Integer.parseInt(compact.trim());
+        } catch (NumberFormatException e) {
+            throw new Exception("Unable to set the number of entries to journal before they are written to the readings schedule file - make sure that " + MediPi.ELEMENTNAMESPACESTEM + uniqueDeviceName + ".schedulercompactafter property is set correctly");
+        }
         //set up watch on the schedule.schedule file
         File f = new File(schedulerFile);
         String file = f.getName();
@@ -408,7 +421,11 @@ public class Scheduler extends Device {
         // At the start of running a schedule clear the data
         runningSchedule.addListener((ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) -> {
             if (newValue) {
-                deviceData.clear();
+                synchronized (this) {
+                    deviceData.clear();
+                    deviceDataWritten = 0;
+                    measuredDevices.clear();
+                }
             }
         });
 
@@ -473,39 +490,42 @@ public class Scheduler extends Device {
         // a scheduler file MUST have at least one "SCHEDULED" entry line in it
 
         try {
-            schedulesFromFile = mapper.readValue(new File(schedulerFile), new TypeReference<ArrayList<Schedule>>() {
-            });
+            // the file is only read again if it has been changed by something other than this class
+            if (scheduleJournal == null) {
+                scheduleJournal = new ScheduleJournal(new File(schedulerFile), scheduleCompactAfter);
+            } else {
+                scheduleJournal.reloadIfChanged();
+            }
 
             ScheduleItem latestSchedItem = null;
             ScheduleItem latestTransItem = null;
-            Instant latestSchedDate = Instant.EPOCH;
-            Instant latestTransDate = Instant.EPOCH;
             Instant futureScheduleStartTime = null;
             Instant futureScheduleExpiryTime = null;
             boolean currentScheduleFound = false;
-            for (Schedule s : schedulesFromFile) {
-                // find the latest scheduled time and save the data
-                if (s.getTime().isAfter(latestSchedDate) && s.getTime().isBefore(Instant.now()) && s.getEventType().equals(SCHEDULED)) {
-                    firstScheduledTime = s.getTime();
-                    scheduledRepeatPeriod = s.getRepeat();
-                    latestSchedDate = s.getTime();
-                    latestSchedItem = new ScheduleItem(s.getUuid(), s.getEventType(), s.getTime(), s.getRepeat(), s.getDeviceSched());
-                    currentScheduleFound = true;
-                } else if (s.getTime().isAfter(Instant.now()) && s.getEventType().equals(SCHEDULED)) {
-                    // This is for situations where there is a schedule but only in the future
+            Instant now = Instant.now();
+            // find the latest scheduled time and save the data
+            Schedule s = scheduleJournal.getLatestBefore(SCHEDULED, now);
+            if (s != null) {
+                firstScheduledTime = s.getTime();
+                scheduledRepeatPeriod = s.getRepeat();
+                latestSchedItem = new ScheduleItem(s.getUuid(), s.getEventType(), s.getTime(), s.getRepeat(), s.getDeviceSched());
+                currentScheduleFound = true;
+            } else {
+                // This is for situations where there is a schedule but only in the future
+                s = scheduleJournal.getFirstAfter(SCHEDULED, now);
+                if (s != null) {
                     futureScheduleStartTime = s.getTime();
                     futureScheduleExpiryTime = s.getTime().plus(s.getRepeat(), ChronoUnit.MINUTES);
                 }
-                // find the latest transmitted time and save the data
-                if (s.getTime().isAfter(latestTransDate) && s.getEventType().equals(TRANSMITTED)) {
-                    latestTransDate = s.getTime();
-                    latestTransItem = new ScheduleItem(s.getUuid(), s.getEventType(), s.getTime(), s.getRepeat(), s.getDeviceSched());
-                }
-
-                Instant historicalStart = Instant.now().minus(schedulerHistoryPeriod, ChronoUnit.DAYS);
-                if (s.getTime().isAfter(historicalStart) && s.getEventType().equals(TRANSMITTED)) {
-                    items.add(new ScheduleItem(s.getUuid(), s.getEventType(), s.getTime(), s.getRepeat(), s.getDeviceSched()));
-                }
+            }
+            // find the latest transmitted time and save the data
+            s = scheduleJournal.getLatest(TRANSMITTED);
+            if (s != null) {
+                latestTransItem = new ScheduleItem(s.getUuid(), s.getEventType(), s.getTime(), s.getRepeat(), s.getDeviceSched());
+            }
+            Instant historicalStart = now.minus(schedulerHistoryPeriod, ChronoUnit.DAYS);
+            for (Schedule t : scheduleJournal.getAfter(TRANSMITTED, historicalStart)) {
+                items.add(new ScheduleItem(t.getUuid(), t.getEventType(), t.getTime(), t.getRepeat(), t.getDeviceSched()));
             }
             //Empty schedule file or no entries with type SCHEDULED or latest date in the future
             if (!currentScheduleFound) {
@@ -613,18 +633,8 @@ public class Scheduler extends Device {
             Instant schedStart = schedEnd.minus(repeat, ChronoUnit.MINUTES);
 
             if (schedStart.isAfter(Instant.now().minus(schedulerHistoryPeriod, ChronoUnit.DAYS))) {
-                boolean found = false;
-                for (ScheduleItem s : items) {
-                    if (s.getEventTypeDisp().equals(TRANSMITTED)) {
-                        Instant i = Instant.ofEpochMilli(s.getTime());
-                        if (schedStart.isBefore(i) && schedEnd.isAfter(i)) {
-                            //We have found a transmission for this schedCal iteration
-                            found = true;
-                            break;
-                        }
-                    }
-                }
-                if (!found) {
+                //look for a transmission for this schedCal iteration
+                if (!scheduleJournal.hasBetween(TRANSMITTED, schedStart, schedEnd)) {
                     items.add(new ScheduleItem(
                             UUID.randomUUID(), MISSING,
                             schedStart,
@@ -690,30 +700,24 @@ public class Scheduler extends Device {
         }
     }
 
-    // Method to write all the newly added .scheduler lines to the .scheduler 
-    // file when the transmission has been successful
+    // Method to append the newly added .scheduler lines to the .scheduler 
+    // journal when the transmission has been successful
     private synchronized boolean writeAllSchedulesToFile() {
 
-        if (schedulesFromFile == null) {
+        if (scheduleJournal == null) {
             return false;
         }
         try {
-            for (ScheduleItem si : deviceData) {
+            for (; deviceDataWritten < deviceData.size(); deviceDataWritten++) {
+                ScheduleItem si = deviceData.get(deviceDataWritten);
                 // dependent on a preoperties flag record entries for MEASURED and STARTED        
                 if (!recordExtraMetadata) {
                     if (si.getEventTypeDisp().equals(STARTED) || si.getEventTypeDisp().equals(MEASURED)) {
                         continue;
                     }
                 }
-                schedulesFromFile.add(new Schedule(si));
+                scheduleJournal.add(new Schedule(si));
             }
-
-            FileOutputStream output;
-            output = new FileOutputStream(schedulerFile);
-            mapper.writeValue(output, schedulesFromFile);
-            output.flush();
-            output.close();
-
             return true;
         } catch (Exception ex) {
             Logger.getLogger(Scheduler.class.getName()).log(Level.SEVERE, null, ex);
@@ -799,17 +803,15 @@ public class Scheduler extends Device {
     }
 
     // method to add new .scheduler lines ready to be written to the .scheduler file
-    void addScheduleData(UUID uuid, String type, Instant date, int repeat, ArrayList<String> devices) {
-        // protect against adding MEASURED entries more than once
+    synchronized void addScheduleData(UUID uuid, String type, Instant date, int repeat, ArrayList<String> devices) {
         if (type.equals(MEASURED)) {
-            for (ScheduleItem si : deviceData) {
-                if (si.getEventTypeDisp().equals(MEASURED)) {
-                    if (si.getDeviceSched().get(0).equals(devices.get(0))) {
-                        if (si.getUUID().equals(uuid)) {
-                            return;
-                        }
-                    }
-                }
+            if (devices.size() != 1) {
+                MediPiMessageBox.getInstance().makeErrorMessage("Readings Scheduler records are corrupt: MEASURED schedule object has > 1 device", null);
+            } else if (uuid != null && uuid.equals(measuredDevices.get(devices.get(0)))) {
+                // protect against adding MEASURED entries more than once
+                return;
+            } else {
+                measuredDevices.put(devices.get(0), uuid);
             }
         }
         ScheduleItem newSched = new ScheduleItem(uuid, type, date, repeat, devices);
@@ -887,22 +889,11 @@ public class Scheduler extends Device {
         ArrayList<Element> missing = new ArrayList<>();
         for (Element e : getScheduledElements()) {
             if (Device.class.isAssignableFrom(e.getClass())) {
-                boolean found = false;
-                for (ScheduleItem sch : deviceData) {
-                    if (sch.getEventTypeDisp().equals(MEASURED)) {
-                        if (sch.getDeviceSched().size() != 1) {
-                            MediPiMessageBox.getInstance().makeErrorMessage("Readings Scheduler records are corrupt: MEASURED schedule object has > 1 device", null);
-                            break;
-                        } else if (e.getClassTokenName().equals(sch.getDeviceSched().get(0))) {
-                            found = true;
-                            break;
-                        }
-
+                synchronized (this) {
+                    if (!measuredDevices.containsKey(e.getClassTokenName())) {
+                        missing.add(e);
                     }
                 }
-                if (!found) {
-                    missing.add(e);
-                }
             }
         }
         return missing;
@@ -62,7 +62,7 @@ public abstract class Thermometer extends Device {
     private final String GENERIC_DEVICE_NAME = "Thermometer";
     private static final String PROFILEID = "urn:nhs-en:profile:Thermometer";
     protected Button actionButton;
-    private ArrayList<ArrayList<String>> deviceData = new ArrayList<>();
+    private MeasurementBuffer deviceData = null;
     private Instant schedStartTime = null;
     private Instant schedExpireTime = null;
     private VBox thermWindow;
@@ -230,19 +230,22 @@ public abstract class Thermometer extends Device {
             double value = (tempTens.getValue() * 10) + (tempUnits.getValue()) + (tempTenths.getValue() / 10.0);
             Instant valueTime = Instant.now();
             displayData(value, valueTime);
-            deviceData.clear();
+            ArrayList<ArrayList<String>> data = new ArrayList<>();
             ArrayList<String> deviceDataSingleRow = new ArrayList<>();
             deviceDataSingleRow.add(valueTime.toString());
             deviceDataSingleRow.add(String.valueOf(value));
             
-            deviceData.add(deviceDataSingleRow);
-            deviceData = (deviceTimestampChecker.checkTimestamp(deviceData));
+            data.add(deviceDataSingleRow);
+            data = (deviceTimestampChecker.checkTimestamp(data));
             String dataCheckMessage = null;
             if ((dataCheckMessage = deviceTimestampChecker.getMessages()) != null) {
                 MediPiMessageBox.getInstance().makeMessage(getSpecificDeviceDisplayName() + "\n" + dataCheckMessage);
             }
-            if (deviceData == null || deviceData.isEmpty()) {
+            if (data == null || data.isEmpty()) {
+                deviceData = null;
             } else {
+                deviceData = new MeasurementBuffer(format);
+                deviceData.addAll(data);
                 hasData.set(true);
                 confirm = true;
                 Scheduler scheduler = null;
@@ -252,11 +255,10 @@ public abstract class Thermometer extends Device {
                 }
             }
         } else {
-            deviceData = new ArrayList<>();
+            deviceData = null;
             hasData.set(false);
             temp.set(0D);
             lastMeasurementTime.set("");
-            deviceData.clear();
             confirm = false;
 
         }
@@ -292,7 +294,7 @@ public abstract class Thermometer extends Device {
     // resets the device data
     @Override
     public void resetDevice() {
-        deviceData = new ArrayList<>();
+        deviceData = null;
         hasData.set(false);
         temp.set(0D);
         lastMeasurementTime.set("");
@@ -346,12 +348,8 @@ public abstract class Thermometer extends Device {
         sb.replace(sb.length() - separator.length(), sb.length(), "\n");
 
         // Add Downloaded data
-        for (ArrayList<String> dataLine : deviceData) {
-            for (String data : dataLine) {
-                sb.append(data).append(separator);
-            }
-            //replace the last separator with a new line
-            sb.replace(sb.length() - separator.length(), sb.length(), "\n");
+        if (deviceData != null) {
+            deviceData.appendTo(sb, separator);
         }
 
         payload.setProfileId(PROFILEID);
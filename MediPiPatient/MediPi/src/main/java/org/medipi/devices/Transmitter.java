@@ -17,6 +17,7 @@ package org.medipi.devices;
 
 import java.io.ByteArrayOutputStream;
 import org.medipi.security.UploadEncryptionAdapter;
+import org.medipi.codec.DevicesPayloadCodec;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -96,6 +97,7 @@ public abstract class Transmitter extends Element {
 
     private static final String INTERACTION = "urn:nhs-itk:interaction:MediPi";
     private static final String OUTBOUNDPAYLOAD = "medipi.outboundpayload";
+    private static final String COMPACTPAYLOAD = "medipi.transmit.compactpayload";
     private static final String NAME = "Transmitter";
     private static final String DISPLAYNAME = "MediPi Transmitter";
 
@@ -332,6 +334,11 @@ public abstract class Transmitter extends Element {
                                 if (error != null) {
                                     throw new Exception(error);
                                 }
+                                // only use the compact payload format when the concentrator is known to understand it
+                                String compact = medipi.getProperties().getProperty(COMPACTPAYLOAD);
+                                if (compact != null && compact.trim().toLowerCase().startsWith("y")) {
+                                    uploadEncryptionAdapter.setPayloadCodec(new DevicesPayloadCodec());
+                                }
                                 EncryptedAndSignedUploadDO encryptedMessage = uploadEncryptionAdapter.encryptAndSign(devicesPayload);
                                 try {
                                     // save a copy of the data to file if required
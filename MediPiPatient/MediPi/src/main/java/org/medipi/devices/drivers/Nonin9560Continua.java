@@ -15,7 +15,6 @@
  */
 package org.medipi.devices.drivers;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -47,6 +46,7 @@ import org.medipi.devices.Guide;
 import org.medipi.devices.Oximeter;
 import org.medipi.devices.drivers.domain.ContinuaData;
 import org.medipi.devices.drivers.domain.ContinuaManager;
+import org.medipi.devices.drivers.domain.ContinuaManager.ReadingStatus;
 import org.medipi.devices.drivers.domain.ContinuaMeasurement;
 import org.medipi.devices.drivers.domain.ContinuaOximeter;
 import org.medipi.devices.drivers.service.BluetoothPropertiesDO;
@@ -178,78 +178,70 @@ public class Nonin9560Continua extends Oximeter implements DeviceModeUpdateInter
                     continuaManager = ContinuaManager.getInstance();
                     continuaManager.reset();
                     setButton2Name("Stop", stopImg);
-                    // input datastream from the device driver
-                    BufferedReader stdInput = continuaManager.callIEEE11073Agent("0x1004");
-                    if (stdInput != null) {
-                        String readData = new String();
-                        while ((readData = stdInput.readLine()) != null) {
-                            System.out.println(readData);
-
-                            if (continuaManager.parse(readData)) {
-                                if (mtt != null) {
-                                    mtt.stopTimer();
-                                }
-                                ContinuaData cd = continuaManager.getData();
-                                if (!cd.getManufacturer().equals("Nonin Medical, Inc.")) {
-                                    return "Expected device manufacturer is Nonin Medical, Inc. but returned device manufacturer is: " + cd.getManufacturer();
-                                }
-                                if (!cd.getModel().equals("Model 9560")) {
-                                    return "Expected device model is Model 9560 but returned device model is: " + cd.getModel();
-                                }
-                                int setId = 0;
-                                while (cd.getDataSetCounter() >= setId) {
-                                    String spO2 = null;
-                                    String heartRate = null;
-                                    String time = null;
-                                    for (ContinuaMeasurement cm : cd.getMeasurements()) {
-                                        if (cm.getMeasurementSetID() == setId) {
-                                            if (cm.getReportedIdentifier() == ContinuaOximeter.PERCENT) {
-                                                spO2 = cm.getDataValue()[0];
-                                                time = cm.getTime();
-                                            } else if (cm.getReportedIdentifier() == ContinuaOximeter.BPM) {
-                                                heartRate = cm.getDataValue()[0];
-                                                time = cm.getTime();
-                                            }
-
-                                        }
-                                        if (spO2 != null && heartRate != null && time != null) {
-                                            data.add(new ArrayList<>(Arrays.asList(time, heartRate, spO2)));
-                                            setId++;
-                                            break;
-                                        }
-                                    }
-                                }
-                                if (!data.isEmpty()) {
-                                    return "SUCCESS";
+                    // download the data from the device, updating the progress as it goes
+                    ContinuaData cd = continuaManager.read("0x1004", (ReadingStatus status) -> {
+                        switch (status) {
+                            case WAITING:
+                                setB2Label("Please Insert Finger");
+                                break;
+                            case ATTRIBUTES:
+                                setB2Label("Connecting...");
+                                break;
+                            case CONFIGURATION:
+                                setB2Label("Reading Device");
+                                break;
+                            case MEASUREMENT:
+                                if (mtt != null && mtt.isRunning()) {
+                                    mtt.reset();
                                 } else {
-                                    return getSpecificDeviceDisplayName()+" has no data to download - please try again, referring to your clinician's advice on how best to take the measurements";
+                                    mtt = new MeasurementTimerTask();
+                                    Timer timer = new Timer();
+                                    timer.schedule(mtt, 0, 1000);
                                 }
 
-                            }
-                            switch (continuaManager.getStatus()) {
-                                case WAITING:
-                                    setB2Label("Please Insert Finger");
-                                    break;
-                                case ATTRIBUTES:
-                                    setB2Label("Connecting...");
-                                    break;
-                                case CONFIGURATION:
-                                    setB2Label("Reading Device");
-                                    break;
-                                case MEASUREMENT:
-                                    if (mtt != null && mtt.isRunning()) {
-                                        mtt.reset();
-                                    } else {
-                                        mtt = new MeasurementTimerTask();
-                                        Timer timer = new Timer();
-                                        timer.schedule(mtt, 0, 1000);
+                                break;
+                            default:
+                                break;
+                        }
+                    });
+                    if (cd != null) {
+                        if (mtt != null) {
+                            mtt.stopTimer();
+                        }
+                        if (!"Nonin Medical, Inc.".equals(cd.getManufacturer())) {
+                            return "Expected device manufacturer is Nonin Medical, Inc. but returned device manufacturer is: " + cd.getManufacturer();
+                        }
+                        if (!"Model 9560".equals(cd.getModel())) {
+                            return "Expected device model is Model 9560 but returned device model is: " + cd.getModel();
+                        }
+                        int setId = 0;
+                        while (cd.getDataSetCounter() >= setId) {
+                            String spO2 = null;
+                            String heartRate = null;
+                            String time = null;
+                            for (ContinuaMeasurement cm : cd.getMeasurements()) {
+                                if (cm.getMeasurementSetID() == setId) {
+                                    if (cm.getReportedIdentifier() == ContinuaOximeter.PERCENT) {
+                                        spO2 = cm.getDataValue()[0];
+                                        time = cm.getTime();
+                                    } else if (cm.getReportedIdentifier() == ContinuaOximeter.BPM) {
+                                        heartRate = cm.getDataValue()[0];
+                                        time = cm.getTime();
                                     }
 
+                                }
+                                if (spO2 != null && heartRate != null && time != null) {
+                                    data.add(new ArrayList<>(Arrays.asList(time, heartRate, spO2)));
                                     break;
-                                default:
-                                    break;
+                                }
                             }
-
+                            // move on to the next set even if this one is missing a value
+                            setId++;
+                        }
+                        if (!data.isEmpty()) {
+                            return "SUCCESS";
+                        } else {
+                            return getSpecificDeviceDisplayName()+" has no data to download - please try again, referring to your clinician's advice on how best to take the measurements";
                         }
                     }
 
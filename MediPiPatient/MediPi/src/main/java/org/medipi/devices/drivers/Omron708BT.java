@@ -15,7 +15,6 @@
  */
 package org.medipi.devices.drivers;
 
-import java.io.BufferedReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import javafx.application.Platform;
@@ -29,6 +28,7 @@ import org.medipi.devices.BloodPressure;
 import org.medipi.devices.drivers.domain.ContinuaBloodPressure;
 import org.medipi.devices.drivers.domain.ContinuaData;
 import org.medipi.devices.drivers.domain.ContinuaManager;
+import org.medipi.devices.drivers.domain.ContinuaManager.ReadingStatus;
 import org.medipi.devices.drivers.domain.ContinuaMeasurement;
 
 /**
@@ -128,78 +128,70 @@ public class Omron708BT extends BloodPressure {
                     continuaManager = ContinuaManager.getInstance();
                     continuaManager.reset();
                     setButton2Name("Stop", stopImg);
-                    // input datastream from the device driver
-                    BufferedReader stdInput = continuaManager.callIEEE11073Agent("0x1007");
-                    if (stdInput != null) {
-                        String readData = new String();
-                        while ((readData = stdInput.readLine()) != null) {
-                            System.out.println(readData);
-
-                            if (continuaManager.parse(readData)) {
-                                ContinuaData cd = continuaManager.getData();
-                                if (!cd.getManufacturer().equals("OMRON HEALTHCARE")) {
-                                    return "Expected device manufacturer is OMRON HEALTHCARE but returned device manufacturer is: "+cd.getManufacturer();
-                                }
-                                if (!cd.getModel().equals("HEM-7081-IT")) {
-                                    return "Expected device model is HEM-7081-IT but returned device model is: "+cd.getModel();
-                                }
-
-                                int setId = 0;
-                                while (cd.getDataSetCounter() >= setId) {
-                                    String sys = null;
-                                    String dia = null;
-                                    String mean = null;
-                                    String heartRate = null;
-                                    String irregular = null;
-                                    String time = null;
-                                    for (ContinuaMeasurement cm : cd.getMeasurements()) {
-                                        if (cm.getMeasurementSetID() == setId) {
-                                            if (cm.getReportedIdentifier() == ContinuaBloodPressure.MMHG) {
-                                                sys = cm.getDataValue()[0];
-                                                dia = cm.getDataValue()[1];
-                                                mean = cm.getDataValue()[2];
-                                                time = cm.getTime();
-                                            } else if (cm.getReportedIdentifier() == ContinuaBloodPressure.BPM) {
-                                                heartRate = cm.getDataValue()[0];
-                                                time = cm.getTime();
-                                            } else if (cm.getReportedIdentifier() == ContinuaBloodPressure.DIMENTIONLESS) {
-                                                irregular = cm.getDataValue()[0];
-                                                time = cm.getTime();
-                                            }
+                    // download the data from the device, updating the progress as it goes
+                    ContinuaData cd = continuaManager.read("0x1007", (ReadingStatus status) -> {
+                        switch (status) {
+                            case WAITING:
+                                setB2Label("Press Upload");
+                                break;
+                            case ATTRIBUTES:
+                                setB2Label("Connecting...");
+                                break;
+                            case CONFIGURATION:
+                                setB2Label("Reading Device");
+                                break;
+                            case MEASUREMENT:
+                                setB2Label("Downloading");
+
+                                break;
+                            default:
+                                break;
+                        }
+                    });
+                    if (cd != null) {
+                        if (!"OMRON HEALTHCARE".equals(cd.getManufacturer())) {
+                            return "Expected device manufacturer is OMRON HEALTHCARE but returned device manufacturer is: "+cd.getManufacturer();
+                        }
+                        if (!"HEM-7081-IT".equals(cd.getModel())) {
+                            return "Expected device model is HEM-7081-IT but returned device model is: "+cd.getModel();
+                        }
 
-                                        }
-                                        if (sys != null && dia != null && mean != null && heartRate != null && irregular != null && time != null) {
-                                            data.add(new ArrayList<>(Arrays.asList(time, sys, dia, heartRate, mean, irregular)));
-                                            setId++;
-                                            break;
-                                        }
+                        int setId = 0;
+                        while (cd.getDataSetCounter() >= setId) {
+                            String sys = null;
+                            String dia = null;
+                            String mean = null;
+                            String heartRate = null;
+                            String irregular = null;
+                            String time = null;
+                            for (ContinuaMeasurement cm : cd.getMeasurements()) {
+                                if (cm.getMeasurementSetID() == setId) {
+                                    if (cm.getReportedIdentifier() == ContinuaBloodPressure.MMHG) {
+                                        sys = cm.getDataValue()[0];
+                                        dia = cm.getDataValue()[1];
+                                        mean = cm.getDataValue()[2];
+                                        time = cm.getTime();
+                                    } else if (cm.getReportedIdentifier() == ContinuaBloodPressure.BPM) {
+                                        heartRate = cm.getDataValue()[0];
+                                        time = cm.getTime();
+                                    } else if (cm.getReportedIdentifier() == ContinuaBloodPressure.DIMENTIONLESS) {
+                                        irregular = cm.getDataValue()[0];
+                                        time = cm.getTime();
                                     }
-                                }
-                                if (!data.isEmpty()) {
-                                    return "SUCCESS";
-                                } else {
-                                    return "There are no measurements available on the Blood Pressure device for download - please retake your blood pressure and try again";
-                                }
 
-                            }
-                            switch (continuaManager.getStatus()) {
-                                case WAITING:
-                                    setB2Label("Press Upload");
-                                    break;
-                                case ATTRIBUTES:
-                                    setB2Label("Connecting...");
-                                    break;
-                                case CONFIGURATION:
-                                    setB2Label("Reading Device");
-                                    break;
-                                case MEASUREMENT:
-                                    setB2Label("Downloading");
-
-                                    break;
-                                default:
+                                }
+                                if (sys != null && dia != null && mean != null && heartRate != null && irregular != null && time != null) {
+                                    data.add(new ArrayList<>(Arrays.asList(time, sys, dia, heartRate, mean, irregular)));
                                     break;
+                                }
                             }
-
+                            // move on to the next set even if this one is missing a value
+                            setId++;
+                        }
+                        if (!data.isEmpty()) {
+                            return "SUCCESS";
+                        } else {
+                            return "There are no measurements available on the Blood Pressure device for download - please retake your blood pressure and try again";
                         }
                     }
 
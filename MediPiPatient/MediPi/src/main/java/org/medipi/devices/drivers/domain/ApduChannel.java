@@ -0,0 +1,51 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.io.IOException;
+
+/**
+ * Interface for the data channel between the IEEE 11073-20601 manager and an
+ * agent over which whole APDUs are exchanged
+ *
+ * @author rick@robinsonhq.com
+ */
+public interface ApduChannel {
+
+    /**
+     * Wait for the next APDU from the agent
+     *
+     * @return the whole APDU including its choice and length or null if the
+     * agent has closed the channel
+     * @throws IOException if the channel fails or the APDU is incomplete
+     */
+    public byte[] read() throws IOException;
+
+    /**
+     * Send an APDU to the agent
+     *
+     * @param apdu the whole APDU including its choice and length
+     * @throws IOException if the channel fails
+     */
+    public void write(byte[] apdu) throws IOException;
+
+    /**
+     * Close the channel
+     *
+     * @throws IOException if the channel fails
+     */
+    public void close() throws IOException;
+}
@@ -35,27 +35,41 @@ public class ContinuaBloodPressure implements ContinuaMeasurement {
         }
         switch (dataPoints[1]) {
             case "mmHg":
-                reportedIdentifier = MMHG;
                 String dp = dataPoints[0].replace("(", "").replace(")", "");
-                dataValue = dp.split(",");
-                if (dataValue.length != 3) {
+                insertData(MMHG, dp.split(","), dataPoints[3], id);
+                break;
+            case "bpm":
+                insertData(BPM, new String[]{dataPoints[0]}, dataPoints[3], id);
+                break;
+            case "":
+                insertData(DIMENTIONLESS, new String[]{dataPoints[0]}, dataPoints[3], id);
+                break;
+            default:
+                throw new Exception("Device Data units unrecognised");
+        }
+    }
+
+    @Override
+    public void insertData(int unitCode, String[] values, String time, int id) throws Exception {
+        switch (unitCode) {
+            case MMHG:
+                if (values.length != 3) {
                     throw new Exception("Device Data in wrong format - not in 3 parts");
                 }
+                dataValue = new String[3];
                 int counter = 0;
-                for (String s : dataValue) {
+                for (String s : values) {
                     dataValue[counter] = ContinuaData.removeUnwantedDecimalPoints(s);
                     counter++;
                 }
                 break;
-            case "bpm":
-                reportedIdentifier = BPM;
+            case BPM:
                 dataValue= new String[1];
-                dataValue[0] = ContinuaData.removeUnwantedDecimalPoints(dataPoints[0]);
+                dataValue[0] = ContinuaData.removeUnwantedDecimalPoints(values[0]);
                 break;
-            case "":
-                reportedIdentifier = DIMENTIONLESS;
+            case DIMENTIONLESS:
                 dataValue= new String[1];
-                String s = ContinuaData.removeUnwantedDecimalPoints(dataPoints[0]);
+                String s = ContinuaData.removeUnwantedDecimalPoints(values[0]);
                 if(s.equals("256")){
                     dataValue[0] = "true";
                 }else if(s.equals("0")){
@@ -67,8 +81,8 @@ public class ContinuaBloodPressure implements ContinuaMeasurement {
             default:
                 throw new Exception("Device Data units unrecognised");
         }
-
-        time = dataPoints[3];
+        reportedIdentifier = unitCode;
+        this.time = time;
         measurementSetID = id;
     }
 
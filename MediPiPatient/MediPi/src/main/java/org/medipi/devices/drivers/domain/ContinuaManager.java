@@ -6,9 +6,18 @@
 package org.medipi.devices.drivers.domain;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.bluetooth.L2CAPConnection;
+import javax.bluetooth.L2CAPConnectionNotifier;
+import javax.microedition.io.Connection;
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
 import org.medipi.MediPiMessageBox;
 import org.medipi.MediPiProperties;
 import org.medipi.devices.drivers.Omron708BT;
@@ -24,6 +33,9 @@ import org.medipi.logging.MediPiLogger;
  */
 public class ContinuaManager {
 
+    // EUI-64 system id sent to agents by the Java manager
+    private static final byte[] MANAGERSYSTEMID = new byte[]{0x4D, 0x65, 0x64, 0x69, 0x50, 0x69, 0x00, 0x01};
+
     Process healthdProcess = null;
 
     public enum ReadingStatus {
@@ -48,8 +60,24 @@ public class ContinuaManager {
     private final String agentScript;
     private final String managerScript;
     private static Exception bootException = null;
+    private final boolean nativeManager;
+    private final String nativeUrl;
+    private Connection nativeConnection = null;
 
     private ContinuaManager() {
+        String n = MediPiProperties.getInstance().getProperties().getProperty("medipi.iee11073.manager.native", "n");
+        nativeManager = n.trim().toLowerCase().startsWith("y");
+        nativeUrl = MediPiProperties.getInstance().getProperties().getProperty("medipi.iee11073.manager.native.url");
+        if (nativeManager) {
+            if (nativeUrl == null || nativeUrl.trim().length() == 0) {
+                String error = "Cannot find the connection url for the ieee11073 manager";
+                MediPiLogger.getInstance().log(ContinuaManager.class.getName(), error);
+                bootException = new Exception(error);
+            }
+            managerScript = null;
+            agentScript = null;
+            return;
+        }
         managerScript = MediPiProperties.getInstance().getProperties().getProperty("medipi.iee11073.manager.python");
         if (managerScript == null || managerScript.trim().length() == 0) {
             String error = "Cannot find python ieee11073 manager script";
@@ -108,7 +136,118 @@ public class ContinuaManager {
 
     }
 
+    /**
+     * Download the data from an IEEE 11073-20601 agent.
+     *
+     * When medipi.iee11073.manager.native is set to y the agent is read by the
+     * Java manager over the connection at medipi.iee11073.manager.native.url.
+     * Otherwise the python agent script is called and its output parsed
+     *
+     * @param specialisation expected device specialisation e.g. 0x1004
+     * @param statusListener called with the status as the download progresses
+     * @return the data or null if the agent went away before any data was
+     * downloaded
+     * @throws Exception if the data cannot be downloaded
+     */
+    public ContinuaData read(String specialisation, Consumer<ReadingStatus> statusListener) throws Exception {
+        if (nativeManager) {
+            return readNative(specialisation, statusListener);
+        }
+        BufferedReader stdInput = callIEEE11073Agent(specialisation);
+        if (stdInput == null) {
+            return null;
+        }
+        String readData;
+        while ((readData = stdInput.readLine()) != null) {
+            System.out.println(readData);
+            if (parse(readData)) {
+                return getData();
+            }
+            statusListener.accept(getStatus());
+        }
+        return null;
+    }
+
+    private ContinuaData readNative(String specialisation, Consumer<ReadingStatus> statusListener) throws Exception {
+        isReading = ReadingStatus.WAITING;
+        statusListener.accept(isReading);
+        Connection conn;
+        synchronized (this) {
+            nativeConnection = Connector.open(nativeUrl);
+        }
+        try {
+            conn = accept(nativeConnection);
+            try {
+                Ieee11073Manager manager = new Ieee11073Manager(MANAGERSYSTEMID, ZoneId.systemDefault());
+                ContinuaData cd = manager.run(openChannel(conn), (ReadingStatus s) -> {
+                    isReading = s;
+                    statusListener.accept(s);
+                });
+                if (cd != null && !manager.getSpecialisation().equals(specialisation)) {
+                    throw new Exception("Expected device specialisation is " + specialisation + " but returned device specialisation is: " + manager.getSpecialisation());
+                }
+                continuaDataSet = cd;
+                isDataComplete = cd != null;
+                return cd;
+            } finally {
+                if (conn != nativeConnection) {
+                    conn.close();
+                }
+            }
+        } finally {
+            closeNativeConnection();
+        }
+    }
+
+    /**
+     * Wait for the agent to connect if the connection url is a server url
+     * (btl2cap://localhost or btspp://localhost)
+     *
+     * @param connection connection opened from the url
+     * @return the connection to the agent
+     * @throws IOException if the agent cannot be accepted
+     */
+    static Connection accept(Connection connection) throws IOException {
+        if (connection instanceof L2CAPConnectionNotifier) {
+            return ((L2CAPConnectionNotifier) connection).acceptAndOpen();
+        } else if (connection instanceof StreamConnectionNotifier) {
+            return ((StreamConnectionNotifier) connection).acceptAndOpen();
+        }
+        return connection;
+    }
+
+    /**
+     * Open the APDU channel over a connection to the agent - packet based for
+     * L2CAP (btl2cap) and stream based for RFCOMM (btspp) and other stream
+     * connections
+     *
+     * @param connection connection to the agent
+     * @return APDU channel to the agent
+     * @throws IOException if the connection is of an unsupported type
+     */
+    static ApduChannel openChannel(Connection connection) throws IOException {
+        if (connection instanceof L2CAPConnection) {
+            return new L2CAPApduChannel((L2CAPConnection) connection);
+        } else if (connection instanceof StreamConnection) {
+            StreamConnection sc = (StreamConnection) connection;
+            return new StreamApduChannel(sc.openInputStream(), sc.openOutputStream());
+        }
+        throw new IOException("Unsupported connection type for the ieee11073 manager: " + connection.getClass().getName());
+    }
+
+    private synchronized void closeNativeConnection() {
+        if (nativeConnection != null) {
+            try {
+                nativeConnection.close();
+            } catch (IOException e) {
+                // the connection is not needed any more
+            }
+            nativeConnection = null;
+        }
+    }
+
     public void stopIEEE11073Agent() {
+        closeNativeConnection();
         if (process != null && process.isAlive()) {
             process.destroy();
         }
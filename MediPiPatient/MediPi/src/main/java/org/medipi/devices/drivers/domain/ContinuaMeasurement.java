@@ -14,6 +14,17 @@ public interface ContinuaMeasurement {
 
     public void insertData(String in, int id) throws Exception;
 
+    /**
+     * Insert an observation decoded by the native IEEE 11073-20601 manager
+     *
+     * @param unitCode IEEE 11073 unit code of the observation
+     * @param values observed values as decimal strings
+     * @param time ISO 8601 time of the observation
+     * @param id measurement set the observation belongs to
+     * @throws Exception if the unit or number of values is not recognised
+     */
+    public void insertData(int unitCode, String[] values, String time, int id) throws Exception;
+
     public int getReportedIdentifier();
 
     public int getMeasurementSetID();
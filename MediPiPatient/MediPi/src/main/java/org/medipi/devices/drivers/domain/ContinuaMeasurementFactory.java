@@ -17,6 +17,8 @@ public class ContinuaMeasurementFactory {
             response = new ContinuaOximeter();
         } else if (specialisation.equals("0x1007")) {
             response = new ContinuaBloodPressure();
+        } else if (specialisation.equals("0x100F")) {
+            response = new ContinuaScale();
         }
         return response;
     }
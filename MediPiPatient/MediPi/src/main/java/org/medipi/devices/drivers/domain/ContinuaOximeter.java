@@ -31,20 +31,32 @@ public class ContinuaOximeter implements ContinuaMeasurement {
         if (!dataPoints[2].equals("@")) {
             throw new Exception("Device Data in wrong format - time format");
         }
+        int unitCode;
         switch (dataPoints[1]) {
             case "%":
-                reportedIdentifier = PERCENT;
+                unitCode = PERCENT;
                 break;
             case "bpm":
-                reportedIdentifier = BPM;
+                unitCode = BPM;
                 break;
             default:
                 throw new Exception("Device Data units unrecognised");
         }
+        insertData(unitCode, new String[]{dataPoints[0]}, dataPoints[3], id);
+    }
 
+    @Override
+    public void insertData(int unitCode, String[] values, String time, int id) throws Exception {
+        if (unitCode != PERCENT && unitCode != BPM) {
+            throw new Exception("Device Data units unrecognised");
+        }
+        if (values.length != 1) {
+            throw new Exception("Device Data in wrong format - not in 1 part");
+        }
+        reportedIdentifier = unitCode;
         dataValue = new String[1];
-        dataValue[0] = ContinuaData.removeUnwantedDecimalPoints(dataPoints[0]);
-        time = dataPoints[3];
+        dataValue[0] = ContinuaData.removeUnwantedDecimalPoints(values[0]);
+        this.time = time;
         measurementSetID = id;
     }
 
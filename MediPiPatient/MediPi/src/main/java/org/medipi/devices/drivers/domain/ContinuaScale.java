@@ -0,0 +1,94 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+/**
+ * Measurement from an IEEE 11073-10415 weighing scale
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ContinuaScale implements ContinuaMeasurement {
+
+    public static final int KG = 1731;
+    public static final int LB = 1760;
+
+    private String[] dataValue;
+    private String time;
+    private int reportedIdentifier;
+    private int measurementSetID;
+
+    public ContinuaScale() {
+    }
+
+    @Override
+    public void insertData(String in, int id) throws Exception {
+        String[] dataPoints = in.split(" ");
+        if (dataPoints.length != 4) {
+            throw new Exception("Device Data in wrong format - not in 4 parts");
+        }
+        if (!dataPoints[2].equals("@")) {
+            throw new Exception("Device Data in wrong format - time format");
+        }
+        int unitCode;
+        switch (dataPoints[1]) {
+            case "kg":
+                unitCode = KG;
+                break;
+            case "lb":
+                unitCode = LB;
+                break;
+            default:
+                throw new Exception("Device Data units unrecognised");
+        }
+        insertData(unitCode, new String[]{dataPoints[0]}, dataPoints[3], id);
+    }
+
+    @Override
+    public void insertData(int unitCode, String[] values, String time, int id) throws Exception {
+        if (unitCode != KG && unitCode != LB) {
+            throw new Exception("Device Data units unrecognised");
+        }
+        if (values.length != 1) {
+            throw new Exception("Device Data in wrong format - not in 1 part");
+        }
+        reportedIdentifier = unitCode;
+        dataValue = new String[1];
+        dataValue[0] = ContinuaData.removeUnwantedDecimalPoints(values[0]);
+        this.time = time;
+        measurementSetID = id;
+    }
+
+    @Override
+    public int getReportedIdentifier() {
+        return reportedIdentifier;
+    }
+
+    @Override
+    public String[] getDataValue() {
+        return dataValue;
+    }
+
+    @Override
+    public String getTime() {
+        return time;
+    }
+
+    @Override
+    public int getMeasurementSetID() {
+        return measurementSetID;
+    }
+
+}
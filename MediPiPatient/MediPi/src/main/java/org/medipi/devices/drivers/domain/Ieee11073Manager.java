@@ -0,0 +1,603 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import org.medipi.devices.drivers.domain.ContinuaManager.ReadingStatus;
+
+/**
+ * Java implementation of an IEEE 11073-20601 manager for a single association
+ * with an agent such as a pulse oximeter (10404), blood pressure monitor
+ * (10407) or weighing scale (10415).
+ *
+ * The manager accepts the association, asks the agent for its configuration,
+ * reads the agent's MDS attributes for the manufacturer, model and
+ * specialisation and then collects the numeric observations from the scan
+ * event reports until the agent releases the association. The observations are
+ * returned as ContinuaData in the same form as the python agent's output so
+ * that the device drivers do not need to know which was used.
+ *
+ * Observations in one event report belong to one measurement set unless the
+ * same metric is reported again in it, which starts the next set - this is how
+ * stored measurements are uploaded. Configurations are not remembered between
+ * associations so the agent is always asked to send its configuration
+ *
+ * @author rick@robinsonhq.com
+ */
+public class Ieee11073Manager {
+
+    // APDU choices
+    static final int AARQ = 0xE200;
+    static final int AARE = 0xE300;
+    static final int RLRQ = 0xE400;
+    static final int RLRE = 0xE500;
+    static final int ABRT = 0xE600;
+    static final int PRST = 0xE700;
+
+    // DATA-apdu message choices
+    static final int ROIV_EVENT_REPORT = 0x0100;
+    static final int ROIV_CONFIRMED_EVENT_REPORT = 0x0101;
+    static final int ROIV_GET = 0x0103;
+    static final int RORS_CONFIRMED_EVENT_REPORT = 0x0201;
+    static final int RORS_GET = 0x0203;
+    static final int ROER = 0x0300;
+    static final int RORJ = 0x0400;
+
+    // association
+    private static final int DATA_PROTO_ID_20601 = 20601;
+    private static final long ASSOC_VERSION1 = 0x80000000L;
+    private static final long PROTOCOL_VERSION1 = 0x80000000L;
+    private static final long PROTOCOL_VERSION2 = 0x40000000L;
+    private static final int MDER = 0x8000;
+    private static final long NOM_VERSION1 = 0x80000000L;
+    private static final long SYS_TYPE_MANAGER = 0x80000000L;
+    private static final int ACCEPTED_UNKNOWN_CONFIG = 3;
+    private static final int REJECTED_NO_COMMON_PROTOCOL = 4;
+    private static final int REJECTED_NO_COMMON_PARAMETER = 5;
+    private static final int REJECTED_UNSUPPORTED_ASSOC_VERSION = 8;
+    private static final int ACCEPTED_CONFIG = 0;
+
+    // event types
+    private static final int MDC_NOTI_CONFIG = 0x0D1C;
+    private static final int MDC_NOTI_SCAN_REPORT_FIXED = 0x0D1D;
+    private static final int MDC_NOTI_SCAN_REPORT_VAR = 0x0D1E;
+    private static final int MDC_NOTI_SCAN_REPORT_MP_FIXED = 0x0D1F;
+    private static final int MDC_NOTI_SCAN_REPORT_MP_VAR = 0x0D20;
+
+    // object classes and attributes
+    private static final int MDC_MOC_VMO_METRIC_NU = 6;
+    private static final int MDC_ATTR_ID_MODEL = 0x0928;
+    private static final int MDC_ATTR_NU_CMPD_VAL_OBS = 0x094B;
+    private static final int MDC_ATTR_NU_VAL_OBS = 0x0950;
+    private static final int MDC_ATTR_TIME_STAMP_ABS = 0x0990;
+    private static final int MDC_ATTR_UNIT_CODE = 0x0996;
+    private static final int MDC_ATTR_NU_CMPD_VAL_OBS_BASIC = 0x0A4B;
+    private static final int MDC_ATTR_NU_VAL_OBS_BASIC = 0x0A4C;
+    private static final int MDC_ATTR_NU_CMPD_VAL_OBS_SIMP = 0x0A4F;
+    private static final int MDC_ATTR_ATTRIBUTE_VAL_MAP = 0x0A55;
+    private static final int MDC_ATTR_NU_VAL_OBS_SIMP = 0x0A56;
+    private static final int MDC_ATTR_SYS_TYPE_SPEC_LIST = 0x0A5A;
+
+    private final byte[] systemId;
+    private final ZoneId zone;
+    private final ContinuaMeasurementFactory measurementFactory = new ContinuaMeasurementFactory();
+    private final HashMap<Integer, Metric> metrics = new HashMap<>();
+    private final ArrayList<Observation> observations = new ArrayList<>();
+    private final HashSet<Integer> handlesInSet = new HashSet<>();
+    private ReadingStatus status = ReadingStatus.WAITING;
+    private boolean associated = false;
+    private boolean complete = false;
+    private int invokeId = 0;
+    private int setCounter = -1;
+    private String manufacturer;
+    private String model;
+    private String specialisation = "";
+
+    /**
+     * Constructor
+     *
+     * @param systemId 8 byte EUI-64 system id of this manager
+     * @param zone time zone of the agent's clock
+     */
+    public Ieee11073Manager(byte[] systemId, ZoneId zone) {
+        this.systemId = systemId;
+        this.zone = zone;
+    }
+
+    /**
+     * Exchange APDUs with an agent over the channel until it releases the
+     * association or closes the channel
+     *
+     * @param channel data channel to the agent
+     * @param statusListener called with the status after each APDU
+     * @return the data or null if the channel was closed before any
+     * measurements were received
+     * @throws Exception if the agent aborts the association or sends an APDU
+     * which cannot be understood
+     */
+    public ContinuaData run(ApduChannel channel, Consumer<ReadingStatus> statusListener) throws Exception {
+        statusListener.accept(status);
+        byte[] apdu;
+        while ((apdu = channel.read()) != null) {
+            List<byte[]> replies;
+            try {
+                replies = receive(apdu);
+            } catch (Exception e) {
+                if (associated) {
+                    associated = false;
+                    channel.write(abort());
+                }
+                throw e;
+            }
+            for (byte[] reply : replies) {
+                channel.write(reply);
+            }
+            statusListener.accept(status);
+            if (complete) {
+                return getData();
+            }
+        }
+        status = ReadingStatus.DISCONNECTED;
+        statusListener.accept(status);
+        if (observations.isEmpty()) {
+            return null;
+        }
+        // the agent went away without releasing the association
+        complete = true;
+        return getData();
+    }
+
+    /**
+     * Process one APDU from the agent
+     *
+     * @param apdu the whole APDU including its choice and length
+     * @return the APDUs to send to the agent in reply
+     * @throws Exception if the agent aborts the association or the APDU cannot
+     * be understood
+     */
+    public List<byte[]> receive(byte[] apdu) throws Exception {
+        ArrayList<byte[]> replies = new ArrayList<>();
+        MderReader r = new MderReader(apdu);
+        int choice = r.readU16();
+        MderReader body = r.readNested();
+        switch (choice) {
+            case AARQ:
+                if (associated) {
+                    throw new Exception("Association request received from a device which is already associated");
+                }
+                replies.add(associationRequest(body));
+                break;
+            case PRST:
+                if (!associated) {
+                    throw new Exception("Data received from a device which is not associated");
+                }
+                dataApdu(body.readNested(), replies);
+                break;
+            case RLRQ:
+                associated = false;
+                complete = true;
+                status = ReadingStatus.DISASSOCIATED;
+                replies.add(apdu(RLRE, new MderWriter().writeU16(0)));
+                break;
+            case ABRT:
+                associated = false;
+                status = ReadingStatus.DISASSOCIATED;
+                throw new Exception("The device ended the connection before the data was downloaded, please retry");
+            case RLRE:
+            case AARE:
+            default:
+                throw new Exception("Unexpected message type 0x" + Integer.toHexString(choice) + " received from the device");
+        }
+        return replies;
+    }
+
+    /**
+     * @return the current status of the association
+     */
+    public ReadingStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true when the agent has released the association
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the specialisation reported by the agent e.g. 0x1004 or an
+     * empty string if it is not yet known
+     */
+    public String getSpecialisation() {
+        return specialisation;
+    }
+
+    /**
+     * @return the downloaded data
+     * @throws Exception if the data is not complete or the device
+     * specialisation is not known
+     */
+    public ContinuaData getData() throws Exception {
+        if (!complete) {
+            throw new Exception("Request for data before data has been fully downloaded");
+        }
+        ContinuaData cd = new ContinuaData();
+        cd.setManufacturer(manufacturer);
+        cd.setModel(model);
+        for (int i = 0; i <= setCounter; i++) {
+            cd.addDataSetCounter();
+        }
+        if (observations.isEmpty()) {
+            return cd;
+        }
+        if (measurementFactory.getMeasurementClass(specialisation) == null) {
+            throw new Exception("no specialisation found on device, please retry");
+        }
+        for (Observation o : observations) {
+            ContinuaMeasurement cm = measurementFactory.getMeasurementClass(specialisation);
+            try {
+                cm.insertData(o.unitCode, o.values, o.time.toString(), o.setId);
+            } catch (Exception e) {
+                // metrics which the specialisation does not use, e.g. BMI from a scale, are left out
+                continue;
+            }
+            cd.addMeasurement(cm);
+        }
+        return cd;
+    }
+
+    private byte[] associationRequest(MderReader body) throws Exception {
+        long assocVersion = body.readU32();
+        int count = body.readU16();
+        body.readU16();
+        MderReader info = null;
+        for (int i = 0; i < count; i++) {
+            int dataProtoId = body.readU16();
+            MderReader protoInfo = body.readNested();
+            if (dataProtoId == DATA_PROTO_ID_20601) {
+                info = protoInfo;
+            }
+        }
+        if ((assocVersion & ASSOC_VERSION1) == 0) {
+            return associationResponse(REJECTED_UNSUPPORTED_ASSOC_VERSION, 0);
+        }
+        if (info == null) {
+            return associationResponse(REJECTED_NO_COMMON_PROTOCOL, 0);
+        }
+        long protocolVersion = info.readU32();
+        int encodingRules = info.readU16();
+        if ((encodingRules & MDER) == 0 || (protocolVersion & (PROTOCOL_VERSION1 | PROTOCOL_VERSION2)) == 0) {
+            return associationResponse(REJECTED_NO_COMMON_PARAMETER, 0);
+        }
+        associated = true;
+        status = ReadingStatus.CONNECTED;
+        // the agent's configuration is not known so it is asked to send it
+        return associationResponse(ACCEPTED_UNKNOWN_CONFIG, (protocolVersion & PROTOCOL_VERSION2) != 0 ? PROTOCOL_VERSION2 : PROTOCOL_VERSION1);
+    }
+
+    private byte[] associationResponse(int result, long protocolVersion) {
+        MderWriter body = new MderWriter().writeU16(result);
+        if (protocolVersion == 0) {
+            body.writeU16(0).writeU16(0);
+        } else {
+            MderWriter info = new MderWriter()
+                    .writeU32(protocolVersion)
+                    .writeU16(MDER)
+                    .writeU32(NOM_VERSION1)
+                    .writeU32(0)
+                    .writeU32(SYS_TYPE_MANAGER)
+                    .writeOctetString(systemId)
+                    // manager-config-response
+                    .writeU16(0)
+                    // data-req-mode-capab
+                    .writeU16(0).writeU8(0).writeU8(0)
+                    // empty option list
+                    .writeU16(0).writeU16(0);
+            body.writeU16(DATA_PROTO_ID_20601).writeOctetString(info);
+        }
+        return apdu(AARE, body);
+    }
+
+    private void dataApdu(MderReader data, List<byte[]> replies) throws Exception {
+        int agentInvokeId = data.readU16();
+        int message = data.readU16();
+        MderReader args = data.readNested();
+        switch (message) {
+            case ROIV_EVENT_REPORT:
+            case ROIV_CONFIRMED_EVENT_REPORT:
+                int objHandle = args.readU16();
+                args.readU32();
+                int eventType = args.readU16();
+                MderReader eventInfo = args.readNested();
+                MderWriter replyInfo = eventReport(eventType, eventInfo, replies);
+                if (message == ROIV_CONFIRMED_EVENT_REPORT) {
+                    MderWriter result = new MderWriter()
+                            .writeU16(objHandle)
+                            .writeU32(0)
+                            .writeU16(eventType)
+                            .writeOctetString(replyInfo);
+                    // the reply to the event report must go before the request for the MDS attributes
+                    replies.add(0, prst(agentInvokeId, RORS_CONFIRMED_EVENT_REPORT, result));
+                }
+                break;
+            case RORS_GET:
+                args.readU16();
+                mdsAttributes(args);
+                status = ReadingStatus.ATTRIBUTES;
+                break;
+            case ROER:
+            case RORJ:
+                // the agent could not give its MDS attributes - the data can still be read
+                break;
+            default:
+                throw new Exception("Unexpected request 0x" + Integer.toHexString(message) + " received from the device");
+        }
+    }
+
+    private MderWriter eventReport(int eventType, MderReader eventInfo, List<byte[]> replies) throws Exception {
+        switch (eventType) {
+            case MDC_NOTI_CONFIG:
+                int configReportId = eventInfo.readU16();
+                configuration(eventInfo);
+                status = ReadingStatus.CONFIGURATION;
+                // ask for the MDS attributes for the manufacturer, model and specialisation
+                MderWriter get = new MderWriter().writeU16(0).writeU16(0).writeU16(0);
+                replies.add(prst(nextInvokeId(), ROIV_GET, get));
+                return new MderWriter().writeU16(configReportId).writeU16(ACCEPTED_CONFIG);
+            case MDC_NOTI_SCAN_REPORT_FIXED:
+            case MDC_NOTI_SCAN_REPORT_VAR:
+                scanReport(eventInfo, eventType == MDC_NOTI_SCAN_REPORT_FIXED, false);
+                break;
+            case MDC_NOTI_SCAN_REPORT_MP_FIXED:
+            case MDC_NOTI_SCAN_REPORT_MP_VAR:
+                scanReport(eventInfo, eventType == MDC_NOTI_SCAN_REPORT_MP_FIXED, true);
+                break;
+            default:
+                break;
+        }
+        return new MderWriter();
+    }
+
+    private void configuration(MderReader config) throws Exception {
+        metrics.clear();
+        int count = config.readU16();
+        config.readU16();
+        for (int i = 0; i < count; i++) {
+            int objClass = config.readU16();
+            Metric m = new Metric();
+            m.handle = config.readU16();
+            int attributeCount = config.readU16();
+            config.readU16();
+            for (int j = 0; j < attributeCount; j++) {
+                int attributeId = config.readU16();
+                MderReader value = config.readNested();
+                switch (attributeId) {
+                    case MDC_ATTR_UNIT_CODE:
+                        m.unitCode = value.readU16();
+                        break;
+                    case MDC_ATTR_ATTRIBUTE_VAL_MAP:
+                        int mapCount = value.readU16();
+                        value.readU16();
+                        for (int k = 0; k < mapCount; k++) {
+                            m.valueMap.add(new int[]{value.readU16(), value.readU16()});
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (objClass == MDC_MOC_VMO_METRIC_NU) {
+                metrics.put(m.handle, m);
+            }
+        }
+    }
+
+    private void mdsAttributes(MderReader attributes) throws Exception {
+        int count = attributes.readU16();
+        attributes.readU16();
+        for (int i = 0; i < count; i++) {
+            int attributeId = attributes.readU16();
+            MderReader value = attributes.readNested();
+            switch (attributeId) {
+                case MDC_ATTR_ID_MODEL:
+                    manufacturer = text(value.readOctetString());
+                    model = text(value.readOctetString());
+                    break;
+                case MDC_ATTR_SYS_TYPE_SPEC_LIST:
+                    int specCount = value.readU16();
+                    value.readU16();
+                    for (int j = 0; j < specCount; j++) {
+                        String spec = String.format("0x%04X", value.readU16());
+                        value.readU16();
+                        if (specialisation.isEmpty() || measurementFactory.getMeasurementClass(specialisation) == null) {
+                            specialisation = spec;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void scanReport(MderReader report, boolean fixed, boolean multiplePerson) throws Exception {
+        report.readU16();
+        report.readU16();
+        int count = report.readU16();
+        report.readU16();
+        if (multiplePerson) {
+            for (int i = 0; i < count; i++) {
+                // person-id
+                report.readU16();
+                int scanCount = report.readU16();
+                report.readU16();
+                observationScans(report, scanCount, fixed);
+            }
+        } else {
+            observationScans(report, count, fixed);
+        }
+    }
+
+    private void observationScans(MderReader scans, int count, boolean fixed) throws Exception {
+        boolean newSet = true;
+        for (int i = 0; i < count; i++) {
+            int handle = scans.readU16();
+            Metric m = metrics.get(handle);
+            Observation o = new Observation();
+            o.unitCode = m == null ? 0 : m.unitCode;
+            if (fixed) {
+                MderReader data = scans.readNested();
+                if (m == null) {
+                    continue;
+                }
+                for (int[] attribute : m.valueMap) {
+                    observationAttribute(o, attribute[0], new MderReader(data.readBytes(attribute[1])));
+                }
+            } else {
+                int attributeCount = scans.readU16();
+                scans.readU16();
+                for (int j = 0; j < attributeCount; j++) {
+                    int attributeId = scans.readU16();
+                    observationAttribute(o, attributeId, scans.readNested());
+                }
+                if (m == null) {
+                    continue;
+                }
+            }
+            if (o.values == null) {
+                continue;
+            }
+            if (newSet || handlesInSet.contains(handle)) {
+                setCounter++;
+                handlesInSet.clear();
+                newSet = false;
+            }
+            handlesInSet.add(handle);
+            o.setId = setCounter;
+            if (o.time == null) {
+                o.time = Instant.now();
+            }
+            observations.add(o);
+            status = ReadingStatus.MEASUREMENT;
+        }
+    }
+
+    private void observationAttribute(Observation o, int attributeId, MderReader value) throws Exception {
+        switch (attributeId) {
+            case MDC_ATTR_NU_VAL_OBS_BASIC:
+                o.values = values(value.readSFloat());
+                break;
+            case MDC_ATTR_NU_VAL_OBS_SIMP:
+                o.values = values(value.readFloat());
+                break;
+            case MDC_ATTR_NU_VAL_OBS:
+                value.readU16();
+                value.readU16();
+                o.unitCode = value.readU16();
+                o.values = values(value.readFloat());
+                break;
+            case MDC_ATTR_NU_CMPD_VAL_OBS_BASIC:
+            case MDC_ATTR_NU_CMPD_VAL_OBS_SIMP:
+                int count = value.readU16();
+                value.readU16();
+                String[] compound = new String[count];
+                for (int i = 0; i < count; i++) {
+                    compound[i] = attributeId == MDC_ATTR_NU_CMPD_VAL_OBS_BASIC ? value.readSFloat() : value.readFloat();
+                }
+                o.values = values(compound);
+                break;
+            case MDC_ATTR_NU_CMPD_VAL_OBS:
+                int nuCount = value.readU16();
+                value.readU16();
+                String[] nu = new String[nuCount];
+                for (int i = 0; i < nuCount; i++) {
+                    value.readU16();
+                    value.readU16();
+                    o.unitCode = value.readU16();
+                    nu[i] = value.readFloat();
+                }
+                o.values = values(nu);
+                break;
+            case MDC_ATTR_UNIT_CODE:
+                o.unitCode = value.readU16();
+                break;
+            case MDC_ATTR_TIME_STAMP_ABS:
+                o.time = value.readAbsoluteTime(zone);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // an observation with a special value such as NaN has no usable value
+    private static String[] values(String... values) {
+        for (String s : values) {
+            if (s == null) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    private int nextInvokeId() {
+        int id = invokeId;
+        invokeId = (invokeId + 1) & 0xFFFF;
+        return id;
+    }
+
+    private static String text(byte[] b) {
+        return new String(b, StandardCharsets.US_ASCII).replace('\0', ' ').trim();
+    }
+
+    private static byte[] abort() {
+        return apdu(ABRT, new MderWriter().writeU16(0));
+    }
+
+    private static byte[] prst(int invokeId, int message, MderWriter args) {
+        MderWriter data = new MderWriter()
+                .writeU16(invokeId)
+                .writeU16(message)
+                .writeOctetString(args);
+        return apdu(PRST, new MderWriter().writeOctetString(data));
+    }
+
+    private static byte[] apdu(int choice, MderWriter body) {
+        return new MderWriter().writeU16(choice).writeOctetString(body).toByteArray();
+    }
+
+    private static class Metric {
+
+        private int handle;
+        private int unitCode;
+        private final ArrayList<int[]> valueMap = new ArrayList<>();
+    }
+
+    private static class Observation {
+
+        private int unitCode;
+        private String[] values;
+        private Instant time;
+        private int setId;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.io.IOException;
+import java.util.Arrays;
+import javax.bluetooth.L2CAPConnection;
+
+/**
+ * ApduChannel over a Bluetooth L2CAP connection, as used by the Health Device
+ * Profile data channel. L2CAP is packet based rather than a byte stream, so
+ * each APDU is received and sent as one packet
+ *
+ * @author rick@robinsonhq.com
+ */
+public class L2CAPApduChannel implements ApduChannel {
+
+    private static final int HEADERLENGTH = 4;
+
+    private final L2CAPConnection connection;
+
+    /**
+     * Constructor
+     *
+     * @param connection L2CAP connection to the agent
+     */
+    public L2CAPApduChannel(L2CAPConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        byte[] packet = new byte[connection.getReceiveMTU()];
+        int received;
+        try {
+            received = connection.receive(packet);
+        } catch (IOException e) {
+            // a channel closed by the agent is reported as an IOException
+            return null;
+        }
+        if (received < HEADERLENGTH) {
+            throw new IOException("L2CAP packet of " + received + " bytes is too short to hold an APDU");
+        }
+        int length = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+        if (HEADERLENGTH + length != received) {
+            throw new IOException("L2CAP packet of " + received + " bytes does not hold an APDU of length " + length);
+        }
+        return Arrays.copyOf(packet, received);
+    }
+
+    @Override
+    public void write(byte[] apdu) throws IOException {
+        if (apdu.length > connection.getTransmitMTU()) {
+            throw new IOException("APDU of " + apdu.length + " bytes is larger than the L2CAP transmit MTU of " + connection.getTransmitMTU());
+        }
+        connection.send(apdu);
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Class to read the IEEE 11073-20601 Medical Device Encoding Rules (MDER) -
+ * big endian unsigned integers, length prefixed octet strings and sequences
+ * and the FLOAT-Type and SFLOAT-Type numbers used for observed values.
+ *
+ * Any attempt to read beyond the end of the data throws an Exception so that a
+ * truncated or badly formed APDU is rejected rather than partly read
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MderReader {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor
+     *
+     * @param data bytes to read
+     */
+    public MderReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param data bytes to read
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read
+     */
+    public MderReader(byte[] data, int offset, int length) {
+        buffer = ByteBuffer.wrap(data, offset, length).slice();
+    }
+
+    /**
+     * @return INT-U8
+     * @throws Exception if there are no more bytes
+     */
+    public int readU8() throws Exception {
+        try {
+            return buffer.get() & 0xFF;
+        } catch (BufferUnderflowException e) {
+            throw new Exception("IEEE 11073 data is shorter than expected");
+        }
+    }
+
+    /**
+     * @return INT-U16
+     * @throws Exception if there are not enough bytes
+     */
+    public int readU16() throws Exception {
+        try {
+            return buffer.getShort() & 0xFFFF;
+        } catch (BufferUnderflowException e) {
+            throw new Exception("IEEE 11073 data is shorter than expected");
+        }
+    }
+
+    /**
+     * @return INT-U32
+     * @throws Exception if there are not enough bytes
+     */
+    public long readU32() throws Exception {
+        try {
+            return buffer.getInt() & 0xFFFFFFFFL;
+        } catch (BufferUnderflowException e) {
+            throw new Exception("IEEE 11073 data is shorter than expected");
+        }
+    }
+
+    /**
+     * @param length number of bytes
+     * @return the bytes
+     * @throws Exception if there are not enough bytes
+     */
+    public byte[] readBytes(int length) throws Exception {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new Exception("IEEE 11073 data is shorter than expected");
+        }
+        byte[] b = new byte[length];
+        buffer.get(b);
+        return b;
+    }
+
+    /**
+     * @return a length prefixed OCTET STRING
+     * @throws Exception if there are not enough bytes
+     */
+    public byte[] readOctetString() throws Exception {
+        return readBytes(readU16());
+    }
+
+    /**
+     * Read a length prefixed structure, for example an ANY DEFINED BY or the
+     * body of a CHOICE
+     *
+     * @return a reader of just the structure
+     * @throws Exception if there are not enough bytes
+     */
+    public MderReader readNested() throws Exception {
+        return new MderReader(readOctetString());
+    }
+
+    /**
+     * @param length number of bytes to skip
+     * @throws Exception if there are not enough bytes
+     */
+    public void skip(int length) throws Exception {
+        readBytes(length);
+    }
+
+    /**
+     * @return number of bytes not yet read
+     */
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Read a FLOAT-Type - 8 bit signed exponent and 24 bit signed mantissa
+     *
+     * @return the value as a plain decimal string or null if the value is one
+     * of the special values NaN, NRes, +INFINITY or -INFINITY
+     * @throws Exception if there are not enough bytes
+     */
+    public String readFloat() throws Exception {
+        long raw = readU32();
+        int mantissa = (int) (raw & 0xFFFFFF);
+        if (mantissa >= 0x7FFFFE && mantissa <= 0x800002) {
+            return null;
+        }
+        if ((mantissa & 0x800000) != 0) {
+            mantissa -= 0x1000000;
+        }
+        return decimal(mantissa, (byte) (raw >> 24));
+    }
+
+    /**
+     * Read an SFLOAT-Type - 4 bit signed exponent and 12 bit signed mantissa
+     *
+     * @return the value as a plain decimal string or null if the value is one
+     * of the special values NaN, NRes, +INFINITY or -INFINITY
+     * @throws Exception if there are not enough bytes
+     */
+    public String readSFloat() throws Exception {
+        int raw = readU16();
+        int mantissa = raw & 0x0FFF;
+        if (mantissa >= 0x07FE && mantissa <= 0x0802) {
+            return null;
+        }
+        if ((mantissa & 0x0800) != 0) {
+            mantissa -= 0x1000;
+        }
+        int exponent = raw >> 12;
+        if ((exponent & 0x8) != 0) {
+            exponent -= 0x10;
+        }
+        return decimal(mantissa, exponent);
+    }
+
+    /**
+     * Read an AbsoluteTime - century, year, month, day, hour, minute, second
+     * and hundredths of a second each in binary coded decimal
+     *
+     * @param zone time zone of the agent's clock
+     * @return the time or null if the agent has not set it
+     * @throws Exception if there are not enough bytes or it is not a valid
+     * time
+     */
+    public Instant readAbsoluteTime(ZoneId zone) throws Exception {
+        int[] t = new int[8];
+        boolean unset = true;
+        for (int i = 0; i < t.length; i++) {
+            int b = readU8();
+            if (b != 0) {
+                unset = false;
+            }
+            t[i] = (b >> 4) * 10 + (b & 0x0F);
+        }
+        if (unset) {
+            return null;
+        }
+        try {
+            return LocalDateTime.of(t[0] * 100 + t[1], t[2], t[3], t[4], t[5], t[6], t[7] * 10000000)
+                    .atZone(zone)
+                    .toInstant();
+        } catch (DateTimeException e) {
+            throw new Exception("IEEE 11073 time stamp is not a valid time");
+        }
+    }
+
+    private static String decimal(int mantissa, int exponent) {
+        return new BigDecimal(BigInteger.valueOf(mantissa), -exponent).toPlainString();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Class to write the IEEE 11073-20601 Medical Device Encoding Rules (MDER) for
+ * the APDUs sent by the manager. Length prefixed structures are written by
+ * building their contents in a separate MderWriter and adding it with
+ * writeOctetString
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MderWriter {
+
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+
+    /**
+     * @param value INT-U8
+     * @return this writer
+     */
+    public MderWriter writeU8(int value) {
+        bos.write(value);
+        return this;
+    }
+
+    /**
+     * @param value INT-U16
+     * @return this writer
+     */
+    public MderWriter writeU16(int value) {
+        bos.write(value >> 8);
+        bos.write(value);
+        return this;
+    }
+
+    /**
+     * @param value INT-U32
+     * @return this writer
+     */
+    public MderWriter writeU32(long value) {
+        writeU16((int) (value >> 16));
+        writeU16((int) value);
+        return this;
+    }
+
+    /**
+     * @param b bytes to write as they are
+     * @return this writer
+     */
+    public MderWriter writeBytes(byte[] b) {
+        bos.write(b, 0, b.length);
+        return this;
+    }
+
+    /**
+     * @param b bytes to write with a length prefix
+     * @return this writer
+     */
+    public MderWriter writeOctetString(byte[] b) {
+        writeU16(b.length);
+        return writeBytes(b);
+    }
+
+    /**
+     * @param nested structure to write with a length prefix
+     * @return this writer
+     */
+    public MderWriter writeOctetString(MderWriter nested) {
+        return writeOctetString(nested.toByteArray());
+    }
+
+    /**
+     * @return the bytes written
+     */
+    public byte[] toByteArray() {
+        return bos.toByteArray();
+    }
+}
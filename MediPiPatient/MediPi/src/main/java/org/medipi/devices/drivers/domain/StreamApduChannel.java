@@ -0,0 +1,84 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * ApduChannel over a pair of byte streams, for example a Bluetooth stream
+ * connection. Each APDU starts with its 2 byte choice and 2 byte length so the
+ * APDUs are separated using the length
+ *
+ * @author rick@robinsonhq.com
+ */
+public class StreamApduChannel implements ApduChannel {
+
+    private static final int HEADERLENGTH = 4;
+
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    /**
+     * Constructor
+     *
+     * @param in stream of APDUs from the agent
+     * @param out stream of APDUs to the agent
+     */
+    public StreamApduChannel(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = out;
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        int choice = in.read();
+        if (choice == -1) {
+            return null;
+        }
+        try {
+            int second = in.readUnsignedByte();
+            int length = in.readUnsignedShort();
+            byte[] apdu = new byte[HEADERLENGTH + length];
+            apdu[0] = (byte) choice;
+            apdu[1] = (byte) second;
+            apdu[2] = (byte) (length >> 8);
+            apdu[3] = (byte) length;
+            in.readFully(apdu, HEADERLENGTH, length);
+            return apdu;
+        } catch (EOFException e) {
+            throw new IOException("The channel was closed part way through an APDU");
+        }
+    }
+
+    @Override
+    public void write(byte[] apdu) throws IOException {
+        out.write(apdu);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -102,56 +102,67 @@ public class MessageHandler implements DownloadableHandler {
                 }
             }
 
-            if (downloadResponse != null) {
-                // Expectation is that this file will ALWAYS be a .txt file
-                if (downloadResponse.getStatus() == Response.Status.OK.getStatusCode()) {
-                    try {
-                        MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".info", "Patient Message Downloadable download started - Downloadable UUID: " + ddo.getDownloadableUuid());
-                        InputStream is = downloadResponse.readEntity(InputStream.class);
-                        File f = new File(messageDir.toString(), ddo.getFileName());
-                        fetchFeed(is, f);
-                        IOUtils.closeQuietly(is);
-                        MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".info", "Patient Message Downloadable download completed - Downloadable UUID: " + ddo.getDownloadableUuid());
-                        // Successful download now must be acked
-                        // The downloadableUUID is returned in the post - not necessary but needs some payload
-                        Response downloadAck = rme.executePost(null, Entity.json(ddo.getDownloadableUuid()));
-                        if (downloadAck != null) {
-                            if (downloadAck.getStatus() == Response.Status.OK.getStatusCode()) {
-                                //No further action necessary
-                                MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".info", "Patient Message Downloadable download acked successfully - Downloadable UUID: " + ddo.getDownloadableUuid());
-                            } else {
-                                //FAILED TO ACK THE MESSAGE - put a message box to the patient
-                                MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message Downloadable download failed to ack successfully - Downloadable UUID: " + ddo.getDownloadableUuid());
+            try {
+                if (downloadResponse != null) {
+                    // Expectation is that this file will ALWAYS be a .txt file
+                    if (downloadResponse.getStatus() == Response.Status.OK.getStatusCode()) {
+                        try {
+                            MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".info", "Patient Message Downloadable download started - Downloadable UUID: " + ddo.getDownloadableUuid());
+                            InputStream is = downloadResponse.readEntity(InputStream.class);
+                            File f = new File(messageDir.toString(), ddo.getFileName());
+                            fetchFeed(is, f);
+                            MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".info", "Patient Message Downloadable download completed - Downloadable UUID: " + ddo.getDownloadableUuid());
+                            // Successful download now must be acked
+                            // The downloadableUUID is returned in the post - not necessary but needs some payload
+                            Response downloadAck = rme.executePost(null, Entity.json(ddo.getDownloadableUuid()));
+                            if (downloadAck != null) {
+                                try {
+                                    if (downloadAck.getStatus() == Response.Status.OK.getStatusCode()) {
+                                        //No further action necessary
+                                        MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".info", "Patient Message Downloadable download acked successfully - Downloadable UUID: " + ddo.getDownloadableUuid());
+                                    } else {
+                                        //FAILED TO ACK THE MESSAGE - put a message box to the patient
+                                        MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message Downloadable download failed to ack successfully - Downloadable UUID: " + ddo.getDownloadableUuid());
 
+                                    }
+                                } finally {
+                                    // release the connection back to the pool
+                                    downloadAck.close();
+                                }
                             }
-                        }
 
-                    } catch (Exception e) {
-                        //FAILED TO SAVE THE MESSAGE - put a message box to the patient
-                        MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message Downloadable download failed to download or ack - probably a file issue - Downloadable UUID: " + ddo.getDownloadableUuid());
-                        MediPiMessageBox.getInstance().makeErrorMessage("Patient Message Downloadable download failed to download or ack - probably a file issue - Downloadable UUID: " + ddo.getDownloadableUuid() + " " + e.getLocalizedMessage(), e);
+                        } catch (Exception e) {
+                            //FAILED TO SAVE THE MESSAGE - put a message box to the patient
+                            MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message Downloadable download failed to download or ack - probably a file issue - Downloadable UUID: " + ddo.getDownloadableUuid());
+                            MediPiMessageBox.getInstance().makeErrorMessage("Patient Message Downloadable download failed to download or ack - probably a file issue - Downloadable UUID: " + ddo.getDownloadableUuid() + " " + e.getLocalizedMessage(), e);
+                        }
+                    } else {
+                        //ERROR RESPONSE
+                        String err = downloadResponse.readEntity(String.class);
+                        switch (downloadResponse.getStatus()) {
+                            // NOT FOUND
+                            case 404:
+                            // This is returned when the hardware name and patientId do not match
+                            // ***************** DO SOMETHING WITH 404 *******************
+                            // UPDATE REQUIRED
+                            case 426:
+                            // ***************** DO SOMETHING WITH 426 *******************
+                            // INTERNAL SERVER ERROR    
+                            case 500:
+                            default:
+                                // ***************** DO SOMETHING WITH EVERY OTHER STATUS CODE *******************
+                                System.out.println(err);
+                        }
                     }
                 } else {
-                    //ERROR RESPONSE
-                    String err = downloadResponse.readEntity(String.class);
-                    switch (downloadResponse.getStatus()) {
-                        // NOT FOUND
-                        case 404:
-                        // This is returned when the hardware name and patientId do not match
-                        // ***************** DO SOMETHING WITH 404 *******************
-                        // UPDATE REQUIRED
-                        case 426:
-                        // ***************** DO SOMETHING WITH 426 *******************
-                        // INTERNAL SERVER ERROR    
-                        case 500:
-                        default:
-                            // ***************** DO SOMETHING WITH EVERY OTHER STATUS CODE *******************
-                            System.out.println(err);
-                    }
+                    MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message failed to resolve link - Downloadable UUID: " + ddo.getDownloadableUuid());
+                    MediPiMessageBox.getInstance().makeErrorMessage("Patient Message failed to resolve link - Downloadable UUID: " + ddo.getDownloadableUuid(),null);
+                }
+            } finally {
+                if (downloadResponse != null) {
+                    // release the connection back to the pool
+                    downloadResponse.close();
                 }
-            } else {
-                MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message failed to resolve link - Downloadable UUID: " + ddo.getDownloadableUuid());
-                MediPiMessageBox.getInstance().makeErrorMessage("Patient Message failed to resolve link - Downloadable UUID: " + ddo.getDownloadableUuid(),null);
             }
         } catch (Exception e) {
             MediPiLogger.getInstance().log(MessageHandler.class.getName() + ".error", "Patient Message failed to resolve link - Downloadable UUID: " + ddo.getDownloadableUuid());
@@ -164,10 +175,8 @@ public class MessageHandler implements DownloadableHandler {
      * java.nio.file.Files
      */
     private void fetchFeed(InputStream is, File downloadFile) throws IOException {
-        byte[] byteArray = IOUtils.toByteArray(is);
-        FileOutputStream fos = new FileOutputStream(downloadFile);
-        fos.write(byteArray);
-        fos.flush();
-        fos.close();
+        try (InputStream in = is; FileOutputStream fos = new FileOutputStream(downloadFile)) {
+            IOUtils.copy(in, fos);
+        }
     }
 }
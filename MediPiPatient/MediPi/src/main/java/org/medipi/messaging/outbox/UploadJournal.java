@@ -0,0 +1,299 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.outbox;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Append-only journal of the encrypted uploads waiting to be sent to the
+ * concentrator.
+ *
+ * Each record is [type][payload length][payload][CRC32] and is forced to disk
+ * before the call which wrote it returns. An ADD record holds an upload and a
+ * SENT record holds the uuid of an upload which no longer needs sending. When
+ * the journal is opened it is replayed to find the pending uploads; a record
+ * which was only partly written when the unit lost power is discarded along
+ * with anything after it. The journal is rewritten with just the pending
+ * uploads when it is opened and whenever the records of sent uploads take up
+ * more than half of it.
+ *
+ * The journal never holds more than maxSize bytes: an upload which would take
+ * it over that size is refused
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadJournal {
+
+    private static final byte ADD = 1;
+    private static final byte SENT = 2;
+    // type + payload length + CRC32
+    private static final int RECORDOVERHEAD = 9;
+
+    private final File file;
+    private final long maxSize;
+    private final LinkedHashMap<String, EncryptedAndSignedUploadDO> pending = new LinkedHashMap<>();
+    private final HashMap<String, Integer> recordSizes = new HashMap<>();
+    private FileChannel channel;
+    private long pendingSize = 0;
+
+    /**
+     * Constructor - opens the journal, recovering the uploads which were
+     * pending when it was last used
+     *
+     * @param file journal file
+     * @param maxSize maximum size in bytes of the journal
+     * @throws IOException if the journal cannot be opened
+     */
+    public UploadJournal(File file, long maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the upload outbox directory: " + dir);
+        }
+        if (file.exists()) {
+            replay();
+        }
+        compact();
+    }
+
+    /**
+     * Add an upload to the journal. An upload which is already pending is
+     * not added again
+     *
+     * @param upload encrypted upload
+     * @return false if the journal is full and the upload was not added
+     * @throws IOException if the upload cannot be written
+     */
+    public synchronized boolean add(EncryptedAndSignedUploadDO upload) throws IOException {
+        if (pending.containsKey(upload.getUploadUuid())) {
+            return true;
+        }
+        byte[] record = record(ADD, encode(upload));
+        if (channel.size() + record.length > maxSize) {
+            // compacting leaves only the pending uploads so it is pointless unless dropping the rest frees enough room
+            if (pendingSize + record.length > maxSize) {
+                return false;
+            }
+            compact();
+            if (channel.size() + record.length > maxSize) {
+                return false;
+            }
+        }
+        append(record);
+        pending.put(upload.getUploadUuid(), upload);
+        recordSizes.put(upload.getUploadUuid(), record.length);
+        pendingSize += record.length;
+        return true;
+    }
+
+    /**
+     * Record that an upload no longer needs to be sent - either because the
+     * concentrator has accepted it or because it has been refused
+     *
+     * @param uploadUuid uuid of the upload
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void remove(String uploadUuid) throws IOException {
+        if (pending.remove(uploadUuid) == null) {
+            return;
+        }
+        pendingSize -= recordSizes.remove(uploadUuid);
+        append(record(SENT, uploadUuid.getBytes(StandardCharsets.UTF_8)));
+        if (channel.size() > pendingSize * 2) {
+            compact();
+        }
+    }
+
+    /**
+     * @return the pending uploads in the order they were added
+     */
+    public synchronized List<EncryptedAndSignedUploadDO> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * @param uploadUuid uuid of the upload
+     * @return true if the upload is waiting to be sent
+     */
+    public synchronized boolean isPending(String uploadUuid) {
+        return pending.containsKey(uploadUuid);
+    }
+
+    /**
+     * @return number of uploads waiting to be sent
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return current size in bytes of the journal
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized long length() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Close the journal
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void replay() throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+            while (true) {
+                byte type;
+                byte[] payload;
+                try {
+                    type = dis.readByte();
+                    int length = dis.readInt();
+                    if (length < 0 || length > maxSize) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    dis.readFully(payload);
+                    if (dis.readInt() != (int) crc(type, payload)) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // the last record was only partly written
+                    break;
+                }
+                if (type == ADD) {
+                    EncryptedAndSignedUploadDO upload = decode(payload);
+                    pending.put(upload.getUploadUuid(), upload);
+                } else if (type == SENT) {
+                    pending.remove(new String(payload, StandardCharsets.UTF_8));
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal holding only the pending uploads
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        long size = 0;
+        try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (EncryptedAndSignedUploadDO upload : pending.values()) {
+                ByteBuffer bb = ByteBuffer.wrap(record(ADD, encode(upload)));
+                recordSizes.put(upload.getUploadUuid(), bb.remaining());
+                size += bb.remaining();
+                while (bb.hasRemaining()) {
+                    fc.write(bb);
+                }
+            }
+            fc.force(true);
+        }
+        close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        pendingSize = size;
+    }
+
+    private void append(byte[] record) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(record);
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+        channel.force(false);
+    }
+
+    private static byte[] record(byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(payload.length + RECORDOVERHEAD);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(type);
+        dos.writeInt(payload.length);
+        dos.write(payload);
+        dos.writeInt((int) crc(type, payload));
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static long crc(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static byte[] encode(EncryptedAndSignedUploadDO upload) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeString(dos, upload.getUploadUuid());
+        writeString(dos, upload.getEncryptedKey());
+        writeString(dos, upload.getCipherData());
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private static EncryptedAndSignedUploadDO decode(byte[] payload) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+        return new EncryptedAndSignedUploadDO(readString(dis), readString(dis), readString(dis));
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        if (s == null) {
+            dos.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(b.length);
+            dos.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        dis.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
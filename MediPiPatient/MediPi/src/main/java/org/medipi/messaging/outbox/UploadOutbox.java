@@ -0,0 +1,247 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import org.medipi.logging.MediPiLogger;
+import org.medipi.messaging.vpn.VPNServiceManager;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Store-and-forward outbox for the encrypted uploads to the concentrator.
+ *
+ * Every upload is written to an UploadJournal before it is first sent, so it
+ * survives a failed transmission or a restart of the unit. A background
+ * thread sends the pending uploads in the order they were made, holding one
+ * VPN connection open for all the uploads it sends in one go. Before each
+ * attempt it waits for a delay which doubles with each failure, with jitter,
+ * from minRetryDelay up to maxRetryDelay. An upload is only sent by one thread
+ * at a time, so an upload being sent directly is never sent again by the
+ * background thread at the same time
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadOutbox implements Runnable {
+
+    /**
+     * Sends an upload to the concentrator
+     */
+    public interface Sender {
+
+        /**
+         * Send an upload
+         *
+         * @param upload encrypted upload
+         * @return null if the concentrator accepted the upload or the reason
+         * it refused it, in which case it is not sent again
+         * @throws Exception if the upload could not be sent and should be
+         * retried
+         */
+        String send(EncryptedAndSignedUploadDO upload) throws Exception;
+    }
+
+    private final UploadJournal journal;
+    private final Sender sender;
+    private final long minRetryDelay;
+    private final long maxRetryDelay;
+    private final Set<String> sending = Collections.synchronizedSet(new HashSet<>());
+    private final Object wake = new Object();
+    private boolean woken = false;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * Constructor
+     *
+     * @param journalFile file holding the journal of pending uploads
+     * @param maxSize maximum size in bytes of the journal
+     * @param sender sends an upload to the concentrator
+     * @param minRetryDelay delay in milliseconds after the first failed
+     * attempt
+     * @param maxRetryDelay longest delay in milliseconds between attempts
+     * @throws IOException if the journal cannot be opened
+     */
+    public UploadOutbox(File journalFile, long maxSize, Sender sender, long minRetryDelay, long maxRetryDelay) throws IOException {
+        this.journal = new UploadJournal(journalFile, maxSize);
+        this.sender = sender;
+        this.minRetryDelay = minRetryDelay;
+        this.maxRetryDelay = Math.max(minRetryDelay, maxRetryDelay);
+    }
+
+    /**
+     * Start the background sender
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "medipi-upload-outbox");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the background sender. Pending uploads stay in the journal
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Add an upload to the outbox
+     *
+     * @param upload encrypted upload
+     * @return false if the outbox is full and the upload was not added
+     * @throws IOException if the upload cannot be written to the journal
+     */
+    public boolean add(EncryptedAndSignedUploadDO upload) throws IOException {
+        return journal.add(upload);
+    }
+
+    /**
+     * Send an upload in the outbox straight away. An upload which is not sent
+     * is left for the background sender to retry
+     *
+     * @param upload encrypted upload which has been added to the outbox
+     * @return null if the concentrator accepted the upload or the reason it
+     * refused it
+     * @throws Exception if the upload could not be sent
+     */
+    public String sendNow(EncryptedAndSignedUploadDO upload) throws Exception {
+        if (!sending.add(upload.getUploadUuid())) {
+            throw new IllegalStateException("Upload " + upload.getUploadUuid() + " is already being sent");
+        }
+        try {
+            String refusal = sender.send(upload);
+            journal.remove(upload.getUploadUuid());
+            return refusal;
+        } catch (Exception e) {
+            wake();
+            throw e;
+        } finally {
+            sending.remove(upload.getUploadUuid());
+        }
+    }
+
+    /**
+     * @return number of uploads waiting to be sent
+     */
+    public int getPendingCount() {
+        return journal.size();
+    }
+
+    /**
+     * Tell the background sender that there are uploads to retry
+     */
+    public void wake() {
+        synchronized (wake) {
+            woken = true;
+            wake.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        long delay = minRetryDelay;
+        while (running) {
+            try {
+                if (journal.size() == 0) {
+                    delay = minRetryDelay;
+                    waitForWake();
+                    continue;
+                }
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                if (drain()) {
+                    delay = minRetryDelay;
+                } else {
+                    delay = Math.min(delay * 2, maxRetryDelay);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send the pending uploads under one VPN connection
+     *
+     * @return true if there is nothing left to send
+     */
+    private boolean drain() {
+        if (journal.size() == 0) {
+            return true;
+        }
+        UUID uuid = UUID.randomUUID();
+        VPNServiceManager vpnm = null;
+        try {
+            vpnm = VPNServiceManager.getInstance();
+            if (vpnm.isEnabled()) {
+                vpnm.VPNConnection(VPNServiceManager.OPEN, uuid);
+            }
+            for (EncryptedAndSignedUploadDO upload : journal.getPending()) {
+                if (!running) {
+                    return false;
+                }
+                if (!journal.isPending(upload.getUploadUuid()) || !sending.add(upload.getUploadUuid())) {
+                    continue;
+                }
+                try {
+                    String refusal = sender.send(upload);
+                    if (refusal == null) {
+                        MediPiLogger.getInstance().log(UploadOutbox.class.getName() + ".info", "Queued upload sent - MediPiUploadEnvelope UUID: " + upload.getUploadUuid());
+                    } else {
+                        MediPiLogger.getInstance().log(UploadOutbox.class.getName() + ".error", "Queued upload refused by the concentrator and discarded - MediPiUploadEnvelope UUID: " + upload.getUploadUuid() + " - " + refusal);
+                    }
+                    journal.remove(upload.getUploadUuid());
+                } finally {
+                    sending.remove(upload.getUploadUuid());
+                }
+            }
+            return journal.size() == 0;
+        } catch (Exception e) {
+            MediPiLogger.getInstance().log(UploadOutbox.class.getName() + ".info", "Queued uploads not sent - " + journal.size() + " waiting: " + e.getLocalizedMessage());
+            return false;
+        } finally {
+            if (vpnm != null && vpnm.isEnabled()) {
+                try {
+                    vpnm.VPNConnection(VPNServiceManager.CLOSE, uuid);
+                } catch (Exception ex) {
+                    MediPiLogger.getInstance().log(UploadOutbox.class.getName(), ex);
+                }
+            }
+        }
+    }
+
+    private void waitForWake() throws InterruptedException {
+        synchronized (wake) {
+            while (!woken) {
+                wake.wait();
+            }
+            woken = false;
+        }
+    }
+}
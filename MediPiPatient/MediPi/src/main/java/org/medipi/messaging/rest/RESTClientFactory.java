@@ -0,0 +1,259 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.rest;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.medipi.MediPiMessageBox;
+import org.medipi.MediPiProperties;
+import org.medipi.logging.MediPiLogger;
+
+/**
+ * Class to create the RESTful client shared by every RESTfulMessagingEngine.
+ *
+ * The SSL context for the mutual authentication is created once, so the
+ * keystore and truststore are only read from disk once and TLS sessions are
+ * resumed rather than renegotiated in full. When pooling is enabled
+ * (medipi.transmit.pool.enabled) the client uses the Apache connector with a
+ * pool of keep-alive connections which are closed after
+ * medipi.transmit.pool.idletimeout seconds unused. A request waits at most
+ * medipi.transmit.pool.connectionrequesttimeout seconds for a pooled
+ * connection. Pooling is off unless the property is set. Connect and read
+ * timeouts are still set on each request by RESTfulMessagingEngine
+ *
+ * @author rick@robinsonhq.com
+ */
+public class RESTClientFactory {
+
+    private static final String MEDIPITRANSMITKEYSTORE = "medipi.device.cert.location";
+    private static final String MEDIPITRANSMITTRUSTSTORELOCATION = "medipi.transmit.truststore.location";
+    private static final String MEDIPITRANSMITTRUSTSTOREPASSWORD = "medipi.transmit.truststore.password";
+    private static final String MEDIPITRANSMITPOOLENABLED = "medipi.transmit.pool.enabled";
+    private static final String MEDIPITRANSMITPOOLMAXTOTAL = "medipi.transmit.pool.maxtotal";
+    private static final String MEDIPITRANSMITPOOLMAXPERROUTE = "medipi.transmit.pool.maxperroute";
+    private static final String MEDIPITRANSMITPOOLIDLETIMEOUT = "medipi.transmit.pool.idletimeout";
+    private static final String MEDIPITRANSMITPOOLCONNECTIONREQUESTTIMEOUT = "medipi.transmit.pool.connectionrequesttimeout";
+    private static final String MEDIPITRANSMITTLSSESSIONTIMEOUT = "medipi.transmit.tlssessiontimeout";
+
+    private static RESTClientFactory instance = null;
+
+    private final SSLContext sslContext;
+    private final Client client;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Constructor
+     *
+     * @param sslContext SSL context for the mutual authentication
+     * @param pooled true to use a pool of keep-alive connections
+     * @param maxTotal maximum number of pooled connections
+     * @param maxPerRoute maximum number of pooled connections to each server
+     * @param idleTimeout time in seconds after which an unused pooled
+     * connection is closed
+     * @param connectionRequestTimeout time in seconds a request waits for a
+     * pooled connection before failing
+     */
+    public RESTClientFactory(SSLContext sslContext, boolean pooled, int maxTotal, int maxPerRoute, int idleTimeout, int connectionRequestTimeout) {
+        this.sslContext = sslContext;
+        ClientConfig clientConfig = new ClientConfig();
+        if (pooled) {
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("https", new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER))
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .build();
+            connectionManager = new PoolingHttpClientConnectionManager(registry);
+            connectionManager.setMaxTotal(maxTotal);
+            connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+            clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+            // the connect and socket timeouts of each request are taken from the request properties
+            clientConfig.property(ApacheClientProperties.REQUEST_CONFIG, RequestConfig.custom()
+                    .setConnectionRequestTimeout(connectionRequestTimeout * 1000)
+                    .build());
+            clientConfig.connectorProvider(new ApacheConnectorProvider());
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "medipi-connection-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            evictor.scheduleWithFixedDelay(() -> {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+            }, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+        } else {
+            connectionManager = null;
+            evictor = null;
+        }
+        client = ClientBuilder.newBuilder()
+                .withConfig(clientConfig)
+                .sslContext(sslContext)
+                .hostnameVerifier((hostname, sslSession) -> {
+                    // verify is not necessary
+                    return true;
+                })
+                .build();
+    }
+
+    /**
+     * Get the shared factory, creating it from the MediPi properties the first
+     * time it is used. The device keystore password is only available once
+     * the device has been authenticated
+     *
+     * @return the shared factory
+     * @throws Exception if the SSL context cannot be created
+     */
+    public static synchronized RESTClientFactory getInstance() throws Exception {
+        if (instance == null) {
+            Properties properties = MediPiProperties.getInstance().getProperties();
+            SSLContext sslContext = createSSLContext(properties);
+            int sessionTimeout = getInt(properties, MEDIPITRANSMITTLSSESSIONTIMEOUT, 86400);
+            sslContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
+            String pooled = properties.getProperty(MEDIPITRANSMITPOOLENABLED);
+            instance = new RESTClientFactory(sslContext,
+                    pooled != null && pooled.trim().toLowerCase().startsWith("y"),
+                    getInt(properties, MEDIPITRANSMITPOOLMAXTOTAL, 10),
+                    getInt(properties, MEDIPITRANSMITPOOLMAXPERROUTE, 5),
+                    getInt(properties, MEDIPITRANSMITPOOLIDLETIMEOUT, 30),
+                    getInt(properties, MEDIPITRANSMITPOOLCONNECTIONREQUESTTIMEOUT, 30));
+        }
+        return instance;
+    }
+
+    /**
+     * @return the shared client
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * @return the shared SSL context
+     */
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * Close the pooled connections which are not in use - for example when the
+     * VPN they were made over has been closed
+     */
+    public void closeIdleConnections() {
+        if (connectionManager != null) {
+            connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close the client and all its connections
+     */
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        client.close();
+    }
+
+    private static int getInt(Properties properties, String key, int defaultValue) {
+        String s = properties.getProperty(key);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            MediPiLogger.getInstance().log(RESTClientFactory.class.getName() + ".error", key + " is not a number - using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static SSLContext createSSLContext(Properties properties) throws Exception {
+        String truststoreLocation = properties.getProperty(MEDIPITRANSMITTRUSTSTORELOCATION);
+        if (truststoreLocation == null || truststoreLocation.trim().equals("")) {
+            MediPiLogger.getInstance().log(RESTClientFactory.class.getName() + "constructor", "MediPi truststore is not set");
+            MediPiMessageBox.getInstance().makeErrorMessage("MediPi truststore is not set and secure transmission of data will not work", null);
+        }
+        String truststorePass = properties.getProperty(MEDIPITRANSMITTRUSTSTOREPASSWORD);
+        if (truststorePass == null || truststorePass.trim().equals("")) {
+            MediPiLogger.getInstance().log(RESTClientFactory.class.getName() + "constructor", "MediPi truststore password is not set");
+            MediPiMessageBox.getInstance().makeErrorMessage("MediPi truststore password is not set and secure transmission of data will not work", null);
+        }
+        String keystoreLocation = properties.getProperty(MEDIPITRANSMITKEYSTORE);
+        if (keystoreLocation == null || keystoreLocation.trim().equals("")) {
+            MediPiLogger.getInstance().log(RESTClientFactory.class.getName() + "constructor", "MediPi keystore is not set");
+            MediPiMessageBox.getInstance().makeErrorMessage("MediPi keystore is not set and secure transmission of data will not work", null);
+        }
+        String keystorePass = System.getProperty("medipi.device.macaddress");
+        return createSSLContext(keystoreLocation, keystorePass, truststoreLocation, truststorePass);
+    }
+
+    /**
+     * Create an SSL context for mutual authentication
+     *
+     * @param keystoreLocation location of the JKS holding the client key
+     * @param keystorePass password of the keystore
+     * @param truststoreLocation location of the JKS holding the trusted
+     * certificates
+     * @param truststorePass password of the truststore
+     * @return the SSL context
+     * @throws Exception if the stores cannot be loaded
+     */
+    public static SSLContext createSSLContext(String keystoreLocation, String keystorePass, String truststoreLocation, String truststorePass) throws Exception {
+        KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
+
+        TrustManagerFactory tmf
+                = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+
+        KeyStore keyStore = loadStore(keystoreLocation, keystorePass);
+
+        KeyManagerFactory kmf
+                = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, keystorePass.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
+
+        return sslContext;
+    }
+
+    private static KeyStore loadStore(String storeFile, String password) throws Exception {
+        KeyStore store = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(storeFile)) {
+            store.load(in, password.toCharArray());
+        }
+        return store;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package org.medipi.messaging.rest;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.UUID;
 import javax.ws.rs.ProcessingException;
@@ -22,6 +24,7 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Response;
 import org.medipi.devices.Transmitter;
 import org.medipi.logging.MediPiLogger;
+import org.medipi.messaging.outbox.UploadOutbox;
 import org.medipi.messaging.vpn.VPNServiceManager;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 
@@ -29,15 +32,29 @@ import org.medipi.model.EncryptedAndSignedUploadDO;
  * Concrete class to call the Restful Transmitter and return the outcome.
  *
  * The Restful Transmitter instance accepts an EncryptedAndSignedDO and will
- * transmit it to the concentrator using the restful interface on there
+ * transmit it to the concentrator using the restful interface on there.
+ *
+ * When an outbox is configured (medipi.transmit.outbox.location) each upload
+ * is written to it before it is sent. An upload which cannot be sent because
+ * the concentrator cannot be reached is kept in the outbox and sent later in
+ * the background, so the reading is not lost and the patient does not need to
+ * send it again. Only an upload the concentrator refuses outright (400, 404,
+ * 406, 417 or 426) is discarded - any other failure, such as a 5xx, 429 or
+ * 408, keeps it in the outbox to be retried
  *
  * @author rick@robinsonhq.com
  */
 public class RESTTransmitter extends Transmitter {
 
     private static final String MEDIPITRANSMITRESOURCEPATH = "medipi.transmit.resourcepath";
+    private static final String MEDIPITRANSMITOUTBOXLOCATION = "medipi.transmit.outbox.location";
+    private static final String MEDIPITRANSMITOUTBOXMAXSIZE = "medipi.transmit.outbox.maxsize";
+    private static final String MEDIPITRANSMITOUTBOXMINRETRYDELAY = "medipi.transmit.outbox.minretrydelay";
+    private static final String MEDIPITRANSMITOUTBOXMAXRETRYDELAY = "medipi.transmit.outbox.maxretrydelay";
+    private static final String QUEUEDRESPONSE = "Your recordings could not be sent to your clinician just now. They have been saved and will be sent automatically when the connection is available.";
 
     private RESTfulMessagingEngine rme;
+    private UploadOutbox outbox = null;
 
     private String resourcePath;
     private String transmissionResponse = "";
@@ -70,6 +87,25 @@ public class RESTTransmitter extends Transmitter {
         String[] params = {"{deviceId}", "{patientId}"};
         rme = new RESTfulMessagingEngine(resourcePath + "patientupload", params);
 
+        String outboxLocation = medipi.getProperties().getProperty(MEDIPITRANSMITOUTBOXLOCATION);
+        if (outboxLocation != null && outboxLocation.trim().length() > 0) {
+            try {
+                outbox = new UploadOutbox(new File(outboxLocation.trim()),
+                        getLong(MEDIPITRANSMITOUTBOXMAXSIZE, 52428800L),
+                        this::send,
+                        getLong(MEDIPITRANSMITOUTBOXMINRETRYDELAY, 30L) * 1000,
+                        getLong(MEDIPITRANSMITOUTBOXMAXRETRYDELAY, 1800L) * 1000);
+                outbox.start();
+                if (outbox.getPendingCount() > 0) {
+                    MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", outbox.getPendingCount() + " uploads waiting in the outbox to be sent");
+                    outbox.wake();
+                }
+            } catch (Exception e) {
+                MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Cannot open the upload outbox: " + outboxLocation + " - uploads will not be retried " + e.getLocalizedMessage());
+                outbox = null;
+            }
+        }
+
         return super.init();
     }
 
@@ -83,6 +119,7 @@ public class RESTTransmitter extends Transmitter {
     public Boolean transmit(EncryptedAndSignedUploadDO message) {
         UUID uuid = UUID.randomUUID();
         VPNServiceManager vpnm = null;
+        boolean queued = false;
         try {
             //Collect patient and hardware device names to be used as part of the restful path
             String patientCertName = System.getProperty("medipi.patient.cert.name");
@@ -97,58 +134,42 @@ public class RESTTransmitter extends Transmitter {
                 MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Device identity not set");
                 return false;
             }
+            // keep the upload safe before trying to send it
+            if (outbox != null) {
+                try {
+                    queued = outbox.add(message);
+                } catch (IOException e) {
+                    MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Cannot add upload " + message.getUploadUuid() + " to the outbox - it will be sent once without being kept for retry " + e.getLocalizedMessage());
+                }
+            }
             vpnm = VPNServiceManager.getInstance();
             if (vpnm.isEnabled()) {
                 vpnm.VPNConnection(VPNServiceManager.OPEN, uuid);
             }
-            HashMap<String, Object> params = new HashMap<>();
-            params.put("deviceId", deviceCertName);
-            params.put("patientId", patientCertName);
-
-            HashMap<String, String> headers = new HashMap<>();
-            headers.put("Data-Format", "MediPiNative");
 
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload started - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
 
-            Response postResponse = rme.executePut(params, Entity.json(message), headers);
-
-            if (postResponse != null) {
-                System.out.println("PatientUpload returned status = " + postResponse.getStatus());
-                //POSITIVE RESPONSE
-                if (postResponse.getStatus() == Response.Status.OK.getStatusCode() || postResponse.getStatus() == Response.Status.ACCEPTED.getStatusCode()) {
-                    MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload successfully sent - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
-                    transmissionResponse = "Thank you! Your recordings have been sent to your clinician.";
-                    return true;
-                } else {
-                    //ERROR RESPONSE
-                    switch (postResponse.getStatus()) {
-                        // BAD REQUEST
-                        case 400:
-                        // ***************** DO SOMETHING WITH 400 *******************
-                        // NOT FOUND
-                        case 404:
-                        // This is returned when the hardware name and patientId do not match
-                        // ***************** DO SOMETHING WITH 404 *******************
-                        // NOT ACCEPTABLE
-                        case 406:
-                        // ***************** DO SOMETHING WITH 406 *******************
-                        case 417:
-                        // UPDATE REQUIRED
-                        case 426:
-                        // ***************** DO SOMETHING WITH 426 *******************
-                        // INTERNAL SERVER ERROR    
-                        case 500:
-                        default:
-                            transmissionResponse = postResponse.readEntity(String.class);
-                            return false;
-                    }
-                }
+            String refusal = queued ? outbox.sendNow(message) : send(message);
+            //POSITIVE RESPONSE
+            if (refusal == null) {
+                MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload successfully sent - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
+                transmissionResponse = "Thank you! Your recordings have been sent to your clinician.";
+                return true;
+            } else {
+                transmissionResponse = refusal;
+                return false;
             }
         } catch (ProcessingException pe) {
+            if (queued) {
+                return queuedForRetry(message, pe);
+            }
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Attempt to send data failed - MediPi Concentrator is not available - please try again later. " + pe.getLocalizedMessage());
             transmissionResponse = "Attempt to send data failed - MediPi Concentrator is not available - please try again later.";
             return false;
         } catch (Exception ex) {
+            if (queued) {
+                return queuedForRetry(message, ex);
+            }
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", "Error transmitting message to recipient: " + ex.getLocalizedMessage());
             transmissionResponse = "Error transmitting message to recipient: " + ex.getLocalizedMessage();
             return false;
@@ -161,7 +182,87 @@ public class RESTTransmitter extends Transmitter {
                 }
             }
         }
-        return false;
+    }
+
+    /**
+     * Send an upload to the concentrator. The VPN must already be open
+     *
+     * @param message - Encrypted and signed payload to be transmitted
+     * @return null if the concentrator accepted the upload or the reason it
+     * was refused
+     * @throws Exception if the concentrator could not be reached or could not
+     * handle the upload just now
+     */
+    private String send(EncryptedAndSignedUploadDO message) throws Exception {
+        HashMap<String, Object> params = new HashMap<>();
+        params.put("deviceId", System.getProperty("medipi.device.cert.name"));
+        params.put("patientId", System.getProperty("medipi.patient.cert.name"));
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Data-Format", "MediPiNative");
+
+        Response postResponse = rme.executePut(params, Entity.json(message), headers);
+        try {
+            int status = postResponse.getStatus();
+            System.out.println("PatientUpload returned status = " + status);
+            //POSITIVE RESPONSE
+            if (status == Response.Status.OK.getStatusCode() || status == Response.Status.ACCEPTED.getStatusCode()) {
+                return null;
+            } else if (isRefusal(status)) {
+                return postResponse.readEntity(String.class);
+            } else {
+                // INTERNAL SERVER ERROR, SERVICE UNAVAILABLE, TOO MANY REQUESTS, REQUEST TIMEOUT etc - try again later
+                throw new ProcessingException("MediPi Concentrator returned status " + status);
+            }
+        } finally {
+            // release the connection back to the pool
+            postResponse.close();
+        }
+    }
+
+    /**
+     * Whether the concentrator has refused an upload outright, so that
+     * sending it again would not succeed
+     *
+     * @param status HTTP status returned by the concentrator
+     * @return true if the upload should be discarded rather than retried
+     */
+    static boolean isRefusal(int status) {
+        switch (status) {
+            // BAD REQUEST
+            case 400:
+            // NOT FOUND
+            case 404:
+            // This is returned when the hardware name and patientId do not match
+            // NOT ACCEPTABLE
+            case 406:
+            // EXPECTATION FAILED
+            case 417:
+            // UPDATE REQUIRED
+            case 426:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Boolean queuedForRetry(EncryptedAndSignedUploadDO message, Exception e) {
+        MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload kept in the outbox to be sent later - MediPiUploadEnvelope UUID: " + message.getUploadUuid() + " " + e.getLocalizedMessage());
+        transmissionResponse = QUEUEDRESPONSE;
+        return true;
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String s = medipi.getProperties().getProperty(key);
+        if (s == null || s.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".error", key + " is not a number - using " + defaultValue);
+            return defaultValue;
+        }
     }
 
     @Override
@@ -15,52 +15,57 @@
  */
 package org.medipi.messaging.rest;
 
-import java.io.FileInputStream;
-import java.net.ConnectException;
-import java.security.KeyStore;
-import java.security.SecureRandom;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.UUID;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
-import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import org.glassfish.jersey.client.ClientProperties;
-import org.medipi.MediPiMessageBox;
 import org.medipi.MediPiProperties;
-import org.medipi.logging.MediPiLogger;
-import org.medipi.messaging.vpn.VPNServiceManager;
 
 /**
- * This Message engine class manages the SSL context for the mutual
- * authentication of the data in transit and allows a common interface for
- * calling the restful verbs GET, PUT and POST
+ * This Message engine class allows a common interface for calling the restful
+ * verbs GET, PUT and POST. The client, and the SSL context for the mutual
+ * authentication of the data in transit, are shared by every engine using
+ * RESTClientFactory.
  *
+ * Requests may be made from more than one thread at once so that, for
+ * example, a slow upload does not hold up download polling and
+ * acknowledgements. Each request is made asynchronously and the blocking
+ * execute methods simply wait for the result. At most
+ * medipi.transmit.maxinflight requests are in flight on one engine at a time;
+ * further requests are queued and started in order as earlier ones complete.
+ * Cancelling the future of a request which is queued or in flight abandons it
+ * and releases its place
  *
  * @author rick@robinsonhq.com
  */
 public class RESTfulMessagingEngine {
 
-    private static final String MEDIPITRANSMITKEYSTORE = "medipi.device.cert.location";
-    private static final String MEDIPITRANSMITTRUSTSTORELOCATION = "medipi.transmit.truststore.location";
-    private static final String MEDIPITRANSMITTRUSTSTOREPASSWORD = "medipi.transmit.truststore.password";
     private static final String MEDIPITRANSMITCONNECTTIMEOUT = "medipi.transmit.connecttimeout";
     private static final String MEDIPITRANSMITREADTIMEOUT = "medipi.transmit.readtimeout";
+    private static final String MEDIPITRANSMITMAXINFLIGHT = "medipi.transmit.maxinflight";
     private Integer connectTimeout = 10000;
     private Integer readTimeout = 10000;
+    private int maxInFlight = 4;
     private final WebTarget trackingTarget;
+    private final Semaphore inFlight;
+    private final Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
 
     /**
-     * Creates the SSL context and constructs foundations for RESTful messaging
+     * Constructs foundations for RESTful messaging using the shared client
      *
      * @param urlPath of the RESTful interface
      * @param params to be added to the base target
@@ -78,23 +83,15 @@ public class RESTfulMessagingEngine {
                     readTO = "15000"; //Default 15 seconds in milliseconds
                 }
                 readTimeout = Integer.parseInt(readTO);
+                String maxIF = MediPiProperties.getInstance().getProperties().getProperty(MEDIPITRANSMITMAXINFLIGHT);
+                if (maxIF != null && maxIF.trim().length() != 0) {
+                    maxInFlight = Math.max(1, Integer.parseInt(maxIF.trim()));
+                }
             } catch (Exception nfe) {
             }
+        inFlight = new Semaphore(maxInFlight);
 
-        ClientBuilder builder = ClientBuilder.newBuilder();
-
-        SSLContext sslContext = createSSLContext();
-        builder.sslContext(sslContext);
-        builder.hostnameVerifier(new javax.net.ssl.HostnameVerifier() {
-
-            public boolean verify(String hostname,
-                    javax.net.ssl.SSLSession sslSession) {
-                // verify is not necessary
-                return true;
-            }
-        });
-
-        Client client = builder.build();
+        Client client = RESTClientFactory.getInstance().getClient();
 
         WebTarget baseTarget = client.target(urlPath);
         String paramCat = "";
@@ -107,75 +104,67 @@ public class RESTfulMessagingEngine {
 
     }
 
-    private SSLContext createSSLContext() throws Exception {
-        String truststoreLocation = MediPiProperties.getInstance().getProperties().getProperty(MEDIPITRANSMITTRUSTSTORELOCATION);
-        if (truststoreLocation == null || truststoreLocation.trim().equals("")) {
-            MediPiLogger.getInstance().log(RESTfulMessagingEngine.class.getName() + "constructor", "MediPi truststore is not set");
-            MediPiMessageBox.getInstance().makeErrorMessage("MediPi truststore is not set and secure transmission of data will not work", null);
-        }
-        String truststorePass = MediPiProperties.getInstance().getProperties().getProperty(MEDIPITRANSMITTRUSTSTOREPASSWORD);
-        if (truststorePass == null || truststorePass.trim().equals("")) {
-            MediPiLogger.getInstance().log(RESTfulMessagingEngine.class.getName() + "constructor", "MediPi truststore password is not set");
-            MediPiMessageBox.getInstance().makeErrorMessage("MediPi truststore password is not set and secure transmission of data will not work", null);
-        }
-        String keystoreLocation = MediPiProperties.getInstance().getProperties().getProperty(MEDIPITRANSMITKEYSTORE);
-        if (keystoreLocation == null || keystoreLocation.trim().equals("")) {
-            MediPiLogger.getInstance().log(RESTfulMessagingEngine.class.getName() + "constructor", "MediPi keystore is not set");
-            MediPiMessageBox.getInstance().makeErrorMessage("MediPi keystore is not set and secure transmission of data will not work", null);
-        }
-        String keystorePass = System.getProperty("medipi.device.macaddress");
-
-        KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
-
-        TrustManagerFactory tmf
-                = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        tmf.init(trustStore);
-
-        KeyStore keyStore = loadStore(keystoreLocation, keystorePass);
-
-        KeyManagerFactory kmf
-                = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        kmf.init(keyStore, keystorePass.toCharArray());
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
-
-        return sslContext;
-    }
-
-    private KeyStore loadStore(String trustStoreFile, String password) throws Exception {
-        KeyStore store = KeyStore.getInstance("JKS");
-        store.load(new FileInputStream(trustStoreFile), password.toCharArray());
-        return store;
+    /**
+     * Common interface for executing RESTful GET requests
+     *
+     * @param params hashmap of parameters to be added to the target URL
+     * @return Response
+     */
+    public Response executeGet(HashMap<String, Object> params) throws Exception {
+        return executeGet(params, null);
     }
 
     /**
      * Common interface for executing RESTful GET requests
      *
      * @param params hashmap of parameters to be added to the target URL
+     * @param header hashmap representation of bespoke header name and value to
+     * be added to the message - may be null
      * @return Response
+     * @throws Exception
      */
-    public synchronized Response executeGet(HashMap<String, Object> params) throws Exception {
+    public Response executeGet(HashMap<String, Object> params, Map<String, String> header) throws Exception {
         System.out.println("START get");
-        WebTarget wt;
-        if (params != null) {
-            wt = trackingTarget
-                    .resolveTemplates(params);
-        } else {
-            wt = trackingTarget;
-        }
-        Invocation.Builder request = wt.request(MediaType.APPLICATION_JSON);
-
-        // overriden timeout value for this request
-        request.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
-        request.property(ClientProperties.READ_TIMEOUT, readTimeout);
-
-        Response listResponse = request
-                .header("Content-Type", MediaType.APPLICATION_JSON)
-                .get();
-
+        Response listResponse = await(executeGetAsync(params, header));
         System.out.println("END get");
         return listResponse;
+    }
+
+    /**
+     * Asynchronous interface for executing RESTful GET requests
+     *
+     * @param params hashmap of parameters to be added to the target URL
+     * @param header hashmap representation of bespoke header name and value to
+     * be added to the message - may be null
+     * @return future of the Response
+     */
+    public CompletableFuture<Response> executeGetAsync(HashMap<String, Object> params, Map<String, String> header) {
+        Invocation.Builder request = buildRequest(params, header)
+                .header("Content-Type", MediaType.APPLICATION_JSON);
+        return submit(request, HttpMethod.GET, null);
+    }
 
+    /**
+     * Interface for opening a long lived stream using a RESTful GET request.
+     * This does not count towards the requests in flight as the stream is held
+     * open for as long as the server allows and must not hold up the other
+     * requests made using this engine
+     *
+     * @param params hashmap of parameters to be added to the target URL
+     * @param header hashmap representation of bespoke header name and value to
+     * be added to the message - may be null
+     * @param mediaType media type of the stream
+     * @param streamReadTimeout maximum time in milliseconds to wait for data
+     * on the stream
+     * @return Response whose entity is read as the stream arrives
+     * @throws Exception
+     */
+    public Response openStream(HashMap<String, Object> params, Map<String, String> header, String mediaType, int streamReadTimeout) throws Exception {
+        Invocation.Builder request = resolve(params).request(mediaType);
+        request.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
+        request.property(ClientProperties.READ_TIMEOUT, streamReadTimeout);
+        addHeaders(request, header);
+        return request.get();
     }
 
     /**
@@ -186,66 +175,175 @@ public class RESTfulMessagingEngine {
      * @param e Entity representation of the payload
      * @return Response
      */
-    public synchronized Response executePost(HashMap<String, Object> params, Entity<?> e) throws Exception {
+    public Response executePost(HashMap<String, Object> params, Entity<?> e) throws Exception {
         System.out.println("START post");
-        WebTarget wt;
-        if (params != null) {
-            wt = trackingTarget
-                    .resolveTemplates(params);
-        } else {
-            wt = trackingTarget;
-        }
-        Invocation.Builder request = wt.request(MediaType.APPLICATION_JSON);
-
-        // overriden timeout value for this request
-        request.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
-        request.property(ClientProperties.READ_TIMEOUT, readTimeout);
-
-        Response listResponse = request
-                .post(e);
-
+        Response listResponse = await(executePostAsync(params, e));
         System.out.println("END post");
-
         return listResponse;
+    }
 
+    /**
+     * Asynchronous interface for executing RESTful POST requests
+     *
+     * @param params hashmap of parameters to be added to the target URL
+     * @param e Entity representation of the payload
+     * @return future of the Response
+     */
+    public CompletableFuture<Response> executePostAsync(HashMap<String, Object> params, Entity<?> e) {
+        return submit(buildRequest(params, null), HttpMethod.POST, e);
     }
 
     /**
      *
-     * Common interface for executing RESTful POST requests
+     * Common interface for executing RESTful PUT requests
      *
      * @param params hashmap of parameters to be added to the target URL
      * @param e Entity representation of the payload
      * @param header hashmap representation of bespoke header name and value to
-     * be added to the message
+     * be added to the message - may be null. The map is not changed
      * @return Response
      * @throws Exception
      */
-    public synchronized Response executePut(HashMap<String, Object> params, Entity<?> e, HashMap<String, String> header) throws Exception {
+    public Response executePut(HashMap<String, Object> params, Entity<?> e, Map<String, String> header) throws Exception {
         System.out.println("START put");
-        WebTarget wt;
+        Response listResponse = await(executePutAsync(params, e, header));
+        System.out.println("END put");
+        return listResponse;
+    }
+
+    /**
+     * Asynchronous interface for executing RESTful PUT requests
+     *
+     * @param params hashmap of parameters to be added to the target URL
+     * @param e Entity representation of the payload
+     * @param header hashmap representation of bespoke header name and value to
+     * be added to the message - may be null. The map is not changed
+     * @return future of the Response
+     */
+    public CompletableFuture<Response> executePutAsync(HashMap<String, Object> params, Entity<?> e, Map<String, String> header) {
+        return submit(buildRequest(params, header), HttpMethod.PUT, e);
+    }
+
+    /**
+     * @return number of requests queued waiting for a place in flight
+     */
+    public int getQueued() {
+        return queued.size();
+    }
+
+    private WebTarget resolve(HashMap<String, Object> params) {
         if (params != null) {
-            wt = trackingTarget
-                    .resolveTemplates(params);
+            return trackingTarget.resolveTemplates(params);
         } else {
-            wt = trackingTarget;
+            return trackingTarget;
         }
+    }
 
-        Builder b = wt.request(MediaType.APPLICATION_JSON);
+    private Invocation.Builder buildRequest(HashMap<String, Object> params, Map<String, String> header) {
+        Invocation.Builder request = resolve(params).request(MediaType.APPLICATION_JSON);
         // overriden timeout value for this request
-        b.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
-        b.property(ClientProperties.READ_TIMEOUT, readTimeout);
-        if (header != null || !header.isEmpty()) {
-            Iterator it = header.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pair = (Map.Entry) it.next();
-                b.header(pair.getKey().toString(), pair.getValue());
-                it.remove();
+        request.property(ClientProperties.CONNECT_TIMEOUT, connectTimeout);
+        request.property(ClientProperties.READ_TIMEOUT, readTimeout);
+        addHeaders(request, header);
+        return request;
+    }
+
+    private void addHeaders(Invocation.Builder request, Map<String, String> header) {
+        if (header != null) {
+            for (Map.Entry<String, String> h : header.entrySet()) {
+                request.header(h.getKey(), h.getValue());
             }
         }
-        Response listResponse = b.put(e);
-        System.out.println("END put");
-        return listResponse;
+    }
+
+    /**
+     * Queue a request to be started as soon as there is a place in flight
+     */
+    private CompletableFuture<Response> submit(Invocation.Builder request, String method, Entity<?> e) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        queued.add(() -> start(request, method, e, result));
+        dispatch();
+        return result;
+    }
+
+    /**
+     * Start queued requests while there are places in flight
+     */
+    private void dispatch() {
+        while (!queued.isEmpty() && inFlight.tryAcquire()) {
+            Runnable next = queued.poll();
+            if (next == null) {
+                inFlight.release();
+            } else {
+                next.run();
+            }
+        }
+    }
+
+    private void start(Invocation.Builder request, String method, Entity<?> e, CompletableFuture<Response> result) {
+        AtomicBoolean released = new AtomicBoolean(false);
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                inFlight.release();
+                dispatch();
+            }
+        };
+        if (result.isDone()) {
+            // cancelled while queued
+            release.run();
+            return;
+        }
+        InvocationCallback<Response> callback = new InvocationCallback<Response>() {
+            @Override
+            public void completed(Response response) {
+                release.run();
+                if (!result.complete(response)) {
+                    // nobody is waiting for the response any more
+                    response.close();
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                release.run();
+                result.completeExceptionally(throwable);
+            }
+        };
+        try {
+            Future<Response> f;
+            if (e == null) {
+                f = request.async().method(method, callback);
+            } else {
+                f = request.async().method(method, e, callback);
+            }
+            result.whenComplete((r, t) -> {
+                if (result.isCancelled()) {
+                    f.cancel(true);
+                    release.run();
+                }
+            });
+        } catch (RuntimeException re) {
+            release.run();
+            result.completeExceptionally(re);
+        }
+    }
+
+    /**
+     * Wait for a request, cancelling it if the waiting thread is interrupted,
+     * and rethrow the cause of a failed request
+     */
+    private Response await(CompletableFuture<Response> future) throws Exception {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            future.cancel(true);
+            throw ie;
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof Exception) {
+                throw (Exception) ee.getCause();
+            }
+            throw ee;
+        }
     }
 
 }
@@ -15,13 +15,11 @@
  */
 package org.medipi.messaging.vpn;
 
-import java.time.Instant;
-import java.util.HashMap;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import javafx.beans.property.IntegerProperty;
-import javafx.concurrent.Task;
 import org.medipi.MediPiProperties;
+import org.medipi.logging.MediPiLogger;
+import org.medipi.messaging.rest.RESTClientFactory;
 
 /**
  * Service singleton class to manage the connection to the VPN which allows
@@ -29,8 +27,10 @@ import org.medipi.MediPiProperties;
  *
  * As well as allowing the VPN connection to be managed on demand by the calling
  * program - this can also be disabled with the expectation that the VPN
- * connection is already up, managed by another entity. The period after which
- * connection is successfully made can also be configured.
+ * connection is already up, managed by another entity. The tunnel is shared by
+ * all the callers using a VPNSessionManager: it is kept up while any caller
+ * has it open and for medipi.vpn.keepaliveperiod seconds after the last caller
+ * has closed it.
  *
  * @author rick@robinsonhq.com
  */
@@ -40,17 +40,14 @@ public class VPNServiceManager {
     public static final int OPEN = 1;
     public static final int CLOSE = 0;
 
-    HashMap<UUID, Instant> currentConnections = new HashMap<>();
     private static final String VPNKEEPALIVEPERIOD = "medipi.vpn.keepaliveperiod";
     VPNConnectionManager manager = null;
     private static final String CONFIGFILELOCATION = "medipi.vpn.configlocation";
     private static final String MEDIPIVPNENABLE = "medipi.vpn.enable";
     private boolean enableVPN = true;
-    private long expireTime;
-    private boolean stopTimer;
-    private int expirePeriod = 10;
+    private int expirePeriod = 60000;
     private static Exception bootException = null;
-    private Task<String> task = null;
+    private VPNSessionManager sessionManager = null;
 
     private VPNServiceManager() {
         try {
@@ -65,16 +62,38 @@ public class VPNServiceManager {
             String config = MediPiProperties.getInstance().getProperties().getProperty(CONFIGFILELOCATION);
             manager = new VPNConnectionManager(config);
             String s = MediPiProperties.getInstance().getProperties().getProperty(VPNKEEPALIVEPERIOD);
-            if (s != null) {
-                expirePeriod = Integer.parseInt(s) * 1000;
+            if (s != null && s.trim().length() > 0) {
+                expirePeriod = Integer.parseInt(s.trim()) * 1000;
                 if (expirePeriod < 0) {
                     bootException = new Exception("The VPN keep alive period is not a positive integer");
                 }
             }
+            sessionManager = new VPNSessionManager(new VPNSessionManager.Tunnel() {
+                @Override
+                public void up() throws Exception {
+                    manager.up();
+                }
+
+                @Override
+                public void down() throws Exception {
+                    manager.down();
+                    closePooledConnections();
+                }
+
+                @Override
+                public boolean isAlive() throws Exception {
+                    if (VPNConnectionManager.hasTunnel()) {
+                        return true;
+                    }
+                    MediPiLogger.getInstance().log(VPNServiceManager.class.getName() + ".error", "VPN tunnel has gone down - reconnecting");
+                    // connections made over the dead tunnel cannot be reused
+                    closePooledConnections();
+                    return false;
+                }
+            }, expirePeriod);
         } catch (Exception e) {
             bootException = new Exception("An unexpected issue has occured when loading the VPN configurations" + e);
         }
-        stopTimer = false;
 
     }
 
@@ -85,110 +104,38 @@ public class VPNServiceManager {
         return VPNManagerHolder.INSTANCE;
     }
 
-    public synchronized void VPNConnection(int command, UUID uuid) throws Exception {
+    /**
+     * Open or close a caller's use of the VPN connection
+     *
+     * @param command OPEN or CLOSE
+     * @param uuid identifies the caller's use of the connection
+     * @throws Exception if the VPN connection cannot be opened
+     */
+    public void VPNConnection(int command, UUID uuid) throws Exception {
         if (command == OPEN) {
-            openConnection(uuid);
-        } else if (command == CLOSE) {
-            closeConnection(uuid);
-        }
-
-    }
-
-    private void closeConnection(UUID uuid) {
-        try {
-            //if there is still > 1 connections open dont close 
-            if (currentConnections.size() == 1) {
-                try {
-                    manager.down();
-                    System.out.println("VPN connection shutdown");
-                    currentConnections.remove(uuid);
-                    System.out.println("removed: " + uuid + " size = " + currentConnections.size());
-                } catch (Exception ex) {
-                    System.out.println("Manager failed to close VPN connection: " + ex.getLocalizedMessage());
-                }
-            } else {
-                currentConnections.remove(uuid);
-                System.out.println("removed: " + uuid + " size = " + currentConnections.size());
+            int connects = sessionManager.getConnectCount();
+            sessionManager.acquire(uuid);
+            if (sessionManager.getConnectCount() != connects) {
+                MediPiLogger.getInstance().log(VPNServiceManager.class.getName() + ".info", "VPN connected in " + sessionManager.getLastConnectLatency() + "ms (mean " + sessionManager.getMeanConnectLatency() + "ms over " + sessionManager.getConnectCount() + " connections)");
             }
-        } catch (Exception ex) {
-            //do nothing as there is no vpn to close
+        } else if (command == CLOSE) {
+            sessionManager.release(uuid);
         }
     }
 
-    private void openConnection(UUID uuid) throws Exception {
-        // when makes a new connection up method returns true
-        manager.up();
-        // any failures in "up" method" throw exception
-        currentConnections.put(uuid, Instant.now());
-        System.out.println("added: " + uuid + " size = " + currentConnections.size());
-    }
-
-//    private void keepAliveClock() {
-//        task = new Task<String>() {
-//            @Override
-//            protected String call() throws Exception {
-//                String operationStatus = "Unknown error";
-//                while (expireTime > System.currentTimeMillis() || expirePeriod == 0) {
-//                    if (stopTimer) {
-//                        break;
-//                    }
-//                    try {
-//                        System.out.println("sleep");
-//                        Thread.sleep(1000);
-//                    } catch (InterruptedException ex) {
-//                        System.out.println("VPN Timer Sleep interrupted " + ex.getLocalizedMessage());
-//                    }
-//                }
-//                stopTimer = false;
-//                try {
-//                    System.out.println("shutdown");
-//                    manager.down();
-//                } catch (Exception ex) {
-//                    System.out.println("Manager failed to close VPN connection: " + ex.getLocalizedMessage());
-//                }
-//                return operationStatus;
-//            }
-//
-//            // the measure of completion and success is returning "SUCCESS"
-//            // all other outcomes indicate failure and pipe the failure
-//            // reason given from the device to the error message box
-//            @Override
-//            protected void succeeded() {
-//                super.succeeded();
-//            }
-//
-//            @Override
-//            protected void scheduled() {
-//                super.scheduled();
-//            }
-//
-//            @Override
-//            protected void failed() {
-//                super.failed();
-//            }
-//
-//            @Override
-//            protected void cancelled() {
-//                super.failed();
-//            }
-//        };
-//
-//        new Thread(task).start();
-//    }
     /**
-     * A method to reset the timer to the original timeout period as defined by
-     * the timeout configuration
+     * Close the VPN connection straight away - for example when MediPi is
+     * closing
      */
-//    public void reset() {
-//        expireTime = System.currentTimeMillis() + expirePeriod;
-//    }
+    public void shutdown() {
+        sessionManager.shutdown();
+    }
+
     /**
-     * A method to stop the timer without closing the connection as this is
-     * expected to be handled by the Pipelining queue which has the
-     * responsibility in normal operation
+     * @return the session manager sharing the VPN tunnel
      */
-    public void stopTimer() {
-        stopTimer = true;
+    public VPNSessionManager getSessionManager() {
+        return sessionManager;
     }
 
     public void setVPNConnectionIndicator(IntegerProperty connectionIndicator) {
@@ -200,6 +147,14 @@ public class VPNServiceManager {
         return enableVPN;
     }
 
+    private void closePooledConnections() {
+        try {
+            RESTClientFactory.getInstance().closeIdleConnections();
+        } catch (Exception e) {
+            // no client has been created so there are no connections
+        }
+    }
+
     private static class VPNManagerHolder {
 
         private static final VPNServiceManager INSTANCE = new VPNServiceManager();
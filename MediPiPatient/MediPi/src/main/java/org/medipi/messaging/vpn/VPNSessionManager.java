@@ -0,0 +1,249 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.vpn;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to share one VPN tunnel between everything which needs to reach the
+ * MediPi Concentrator.
+ *
+ * Each user of the tunnel acquires a session with its own UUID and releases it
+ * when it has finished. The tunnel is brought up by the first user and is kept
+ * up while any session is held. When the last session is released the tunnel
+ * is kept up for the idle timeout so that work which follows soon afterwards -
+ * for example an acknowledgement after a download poll - does not have to wait
+ * for the tunnel to be set up again. A tunnel which has gone down while it was
+ * thought to be up is noticed when the next session is acquired and is brought
+ * up again.
+ *
+ * Only one thread brings the tunnel up or down at a time. Threads acquiring a
+ * session while the tunnel is being brought up wait for it rather than
+ * starting another connection
+ *
+ * @author rick@robinsonhq.com
+ */
+public class VPNSessionManager {
+
+    /**
+     * The VPN tunnel being shared
+     */
+    public interface Tunnel {
+
+        /**
+         * Bring the tunnel up
+         *
+         * @throws Exception if the tunnel cannot be brought up
+         */
+        void up() throws Exception;
+
+        /**
+         * Take the tunnel down
+         *
+         * @throws Exception if the tunnel cannot be taken down
+         */
+        void down() throws Exception;
+
+        /**
+         * @return true if the tunnel is up
+         * @throws Exception if the state of the tunnel cannot be found
+         */
+        boolean isAlive() throws Exception;
+    }
+
+    private final Tunnel tunnel;
+    private final long idleTimeout;
+    private final Object tunnelLock = new Object();
+    private final Set<UUID> sessions = new HashSet<>();
+    private final ScheduledExecutorService timer;
+    private ScheduledFuture<?> idleClose = null;
+    private volatile boolean up = false;
+    private volatile long lastConnectLatency = -1;
+    private long totalConnectLatency = 0;
+    private int connects = 0;
+    private int deadTunnels = 0;
+
+    /**
+     * Constructor
+     *
+     * @param tunnel the VPN tunnel
+     * @param idleTimeout time in milliseconds for which the tunnel is kept up
+     * after the last session has been released. 0 takes the tunnel down
+     * straight away
+     */
+    public VPNSessionManager(Tunnel tunnel, long idleTimeout) {
+        this.tunnel = tunnel;
+        this.idleTimeout = idleTimeout;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "medipi-vpn-idle");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Acquire a session, bringing the tunnel up if it is not already up
+     *
+     * @param uuid identifies the session
+     * @throws Exception if the tunnel cannot be brought up - the session is
+     * not held
+     */
+    public void acquire(UUID uuid) throws Exception {
+        synchronized (this) {
+            sessions.add(uuid);
+            if (idleClose != null) {
+                idleClose.cancel(false);
+                idleClose = null;
+            }
+        }
+        try {
+            synchronized (tunnelLock) {
+                if (up) {
+                    if (tunnel.isAlive()) {
+                        return;
+                    }
+                    up = false;
+                    synchronized (this) {
+                        deadTunnels++;
+                    }
+                }
+                long start = System.nanoTime();
+                tunnel.up();
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                up = true;
+                synchronized (this) {
+                    connects++;
+                    totalConnectLatency += latency;
+                    lastConnectLatency = latency;
+                }
+            }
+        } catch (Exception e) {
+            release(uuid);
+            throw e;
+        }
+    }
+
+    /**
+     * Release a session. When no sessions are held the tunnel is taken down
+     * after the idle timeout
+     *
+     * @param uuid identifies the session
+     */
+    public void release(UUID uuid) {
+        synchronized (this) {
+            if (!sessions.remove(uuid) || !sessions.isEmpty()) {
+                return;
+            }
+            if (idleTimeout > 0) {
+                if (idleClose == null && !timer.isShutdown()) {
+                    idleClose = timer.schedule(this::closeIfIdle, idleTimeout, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        closeIfIdle();
+    }
+
+    /**
+     * Take the tunnel down now whether or not sessions are held and stop the
+     * idle timer
+     */
+    public void shutdown() {
+        synchronized (this) {
+            sessions.clear();
+            timer.shutdownNow();
+            idleClose = null;
+        }
+        synchronized (tunnelLock) {
+            takeDown();
+        }
+    }
+
+    /**
+     * @return true if the tunnel is thought to be up
+     */
+    public boolean isUp() {
+        return up;
+    }
+
+    /**
+     * @return number of sessions held
+     */
+    public synchronized int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return number of times the tunnel has been brought up
+     */
+    public synchronized int getConnectCount() {
+        return connects;
+    }
+
+    /**
+     * @return number of times the tunnel was found to have gone down while it
+     * was thought to be up
+     */
+    public synchronized int getDeadTunnelCount() {
+        return deadTunnels;
+    }
+
+    /**
+     * @return time in milliseconds taken to bring the tunnel up the last time,
+     * or -1 if it has not been brought up
+     */
+    public long getLastConnectLatency() {
+        return lastConnectLatency;
+    }
+
+    /**
+     * @return mean time in milliseconds taken to bring the tunnel up, or -1 if
+     * it has not been brought up
+     */
+    public synchronized long getMeanConnectLatency() {
+        return connects == 0 ? -1 : totalConnectLatency / connects;
+    }
+
+    private void closeIfIdle() {
+        synchronized (tunnelLock) {
+            synchronized (this) {
+                idleClose = null;
+                if (!sessions.isEmpty()) {
+                    return;
+                }
+            }
+            takeDown();
+        }
+    }
+
+    private void takeDown() {
+        if (!up) {
+            return;
+        }
+        up = false;
+        try {
+            tunnel.down();
+        } catch (Exception e) {
+            System.out.println("Manager failed to close VPN connection: " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Benchmark of the memory held and the time taken to build the payload for a
+ * continuous oximeter stream - by default 24 hours of pulse and SpO2 readings
+ * at 1Hz - stored as String rows and in a MeasurementBuffer.
+ *
+ * Run with the test classpath: MeasurementBufferBenchmark [readings]
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MeasurementBufferBenchmark {
+
+    private static final String SEPARATOR = "^";
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 86400;
+        ArrayList<String> format = new ArrayList<>(Arrays.asList("DATE", "INTEGER", "INTEGER"));
+
+        long before = usedMemory();
+        ArrayList<ArrayList<String>> rows = stream(readings);
+        long rowsMemory = usedMemory() - before;
+
+        before = usedMemory();
+        MeasurementBuffer buffer = new MeasurementBuffer(format);
+        buffer.addAll(stream(readings));
+        long bufferMemory = usedMemory() - before;
+
+        System.out.printf("%d readings held as String rows:      %,12d bytes%n", readings, rowsMemory);
+        System.out.printf("%d readings held in MeasurementBuffer: %,12d bytes (%,d allocated in columns)%n", readings, bufferMemory, buffer.getAllocatedBytes());
+
+        int length = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            length += stringRows(rows).length();
+            long rowsTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            StringBuilder sb = new StringBuilder();
+            buffer.appendTo(sb, SEPARATOR);
+            length += sb.length();
+            long bufferTime = System.nanoTime() - start;
+            System.out.printf("run %d payload from String rows: %7.1f ms   from MeasurementBuffer: %7.1f ms%n", run + 1, rowsTime / 1e6, bufferTime / 1e6);
+        }
+
+        long start = System.nanoTime();
+        MeasurementBuffer loaded = new MeasurementBuffer(format);
+        loaded.addAll(rows);
+        System.out.printf("loading %d String rows into a MeasurementBuffer: %.1f ms%n", readings, (System.nanoTime() - start) / 1e6);
+        // keep the structures reachable until they have been measured
+        System.out.println(rows.size() + buffer.size() + loaded.size() + length > 0 ? "" : "-");
+    }
+
+    private static ArrayList<ArrayList<String>> stream(int readings) {
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        long start = Instant.parse("2016-11-01T09:00:00Z").toEpochMilli();
+        for (int i = 0; i < readings; i++) {
+            rows.add(new ArrayList<>(Arrays.asList(Instant.ofEpochMilli(start + i * 1000L).toString(), String.valueOf(60 + i % 40), String.valueOf(90 + i % 10))));
+        }
+        return rows;
+    }
+
+    /**
+     * The payload as the device elements built it from String rows
+     */
+    private static String stringRows(ArrayList<ArrayList<String>> rows) {
+        StringBuilder sb = new StringBuilder();
+        for (ArrayList<String> dataLine : rows) {
+            for (String data : dataLine) {
+                sb.append(data).append(SEPARATOR);
+            }
+            sb.replace(sb.length() - SEPARATOR.length(), sb.length(), "\n");
+        }
+        return sb.toString();
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for MeasurementBuffer
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MeasurementBufferTest {
+
+    private static final String SEPARATOR = "^";
+
+    @Test
+    public void writesSamePayloadAsStringRows() {
+        ArrayList<String> format = new ArrayList<>(Arrays.asList("DATE", "INTEGER", "DOUBLE", "BOOLEAN", "STRING"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        long start = Instant.parse("2016-11-01T09:00:00Z").toEpochMilli();
+        for (int i = 0; i < MeasurementBuffer.CHUNKSIZE * 3 + 7; i++) {
+            rows.add(row(Instant.ofEpochMilli(start + i * 1001L).toString(), String.valueOf(60 + i % 40), String.valueOf(35.5 + (i % 20) / 10.0), String.valueOf(i % 3 == 0), "501234567"));
+        }
+        // values whose primitive form is written differently
+        rows.add(row("2016-11-01T09:00:00.123456789Z", "072", "70", "TRUE", null));
+        rows.add(row("not a date", "", "NaN", "false", "x"));
+        rows.add(row("2016-11-01T09:00:00.100Z", "-2147483648", "1.0E-4", "true", ""));
+
+        MeasurementBuffer buffer = new MeasurementBuffer(format);
+        buffer.addAll(rows);
+        assertEquals(rows.size(), buffer.size());
+
+        StringBuilder sb = new StringBuilder();
+        buffer.appendTo(sb, SEPARATOR);
+        assertEquals(stringRows(rows), sb.toString());
+        assertEquals("072", buffer.get(rows.size() - 3, 1));
+        assertEquals("2016-11-01T09:00:00.100Z", buffer.get(rows.size() - 1, 0));
+    }
+
+    @Test
+    public void holdsReadingsInPrimitiveColumns() {
+        MeasurementBuffer buffer = new MeasurementBuffer(Arrays.asList("DATE", "INTEGER", "INTEGER"));
+        long start = Instant.parse("2016-11-01T09:00:00Z").toEpochMilli();
+        int rows = 86400;
+        for (int i = 0; i < rows; i++) {
+            buffer.add(row(Instant.ofEpochMilli(start + i * 1000L).toString(), String.valueOf(60 + i % 40), String.valueOf(90 + i % 10)));
+        }
+        // 8 bytes for the time and 4 for each int, allocated a chunk at a time
+        long chunks = (rows + MeasurementBuffer.CHUNKSIZE - 1) / MeasurementBuffer.CHUNKSIZE;
+        assertEquals(chunks * MeasurementBuffer.CHUNKSIZE * 16L, buffer.getAllocatedBytes());
+        assertTrue(buffer.getAllocatedBytes() < rows * 20L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesRowWithWrongNumberOfValues() {
+        new MeasurementBuffer(Arrays.asList("DATE", "INTEGER")).add(row("2016-11-01T09:00:00Z"));
+    }
+
+    private static ArrayList<String> row(String... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    /**
+     * The payload as the device elements built it from String rows
+     */
+    private static String stringRows(ArrayList<ArrayList<String>> rows) {
+        StringBuilder sb = new StringBuilder();
+        for (ArrayList<String> dataLine : rows) {
+            for (String data : dataLine) {
+                sb.append(data).append(SEPARATOR);
+            }
+            sb.replace(sb.length() - SEPARATOR.length(), sb.length(), "\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for MessageIndex
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MessageIndexTest {
+
+    @Test
+    public void ordersMessagesByTimeInFileName() throws IOException {
+        File dir = Files.createTempDirectory("medipi-messages").toFile();
+        // written in a different order to the times in their names
+        touch(dir, "1487700000000-SimpleMessage.txt");
+        touch(dir, "1487800000000-Alert.txt");
+        touch(dir, "1487600000000-SimpleMessage.txt");
+        touch(dir, "1487900000000-Alert.json");
+
+        MessageIndex index = new MessageIndex(dir);
+        index.load();
+        List<Message> messages = index.getMessages();
+        assertEquals(3, messages.size());
+        assertEquals("1487800000000-Alert.txt", messages.get(0).getFileName());
+        assertEquals("1487700000000-SimpleMessage.txt", messages.get(1).getFileName());
+        assertEquals("1487600000000-SimpleMessage.txt", messages.get(2).getFileName());
+    }
+
+    @Test
+    public void addsAndRemovesFilesWithoutListingTheDirectory() throws IOException {
+        File dir = Files.createTempDirectory("medipi-messages").toFile();
+        touch(dir, "1487700000000-SimpleMessage.txt");
+        MessageIndex index = new MessageIndex(dir);
+        index.load();
+
+        // the index is only changed by the events it is given
+        touch(dir, "1487600000000-Alert.txt");
+        assertEquals(1, index.size());
+        assertTrue(index.created("1487800000000-Alert.txt"));
+        assertFalse(index.created("1487800000000-Alert.txt"));
+        assertTrue(index.created("1487800000000-SimpleMessage.txt"));
+        assertEquals(3, index.size());
+        assertEquals("1487800000000-Alert.txt", index.getMessages().get(0).getFileName());
+        assertEquals("1487800000000-SimpleMessage.txt", index.getMessages().get(1).getFileName());
+
+        assertTrue(index.deleted("1487800000000-Alert.txt"));
+        assertFalse(index.deleted("1487800000000-Alert.txt"));
+        assertEquals(2, index.size());
+        assertEquals("1487800000000-SimpleMessage.txt", index.getMessages().get(0).getFileName());
+
+        // a lost event is recovered by listing the directory again
+        index.load();
+        assertEquals(2, index.size());
+        assertEquals("1487600000000-Alert.txt", index.getMessages().get(1).getFileName());
+    }
+
+    private void touch(File dir, String fileName) throws IOException {
+        Files.write(new File(dir, fileName).toPath(), new byte[]{'{', '}'});
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for ScheduleJournal, including recovery from power being lost part way
+ * through writing the journal or the snapshot
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ScheduleJournalTest {
+
+    private static final Instant START = Instant.parse("2017-02-21T00:00:00Z");
+
+    @Test
+    public void recoversEntriesWhenReopened() throws IOException {
+        File file = scheduleFile();
+        ScheduleJournal journal = new ScheduleJournal(file, 100);
+        journal.add(entry(Scheduler.SCHEDULED, 0));
+        journal.add(entry(Scheduler.TRANSMITTED, 60));
+        journal.add(entry(Scheduler.TRANSMITTED, 1500));
+        journal.close();
+        assertFalse(file.exists());
+
+        journal = new ScheduleJournal(file, 100);
+        assertEquals(3, journal.size());
+        assertEquals(3, journal.getJournalCount());
+        assertEquals(START.plusSeconds(1500 * 60), journal.getLatest(Scheduler.TRANSMITTED).getTime());
+        journal.close();
+    }
+
+    @Test
+    public void discardsPartlyWrittenRecord() throws IOException {
+        File file = scheduleFile();
+        File journalFile = new File(file.getPath() + ".journal");
+        ScheduleJournal journal = new ScheduleJournal(file, 100);
+        journal.add(entry(Scheduler.SCHEDULED, 0));
+        long complete = journalFile.length();
+        journal.add(entry(Scheduler.TRANSMITTED, 60));
+        journal.close();
+        // power lost part way through writing the second record
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(complete + 5);
+        }
+
+        journal = new ScheduleJournal(file, 100);
+        assertEquals(1, journal.size());
+        assertEquals(complete, journalFile.length());
+        journal.add(entry(Scheduler.TRANSMITTED, 120));
+        journal.close();
+        journal = new ScheduleJournal(file, 100);
+        assertEquals(2, journal.size());
+        assertEquals(START.plusSeconds(120 * 60), journal.getLatest(Scheduler.TRANSMITTED).getTime());
+        journal.close();
+    }
+
+    @Test
+    public void compactsJournalIntoSnapshot() throws IOException {
+        File file = scheduleFile();
+        File journalFile = new File(file.getPath() + ".journal");
+        ScheduleJournal journal = new ScheduleJournal(file, 2);
+        journal.add(entry(Scheduler.SCHEDULED, 0));
+        assertEquals(1, journal.getJournalCount());
+        journal.add(entry(Scheduler.TRANSMITTED, 60));
+        assertEquals(0, journal.getJournalCount());
+        assertEquals(0L, journalFile.length());
+        assertTrue(file.exists());
+        journal.close();
+
+        journal = new ScheduleJournal(file, 2);
+        assertEquals(2, journal.size());
+        assertEquals(0, journal.getJournalCount());
+        journal.close();
+    }
+
+    @Test
+    public void doesNotRepeatEntriesWhenPowerLostDuringCompaction() throws IOException {
+        File file = scheduleFile();
+        File journalFile = new File(file.getPath() + ".journal");
+        ScheduleJournal journal = new ScheduleJournal(file, 100);
+        journal.add(entry(Scheduler.SCHEDULED, 0));
+        journal.add(entry(Scheduler.TRANSMITTED, 60));
+        byte[] beforeCompaction = Files.readAllBytes(journalFile.toPath());
+        journal.compact();
+        journal.close();
+        // power lost after the new snapshot was moved into place but before the journal was emptied
+        Files.write(journalFile.toPath(), beforeCompaction);
+        // and a temporary snapshot left by an earlier attempt
+        Files.write(new File(file.getPath() + ".tmp").toPath(), new byte[]{'[', '{'});
+
+        journal = new ScheduleJournal(file, 100);
+        assertEquals(2, journal.size());
+        journal.add(entry(Scheduler.TRANSMITTED, 1500));
+        journal.compact();
+        journal.close();
+        journal = new ScheduleJournal(file, 100);
+        assertEquals(3, journal.size());
+        assertEquals(0, journal.getJournalCount());
+        journal.close();
+    }
+
+    @Test
+    public void findsEntriesByTypeAndTime() throws IOException {
+        ScheduleJournal journal = new ScheduleJournal(scheduleFile(), 100);
+        journal.add(entry(Scheduler.SCHEDULED, 0));
+        journal.add(entry(Scheduler.TRANSMITTED, 60));
+        journal.add(entry(Scheduler.SCHEDULED, 2880));
+        journal.add(entry(Scheduler.TRANSMITTED, 1500));
+        journal.add(entry(Scheduler.MEASURED, 1490));
+
+        Instant now = START.plusSeconds(2000 * 60);
+        assertEquals(START, journal.getLatestBefore(Scheduler.SCHEDULED, now).getTime());
+        assertEquals(START.plusSeconds(2880 * 60), journal.getFirstAfter(Scheduler.SCHEDULED, now).getTime());
+        assertNull(journal.getLatestBefore(Scheduler.SCHEDULED, START));
+        assertNull(journal.getLatest(Scheduler.STARTED));
+        assertEquals(1, journal.getAfter(Scheduler.TRANSMITTED, START.plusSeconds(60 * 60)).size());
+        assertTrue(journal.hasBetween(Scheduler.TRANSMITTED, START.plusSeconds(1440 * 60), START.plusSeconds(2880 * 60)));
+        assertFalse(journal.hasBetween(Scheduler.TRANSMITTED, START.plusSeconds(100 * 60), START.plusSeconds(1440 * 60)));
+        journal.close();
+    }
+
+    @Test
+    public void readsSnapshotReplacedByAnotherWriter() throws IOException {
+        File file = scheduleFile();
+        ScheduleJournal journal = new ScheduleJournal(file, 0);
+        journal.add(entry(Scheduler.SCHEDULED, 0));
+        assertFalse(journal.reloadIfChanged());
+
+        ArrayList<Schedule> replacement = new ArrayList<>(Arrays.asList(entry(Scheduler.SCHEDULED, 0), entry(Scheduler.SCHEDULED, 1440), entry(Scheduler.TRANSMITTED, 1500)));
+        new ObjectMapper().findAndRegisterModules().writeValue(file, replacement);
+        file.setLastModified(file.lastModified() + 2000);
+        assertTrue(journal.reloadIfChanged());
+        assertEquals(3, journal.size());
+        assertEquals(START.plusSeconds(1440 * 60), journal.getLatest(Scheduler.SCHEDULED).getTime());
+        journal.close();
+    }
+
+    private File scheduleFile() throws IOException {
+        return new File(Files.createTempDirectory("medipi-scheduler").toFile(), "schedule.json");
+    }
+
+    private Schedule entry(String type, int minutes) {
+        return new Schedule(UUID.nameUUIDFromBytes((type + minutes).getBytes()), type, START.plusSeconds(minutes * 60L), 1440, new ArrayList<>(Arrays.asList("Oximeter", "Transmitter")));
+    }
+}
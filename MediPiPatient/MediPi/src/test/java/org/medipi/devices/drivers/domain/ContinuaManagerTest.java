@@ -0,0 +1,221 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.bluetooth.L2CAPConnection;
+import javax.bluetooth.L2CAPConnectionNotifier;
+import javax.microedition.io.Connection;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the connections opened by ContinuaManager from the
+ * medipi.iee11073.manager.native.url - no Bluetooth adapter is needed
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ContinuaManagerTest {
+
+    private static final byte[] APDU = {(byte) 0xE7, 0x00, 0x00, 0x02, 0x01, 0x02};
+
+    @Test
+    public void acceptsAgentOnL2CAPServerUrl() throws IOException {
+        // btl2cap://localhost opens an L2CAPConnectionNotifier rather than a StreamConnectionNotifier
+        FakeL2CAPConnection agent = new FakeL2CAPConnection(672);
+        Connection conn = ContinuaManager.accept(new FakeL2CAPConnectionNotifier(agent));
+        assertSame(agent, conn);
+        assertTrue(ContinuaManager.openChannel(conn) instanceof L2CAPApduChannel);
+    }
+
+    @Test
+    public void acceptsAgentOnRfcommServerUrl() throws IOException {
+        FakeStreamConnection agent = new FakeStreamConnection(new byte[0]);
+        Connection conn = ContinuaManager.accept(new FakeStreamConnectionNotifier(agent));
+        assertSame(agent, conn);
+        assertTrue(ContinuaManager.openChannel(conn) instanceof StreamApduChannel);
+    }
+
+    @Test
+    public void usesClientConnectionAsOpened() throws IOException {
+        FakeL2CAPConnection agent = new FakeL2CAPConnection(672);
+        assertSame(agent, ContinuaManager.accept(agent));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnsupportedConnection() throws IOException {
+        ContinuaManager.openChannel(() -> {
+        });
+    }
+
+    @Test
+    public void exchangesOneApduPerL2CAPPacket() throws IOException {
+        FakeL2CAPConnection agent = new FakeL2CAPConnection(672);
+        agent.packets.add(APDU);
+        L2CAPApduChannel channel = new L2CAPApduChannel(agent);
+        assertArrayEquals(APDU, channel.read());
+        channel.write(APDU);
+        assertArrayEquals(APDU, agent.sent.get(0));
+        // the agent closing the channel ends the association
+        assertNull(channel.read());
+    }
+
+    @Test
+    public void rejectsPacketNotHoldingOneApdu() {
+        FakeL2CAPConnection agent = new FakeL2CAPConnection(672);
+        agent.packets.add(new byte[]{(byte) 0xE7, 0x00, 0x00, 0x04, 0x01, 0x02});
+        try {
+            new L2CAPApduChannel(agent).read();
+            fail("a truncated APDU was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsApduLargerThanTransmitMTU() throws IOException {
+        new L2CAPApduChannel(new FakeL2CAPConnection(4)).write(APDU);
+    }
+
+    private static class FakeL2CAPConnection implements L2CAPConnection {
+
+        private final int mtu;
+        private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+        private final List<byte[]> sent = new ArrayList<>();
+
+        FakeL2CAPConnection(int mtu) {
+            this.mtu = mtu;
+        }
+
+        @Override
+        public int getTransmitMTU() {
+            return mtu;
+        }
+
+        @Override
+        public int getReceiveMTU() {
+            return mtu;
+        }
+
+        @Override
+        public void send(byte[] data) {
+            sent.add(data.clone());
+        }
+
+        @Override
+        public int receive(byte[] inBuf) throws IOException {
+            byte[] p = packets.poll();
+            if (p == null) {
+                throw new IOException("Connection closed");
+            }
+            System.arraycopy(p, 0, inBuf, 0, p.length);
+            return p.length;
+        }
+
+        @Override
+        public boolean ready() {
+            return !packets.isEmpty();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakeL2CAPConnectionNotifier implements L2CAPConnectionNotifier {
+
+        private final L2CAPConnection agent;
+
+        FakeL2CAPConnectionNotifier(L2CAPConnection agent) {
+            this.agent = agent;
+        }
+
+        @Override
+        public L2CAPConnection acceptAndOpen() {
+            return agent;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakeStreamConnection implements StreamConnection {
+
+        private final byte[] in;
+
+        FakeStreamConnection(byte[] in) {
+            this.in = in;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(in);
+        }
+
+        @Override
+        public DataInputStream openDataInputStream() {
+            return new DataInputStream(openInputStream());
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public DataOutputStream openDataOutputStream() {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakeStreamConnectionNotifier implements StreamConnectionNotifier {
+
+        private final StreamConnection agent;
+
+        FakeStreamConnectionNotifier(StreamConnection agent) {
+            this.agent = agent;
+        }
+
+        @Override
+        public StreamConnection acceptAndOpen() {
+            return agent;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
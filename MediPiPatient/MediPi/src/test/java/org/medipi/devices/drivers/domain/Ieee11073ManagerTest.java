@@ -0,0 +1,314 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.devices.drivers.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.medipi.devices.drivers.domain.ContinuaManager.ReadingStatus;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for Ieee11073Manager which feed it APDU traces of pulse oximeter,
+ * blood pressure and weighing scale associations and check the replies and
+ * the decoded measurements - no Bluetooth or device is needed
+ *
+ * @author rick@robinsonhq.com
+ */
+public class Ieee11073ManagerTest {
+
+    private static final byte[] MANAGERID = hex("4D 65 64 69 50 69 00 01");
+
+    private static final String AARE_ACCEPTED_UNKNOWN_CONFIG
+            = "E3 00 00 2C 00 03 50 79 00 26"
+            + " 80 00 00 00 80 00 80 00 00 00 00 00 00 00 80 00 00 00"
+            + " 00 08 4D 65 64 69 50 69 00 01"
+            + " 00 00 00 00 00 00 00 00 00 00";
+
+    // pulse oximeter using standard configuration 400 with fixed format scan reports
+    private static final String OXIMETER_AARQ
+            = "E2 00 00 32"
+            + " 80 00 00 00" // assoc-version
+            + " 00 01 00 2A" // data-proto-list
+            + " 50 79 00 26" // 20601
+            + " 80 00 00 00 80 00 80 00 00 00 00 00 00 00 00 80 00 00"
+            + " 00 08 00 1C 05 01 00 00 4E 41" // system-id
+            + " 01 90" // dev-config-id 400
+            + " 00 01 01 00 00 00 00 00";
+    private static final String OXIMETER_CONFIG
+            = "E7 00 00 70 00 6E 00 01 01 01 00 68"
+            + " 00 00 FF FF FF FF 0D 1C 00 5E" // MDC_NOTI_CONFIG
+            + " 01 90 00 02 00 58"
+            // SpO2: handle 1, percent, value map SFLOAT + absolute time
+            + " 00 06 00 01 00 04 00 24"
+            + " 09 2F 00 04 00 02 4B B8"
+            + " 0A 46 00 02 40 C0"
+            + " 09 96 00 02 02 20"
+            + " 0A 55 00 0C 00 02 00 08 0A 4C 00 02 09 90 00 08"
+            // pulse rate: handle 10, beats per minute
+            + " 00 06 00 0A 00 04 00 24"
+            + " 09 2F 00 04 00 02 48 1A"
+            + " 0A 46 00 02 40 C0"
+            + " 09 96 00 02 0A A0"
+            + " 0A 55 00 0C 00 02 00 08 0A 4C 00 02 09 90 00 08";
+    private static final String OXIMETER_CONFIG_RESPONSE
+            = "E7 00 00 16 00 14 00 01 02 01 00 0E 00 00 00 00 00 00 0D 1C 00 04 01 90 00 00";
+    private static final String GET_MDS
+            = "E7 00 00 0E 00 0C 00 00 01 03 00 06 00 00 00 00 00 00";
+    private static final String OXIMETER_MDS
+            = "E7 00 00 40 00 3E 00 00 02 03 00 38 00 00 00 02 00 32"
+            + " 09 28 00 22" // MDC_ATTR_ID_MODEL
+            + " 00 14 4E 6F 6E 69 6E 20 4D 65 64 69 63 61 6C 2C 20 49 6E 63 2E 00"
+            + " 00 0A 4D 6F 64 65 6C 20 39 35 36 30"
+            + " 0A 5A 00 08 00 01 00 04 10 04 00 01"; // 10404 pulse oximeter
+    // two stored measurements in one report
+    private static final String OXIMETER_SCAN
+            = "E7 00 00 52 00 50 00 02 01 01 00 4A"
+            + " 00 00 FF FF FF FF 0D 1D 00 40" // MDC_NOTI_SCAN_REPORT_FIXED
+            + " F0 00 00 00 00 04 00 38"
+            + " 00 01 00 0A 00 62 20 17 02 21 10 15 00 00" // 98 %
+            + " 00 0A 00 0A 00 48 20 17 02 21 10 15 00 00" // 72 bpm
+            + " 00 01 00 0A F3 CA 20 17 02 21 10 16 30 00" // 97.0 %
+            + " 00 0A 00 0A 00 4B 20 17 02 21 10 16 30 00"; // 75 bpm
+    private static final String OXIMETER_SCAN_RESPONSE
+            = "E7 00 00 12 00 10 00 02 02 01 00 0A 00 00 00 00 00 00 0D 1D 00 00";
+    private static final String RLRQ = "E4 00 00 02 00 00";
+    private static final String RLRE = "E5 00 00 02 00 00";
+
+    // blood pressure monitor with variable format scan reports
+    private static final String BP_AARQ = OXIMETER_AARQ.replace(" 01 90 00 01", " 02 BC 00 01");
+    private static final String BP_CONFIG
+            = "E7 00 00 5A 00 58 00 01 01 01 00 52"
+            + " 00 00 FF FF FF FF 0D 1C 00 48"
+            + " 02 BC 00 03 00 42"
+            + " 00 06 00 01 00 02 00 0E 09 2F 00 04 00 02 4A 04 09 96 00 02 0F 20" // systolic, diastolic, mean mmHg
+            + " 00 06 00 02 00 02 00 0E 09 2F 00 04 00 02 48 2A 09 96 00 02 0A A0" // pulse bpm
+            + " 00 06 00 03 00 02 00 0E 09 2F 00 04 00 02 F0 01 09 96 00 02 02 00"; // irregular heart beat
+    private static final String BP_CONFIG_RESPONSE
+            = "E7 00 00 16 00 14 00 01 02 01 00 0E 00 00 00 00 00 00 0D 1C 00 04 02 BC 00 00";
+    private static final String BP_MDS
+            = "E7 00 00 3E 00 3C 00 00 02 03 00 36 00 00 00 02 00 30"
+            + " 09 28 00 20"
+            + " 00 10 4F 4D 52 4F 4E 20 48 45 41 4C 54 48 43 41 52 45"
+            + " 00 0C 48 45 4D 2D 37 30 38 31 2D 49 54 00"
+            + " 0A 5A 00 08 00 01 00 04 10 07 00 01"; // 10407 blood pressure
+    private static final String BP_SCAN
+            = "E7 00 00 6A 00 68 00 03 01 01 00 62"
+            + " 00 00 FF FF FF FF 0D 1E 00 58" // MDC_NOTI_SCAN_REPORT_VAR
+            + " F0 00 00 00 00 03 00 50"
+            + " 00 01 00 02 00 1A 0A 4B 00 0A 00 03 00 06 00 78 00 50 00 5D 09 90 00 08 20 17 02 21 08 30 00 00"
+            + " 00 02 00 02 00 12 0A 4C 00 02 00 42 09 90 00 08 20 17 02 21 08 30 00 00"
+            + " 00 03 00 02 00 12 0A 4C 00 02 00 00 09 90 00 08 20 17 02 21 08 30 00 00";
+    private static final String BP_SCAN_RESPONSE
+            = "E7 00 00 12 00 10 00 03 02 01 00 0A 00 00 00 00 00 00 0D 1E 00 00";
+
+    // weighing scale reporting weight and BMI as FLOAT values
+    private static final String SCALE_AARQ = OXIMETER_AARQ.replace(" 01 90 00 01", " 05 DC 00 01");
+    private static final String SCALE_CONFIG
+            = "E7 00 00 64 00 62 00 01 01 01 00 5C"
+            + " 00 00 FF FF FF FF 0D 1C 00 52"
+            + " 05 DC 00 02 00 4C"
+            + " 00 06 00 01 00 03 00 1E 09 2F 00 04 00 02 E1 40 09 96 00 02 06 C3"
+            + " 0A 55 00 0C 00 02 00 08 0A 56 00 04 09 90 00 08"
+            + " 00 06 00 03 00 03 00 1E 09 2F 00 04 00 02 E1 50 09 96 00 02 07 A0"
+            + " 0A 55 00 0C 00 02 00 08 0A 56 00 04 09 90 00 08";
+    private static final String SCALE_MDS
+            = "E7 00 00 38 00 36 00 00 02 03 00 30 00 00 00 02 00 2A"
+            + " 09 28 00 1A"
+            + " 00 0C 41 26 44 20 4D 65 64 69 63 61 6C 00"
+            + " 00 0A 55 43 2D 33 35 32 42 4C 45 00"
+            + " 0A 5A 00 08 00 01 00 04 10 0F 00 01"; // 10415 weighing scale
+    private static final String SCALE_SCAN
+            = "E7 00 00 3A 00 38 00 02 01 01 00 32"
+            + " 00 00 FF FF FF FF 0D 1D 00 28"
+            + " F0 00 00 00 00 02 00 20"
+            + " 00 01 00 0C FF 00 02 D5 20 17 02 21 07 00 00 00" // 72.5 kg
+            + " 00 03 00 0C FF 00 00 E0 20 17 02 21 07 00 00 00"; // BMI 22.4
+
+    @Test
+    public void downloadsStoredOximeterMeasurements() throws Exception {
+        Ieee11073Manager manager = new Ieee11073Manager(MANAGERID, ZoneOffset.UTC);
+        assertReplies(manager.receive(hex(OXIMETER_AARQ)), AARE_ACCEPTED_UNKNOWN_CONFIG);
+        assertEquals(ReadingStatus.CONNECTED, manager.getStatus());
+        assertReplies(manager.receive(hex(OXIMETER_CONFIG)), OXIMETER_CONFIG_RESPONSE, GET_MDS);
+        assertEquals(ReadingStatus.CONFIGURATION, manager.getStatus());
+        assertReplies(manager.receive(hex(OXIMETER_MDS)));
+        assertEquals(ReadingStatus.ATTRIBUTES, manager.getStatus());
+        assertEquals("0x1004", manager.getSpecialisation());
+        assertReplies(manager.receive(hex(OXIMETER_SCAN)), OXIMETER_SCAN_RESPONSE);
+        assertEquals(ReadingStatus.MEASUREMENT, manager.getStatus());
+        assertFalse(manager.isComplete());
+        assertReplies(manager.receive(hex(RLRQ)), RLRE);
+        assertTrue(manager.isComplete());
+
+        ContinuaData cd = manager.getData();
+        assertEquals("Nonin Medical, Inc.", cd.getManufacturer());
+        assertEquals("Model 9560", cd.getModel());
+        assertEquals(1, cd.getDataSetCounter());
+        assertEquals(4, cd.getMeasurements().size());
+        assertMeasurement(cd.getMeasurements().get(0), 0, ContinuaOximeter.PERCENT, "2017-02-21T10:15:00Z", "98");
+        assertMeasurement(cd.getMeasurements().get(1), 0, ContinuaOximeter.BPM, "2017-02-21T10:15:00Z", "72");
+        assertMeasurement(cd.getMeasurements().get(2), 1, ContinuaOximeter.PERCENT, "2017-02-21T10:16:30Z", "97");
+        assertMeasurement(cd.getMeasurements().get(3), 1, ContinuaOximeter.BPM, "2017-02-21T10:16:30Z", "75");
+    }
+
+    @Test
+    public void downloadsBloodPressureOverAStream() throws Exception {
+        ByteArrayOutputStream agent = new ByteArrayOutputStream();
+        agent.write(hex(BP_AARQ));
+        agent.write(hex(BP_CONFIG));
+        agent.write(hex(BP_MDS));
+        agent.write(hex(BP_SCAN));
+        ByteArrayOutputStream manager = new ByteArrayOutputStream();
+        ArrayList<ReadingStatus> statuses = new ArrayList<>();
+
+        // the agent closes the channel without releasing the association
+        ContinuaData cd = new Ieee11073Manager(MANAGERID, ZoneOffset.UTC).run(
+                new StreamApduChannel(new ByteArrayInputStream(agent.toByteArray()), manager),
+                statuses::add);
+
+        assertEquals(AARE_ACCEPTED_UNKNOWN_CONFIG + " " + BP_CONFIG_RESPONSE + " " + GET_MDS + " " + BP_SCAN_RESPONSE, toHex(manager.toByteArray()));
+        assertEquals(Arrays.asList(ReadingStatus.WAITING, ReadingStatus.CONNECTED, ReadingStatus.CONFIGURATION,
+                ReadingStatus.ATTRIBUTES, ReadingStatus.MEASUREMENT, ReadingStatus.DISCONNECTED), statuses);
+        assertEquals("OMRON HEALTHCARE", cd.getManufacturer());
+        assertEquals("HEM-7081-IT", cd.getModel());
+        assertEquals(0, cd.getDataSetCounter());
+        assertEquals(3, cd.getMeasurements().size());
+        assertMeasurement(cd.getMeasurements().get(0), 0, ContinuaBloodPressure.MMHG, "2017-02-21T08:30:00Z", "120", "80", "93");
+        assertMeasurement(cd.getMeasurements().get(1), 0, ContinuaBloodPressure.BPM, "2017-02-21T08:30:00Z", "66");
+        assertMeasurement(cd.getMeasurements().get(2), 0, ContinuaBloodPressure.DIMENTIONLESS, "2017-02-21T08:30:00Z", "false");
+    }
+
+    @Test
+    public void leavesOutMetricsTheSpecialisationDoesNotUse() throws Exception {
+        Ieee11073Manager manager = new Ieee11073Manager(MANAGERID, ZoneOffset.UTC);
+        manager.receive(hex(SCALE_AARQ));
+        manager.receive(hex(SCALE_CONFIG));
+        manager.receive(hex(SCALE_MDS));
+        manager.receive(hex(SCALE_SCAN));
+        manager.receive(hex(RLRQ));
+
+        ContinuaData cd = manager.getData();
+        assertEquals("A&D Medical", cd.getManufacturer());
+        assertEquals(1, cd.getMeasurements().size());
+        assertMeasurement(cd.getMeasurements().get(0), 0, ContinuaScale.KG, "2017-02-21T07:00:00Z", "72.5");
+    }
+
+    @Test
+    public void rejectsAssociationWithout20601() throws Exception {
+        Ieee11073Manager manager = new Ieee11073Manager(MANAGERID, ZoneOffset.UTC);
+        // data-proto-id 20602 instead of 20601
+        assertReplies(manager.receive(hex(OXIMETER_AARQ.replace(" 50 79 00 26", " 50 7A 00 26"))), "E3 00 00 06 00 04 00 00 00 00");
+        assertEquals(ReadingStatus.WAITING, manager.getStatus());
+        try {
+            manager.receive(hex(OXIMETER_CONFIG));
+            fail("data accepted without an association");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void abortsWhenTheAgentSendsATruncatedApdu() throws Exception {
+        ByteArrayOutputStream agent = new ByteArrayOutputStream();
+        agent.write(hex(OXIMETER_AARQ));
+        // config report with its last 4 bytes missing but a consistent length
+        byte[] config = hex(OXIMETER_CONFIG);
+        byte[] truncated = Arrays.copyOf(config, config.length - 4);
+        truncated[3] = (byte) (truncated[3] - 4);
+        agent.write(truncated);
+        ByteArrayOutputStream manager = new ByteArrayOutputStream();
+        try {
+            new Ieee11073Manager(MANAGERID, ZoneOffset.UTC).run(
+                    new StreamApduChannel(new ByteArrayInputStream(agent.toByteArray()), manager),
+                    (ReadingStatus s) -> {
+                    });
+            fail("truncated APDU accepted");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(AARE_ACCEPTED_UNKNOWN_CONFIG + " E6 00 00 02 00 00", toHex(manager.toByteArray()));
+    }
+
+    @Test
+    public void reportsNothingWhenTheAgentLeavesBeforeMeasuring() throws Exception {
+        ByteArrayOutputStream agent = new ByteArrayOutputStream();
+        agent.write(hex(OXIMETER_AARQ));
+        assertNull(new Ieee11073Manager(MANAGERID, ZoneOffset.UTC).run(
+                new StreamApduChannel(new ByteArrayInputStream(agent.toByteArray()), new ByteArrayOutputStream()),
+                (ReadingStatus s) -> {
+                }));
+    }
+
+    @Test
+    public void readsFloatTypes() throws Exception {
+        MderReader r = new MderReader(hex("00 62 F3 CA 07 FF 08 02 FF 00 02 D5 02 00 00 03 FE FF FF FF 00 7F FF FF"));
+        assertEquals("98", r.readSFloat());
+        assertEquals("97.0", r.readSFloat());
+        // NaN and -INFINITY
+        assertNull(r.readSFloat());
+        assertNull(r.readSFloat());
+        assertEquals("72.5", r.readFloat());
+        assertEquals("300", r.readFloat());
+        assertEquals("-0.01", r.readFloat());
+        // NaN
+        assertNull(r.readFloat());
+        assertEquals(0, r.remaining());
+    }
+
+    private static void assertReplies(List<byte[]> replies, String... expected) {
+        ArrayList<String> actual = new ArrayList<>();
+        for (byte[] reply : replies) {
+            actual.add(toHex(reply));
+        }
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
+    private static void assertMeasurement(ContinuaMeasurement cm, int setId, int unit, String time, String... values) {
+        assertEquals(setId, cm.getMeasurementSetID());
+        assertEquals(unit, cm.getReportedIdentifier());
+        assertEquals(time, cm.getTime());
+        assertEquals(Arrays.asList(values), Arrays.asList(cm.getDataValue()));
+    }
+
+    private static byte[] hex(String s) {
+        String[] bytes = s.trim().split("\\s+");
+        byte[] b = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            b[i] = (byte) Integer.parseInt(bytes[i], 16);
+        }
+        return b;
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(String.format("%02X", x));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for UploadJournal
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadJournalTest {
+
+    @Test
+    public void recoversPendingUploadsWhenReopened() throws IOException {
+        File file = new File(Files.createTempDirectory("medipi-outbox").toFile(), "uploads.journal");
+        UploadJournal journal = new UploadJournal(file, Long.MAX_VALUE);
+        journal.add(upload(0));
+        journal.add(upload(1));
+        journal.add(upload(2));
+        journal.remove("uuid-1");
+        journal.close();
+
+        journal = new UploadJournal(file, Long.MAX_VALUE);
+        assertEquals(2, journal.size());
+        assertEquals("uuid-0", journal.getPending().get(0).getUploadUuid());
+        assertEquals("cipher-0", journal.getPending().get(0).getCipherData());
+        assertEquals("uuid-2", journal.getPending().get(1).getUploadUuid());
+        journal.close();
+    }
+
+    @Test
+    public void discardsPartlyWrittenRecord() throws IOException {
+        File file = new File(Files.createTempDirectory("medipi-outbox").toFile(), "uploads.journal");
+        UploadJournal journal = new UploadJournal(file, Long.MAX_VALUE);
+        journal.add(upload(0));
+        long complete = journal.length();
+        journal.add(upload(1));
+        journal.close();
+        // power lost part way through writing the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(complete + 7);
+        }
+
+        journal = new UploadJournal(file, Long.MAX_VALUE);
+        assertEquals(1, journal.size());
+        assertEquals(complete, journal.length());
+        journal.add(upload(2));
+        journal.close();
+        journal = new UploadJournal(file, Long.MAX_VALUE);
+        assertEquals(2, journal.size());
+        journal.close();
+    }
+
+    @Test
+    public void addsEachUploadOnce() throws IOException {
+        File file = new File(Files.createTempDirectory("medipi-outbox").toFile(), "uploads.journal");
+        UploadJournal journal = new UploadJournal(file, Long.MAX_VALUE);
+        assertTrue(journal.add(upload(0)));
+        long length = journal.length();
+        assertTrue(journal.add(upload(0)));
+        assertEquals(1, journal.size());
+        assertEquals(length, journal.length());
+        journal.close();
+    }
+
+    @Test
+    public void refusesUploadsBeyondMaximumSize() throws IOException {
+        File file = new File(Files.createTempDirectory("medipi-outbox").toFile(), "uploads.journal");
+        UploadJournal journal = new UploadJournal(file, 100);
+        assertTrue(journal.add(upload(0)));
+        assertTrue(journal.add(upload(1)));
+        assertFalse(journal.add(upload(2)));
+        // sent uploads make room once the journal is compacted
+        journal.remove("uuid-0");
+        assertTrue(journal.add(upload(2)));
+        assertTrue(journal.length() <= 100);
+        journal.close();
+    }
+
+    @Test
+    public void refusesWithoutCompactingWhenNothingCanBeFreed() throws IOException {
+        File file = new File(Files.createTempDirectory("medipi-outbox").toFile(), "uploads.journal");
+        UploadJournal journal = new UploadJournal(file, 100);
+        assertTrue(journal.add(upload(0)));
+        assertTrue(journal.add(upload(1)));
+        // compaction replaces the journal file so its file key would change
+        Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        assertFalse(journal.add(upload(2)));
+        assertEquals(fileKey, Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey());
+        assertEquals(2, journal.size());
+        journal.close();
+    }
+
+    private EncryptedAndSignedUploadDO upload(int i) {
+        return new EncryptedAndSignedUploadDO("uuid-" + i, "key-" + i, "cipher-" + i);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.rest;
+
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Benchmark of RESTful requests to a local mutual TLS stub server.
+ *
+ * Compares a new client and SSL context for every request (as each
+ * RESTfulMessagingEngine used to create) with the shared client from
+ * RESTClientFactory, both with and without the connection pool. The keystores
+ * are generated with keytool in a temporary directory.
+ *
+ * Run with the test classpath: RESTClientFactoryBenchmark [requests]
+ *
+ * @author rick@robinsonhq.com
+ */
+public class RESTClientFactoryBenchmark {
+
+    private static final String PASSWORD = "password";
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        File dir = Files.createTempDirectory("medipi-tls").toFile();
+        File serverKeys = new File(dir, "server.jks");
+        File clientKeys = new File(dir, "client.jks");
+        File serverTrust = new File(dir, "server_trust.jks");
+        File clientTrust = new File(dir, "client_trust.jks");
+        createKeyPair(serverKeys, "server", new File(dir, "server.cer"), clientTrust);
+        createKeyPair(clientKeys, "client", new File(dir, "client.cer"), serverTrust);
+
+        SSLContext serverContext = RESTClientFactory.createSSLContext(serverKeys.getPath(), PASSWORD, serverTrust.getPath(), PASSWORD);
+        HttpsServer server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setNeedClientAuth(true);
+            }
+        });
+        byte[] body = "[]".getBytes(StandardCharsets.UTF_8);
+        server.createContext("/download", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", MediaType.APPLICATION_JSON);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        String url = "https://127.0.0.1:" + server.getAddress().getPort() + "/download";
+        try {
+            // warm up the JIT and the JSSE providers
+            perRequestClient(url, clientKeys, clientTrust, 20);
+            shared(url, new RESTClientFactory(RESTClientFactory.createSSLContext(clientKeys.getPath(), PASSWORD, clientTrust.getPath(), PASSWORD), true, 10, 5, 30), 20);
+
+            long start = System.nanoTime();
+            perRequestClient(url, clientKeys, clientTrust, requests);
+            report("new client and SSL context per request", start, requests);
+
+            RESTClientFactory unpooled = new RESTClientFactory(RESTClientFactory.createSSLContext(clientKeys.getPath(), PASSWORD, clientTrust.getPath(), PASSWORD), false, 10, 5, 30, 30);
+            start = System.nanoTime();
+            shared(url, unpooled, requests);
+            report("shared client, default connector", start, requests);
+            unpooled.close();
+
+            RESTClientFactory pooled = new RESTClientFactory(RESTClientFactory.createSSLContext(clientKeys.getPath(), PASSWORD, clientTrust.getPath(), PASSWORD), true, 10, 5, 30, 30);
+            start = System.nanoTime();
+            shared(url, pooled, requests);
+            report("shared client, pooled keep-alive connections", start, requests);
+            pooled.close();
+        } finally {
+            server.stop(0);
+            System.exit(0);
+        }
+    }
+
+    private static void perRequestClient(String url, File keys, File trust, int requests) throws Exception {
+        for (int i = 0; i < requests; i++) {
+            SSLContext sslContext = RESTClientFactory.createSSLContext(keys.getPath(), PASSWORD, trust.getPath(), PASSWORD);
+            Client client = ClientBuilder.newBuilder()
+                    .sslContext(sslContext)
+                    .hostnameVerifier((hostname, sslSession) -> true)
+                    .build();
+            get(client, url);
+            client.close();
+        }
+    }
+
+    private static void shared(String url, RESTClientFactory factory, int requests) {
+        for (int i = 0; i < requests; i++) {
+            get(factory.getClient(), url);
+        }
+    }
+
+    private static void get(Client client, String url) {
+        Response r = client.target(url).request(MediaType.APPLICATION_JSON).get();
+        if (r.getStatus() != 200) {
+            throw new IllegalStateException("Stub server returned " + r.getStatus());
+        }
+        r.readEntity(String.class);
+        r.close();
+    }
+
+    private static void report(String name, long start, int requests) {
+        double ms = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-48s %6d requests %9.1f ms %7.2f ms/request%n", name, requests, ms, ms / requests);
+    }
+
+    private static void createKeyPair(File keystore, String alias, File cert, File truststore) throws Exception {
+        keytool("-genkeypair", "-alias", alias, "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=" + alias,
+                "-validity", "2", "-keystore", keystore.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD, "-storetype", "JKS");
+        keytool("-exportcert", "-alias", alias, "-file", cert.getPath(), "-keystore", keystore.getPath(), "-storepass", PASSWORD);
+        keytool("-importcert", "-noprompt", "-alias", alias, "-file", cert.getPath(), "-keystore", truststore.getPath(), "-storepass", PASSWORD, "-storetype", "JKS");
+    }
+
+    private static void keytool(String... args) throws Exception {
+        String[] command = new String[args.length + 1];
+        command[0] = new File(System.getProperty("java.home"), "bin" + File.separator + "keytool").getPath();
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] out = new byte[8192];
+        while (p.getInputStream().read(out) != -1) {
+            // discard keytool output
+        }
+        if (p.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed: " + String.join(" ", args));
+        }
+    }
+}
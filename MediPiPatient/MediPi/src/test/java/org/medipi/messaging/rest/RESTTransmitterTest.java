@@ -0,0 +1,42 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.rest;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the handling of concentrator responses by RESTTransmitter
+ *
+ * @author rick@robinsonhq.com
+ */
+public class RESTTransmitterTest {
+
+    @Test
+    public void discardsUploadsRefusedOutright() {
+        for (int status : new int[]{400, 404, 406, 417, 426}) {
+            assertTrue("status " + status, RESTTransmitter.isRefusal(status));
+        }
+    }
+
+    @Test
+    public void retriesUploadsOnTransientFailures() {
+        for (int status : new int[]{408, 429, 500, 502, 503, 504}) {
+            assertFalse("status " + status, RESTTransmitter.isRefusal(status));
+        }
+    }
+}
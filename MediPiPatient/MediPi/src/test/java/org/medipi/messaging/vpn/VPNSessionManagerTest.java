@@ -0,0 +1,190 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.messaging.vpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for VPNSessionManager using fake VPN command scripts in place of
+ * OpenVPN, so that they run without a network. The fake up script creates a
+ * state file standing in for the tunnel interface and the fake down script
+ * removes it
+ *
+ * @author rick@robinsonhq.com
+ */
+public class VPNSessionManagerTest {
+
+    /**
+     * Tunnel run by fake VPN command scripts
+     */
+    private static class ScriptTunnel implements VPNSessionManager.Tunnel {
+
+        private final File up;
+        private final File down;
+        private final File state;
+        private final AtomicInteger ups = new AtomicInteger();
+        private final AtomicInteger downs = new AtomicInteger();
+
+        ScriptTunnel(String connectDelay, int exitCode) throws IOException {
+            File dir = Files.createTempDirectory("medipi-vpn").toFile();
+            state = new File(dir, "tun0");
+            up = script(dir, "openvpn.sh", "sleep " + connectDelay + "\ntouch " + state.getPath() + "\necho 'Initialization Sequence Completed'\nexit " + exitCode + "\n");
+            down = script(dir, "openvpn-disconnect.sh", "rm -f " + state.getPath() + "\n");
+        }
+
+        @Override
+        public void up() throws Exception {
+            ups.incrementAndGet();
+            if (new ProcessBuilder(up.getPath()).start().waitFor() != 0) {
+                state.delete();
+                throw new Exception("Did not create tunnel");
+            }
+        }
+
+        @Override
+        public void down() throws Exception {
+            downs.incrementAndGet();
+            new ProcessBuilder(down.getPath()).start().waitFor();
+        }
+
+        @Override
+        public boolean isAlive() {
+            return state.exists();
+        }
+
+        private static File script(File dir, String name, String body) throws IOException {
+            File f = new File(dir, name);
+            Files.write(f.toPath(), ("#!/bin/sh\n" + body).getBytes(StandardCharsets.UTF_8));
+            f.setExecutable(true);
+            return f;
+        }
+    }
+
+    @Test
+    public void concurrentSessionsShareOneTunnel() throws Exception {
+        ScriptTunnel tunnel = new ScriptTunnel("0.2", 0);
+        VPNSessionManager sm = new VPNSessionManager(tunnel, 0);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<UUID> sessions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            UUID uuid = UUID.randomUUID();
+            sessions.add(uuid);
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    sm.acquire(uuid);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, tunnel.ups.get());
+        assertEquals(5, sm.getSessionCount());
+        for (int i = 0; i < 4; i++) {
+            sm.release(sessions.get(i));
+        }
+        assertEquals(0, tunnel.downs.get());
+        assertTrue(tunnel.isAlive());
+        sm.release(sessions.get(4));
+        assertEquals(1, tunnel.downs.get());
+        assertFalse(tunnel.isAlive());
+        assertFalse(sm.isUp());
+    }
+
+    @Test
+    public void keepsTunnelUpUntilIdleTimeout() throws Exception {
+        ScriptTunnel tunnel = new ScriptTunnel("0", 0);
+        VPNSessionManager sm = new VPNSessionManager(tunnel, 500);
+        UUID poll = UUID.randomUUID();
+        sm.acquire(poll);
+        sm.release(poll);
+        assertTrue(sm.isUp());
+        // work which follows soon afterwards reuses the tunnel
+        UUID ack = UUID.randomUUID();
+        sm.acquire(ack);
+        sm.release(ack);
+        assertEquals(1, tunnel.ups.get());
+        assertEquals(0, tunnel.downs.get());
+        Thread.sleep(1500);
+        assertEquals(1, tunnel.downs.get());
+        assertFalse(sm.isUp());
+        sm.shutdown();
+    }
+
+    @Test
+    public void reconnectsDeadTunnel() throws Exception {
+        ScriptTunnel tunnel = new ScriptTunnel("0", 0);
+        VPNSessionManager sm = new VPNSessionManager(tunnel, 60000);
+        UUID first = UUID.randomUUID();
+        sm.acquire(first);
+        sm.release(first);
+        // the tunnel drops while it is idle
+        assertTrue(tunnel.state.delete());
+        UUID second = UUID.randomUUID();
+        sm.acquire(second);
+        assertTrue(tunnel.isAlive());
+        assertEquals(2, sm.getConnectCount());
+        assertEquals(1, sm.getDeadTunnelCount());
+        sm.shutdown();
+        assertFalse(tunnel.isAlive());
+    }
+
+    @Test
+    public void failedConnectDoesNotHoldSession() throws Exception {
+        ScriptTunnel tunnel = new ScriptTunnel("0", 1);
+        VPNSessionManager sm = new VPNSessionManager(tunnel, 0);
+        try {
+            sm.acquire(UUID.randomUUID());
+            fail("The tunnel should not have come up");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(0, sm.getSessionCount());
+        assertFalse(sm.isUp());
+        assertEquals(-1L, sm.getLastConnectLatency());
+    }
+
+    @Test
+    public void reportsConnectLatency() throws Exception {
+        ScriptTunnel tunnel = new ScriptTunnel("0.3", 0);
+        VPNSessionManager sm = new VPNSessionManager(tunnel, 0);
+        UUID uuid = UUID.randomUUID();
+        sm.acquire(uuid);
+        sm.release(uuid);
+        assertTrue(sm.getLastConnectLatency() >= 300);
+        assertEquals(sm.getLastConnectLatency(), sm.getMeanConnectLatency());
+    }
+}